@@ -0,0 +1,198 @@
+//License
+/**
+ * *
+ * Java Modbus Library (j2mod) Copyright 2012, Julianne Frances Haugh d/b/a
+ * greenHouse Gas and Electric All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. *
+ */
+package com.ghgande.j2mod.modbus.benchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.io.BytesInputStream;
+import com.ghgande.j2mod.modbus.io.BytesOutputStream;
+import com.ghgande.j2mod.modbus.msg.ModbusPDU;
+import com.ghgande.j2mod.modbus.msg.ModbusPDUCodec;
+import com.ghgande.j2mod.modbus.msg.ReadMultipleRegistersRequest;
+import com.ghgande.j2mod.modbus.msg.ReadMultipleRegistersResponse;
+import com.ghgande.j2mod.modbus.msg.WriteMultipleRegistersRequest;
+import com.ghgande.j2mod.modbus.procimg.Register;
+import com.ghgande.j2mod.modbus.procimg.SimpleRegister;
+
+/**
+ * Measures encoding and decoding of Modbus/TCP register messages, with the
+ * message classes and with the <tt>ModbusPDU</tt> codec.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageCodecBenchmark {
+
+    /**
+     * The largest register counts of a read (FC3) and a write (FC16).
+     */
+    private static final int COUNT = 125;
+    private static final int WRITE_COUNT = 123;
+
+    private final BytesOutputStream m_Out
+            = new BytesOutputStream(Modbus.MAX_MESSAGE_LENGTH + 6);
+    private final BytesInputStream m_In
+            = new BytesInputStream(Modbus.MAX_MESSAGE_LENGTH + 6);
+    private final ByteBuffer m_Buffer
+            = ByteBuffer.allocate(Modbus.MAX_MESSAGE_LENGTH + 6);
+    private final ModbusPDU m_PDU = new ModbusPDU();
+    private final short[] m_Values = new short[COUNT];
+
+    private ReadMultipleRegistersRequest m_ReadRequest;
+    private WriteMultipleRegistersRequest m_WriteRequest;
+    private byte[] m_ReadRequestFrame;
+    private byte[] m_ReadResponseFrame;
+    private byte[] m_WriteRequestFrame;
+
+    @Setup
+    public void setup() throws IOException {
+        Register[] registers = new Register[COUNT];
+        for (int i = 0; i < COUNT; i++) {
+            registers[i] = new SimpleRegister(i);
+            m_Values[i] = (short) i;
+        }
+        m_ReadRequest = new ReadMultipleRegistersRequest(0, COUNT);
+        m_WriteRequest = new WriteMultipleRegistersRequest(0,
+                Arrays.copyOf(registers, WRITE_COUNT));
+
+        m_ReadRequestFrame = frame(m_ReadRequest.getMessage(),
+                Modbus.READ_MULTIPLE_REGISTERS);
+        m_ReadResponseFrame = frame(
+                new ReadMultipleRegistersResponse(registers).getMessage(),
+                Modbus.READ_MULTIPLE_REGISTERS);
+        m_WriteRequestFrame = frame(m_WriteRequest.getMessage(),
+                Modbus.WRITE_MULTIPLE_REGISTERS);
+    }
+
+    /**
+     * Builds a Modbus/TCP frame around the data of a message.
+     */
+    private static byte[] frame(byte[] data, int functionCode) {
+        ByteBuffer buf = ByteBuffer.allocate(data.length + 8);
+        ModbusPDUCodec.putMBAPHeader(buf, 1, 0, data.length + 1);
+        ModbusPDUCodec.putPDU(buf, functionCode, data, 0, data.length);
+
+        return buf.array();
+    }
+
+    @Benchmark
+    public int encodeReadRequest() throws IOException {
+        m_Out.reset();
+        m_ReadRequest.writeTo(m_Out);
+        return m_Out.size();
+    }
+
+    @Benchmark
+    public int encodeReadRequestPDU() {
+        m_Buffer.clear();
+        ModbusPDUCodec.putMBAPHeader(m_Buffer, 1, 0, 5);
+        ModbusPDUCodec.putReadRequest(m_Buffer, Modbus.READ_MULTIPLE_REGISTERS,
+                0, COUNT);
+        return m_Buffer.position();
+    }
+
+    @Benchmark
+    public void decodeReadRequest(Blackhole bh) throws IOException {
+        m_In.reset(m_ReadRequestFrame, m_ReadRequestFrame.length);
+        ReadMultipleRegistersRequest request = new ReadMultipleRegistersRequest();
+        request.readFrom(m_In);
+        bh.consume(request.getWordCount());
+    }
+
+    @Benchmark
+    public void decodeReadResponse(Blackhole bh) throws IOException {
+        m_In.reset(m_ReadResponseFrame, m_ReadResponseFrame.length);
+        ReadMultipleRegistersResponse response
+                = new ReadMultipleRegistersResponse();
+        response.readFrom(m_In);
+        for (int i = 0; i < response.getWordCount(); i++) {
+            bh.consume(response.getRegisterValue(i));
+        }
+    }
+
+    @Benchmark
+    public void decodeReadResponsePDU(Blackhole bh) {
+        ByteBuffer frame = ByteBuffer.wrap(m_ReadResponseFrame);
+        m_PDU.wrapResponse(frame, ModbusPDUCodec.MBAP_LENGTH,
+                ModbusPDUCodec.getPDULength(frame, 0));
+        for (int i = 0; i < m_PDU.getRegisterCount(); i++) {
+            bh.consume(m_PDU.getRegister(i));
+        }
+    }
+
+    @Benchmark
+    public int encodeWriteRequest() throws IOException {
+        m_Out.reset();
+        m_WriteRequest.writeTo(m_Out);
+        return m_Out.size();
+    }
+
+    @Benchmark
+    public int encodeWriteRequestPDU() {
+        m_Buffer.clear();
+        ModbusPDUCodec.putMBAPHeader(m_Buffer, 1, 0, 0);
+        ModbusPDUCodec.putWriteRegistersRequest(m_Buffer, 0, m_Values, 0,
+                WRITE_COUNT);
+        ModbusPDUCodec.finishMBAPFrame(m_Buffer, 0);
+        return m_Buffer.position();
+    }
+
+    @Benchmark
+    public void decodeWriteRequest(Blackhole bh) throws IOException {
+        m_In.reset(m_WriteRequestFrame, m_WriteRequestFrame.length);
+        WriteMultipleRegistersRequest request
+                = new WriteMultipleRegistersRequest();
+        request.readFrom(m_In);
+        for (int i = 0; i < request.getWordCount(); i++) {
+            bh.consume(request.getRegisterValue(i));
+        }
+    }
+}
@@ -0,0 +1,112 @@
+//License
+/**
+ * *
+ * Java Modbus Library (j2mod) Copyright 2012, Julianne Frances Haugh d/b/a
+ * greenHouse Gas and Electric All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. *
+ */
+package com.ghgande.j2mod.modbus.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ghgande.j2mod.modbus.procimg.DenseProcessImage;
+import com.ghgande.j2mod.modbus.procimg.Register;
+import com.ghgande.j2mod.modbus.procimg.SimpleProcessImage;
+import com.ghgande.j2mod.modbus.procimg.SimpleRegister;
+
+/**
+ * Measures range reads from a process image with 65536 holding registers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProcessImageBenchmark {
+
+    private static final int SIZE = 65536;
+
+    /**
+     * The number of registers read: one, and the largest FC3 request.
+     */
+    @Param({"1", "125"})
+    public int count;
+
+    private SimpleProcessImage m_Simple;
+    private DenseProcessImage m_Dense;
+    private short[] m_Values;
+    private int m_Ref;
+
+    @Setup
+    public void setup() {
+        m_Simple = new SimpleProcessImage();
+        m_Dense = new DenseProcessImage(0, 0, 0, 0, SIZE);
+        for (int i = 0; i < SIZE; i++) {
+            m_Simple.addRegister(new SimpleRegister(i));
+            m_Dense.setRegisterValue(i, i);
+        }
+        m_Values = new short[count];
+    }
+
+    /**
+     * Returns the next reference to read, so successive reads touch different
+     * parts of the image.
+     */
+    private int nextRef() {
+        m_Ref = (m_Ref + 4099) & (SIZE - 1);
+        return Math.min(m_Ref, SIZE - count);
+    }
+
+    @Benchmark
+    public Register[] simpleGetRegisterRange() {
+        return m_Simple.getRegisterRange(nextRef(), count);
+    }
+
+    @Benchmark
+    public Register[] denseGetRegisterRange() {
+        return m_Dense.getRegisterRange(nextRef(), count);
+    }
+
+    @Benchmark
+    public short[] denseReadRegisters() {
+        m_Dense.readRegisters(nextRef(), m_Values, 0, count);
+        return m_Values;
+    }
+}
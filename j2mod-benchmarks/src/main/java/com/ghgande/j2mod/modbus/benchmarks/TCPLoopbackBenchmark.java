@@ -0,0 +1,149 @@
+//License
+/**
+ * *
+ * Java Modbus Library (j2mod) Copyright 2012, Julianne Frances Haugh d/b/a
+ * greenHouse Gas and Electric All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. *
+ */
+package com.ghgande.j2mod.modbus.benchmarks;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ghgande.j2mod.modbus.facade.ModbusTCPMaster;
+import com.ghgande.j2mod.modbus.net.ModbusListener;
+import com.ghgande.j2mod.modbus.net.ModbusNIOTCPListener;
+import com.ghgande.j2mod.modbus.net.ModbusTCPListener;
+import com.ghgande.j2mod.modbus.procimg.Register;
+import com.ghgande.j2mod.modbus.procimg.SimpleProcessImage;
+import com.ghgande.j2mod.modbus.procimg.SimpleRegister;
+
+/**
+ * Measures end-to-end Modbus/TCP round trips between <tt>ModbusTCPMaster</tt>
+ * and a listener over the loopback interface.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TCPLoopbackBenchmark {
+
+    private static final int PORT = 15020;
+
+    /**
+     * How long to wait for the listener to accept connections, in
+     * milliseconds.
+     */
+    private static final int CONNECT_TIMEOUT = 5000;
+
+    /**
+     * The TCP listener implementation: the thread pool listener or the NIO
+     * listener.
+     */
+    @Param({"pool", "nio"})
+    public String listener;
+
+    /**
+     * The number of registers read per request.
+     */
+    @Param({"1", "125"})
+    public int count;
+
+    private ModbusListener m_Listener;
+    private ModbusTCPMaster m_Master;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        SimpleProcessImage image = new SimpleProcessImage();
+        for (int i = 0; i < 125; i++) {
+            image.addRegister(new SimpleRegister(i));
+        }
+
+        if ("nio".equals(listener)) {
+            ModbusNIOTCPListener nio = new ModbusNIOTCPListener(1, 1, 64,
+                    loopback);
+            nio.setPort(PORT);
+            m_Listener = nio;
+        } else {
+            ModbusTCPListener pool = new ModbusTCPListener(2, loopback);
+            pool.setPort(PORT);
+            m_Listener = pool;
+        }
+        m_Listener.setProcessImage(image);
+        m_Listener.listen();
+
+        m_Master = new ModbusTCPMaster("127.0.0.1", PORT);
+        connect(m_Master);
+    }
+
+    /**
+     * Connects the master, retrying while the listener thread has not yet
+     * bound its socket.
+     */
+    private static void connect(ModbusTCPMaster master) throws Exception {
+        long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+        while (true) {
+            try {
+                master.connect();
+                return;
+            } catch (Exception ex) {
+                if (System.currentTimeMillis() >= deadline) {
+                    throw ex;
+                }
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        m_Master.disconnect();
+        m_Listener.stop();
+    }
+
+    @Benchmark
+    public Register[] readMultipleRegisters() throws Exception {
+        return m_Master.readMultipleRegisters(0, count);
+    }
+}
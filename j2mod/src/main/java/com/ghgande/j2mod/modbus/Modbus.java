@@ -183,6 +183,12 @@ public interface Modbus {
      */
     public static final int MAX_BITS = 2000;
 
+    /**
+     * Defines the maximum number of registers in a multiple read of input or
+     * holding registers (<b>125</b>).
+     */
+    public static final int MAX_REGISTERS = 125;
+
     /**
      * Defines the Modbus slave exception offset that is added to the function
      * code, to flag an exception.
@@ -295,6 +301,12 @@ public interface Modbus {
      */
     public static final boolean DEFAULT_RECONNECTING = false;
 
+    /**
+     * Defines the default adaptive timeout setting for transactions
+     * (=<tt>false</tt>).
+     */
+    public static final boolean DEFAULT_ADAPTIVE_TIMEOUT = false;
+
     /**
      * Defines the default amount of retires for opening a connection
      * (=<tt>3</tt>).
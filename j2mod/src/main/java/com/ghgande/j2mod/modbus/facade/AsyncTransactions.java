@@ -0,0 +1,325 @@
+//License
+/**
+ * *
+ * Java Modbus Library (j2mod) Copyright 2012, Julianne Frances Haugh d/b/a
+ * greenHouse Gas and Electric All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. *
+ */
+package com.ghgande.j2mod.modbus.facade;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.ModbusIOException;
+import com.ghgande.j2mod.modbus.ModbusSlaveException;
+import com.ghgande.j2mod.modbus.io.ModbusTransaction;
+import com.ghgande.j2mod.modbus.msg.*;
+import com.ghgande.j2mod.modbus.procimg.InputRegister;
+import com.ghgande.j2mod.modbus.procimg.Register;
+import com.ghgande.j2mod.modbus.util.BitVector;
+import com.ghgande.j2mod.modbus.util.ThreadFactories;
+
+/**
+ * Helpers shared by the asynchronous methods of the master facades.
+ */
+final class AsyncTransactions {
+
+    /**
+     * The number of threads shared by the facades without an executor of
+     * their own.
+     */
+    private static final int SHARED_THREADS = 8;
+
+    private static ScheduledExecutorService c_Timer;
+    private static ThreadPoolExecutor c_Shared;
+
+    private AsyncTransactions() {
+    }
+
+    /**
+     * Returns the timer used to enforce request timeouts. A single daemon
+     * thread serves all facades.
+     */
+    static synchronized ScheduledExecutorService getTimer() {
+        if (c_Timer == null) {
+            c_Timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "Modbus async timer");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return c_Timer;
+    }
+
+    /**
+     * Returns the pool of daemon threads shared by the default executors of
+     * all facades. Idle threads terminate after a minute.
+     */
+    static synchronized Executor getSharedExecutor() {
+        if (c_Shared == null) {
+            c_Shared = new ThreadPoolExecutor(SHARED_THREADS, SHARED_THREADS,
+                    60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    ThreadFactories.platform("Modbus async", true));
+            c_Shared.allowCoreThreadTimeOut(true);
+        }
+        return c_Shared;
+    }
+
+    /**
+     * Creates the default executor of a facade. Its transactions run one at
+     * a time, in the order they were issued, on the shared pool, so a
+     * facade occupies a thread only while it has a transaction to execute.
+     */
+    static Executor newDefaultExecutor() {
+        return new SerialExecutor(getSharedExecutor());
+    }
+
+    /**
+     * Fails the future with a <tt>ModbusIOException</tt> if it has not been
+     * completed within the timeout.
+     */
+    static <T> CompletableFuture<T> withTimeout(CompletableFuture<T> future,
+            int timeout) {
+        if (timeout <= 0 || future.isDone()) {
+            return future;
+        }
+        ScheduledFuture<?> task = getTimer().schedule(()
+                -> future.completeExceptionally(
+                        new ModbusIOException("Timeout after " + timeout + " ms")),
+                timeout, TimeUnit.MILLISECONDS);
+        future.whenComplete((result, ex) -> task.cancel(false));
+
+        return future;
+    }
+
+    /**
+     * Executes a transaction on the executor.
+     *
+     * <p>
+     * A transaction whose future has timed out before it started is skipped.
+     * A transaction which is running when its future times out is
+     * interrupted, so it gives up at its next interruptible wait instead of
+     * holding up the transactions queued behind it.
+     */
+    static CompletableFuture<ModbusResponse> execute(Executor executor,
+            ModbusTransaction transaction, int timeout) {
+        CompletableFuture<ModbusResponse> result = new CompletableFuture<>();
+        Thread[] runner = new Thread[1];
+        try {
+            executor.execute(() -> {
+                synchronized (runner) {
+                    if (result.isDone()) {
+                        return;
+                    }
+                    runner[0] = Thread.currentThread();
+                }
+                try {
+                    transaction.execute();
+                    result.complete(transaction.getResponse());
+                } catch (ModbusException | RuntimeException ex) {
+                    result.completeExceptionally(ex);
+                } finally {
+                    synchronized (runner) {
+                        runner[0] = null;
+                    }
+                    /*
+                     * Clear an interrupt which arrived too late to matter, so
+                     * it does not hit the next task of the thread.
+                     */
+                    Thread.interrupted();
+                }
+            });
+        } catch (RuntimeException ex) {
+            result.completeExceptionally(ex);
+        }
+        result.whenComplete((response, ex) -> {
+            synchronized (runner) {
+                if (runner[0] != null && runner[0] != Thread.currentThread()) {
+                    runner[0].interrupt();
+                }
+            }
+        });
+        return withTimeout(result, timeout);
+    }
+
+    /**
+     * Turns an exception response into a <tt>ModbusSlaveException</tt>, as
+     * the blocking transactions do.
+     */
+    static CompletableFuture<ModbusResponse> checkResponse(
+            CompletableFuture<ModbusResponse> future) {
+        return future.thenCompose(response -> {
+            if (response instanceof ExceptionResponse) {
+                CompletableFuture<ModbusResponse> failed
+                        = new CompletableFuture<>();
+                failed.completeExceptionally(new ModbusSlaveException(
+                        ((ExceptionResponse) response).getExceptionCode()));
+                return failed;
+            }
+            return CompletableFuture.completedFuture(response);
+        });
+    }
+
+    /**
+     * Sends a request and returns a future for the response, as the
+     * <tt>executeAsync</tt> methods of the facades do.
+     */
+    interface Sender {
+
+        CompletableFuture<ModbusResponse> send(ModbusRequest request,
+                int timeout);
+    }
+
+    /*
+     * Requests of the facades.
+     */
+    static CompletableFuture<BitVector> readCoils(Sender sender, int unitid,
+            int ref, int count, int timeout) {
+        ReadCoilsRequest request = new ReadCoilsRequest(ref, count);
+        request.setUnitID(unitid);
+        return sender.send(request, timeout).thenApply(response -> {
+            BitVector bv = ((ReadCoilsResponse) response).getCoils();
+            bv.forceSize(count);
+            return bv;
+        });
+    }
+
+    static CompletableFuture<Boolean> writeCoil(Sender sender, int unitid,
+            int ref, boolean state, int timeout) {
+        WriteCoilRequest request = new WriteCoilRequest(ref, state);
+        request.setUnitID(unitid);
+        return sender.send(request, timeout).thenApply(response
+                -> ((WriteCoilResponse) response).getCoil());
+    }
+
+    static CompletableFuture<Void> writeMultipleCoils(Sender sender,
+            int unitid, int ref, BitVector coils, int timeout) {
+        WriteMultipleCoilsRequest request = new WriteMultipleCoilsRequest(ref,
+                coils);
+        request.setUnitID(unitid);
+        return sender.send(request, timeout).thenApply(response -> null);
+    }
+
+    static CompletableFuture<BitVector> readInputDiscretes(Sender sender,
+            int unitid, int ref, int count, int timeout) {
+        ReadInputDiscretesRequest request = new ReadInputDiscretesRequest(ref,
+                count);
+        request.setUnitID(unitid);
+        return sender.send(request, timeout).thenApply(response -> {
+            BitVector bv = ((ReadInputDiscretesResponse) response).getDiscretes();
+            bv.forceSize(count);
+            return bv;
+        });
+    }
+
+    static CompletableFuture<InputRegister[]> readInputRegisters(
+            Sender sender, int unitid, int ref, int count, int timeout) {
+        ReadInputRegistersRequest request = new ReadInputRegistersRequest(ref,
+                count);
+        request.setUnitID(unitid);
+        return sender.send(request, timeout).thenApply(response
+                -> ((ReadInputRegistersResponse) response).getRegisters());
+    }
+
+    static CompletableFuture<Register[]> readMultipleRegisters(Sender sender,
+            int unitid, int ref, int count, int timeout) {
+        ReadMultipleRegistersRequest request = new ReadMultipleRegistersRequest(
+                ref, count);
+        request.setUnitID(unitid);
+        return sender.send(request, timeout).thenApply(response
+                -> ((ReadMultipleRegistersResponse) response).getRegisters());
+    }
+
+    static CompletableFuture<Void> writeSingleRegister(Sender sender,
+            int unitid, int ref, Register register, int timeout) {
+        WriteSingleRegisterRequest request = new WriteSingleRegisterRequest(ref,
+                register);
+        request.setUnitID(unitid);
+        return sender.send(request, timeout).thenApply(response -> null);
+    }
+
+    static CompletableFuture<Void> writeMultipleRegisters(Sender sender,
+            int unitid, int ref, Register[] registers, int timeout) {
+        WriteMultipleRegistersRequest request = new WriteMultipleRegistersRequest(
+                ref, registers);
+        request.setUnitID(unitid);
+        return sender.send(request, timeout).thenApply(response -> null);
+    }
+
+    /**
+     * Returns a future which has failed with the given exception.
+     */
+    static <T> CompletableFuture<T> failed(Throwable ex) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        result.completeExceptionally(ex);
+        return result;
+    }
+
+    /**
+     * Runs tasks one at a time, in the order they were submitted, on another
+     * executor.
+     */
+    private static final class SerialExecutor implements Executor {
+
+        private final Executor m_Executor;
+        private final ArrayDeque<Runnable> m_Tasks = new ArrayDeque<>();
+        private Runnable m_Active;
+
+        SerialExecutor(Executor executor) {
+            m_Executor = executor;
+        }
+
+        @Override
+        public synchronized void execute(Runnable task) {
+            m_Tasks.add(() -> {
+                try {
+                    task.run();
+                } finally {
+                    scheduleNext();
+                }
+            });
+            if (m_Active == null) {
+                scheduleNext();
+            }
+        }
+
+        private synchronized void scheduleNext() {
+            m_Active = m_Tasks.poll();
+            if (m_Active != null) {
+                m_Executor.execute(m_Active);
+            }
+        }
+    }
+}
@@ -33,7 +33,10 @@ package com.ghgande.j2mod.modbus.facade;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
+import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.ModbusException;
 import com.ghgande.j2mod.modbus.io.ModbusUDPTransaction;
 import com.ghgande.j2mod.modbus.msg.*;
@@ -61,6 +64,7 @@ public class ModbusUDPMaster {
     private ReadMultipleRegistersRequest m_ReadMultipleRegistersRequest;
     private WriteSingleRegisterRequest m_WriteSingleRegisterRequest;
     private WriteMultipleRegistersRequest m_WriteMultipleRegistersRequest;
+    private Executor m_Executor;
 
     /**
      * Constructs a new master facade instance for communication with a given
@@ -286,4 +290,325 @@ public class ModbusUDPMaster {
         m_Transaction.execute();
     }//writeMultipleRegisters
 
+    /**
+     * Reads the tags of a read plan, sending its requests one after the
+     * other.
+     *
+     * @param plan the <tt>ReadPlan</tt> to execute.
+     * @throws ModbusException if an I/O error or a transaction error
+     * occurs. Slave exceptions are stored in the affected tags.
+     */
+    public synchronized void read(ReadPlan plan) throws ModbusException {
+        plan.execute(m_Transaction);
+    }//read
+
+    /**
+     * Reads the tags of a read plan without blocking the calling thread.
+     *
+     * @param plan the <tt>ReadPlan</tt> to execute.
+     * @return a future which is completed when all tags have been read or
+     * marked as failed.
+     */
+    public CompletableFuture<Void> readAsync(ReadPlan plan) {
+        return plan.executeAsync(this::executeAsync);
+    }//readAsync
+
+    /**
+     * Sets the executor used to run asynchronous transactions. If none is
+     * set, they are executed one at a time, in the order they were issued,
+     * on a small pool of daemon threads shared by all facades.
+     *
+     * @param executor the <tt>Executor</tt> to use.
+     */
+    public synchronized void setExecutor(Executor executor) {
+        m_Executor = executor;
+    }//setExecutor
+
+    /**
+     * Returns the executor used to run asynchronous transactions.
+     *
+     * @return the <tt>Executor</tt> of this facade.
+     */
+    public synchronized Executor getExecutor() {
+        if (m_Executor == null) {
+            m_Executor = AsyncTransactions.newDefaultExecutor();
+        }
+        return m_Executor;
+    }//getExecutor
+
+    /**
+     * Returns the timeout used by the asynchronous methods which do not take
+     * one.
+     */
+    private int getDefaultTimeout() {
+        return m_Connection.getTimeout();
+    }//getDefaultTimeout
+
+    /**
+     * Executes a request without blocking the calling thread.
+     *
+     * <p>
+     * The transaction is run on the executor of this facade.
+     *
+     * <p>
+     * The returned future fails with a <tt>ModbusSlaveException</tt> if the
+     * slave answers with an exception response, and with a
+     * <tt>ModbusIOException</tt> if no response arrives within the timeout.
+     *
+     * @param request the <tt>ModbusRequest</tt> to execute. It must not be
+     * modified until the future has completed.
+     * @param timeout the time to wait for the response in milliseconds.
+     * @return a future which is completed with the response.
+     */
+    public CompletableFuture<ModbusResponse> executeAsync(ModbusRequest request,
+            int timeout) {
+        if (m_Connection == null || !m_Connection.isConnected()) {
+            return AsyncTransactions.failed(new ModbusException("Not connected"));
+        }
+        ModbusUDPTransaction transaction = new ModbusUDPTransaction(m_Connection);
+        transaction.setRequest(request);
+        return AsyncTransactions.execute(getExecutor(), transaction, timeout);
+    }//executeAsync
+
+    /**
+     * Executes a request without blocking the calling thread, using the
+     * timeout of the connection.
+     *
+     * @param request the <tt>ModbusRequest</tt> to execute.
+     * @return a future which is completed with the response.
+     */
+    public CompletableFuture<ModbusResponse> executeAsync(ModbusRequest request) {
+        return executeAsync(request, getDefaultTimeout());
+    }//executeAsync
+
+    /**
+     * Reads a given number of coil states from the slave, without blocking
+     * the calling thread.
+     *
+     * @param ref the offset of the coil to start reading from.
+     * @param count the number of coil states to be read.
+     * @param timeout the time to wait for the response in milliseconds.
+     * @return a future which is completed with the coil states.
+     */
+    public CompletableFuture<BitVector> readCoilsAsync(int ref, int count,
+            int timeout) {
+        return AsyncTransactions.readCoils(this::executeAsync,
+                Modbus.DEFAULT_UNIT_ID, ref, count, timeout);
+    }//readCoilsAsync
+
+    /**
+     * Asynchronous form of <tt>readCoils</tt>, using the timeout of the connection.
+     *
+     * @param ref the offset of the coil to start reading from.
+     * @param count the number of coil states to be read.
+     * @return a future which is completed with the coil states.
+     */
+    public CompletableFuture<BitVector> readCoilsAsync(int ref, int count) {
+        return readCoilsAsync(ref, count, getDefaultTimeout());
+    }//readCoilsAsync
+
+    /**
+     * Writes a coil state to the slave, without blocking the calling thread.
+     *
+     * @param unitid the slave unit id.
+     * @param ref the offset of the coil to be written.
+     * @param state the coil state to be written.
+     * @param timeout the time to wait for the response in milliseconds.
+     * @return a future which is completed with the state of the coil as
+     * returned from the slave.
+     */
+    public CompletableFuture<Boolean> writeCoilAsync(int unitid, int ref,
+            boolean state, int timeout) {
+        return AsyncTransactions.writeCoil(this::executeAsync,
+                unitid, ref, state, timeout);
+    }//writeCoilAsync
+
+    /**
+     * Asynchronous form of <tt>writeCoil</tt>, using the timeout of the connection.
+     *
+     * @param unitid the slave unit id.
+     * @param ref the offset of the coil to be written.
+     * @param state the coil state to be written.
+     * @return a future which is completed with the state of the coil as
+     * returned from the slave.
+     */
+    public CompletableFuture<Boolean> writeCoilAsync(int unitid, int ref,
+            boolean state) {
+        return writeCoilAsync(unitid, ref, state, getDefaultTimeout());
+    }//writeCoilAsync
+
+    /**
+     * Writes a given number of coil states to the slave, without blocking the
+     * calling thread.
+     *
+     * @param ref the offset of the coil to start writing to.
+     * @param coils a <tt>BitVector</tt> which holds the coil states to be
+     * written.
+     * @param timeout the time to wait for the response in milliseconds.
+     * @return a future which is completed with <tt>null</tt> once the slave
+     * has confirmed the write.
+     */
+    public CompletableFuture<Void> writeMultipleCoilsAsync(int ref,
+            BitVector coils, int timeout) {
+        return AsyncTransactions.writeMultipleCoils(this::executeAsync,
+                Modbus.DEFAULT_UNIT_ID, ref, coils, timeout);
+    }//writeMultipleCoilsAsync
+
+    /**
+     * Asynchronous form of <tt>writeMultipleCoils</tt>, using the timeout of the connection.
+     *
+     * @param ref the offset of the coil to start writing to.
+     * @param coils a <tt>BitVector</tt> which holds the coil states to be
+     * written.
+     * @return a future which is completed with <tt>null</tt> once the slave
+     * has confirmed the write.
+     */
+    public CompletableFuture<Void> writeMultipleCoilsAsync(int ref,
+            BitVector coils) {
+        return writeMultipleCoilsAsync(ref, coils, getDefaultTimeout());
+    }//writeMultipleCoilsAsync
+
+    /**
+     * Reads a given number of input discrete states from the slave, without
+     * blocking the calling thread.
+     *
+     * @param ref the offset of the input discrete to start reading from.
+     * @param count the number of input discrete states to be read.
+     * @param timeout the time to wait for the response in milliseconds.
+     * @return a future which is completed with the input discrete states.
+     */
+    public CompletableFuture<BitVector> readInputDiscretesAsync(int ref,
+            int count, int timeout) {
+        return AsyncTransactions.readInputDiscretes(this::executeAsync,
+                Modbus.DEFAULT_UNIT_ID, ref, count, timeout);
+    }//readInputDiscretesAsync
+
+    /**
+     * Asynchronous form of <tt>readInputDiscretes</tt>, using the timeout of the connection.
+     *
+     * @param ref the offset of the input discrete to start reading from.
+     * @param count the number of input discrete states to be read.
+     * @return a future which is completed with the input discrete states.
+     */
+    public CompletableFuture<BitVector> readInputDiscretesAsync(int ref,
+            int count) {
+        return readInputDiscretesAsync(ref, count, getDefaultTimeout());
+    }//readInputDiscretesAsync
+
+    /**
+     * Reads a given number of input registers from the slave, without
+     * blocking the calling thread.
+     *
+     * @param ref the offset of the input register to start reading from.
+     * @param count the number of input registers to be read.
+     * @param timeout the time to wait for the response in milliseconds.
+     * @return a future which is completed with the received input registers.
+     */
+    public CompletableFuture<InputRegister[]> readInputRegistersAsync(int ref,
+            int count, int timeout) {
+        return AsyncTransactions.readInputRegisters(this::executeAsync,
+                Modbus.DEFAULT_UNIT_ID, ref, count, timeout);
+    }//readInputRegistersAsync
+
+    /**
+     * Asynchronous form of <tt>readInputRegisters</tt>, using the timeout of the connection.
+     *
+     * @param ref the offset of the input register to start reading from.
+     * @param count the number of input registers to be read.
+     * @return a future which is completed with the received input registers.
+     */
+    public CompletableFuture<InputRegister[]> readInputRegistersAsync(int ref,
+            int count) {
+        return readInputRegistersAsync(ref, count, getDefaultTimeout());
+    }//readInputRegistersAsync
+
+    /**
+     * Reads a given number of registers from the slave, without blocking the
+     * calling thread.
+     *
+     * @param ref the offset of the register to start reading from.
+     * @param count the number of registers to be read.
+     * @param timeout the time to wait for the response in milliseconds.
+     * @return a future which is completed with the received registers.
+     */
+    public CompletableFuture<Register[]> readMultipleRegistersAsync(int ref,
+            int count, int timeout) {
+        return AsyncTransactions.readMultipleRegisters(this::executeAsync,
+                Modbus.DEFAULT_UNIT_ID, ref, count, timeout);
+    }//readMultipleRegistersAsync
+
+    /**
+     * Asynchronous form of <tt>readMultipleRegisters</tt>, using the timeout of the connection.
+     *
+     * @param ref the offset of the register to start reading from.
+     * @param count the number of registers to be read.
+     * @return a future which is completed with the received registers.
+     */
+    public CompletableFuture<Register[]> readMultipleRegistersAsync(int ref,
+            int count) {
+        return readMultipleRegistersAsync(ref, count, getDefaultTimeout());
+    }//readMultipleRegistersAsync
+
+    /**
+     * Writes a single register to the slave, without blocking the calling
+     * thread.
+     *
+     * @param ref the offset of the register to be written.
+     * @param register a <tt>Register</tt> holding the value of the register to
+     * be written.
+     * @param timeout the time to wait for the response in milliseconds.
+     * @return a future which is completed with <tt>null</tt> once the slave
+     * has confirmed the write.
+     */
+    public CompletableFuture<Void> writeSingleRegisterAsync(int ref,
+            Register register, int timeout) {
+        return AsyncTransactions.writeSingleRegister(this::executeAsync,
+                Modbus.DEFAULT_UNIT_ID, ref, register, timeout);
+    }//writeSingleRegisterAsync
+
+    /**
+     * Asynchronous form of <tt>writeSingleRegister</tt>, using the timeout of the connection.
+     *
+     * @param ref the offset of the register to be written.
+     * @param register a <tt>Register</tt> holding the value of the register to
+     * be written.
+     * @return a future which is completed with <tt>null</tt> once the slave
+     * has confirmed the write.
+     */
+    public CompletableFuture<Void> writeSingleRegisterAsync(int ref,
+            Register register) {
+        return writeSingleRegisterAsync(ref, register, getDefaultTimeout());
+    }//writeSingleRegisterAsync
+
+    /**
+     * Writes a number of registers to the slave, without blocking the calling
+     * thread.
+     *
+     * @param ref the offset of the register to start writing to.
+     * @param registers a <tt>Register[]</tt> holding the values of the
+     * registers to be written.
+     * @param timeout the time to wait for the response in milliseconds.
+     * @return a future which is completed with <tt>null</tt> once the slave
+     * has confirmed the write.
+     */
+    public CompletableFuture<Void> writeMultipleRegistersAsync(int ref,
+            Register[] registers, int timeout) {
+        return AsyncTransactions.writeMultipleRegisters(this::executeAsync,
+                Modbus.DEFAULT_UNIT_ID, ref, registers, timeout);
+    }//writeMultipleRegistersAsync
+
+    /**
+     * Asynchronous form of <tt>writeMultipleRegisters</tt>, using the timeout of the connection.
+     *
+     * @param ref the offset of the register to start writing to.
+     * @param registers a <tt>Register[]</tt> holding the values of the
+     * registers to be written.
+     * @return a future which is completed with <tt>null</tt> once the slave
+     * has confirmed the write.
+     */
+    public CompletableFuture<Void> writeMultipleRegistersAsync(int ref,
+            Register[] registers) {
+        return writeMultipleRegistersAsync(ref, registers, getDefaultTimeout());
+    }//writeMultipleRegistersAsync
+
 }//class ModbusUDPMaster
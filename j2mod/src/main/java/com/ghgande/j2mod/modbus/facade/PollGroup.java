@@ -0,0 +1,327 @@
+//License
+/**
+ * *
+ * Java Modbus Library (j2mod) Copyright 2012, Julianne Frances Haugh d/b/a
+ * greenHouse Gas and Electric All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. *
+ */
+package com.ghgande.j2mod.modbus.facade;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.ghgande.j2mod.modbus.ModbusException;
+
+/**
+ * Class describing a set of tags polled periodically by a
+ * <tt>PollScheduler</tt>, together with the statistics of its polls.
+ * <p>
+ * A poll is released every <tt>period</tt> milliseconds on a fixed grid, so
+ * late polls do not make the group drift, and should complete within
+ * <tt>deadline</tt> milliseconds of its release. Cycles which are overdue
+ * when a poll completes are skipped; the next poll serves them all.
+ * <p>
+ * Jitter is the delay between the release of a poll and the moment it is
+ * started.
+ */
+public class PollGroup {
+
+    /**
+     * Interface for objects notified of the polls of a group. Listeners are
+     * called on the thread of the scheduler and should return quickly.
+     */
+    public interface Listener {
+
+        /**
+         * Called when a poll of the group completed; tags may still hold
+         * slave exceptions.
+         *
+         * @param group the <tt>PollGroup</tt> polled.
+         */
+        public void pollCompleted(PollGroup group);
+
+        /**
+         * Called when a poll of the group failed.
+         *
+         * @param group the <tt>PollGroup</tt> polled.
+         * @param ex the exception raised by the poll.
+         */
+        public void pollFailed(PollGroup group, ModbusException ex);
+    }//interface Listener
+
+    private final String m_Name;
+    private final ReadPlan m_Plan;
+    private final long m_Period;
+    private final long m_Deadline;
+    private Listener m_Listener;
+
+    /* scheduling state, guarded by the scheduler */
+    long m_Release;
+    PollScheduler m_Scheduler;
+
+    /* statistics, in nanoseconds */
+    private long m_PollCount;
+    private long m_FailureCount;
+    private long m_SkippedCount;
+    private long m_MissedDeadlineCount;
+    private long m_LastJitter;
+    private long m_MaxJitter;
+    private long m_TotalJitter;
+    private long m_LastDuration;
+    private long m_MaxDuration;
+
+    /**
+     * Constructs a new <tt>PollGroup</tt> whose deadline equals its period.
+     *
+     * @param name the name of the group.
+     * @param plan the <tt>ReadPlan</tt> executed by each poll.
+     * @param period the poll period in milliseconds.
+     */
+    public PollGroup(String name, ReadPlan plan, int period) {
+        this(name, plan, period, period);
+    }//constructor
+
+    /**
+     * Constructs a new <tt>PollGroup</tt>.
+     *
+     * @param name the name of the group.
+     * @param plan the <tt>ReadPlan</tt> executed by each poll.
+     * @param period the poll period in milliseconds.
+     * @param deadline the time in milliseconds after its release by which a
+     * poll should have completed.
+     */
+    public PollGroup(String name, ReadPlan plan, int period, int deadline) {
+        if (period <= 0 || deadline <= 0) {
+            throw new IllegalArgumentException("Period and deadline must be positive");
+        }
+        m_Name = name;
+        m_Plan = plan;
+        m_Period = period * 1000000L;
+        m_Deadline = deadline * 1000000L;
+    }//constructor
+
+    /**
+     * Returns the name of this group.
+     *
+     * @return the name.
+     */
+    public String getName() {
+        return m_Name;
+    }//getName
+
+    /**
+     * Returns the <tt>ReadPlan</tt> executed by each poll.
+     *
+     * @return the plan.
+     */
+    public ReadPlan getPlan() {
+        return m_Plan;
+    }//getPlan
+
+    /**
+     * Returns the poll period.
+     *
+     * @return the period in milliseconds.
+     */
+    public int getPeriod() {
+        return (int) (m_Period / 1000000L);
+    }//getPeriod
+
+    /**
+     * Returns the poll deadline.
+     *
+     * @return the deadline in milliseconds.
+     */
+    public int getDeadline() {
+        return (int) (m_Deadline / 1000000L);
+    }//getDeadline
+
+    /**
+     * Sets the listener notified of the polls of this group.
+     *
+     * @param listener the <tt>Listener</tt>, or null.
+     */
+    public synchronized void setListener(Listener listener) {
+        m_Listener = listener;
+    }//setListener
+
+    /**
+     * Returns the number of polls executed.
+     *
+     * @return the poll count.
+     */
+    public synchronized long getPollCount() {
+        return m_PollCount;
+    }//getPollCount
+
+    /**
+     * Returns the number of polls which failed with an exception.
+     *
+     * @return the failure count.
+     */
+    public synchronized long getFailureCount() {
+        return m_FailureCount;
+    }//getFailureCount
+
+    /**
+     * Returns the number of cycles skipped because a poll was overdue.
+     *
+     * @return the skipped cycle count.
+     */
+    public synchronized long getSkippedCount() {
+        return m_SkippedCount;
+    }//getSkippedCount
+
+    /**
+     * Returns the number of polls which completed after their deadline.
+     *
+     * @return the missed deadline count.
+     */
+    public synchronized long getMissedDeadlineCount() {
+        return m_MissedDeadlineCount;
+    }//getMissedDeadlineCount
+
+    /**
+     * Returns the jitter of the last poll.
+     *
+     * @return the jitter in microseconds.
+     */
+    public synchronized long getLastJitter() {
+        return m_LastJitter / 1000L;
+    }//getLastJitter
+
+    /**
+     * Returns the largest jitter observed.
+     *
+     * @return the jitter in microseconds.
+     */
+    public synchronized long getMaxJitter() {
+        return m_MaxJitter / 1000L;
+    }//getMaxJitter
+
+    /**
+     * Returns the average jitter of all polls.
+     *
+     * @return the jitter in microseconds.
+     */
+    public synchronized long getAverageJitter() {
+        return m_PollCount == 0 ? 0 : m_TotalJitter / m_PollCount / 1000L;
+    }//getAverageJitter
+
+    /**
+     * Returns the duration of the last poll.
+     *
+     * @return the duration in microseconds.
+     */
+    public synchronized long getLastDuration() {
+        return m_LastDuration / 1000L;
+    }//getLastDuration
+
+    /**
+     * Returns the longest duration of a poll.
+     *
+     * @return the duration in microseconds.
+     */
+    public synchronized long getMaxDuration() {
+        return m_MaxDuration / 1000L;
+    }//getMaxDuration
+
+    /**
+     * Clears the statistics of this group.
+     */
+    public synchronized void resetStatistics() {
+        m_PollCount = 0;
+        m_FailureCount = 0;
+        m_SkippedCount = 0;
+        m_MissedDeadlineCount = 0;
+        m_LastJitter = 0;
+        m_MaxJitter = 0;
+        m_TotalJitter = 0;
+        m_LastDuration = 0;
+        m_MaxDuration = 0;
+    }//resetStatistics
+
+    long period() {
+        return m_Period;
+    }//period
+
+    long deadline() {
+        return m_Release + m_Deadline;
+    }//deadline
+
+    /**
+     * Records a poll.
+     */
+    synchronized void polled(long start, long end, long skipped,
+            ModbusException ex) {
+        long jitter = Math.max(0, start - m_Release);
+        long duration = end - start;
+        m_PollCount++;
+        m_SkippedCount += skipped;
+        m_LastJitter = jitter;
+        m_MaxJitter = Math.max(m_MaxJitter, jitter);
+        m_TotalJitter += jitter;
+        m_LastDuration = duration;
+        m_MaxDuration = Math.max(m_MaxDuration, duration);
+        if (end - deadline() > 0) {
+            m_MissedDeadlineCount++;
+        }
+        if (ex != null) {
+            m_FailureCount++;
+        }
+    }//polled
+
+    /**
+     * Notifies the listener of a poll. An exception thrown by the listener
+     * is logged and does not reach the scheduler.
+     */
+    void notifyListener(ModbusException ex) {
+        Listener listener;
+        synchronized (this) {
+            listener = m_Listener;
+        }
+        if (listener == null) {
+            return;
+        }
+        try {
+            if (ex == null) {
+                listener.pollCompleted(this);
+            } else {
+                listener.pollFailed(this, ex);
+            }
+        } catch (RuntimeException rex) {
+            Logger.getLogger(PollGroup.class.getName()).log(Level.WARNING,
+                    "Listener of " + m_Name + " failed", rex);
+        }
+    }//notifyListener
+
+    public String toString() {
+        return "PollGroup[" + m_Name + ",period=" + getPeriod()
+                + ",deadline=" + getDeadline() + "]";
+    }//toString
+
+}//class PollGroup
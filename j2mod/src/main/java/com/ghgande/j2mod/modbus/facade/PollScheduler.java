@@ -0,0 +1,254 @@
+//License
+/**
+ * *
+ * Java Modbus Library (j2mod) Copyright 2012, Julianne Frances Haugh d/b/a
+ * greenHouse Gas and Electric All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. *
+ */
+package com.ghgande.j2mod.modbus.facade;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.io.ModbusTransaction;
+
+/**
+ * Class polling <tt>PollGroup</tt>s periodically over a single connection.
+ * <p>
+ * Polls are executed one at a time on the thread of the scheduler. When
+ * several polls are due, the one with the earliest deadline is executed
+ * first. The first release of each group is shifted by a fraction of its
+ * period, so groups with the same period do not all poll at once.
+ * <p>
+ * Polls can be executed by any transaction, or by the <tt>read</tt> method
+ * of a master facade:
+ * <pre>
+ * PollScheduler scheduler = new PollScheduler(master::read);
+ * </pre>
+ */
+public class PollScheduler implements Runnable {
+
+    /**
+     * Interface for the objects executing the plan of a poll.
+     */
+    public interface PlanExecutor {
+
+        /**
+         * Executes the given plan.
+         *
+         * @param plan the <tt>ReadPlan</tt> to execute.
+         * @throws ModbusException if the plan could not be executed.
+         */
+        public void execute(ReadPlan plan) throws ModbusException;
+    }//interface PlanExecutor
+
+    /* golden ratio conjugate, spreading the phases of the groups */
+    private static final double PHASE_STEP = 0.6180339887498949;
+
+    private final PlanExecutor m_Executor;
+    private final List<PollGroup> m_Groups = new ArrayList<PollGroup>();
+    private int m_Added;
+    private volatile Thread m_Thread;
+    private volatile boolean m_Running;
+
+    /**
+     * Constructs a new <tt>PollScheduler</tt> executing the polls on the
+     * given transaction.
+     *
+     * @param transaction the <tt>ModbusTransaction</tt> to use.
+     */
+    public PollScheduler(final ModbusTransaction transaction) {
+        this(new PlanExecutor() {
+            public void execute(ReadPlan plan) throws ModbusException {
+                plan.execute(transaction);
+            }
+        });
+    }//constructor
+
+    /**
+     * Constructs a new <tt>PollScheduler</tt> executing the polls with the
+     * given executor.
+     *
+     * @param executor the <tt>PlanExecutor</tt> to use.
+     */
+    public PollScheduler(PlanExecutor executor) {
+        m_Executor = executor;
+    }//constructor
+
+    /**
+     * Adds a group to this scheduler. Its first poll is released within
+     * one period.
+     *
+     * @param group the <tt>PollGroup</tt> to add.
+     * @throws IllegalStateException if the group belongs to a scheduler.
+     */
+    public synchronized void addGroup(PollGroup group) {
+        if (group.m_Scheduler != null) {
+            throw new IllegalStateException("Group is already scheduled");
+        }
+        double phase = (m_Added++ * PHASE_STEP) % 1.0;
+        group.m_Release = System.nanoTime() + (long) (phase * group.period());
+        group.m_Scheduler = this;
+        m_Groups.add(group);
+        notifyAll();
+    }//addGroup
+
+    /**
+     * Removes a group from this scheduler. A poll of the group which is in
+     * progress is completed.
+     *
+     * @param group the <tt>PollGroup</tt> to remove.
+     */
+    public synchronized void removeGroup(PollGroup group) {
+        if (m_Groups.remove(group)) {
+            group.m_Scheduler = null;
+        }
+    }//removeGroup
+
+    /**
+     * Returns the groups of this scheduler.
+     *
+     * @return a copy of the list of groups.
+     */
+    public synchronized List<PollGroup> getGroups() {
+        return new ArrayList<PollGroup>(m_Groups);
+    }//getGroups
+
+    /**
+     * Starts polling on a new daemon thread.
+     */
+    public synchronized void start() {
+        if (m_Running) {
+            return;
+        }
+        m_Running = true;
+        m_Thread = new Thread(this, "Modbus poll scheduler");
+        m_Thread.setDaemon(true);
+        m_Thread.start();
+    }//start
+
+    /**
+     * Stops polling. A poll in progress is completed.
+     */
+    public synchronized void stop() {
+        m_Running = false;
+        notifyAll();
+        m_Thread = null;
+    }//stop
+
+    /**
+     * Tests whether this scheduler is polling.
+     *
+     * @return true if running, false otherwise.
+     */
+    public boolean isRunning() {
+        return m_Running;
+    }//isRunning
+
+    public void run() {
+        while (m_Running && m_Thread == Thread.currentThread()) {
+            PollGroup group;
+            try {
+                group = nextGroup();
+            } catch (InterruptedException ex) {
+                break;
+            }
+            if (group == null) {
+                continue;
+            }
+            long start = System.nanoTime();
+            ModbusException failure = null;
+            try {
+                m_Executor.execute(group.getPlan());
+            } catch (ModbusException ex) {
+                failure = ex;
+            } catch (RuntimeException ex) {
+                Logger.getLogger(PollScheduler.class.getName()).log(Level.WARNING,
+                        "Poll of " + group.getName() + " failed", ex);
+                failure = new ModbusException(ex.toString());
+            }
+            long end = System.nanoTime();
+            schedule(group, start, end, failure);
+        }
+    }//run
+
+    /**
+     * Waits until a poll is due, and returns the due group with the earliest
+     * deadline. Returns null if the scheduler was woken up for another
+     * reason.
+     */
+    private synchronized PollGroup nextGroup() throws InterruptedException {
+        long now = System.nanoTime();
+        PollGroup next = null;
+        PollGroup due = null;
+        for (PollGroup group : m_Groups) {
+            if (group.m_Release - now <= 0) {
+                if (due == null || group.deadline() - due.deadline() < 0) {
+                    due = group;
+                }
+            } else if (next == null || group.m_Release - next.m_Release < 0) {
+                next = group;
+            }
+        }
+        if (due != null) {
+            return due;
+        }
+        if (!m_Running) {
+            return null;
+        }
+        if (next == null) {
+            wait();
+        } else {
+            long delay = next.m_Release - now;
+            wait(delay / 1000000L, (int) (delay % 1000000L));
+        }
+        return null;
+    }//nextGroup
+
+    /**
+     * Records a poll, and releases the next poll of the group at the first
+     * point of its grid which is not overdue.
+     */
+    private void schedule(PollGroup group, long start, long end,
+            ModbusException failure) {
+        long release = group.m_Release + group.period();
+        long skipped = 0;
+        if (end - release > 0) {
+            skipped = (end - release) / group.period() + 1;
+            release += skipped * group.period();
+        }
+        group.polled(start, end, skipped, failure);
+        synchronized (this) {
+            group.m_Release = release;
+        }
+        group.notifyListener(failure);
+    }//schedule
+
+}//class PollScheduler
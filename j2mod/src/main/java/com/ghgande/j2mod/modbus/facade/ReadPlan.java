@@ -0,0 +1,340 @@
+//License
+/**
+ * *
+ * Java Modbus Library (j2mod) Copyright 2012, Julianne Frances Haugh d/b/a
+ * greenHouse Gas and Electric All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. *
+ */
+package com.ghgande.j2mod.modbus.facade;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.ModbusIOException;
+import com.ghgande.j2mod.modbus.ModbusSlaveException;
+import com.ghgande.j2mod.modbus.io.ModbusTransaction;
+import com.ghgande.j2mod.modbus.msg.ModbusRequest;
+import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+import com.ghgande.j2mod.modbus.msg.ReadCoilsRequest;
+import com.ghgande.j2mod.modbus.msg.ReadCoilsResponse;
+import com.ghgande.j2mod.modbus.msg.ReadInputDiscretesRequest;
+import com.ghgande.j2mod.modbus.msg.ReadInputDiscretesResponse;
+import com.ghgande.j2mod.modbus.msg.ReadInputRegistersRequest;
+import com.ghgande.j2mod.modbus.msg.ReadInputRegistersResponse;
+import com.ghgande.j2mod.modbus.msg.ReadMultipleRegistersRequest;
+import com.ghgande.j2mod.modbus.msg.ReadMultipleRegistersResponse;
+
+/**
+ * Class holding the requests planned by a <tt>ReadPlanner</tt>.
+ * <p>
+ * Executing the plan sends each request and scatters the values of the
+ * response to the tags it covers. A request failing with a slave exception
+ * marks its tags as failed, without affecting the other requests; if it
+ * failed with an illegal address exception and covers more than one tag,
+ * the tags are read one by one instead.
+ * <p>
+ * The requests are reused on every execution, so a plan must not be
+ * executed again before the previous execution has completed.
+ */
+public class ReadPlan {
+
+    private final Block[] m_Blocks;
+
+    /**
+     * Constructs a new <tt>ReadPlan</tt> from the planned blocks.
+     */
+    ReadPlan(List<Block> blocks) {
+        m_Blocks = blocks.toArray(new Block[blocks.size()]);
+    }//constructor
+
+    /**
+     * Returns the number of requests sent by an execution of this plan,
+     * not counting retries of single tags.
+     *
+     * @return the number of requests.
+     */
+    public int getRequestCount() {
+        return m_Blocks.length;
+    }//getRequestCount
+
+    /**
+     * Returns the requests sent by an execution of this plan.
+     *
+     * @return an unmodifiable list of the requests.
+     */
+    public List<ModbusRequest> getRequests() {
+        List<ModbusRequest> requests = new ArrayList<ModbusRequest>(m_Blocks.length);
+        for (Block block : m_Blocks) {
+            requests.add(block.m_Request);
+        }
+        return Collections.unmodifiableList(requests);
+    }//getRequests
+
+    /**
+     * Executes this plan, one request after the other, on the given
+     * transaction.
+     *
+     * @param transaction the <tt>ModbusTransaction</tt> to use.
+     * @throws ModbusException if an I/O error or a transaction error
+     * occurs. The tags which have not been read are marked as failed.
+     */
+    public void execute(ModbusTransaction transaction) throws ModbusException {
+        for (int i = 0; i < m_Blocks.length; i++) {
+            try {
+                m_Blocks[i].execute(transaction);
+            } catch (ModbusException ex) {
+                for (int j = i; j < m_Blocks.length; j++) {
+                    m_Blocks[j].fail(ex);
+                }
+                throw ex;
+            }
+        }
+    }//execute
+
+    /**
+     * Executes this plan, submitting all requests at once. The
+     * <tt>executeAsync</tt> method of a master facade can be passed as the
+     * executor, e.g. <tt>plan.executeAsync(master::executeAsync)</tt>.
+     *
+     * @param executor the function sending a request.
+     * @return a future which is completed when all requests are done. It
+     * fails with the first exception other than a slave exception; the tags
+     * which have not been read are marked as failed in any case.
+     */
+    public CompletableFuture<Void> executeAsync(
+            Function<ModbusRequest, CompletableFuture<ModbusResponse>> executor) {
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[m_Blocks.length];
+        for (int i = 0; i < m_Blocks.length; i++) {
+            futures[i] = m_Blocks[i].executeAsync(executor);
+        }
+        return CompletableFuture.allOf(futures);
+    }//executeAsync
+
+    /**
+     * A single read request and the tags it covers.
+     */
+    static final class Block {
+
+        private final int m_Reference;
+        private final int m_Count;
+        private final ReadTag[] m_Tags;
+        private final ModbusRequest m_Request;
+        private Block[] m_Singles;
+
+        Block(int ref, int count, List<ReadTag> tags) {
+            m_Reference = ref;
+            m_Count = count;
+            m_Tags = tags.toArray(new ReadTag[tags.size()]);
+            ReadTag first = m_Tags[0];
+            switch (first.getFunctionCode()) {
+                case Modbus.READ_COILS:
+                    m_Request = new ReadCoilsRequest(ref, count);
+                    break;
+                case Modbus.READ_INPUT_DISCRETES:
+                    m_Request = new ReadInputDiscretesRequest(ref, count);
+                    break;
+                case Modbus.READ_INPUT_REGISTERS:
+                    m_Request = new ReadInputRegistersRequest(ref, count);
+                    break;
+                default:
+                    m_Request = new ReadMultipleRegistersRequest(ref, count);
+                    break;
+            }
+            m_Request.setUnitID(first.getUnitID());
+        }//constructor
+
+        /**
+         * Returns a block for each tag, to read the tags one by one.
+         */
+        private synchronized Block[] getSingles() {
+            if (m_Singles == null) {
+                m_Singles = new Block[m_Tags.length];
+                for (int i = 0; i < m_Tags.length; i++) {
+                    m_Singles[i] = new Block(m_Tags[i].getReference(),
+                            m_Tags[i].getCount(),
+                            Collections.singletonList(m_Tags[i]));
+                }
+            }
+            return m_Singles;
+        }//getSingles
+
+        private boolean isSplittable(ModbusSlaveException ex) {
+            return m_Tags.length > 1
+                    && ex.isType(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+        }//isSplittable
+
+        void execute(ModbusTransaction transaction) throws ModbusException {
+            transaction.setRequest(m_Request);
+            try {
+                transaction.execute();
+            } catch (ModbusSlaveException ex) {
+                if (isSplittable(ex)) {
+                    for (Block single : getSingles()) {
+                        single.execute(transaction);
+                    }
+                } else {
+                    fail(ex);
+                }
+                return;
+            }
+            scatter(transaction.getResponse());
+        }//execute
+
+        CompletableFuture<Void> executeAsync(
+                Function<ModbusRequest, CompletableFuture<ModbusResponse>> executor) {
+            CompletableFuture<ModbusResponse> response;
+            try {
+                response = executor.apply(m_Request);
+            } catch (RuntimeException ex) {
+                response = AsyncTransactions.failed(ex);
+            }
+            return response.handle((result, ex) -> {
+                if (ex == null) {
+                    try {
+                        scatter(result);
+                        return CompletableFuture.<Void>completedFuture(null);
+                    } catch (ModbusException mex) {
+                        ex = mex;
+                    }
+                }
+                Throwable cause = (ex instanceof CompletionException
+                        && ex.getCause() != null) ? ex.getCause() : ex;
+                if (cause instanceof ModbusSlaveException) {
+                    ModbusSlaveException sex = (ModbusSlaveException) cause;
+                    if (isSplittable(sex)) {
+                        Block[] singles = getSingles();
+                        CompletableFuture<?>[] futures = new CompletableFuture<?>[singles.length];
+                        for (int i = 0; i < singles.length; i++) {
+                            futures[i] = singles[i].executeAsync(executor);
+                        }
+                        return CompletableFuture.allOf(futures);
+                    }
+                    fail(sex);
+                    return CompletableFuture.<Void>completedFuture(null);
+                }
+                fail(cause instanceof ModbusException ? (ModbusException) cause
+                        : new ModbusException(String.valueOf(cause)));
+                return AsyncTransactions.<Void>failed(cause);
+            }).thenCompose(Function.identity());
+        }//executeAsync
+
+        /**
+         * Copies the values of the response to the tags of this block.
+         */
+        void scatter(ModbusResponse response) throws ModbusException {
+            switch (response.getFunctionCode()) {
+                case Modbus.READ_COILS: {
+                    ReadCoilsResponse bits = (ReadCoilsResponse) response;
+                    checkCount(bits.getBitCount());
+                    for (ReadTag tag : m_Tags) {
+                        synchronized (tag) {
+                            int[] values = tag.values();
+                            int off = tag.getReference() - m_Reference;
+                            for (int i = 0; i < values.length; i++) {
+                                values[i] = bits.getCoilStatus(off + i) ? 1 : 0;
+                            }
+                            tag.setValid();
+                        }
+                    }
+                    break;
+                }
+                case Modbus.READ_INPUT_DISCRETES: {
+                    ReadInputDiscretesResponse bits = (ReadInputDiscretesResponse) response;
+                    checkCount(bits.getDiscretes() == null ? 0 : bits.getDiscretes().size());
+                    for (ReadTag tag : m_Tags) {
+                        synchronized (tag) {
+                            int[] values = tag.values();
+                            int off = tag.getReference() - m_Reference;
+                            for (int i = 0; i < values.length; i++) {
+                                values[i] = bits.getDiscreteStatus(off + i) ? 1 : 0;
+                            }
+                            tag.setValid();
+                        }
+                    }
+                    break;
+                }
+                case Modbus.READ_INPUT_REGISTERS: {
+                    ReadInputRegistersResponse regs = (ReadInputRegistersResponse) response;
+                    checkCount(regs.getWordCount());
+                    for (ReadTag tag : m_Tags) {
+                        synchronized (tag) {
+                            int[] values = tag.values();
+                            int off = tag.getReference() - m_Reference;
+                            for (int i = 0; i < values.length; i++) {
+                                values[i] = regs.getRegisterValue(off + i);
+                            }
+                            tag.setValid();
+                        }
+                    }
+                    break;
+                }
+                case Modbus.READ_MULTIPLE_REGISTERS: {
+                    ReadMultipleRegistersResponse regs = (ReadMultipleRegistersResponse) response;
+                    checkCount(regs.getWordCount());
+                    for (ReadTag tag : m_Tags) {
+                        synchronized (tag) {
+                            int[] values = tag.values();
+                            int off = tag.getReference() - m_Reference;
+                            for (int i = 0; i < values.length; i++) {
+                                values[i] = regs.getRegisterValue(off + i);
+                            }
+                            tag.setValid();
+                        }
+                    }
+                    break;
+                }
+                default:
+                    throw new ModbusIOException("Unexpected response function code "
+                            + response.getFunctionCode());
+            }
+        }//scatter
+
+        private void checkCount(int count) throws ModbusIOException {
+            if (count < m_Count) {
+                throw new ModbusIOException("Response holds " + count
+                        + " values, " + m_Count + " requested");
+            }
+        }//checkCount
+
+        /**
+         * Marks the tags of this block as failed.
+         */
+        void fail(ModbusException ex) {
+            for (ReadTag tag : m_Tags) {
+                tag.setException(ex);
+            }
+        }//fail
+
+    }//class Block
+
+}//class ReadPlan
@@ -0,0 +1,209 @@
+//License
+/**
+ * *
+ * Java Modbus Library (j2mod) Copyright 2012, Julianne Frances Haugh d/b/a
+ * greenHouse Gas and Electric All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. *
+ */
+package com.ghgande.j2mod.modbus.facade;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+import com.ghgande.j2mod.modbus.Modbus;
+
+/**
+ * Class merging <tt>ReadTag</tt>s into the fewest read requests.
+ * <p>
+ * Tags of the same unit and function code are sorted by reference and
+ * merged greedily: a tag joins the current request if it starts no more
+ * than the gap tolerance after the end of the request, and the request does
+ * not grow beyond the maximum count. Gaps are read and discarded, so a gap
+ * tolerance greater than zero should only be used if the slave accepts
+ * reads of the unused addresses; a request failing with an illegal address
+ * exception is retried tag by tag.
+ */
+public class ReadPlanner {
+
+    private int m_RegisterGap = 0;
+    private int m_BitGap = 0;
+    private int m_MaxRegisters = Modbus.MAX_REGISTERS;
+    private int m_MaxBits = Modbus.MAX_BITS;
+
+    /**
+     * Sets the number of unused registers which may be read to merge two
+     * register tags.
+     *
+     * @param gap the gap tolerance, <tt>0</tt> to merge adjacent and
+     * overlapping tags only.
+     */
+    public void setRegisterGap(int gap) {
+        if (gap < 0) {
+            throw new IllegalArgumentException("Negative gap");
+        }
+        m_RegisterGap = gap;
+    }//setRegisterGap
+
+    /**
+     * Returns the number of unused registers which may be read to merge two
+     * register tags.
+     *
+     * @return the gap tolerance.
+     */
+    public int getRegisterGap() {
+        return m_RegisterGap;
+    }//getRegisterGap
+
+    /**
+     * Sets the number of unused coils or discretes which may be read to
+     * merge two bit tags.
+     *
+     * @param gap the gap tolerance, <tt>0</tt> to merge adjacent and
+     * overlapping tags only.
+     */
+    public void setBitGap(int gap) {
+        if (gap < 0) {
+            throw new IllegalArgumentException("Negative gap");
+        }
+        m_BitGap = gap;
+    }//setBitGap
+
+    /**
+     * Returns the number of unused coils or discretes which may be read to
+     * merge two bit tags.
+     *
+     * @return the gap tolerance.
+     */
+    public int getBitGap() {
+        return m_BitGap;
+    }//getBitGap
+
+    /**
+     * Sets the largest number of registers read by a single request, for
+     * slaves supporting less than <tt>Modbus.MAX_REGISTERS</tt>. Tags
+     * longer than this are read by a request of their own.
+     *
+     * @param max the maximum count, between 1 and <tt>Modbus.MAX_REGISTERS</tt>.
+     */
+    public void setMaxRegisters(int max) {
+        if (max < 1 || max > Modbus.MAX_REGISTERS) {
+            throw new IllegalArgumentException("Illegal count " + max);
+        }
+        m_MaxRegisters = max;
+    }//setMaxRegisters
+
+    /**
+     * Returns the largest number of registers read by a single request.
+     *
+     * @return the maximum count.
+     */
+    public int getMaxRegisters() {
+        return m_MaxRegisters;
+    }//getMaxRegisters
+
+    /**
+     * Sets the largest number of coils or discretes read by a single
+     * request. Tags longer than this are read by a request of their own.
+     *
+     * @param max the maximum count, between 1 and <tt>Modbus.MAX_BITS</tt>.
+     */
+    public void setMaxBits(int max) {
+        if (max < 1 || max > Modbus.MAX_BITS) {
+            throw new IllegalArgumentException("Illegal count " + max);
+        }
+        m_MaxBits = max;
+    }//setMaxBits
+
+    /**
+     * Returns the largest number of coils or discretes read by a single
+     * request.
+     *
+     * @return the maximum count.
+     */
+    public int getMaxBits() {
+        return m_MaxBits;
+    }//getMaxBits
+
+    /**
+     * Plans the requests reading the given tags.
+     *
+     * @param tags the tags to be read.
+     * @return the <tt>ReadPlan</tt> reading all tags.
+     */
+    public ReadPlan plan(Collection<ReadTag> tags) {
+        ReadTag[] sorted = tags.toArray(new ReadTag[tags.size()]);
+        Arrays.sort(sorted, TAG_ORDER);
+
+        List<ReadPlan.Block> blocks = new ArrayList<ReadPlan.Block>();
+        List<ReadTag> members = new ArrayList<ReadTag>();
+        int start = 0;
+        int end = 0;
+        for (ReadTag tag : sorted) {
+            int tagEnd = tag.getReference() + tag.getCount();
+            if (!members.isEmpty()) {
+                ReadTag first = members.get(0);
+                boolean bits = tag.isBitTag();
+                if (first.getUnitID() == tag.getUnitID()
+                        && first.getFunctionCode() == tag.getFunctionCode()
+                        && tag.getReference() <= end + (bits ? m_BitGap : m_RegisterGap)
+                        && Math.max(end, tagEnd) - start <= (bits ? m_MaxBits : m_MaxRegisters)) {
+                    members.add(tag);
+                    end = Math.max(end, tagEnd);
+                    continue;
+                }
+                blocks.add(new ReadPlan.Block(start, end - start, members));
+                members.clear();
+            }
+            members.add(tag);
+            start = tag.getReference();
+            end = tagEnd;
+        }
+        if (!members.isEmpty()) {
+            blocks.add(new ReadPlan.Block(start, end - start, members));
+        }
+        return new ReadPlan(blocks);
+    }//plan
+
+    private static final Comparator<ReadTag> TAG_ORDER = new Comparator<ReadTag>() {
+        public int compare(ReadTag t1, ReadTag t2) {
+            if (t1.getUnitID() != t2.getUnitID()) {
+                return t1.getUnitID() - t2.getUnitID();
+            }
+            if (t1.getFunctionCode() != t2.getFunctionCode()) {
+                return t1.getFunctionCode() - t2.getFunctionCode();
+            }
+            if (t1.getReference() != t2.getReference()) {
+                return t1.getReference() - t2.getReference();
+            }
+            return t2.getCount() - t1.getCount();
+        }
+    };
+
+}//class ReadPlanner
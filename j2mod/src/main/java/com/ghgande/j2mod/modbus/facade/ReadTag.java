@@ -0,0 +1,231 @@
+//License
+/**
+ * *
+ * Java Modbus Library (j2mod) Copyright 2012, Julianne Frances Haugh d/b/a
+ * greenHouse Gas and Electric All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. *
+ */
+package com.ghgande.j2mod.modbus.facade;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.ModbusException;
+
+/**
+ * Class describing a value to be read from a slave: a range of coils,
+ * input discretes, input registers or holding registers of a unit.
+ * <p>
+ * Tags are merged into requests by a <tt>ReadPlanner</tt>; executing the
+ * resulting <tt>ReadPlan</tt> stores the values read, or the exception
+ * which prevented reading them, in the tag.
+ */
+public class ReadTag {
+
+    private final int m_UnitID;
+    private final int m_FunctionCode;
+    private final int m_Reference;
+    private final int m_Count;
+    private final int[] m_Values;
+    private boolean m_Valid;
+    private ModbusException m_Exception;
+
+    /**
+     * Constructs a new <tt>ReadTag</tt>.
+     *
+     * @param unitid the unit identifier of the slave.
+     * @param functionCode the function code selecting the table:
+     * <tt>Modbus.READ_COILS</tt>, <tt>Modbus.READ_INPUT_DISCRETES</tt>,
+     * <tt>Modbus.READ_INPUT_REGISTERS</tt> or
+     * <tt>Modbus.READ_HOLDING_REGISTERS</tt>.
+     * @param ref the reference of the first coil, discrete or register.
+     * @param count the number of coils, discretes or registers.
+     * @throws IllegalArgumentException if the function code is not a read
+     * function, or the range does not fit into a single request.
+     */
+    public ReadTag(int unitid, int functionCode, int ref, int count) {
+        if (unitid < 0 || unitid > 255) {
+            throw new IllegalArgumentException("Illegal unit id " + unitid);
+        }
+        if (functionCode < Modbus.READ_COILS
+                || functionCode > Modbus.READ_INPUT_REGISTERS) {
+            throw new IllegalArgumentException(
+                    "Illegal function code " + functionCode);
+        }
+        if (ref < 0 || count < 1 || count > getMaxCount(functionCode)
+                || ref + count > 65536) {
+            throw new IllegalArgumentException(
+                    "Illegal range " + ref + ", " + count);
+        }
+        m_UnitID = unitid;
+        m_FunctionCode = functionCode;
+        m_Reference = ref;
+        m_Count = count;
+        m_Values = new int[count];
+    }//constructor
+
+    /**
+     * Returns the unit identifier of this tag.
+     *
+     * @return the unit identifier.
+     */
+    public int getUnitID() {
+        return m_UnitID;
+    }//getUnitID
+
+    /**
+     * Returns the function code used to read this tag.
+     *
+     * @return the function code.
+     */
+    public int getFunctionCode() {
+        return m_FunctionCode;
+    }//getFunctionCode
+
+    /**
+     * Returns the reference of the first value of this tag.
+     *
+     * @return the reference.
+     */
+    public int getReference() {
+        return m_Reference;
+    }//getReference
+
+    /**
+     * Returns the number of coils, discretes or registers of this tag.
+     *
+     * @return the count.
+     */
+    public int getCount() {
+        return m_Count;
+    }//getCount
+
+    /**
+     * Tests whether this tag reads coils or input discretes.
+     *
+     * @return true if the values are bits, false if they are registers.
+     */
+    public boolean isBitTag() {
+        return isBitFunction(m_FunctionCode);
+    }//isBitTag
+
+    /**
+     * Tests whether the last execution of the plan read this tag.
+     *
+     * @return true if the values are valid, false otherwise.
+     */
+    public synchronized boolean isValid() {
+        return m_Valid;
+    }//isValid
+
+    /**
+     * Returns the exception which prevented the last execution of the plan
+     * from reading this tag.
+     *
+     * @return the exception, or null if the tag was read.
+     */
+    public synchronized ModbusException getException() {
+        return m_Exception;
+    }//getException
+
+    /**
+     * Returns a value of this tag: the unsigned value of a register, or
+     * <tt>1</tt> and <tt>0</tt> for a bit which is set or cleared.
+     *
+     * @param index the index of the value, <tt>0</tt> for the value at the
+     * reference of this tag.
+     * @return the value.
+     * @throws IndexOutOfBoundsException if the index is out of bounds.
+     */
+    public synchronized int getValue(int index) {
+        if (index < 0 || index >= m_Count) {
+            throw new IndexOutOfBoundsException();
+        }
+        return m_Values[index];
+    }//getValue
+
+    /**
+     * Returns a bit of this tag.
+     *
+     * @param index the index of the bit.
+     * @return true if the bit is set, false otherwise.
+     * @throws IndexOutOfBoundsException if the index is out of bounds.
+     */
+    public boolean getBit(int index) {
+        return getValue(index) != 0;
+    }//getBit
+
+    /**
+     * Copies the values of this tag into the given array.
+     *
+     * @param values the array receiving the values.
+     * @param offset the index in <tt>values</tt> of the first value.
+     */
+    public synchronized void getValues(int[] values, int offset) {
+        System.arraycopy(m_Values, 0, values, offset, m_Count);
+    }//getValues
+
+    /**
+     * Returns the values array, for filling in by the plan; callers hold
+     * the lock of this tag.
+     */
+    int[] values() {
+        return m_Values;
+    }//values
+
+    /**
+     * Marks this tag as read.
+     */
+    void setValid() {
+        m_Valid = true;
+        m_Exception = null;
+    }//setValid
+
+    /**
+     * Marks this tag as failed.
+     */
+    synchronized void setException(ModbusException ex) {
+        m_Valid = false;
+        m_Exception = ex;
+    }//setException
+
+    public String toString() {
+        return "ReadTag[unit=" + m_UnitID + ",fc=" + m_FunctionCode
+                + ",ref=" + m_Reference + ",count=" + m_Count + "]";
+    }//toString
+
+    /**
+     * Returns the largest count of a request with the given function code.
+     */
+    static int getMaxCount(int functionCode) {
+        return isBitFunction(functionCode) ? Modbus.MAX_BITS : Modbus.MAX_REGISTERS;
+    }//getMaxCount
+
+    static boolean isBitFunction(int functionCode) {
+        return functionCode == Modbus.READ_COILS
+                || functionCode == Modbus.READ_INPUT_DISCRETES;
+    }//isBitFunction
+
+}//class ReadTag
@@ -100,7 +100,7 @@ public class ModbusASCIITransport
                 m_OutputStream.write(FRAME_START);               //FRAMESTART
                 m_OutputStream.write(buf, 0, len);                 //PDU
                 System.out.println("Writing: " + ModbusUtil.toHex(buf, 0, len));
-                m_OutputStream.write(calculateLRC(buf, 0, len)); //LRC
+                m_OutputStream.write(ModbusUtil.calculateLRC(buf, 0, len)); //LRC
                 m_OutputStream.write(FRAME_END);                 //FRAMEEND
                 m_OutputStream.flush();
                 m_ByteOut.reset();
@@ -141,7 +141,7 @@ public class ModbusASCIITransport
                     }
                     //check LRC
                     if (m_InBuffer[m_ByteInOut.size() - 1]
-                            != calculateLRC(m_InBuffer, 0, m_ByteInOut.size(), 1)) {
+                            != (byte) ModbusUtil.calculateLRC(m_InBuffer, 0, m_ByteInOut.size() - 1)) {
                         continue;
                     }
                     m_ByteIn.reset(m_InBuffer, m_ByteInOut.size());
@@ -196,7 +196,7 @@ public class ModbusASCIITransport
                     int len = m_ByteInOut.size();
                     Logger.getLogger(ModbusASCIITransport.class.getName()).log(Level.FINE, "Received: {0}", ModbusUtil.toHex(m_InBuffer, 0, len));
                     //check LRC
-                    if (m_InBuffer[len - 1] != calculateLRC(m_InBuffer, 0, len, 1)) {
+                    if (m_InBuffer[len - 1] != (byte) ModbusUtil.calculateLRC(m_InBuffer, 0, len - 1)) {
                         continue;
                     }
 
@@ -246,22 +246,6 @@ public class ModbusASCIITransport
         m_ByteInOut = new BytesOutputStream(m_InBuffer);
     }//prepareStreams
 
-    private static int calculateLRC(byte[] data, int off, int len) {
-        int lrc = 0;
-        for (int i = off; i < len; i++) {
-            lrc += ((int) data[i]) & 0xFF;
-        }
-        return (-lrc) & 0xff;
-    }//calculateLRC
-
-    private byte calculateLRC(byte[] data, int off, int length, int tailskip) {
-        int lrc = 0;
-        for (int i = off; i < length - tailskip; i++) {
-            lrc += ((int) data[i]) & 0xFF;
-        }
-        return (byte) ((-lrc) & 0xff);
-    }//calculateLRC
-
     /**
      * Defines a virtual number for the FRAME START token (COLON).
      */
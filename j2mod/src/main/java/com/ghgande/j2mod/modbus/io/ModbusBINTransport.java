@@ -41,7 +41,7 @@ import com.ghgande.j2mod.modbus.ModbusIOException;
 import com.ghgande.j2mod.modbus.msg.ModbusMessage;
 import com.ghgande.j2mod.modbus.msg.ModbusRequest;
 import com.ghgande.j2mod.modbus.msg.ModbusResponse;
-import com.ghgande.j2mod.modbus.util.ModbusUtil;
+import com.ghgande.j2mod.modbus.util.CRC16;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -99,9 +99,9 @@ public class ModbusBINTransport
                 //write message
                 m_OutputStream.write(FRAME_START);               //FRAMESTART
                 m_OutputStream.write(buf, 0, len);                 //PDU
-                int[] crc = ModbusUtil.calculateCRC(buf, 0, len); //CRC
-                m_OutputStream.write(crc[0]);
-                m_OutputStream.write(crc[1]);
+                int crc = CRC16.calculate(buf, 0, len);          //CRC
+                m_OutputStream.write(crc & 0xFF);
+                m_OutputStream.write(crc >>> 8);
                 m_OutputStream.write(FRAME_END);                 //FRAMEEND
                 m_OutputStream.flush();
                 m_ByteOut.reset();
@@ -138,11 +138,7 @@ public class ModbusBINTransport
                         m_ByteInOut.writeByte(in);
                     }
                     //check CRC
-                    int[] crc = ModbusUtil.calculateCRC(m_InBuffer, 0, m_ByteInOut.size() - 2);
-
-                    if (!(m_InBuffer[m_ByteInOut.size() - 2] == crc[0] //low byte first
-                            && m_InBuffer[m_ByteInOut.size() - 1] == crc[1] //hibyte
-                            )) {
+                    if (!CRC16.isValid(m_InBuffer, 0, m_ByteInOut.size())) {
                         continue;
                     }
                     m_ByteIn.reset(m_InBuffer, m_ByteInOut.size());
@@ -189,10 +185,7 @@ public class ModbusBINTransport
                         m_ByteInOut.writeByte(in);
                     }
                     //check CRC
-                    int[] crc = ModbusUtil.calculateCRC(m_InBuffer, 0, m_ByteInOut.size() - 2);
-                    if (!(m_InBuffer[m_ByteInOut.size() - 2] == crc[0] //low byte first
-                            && m_InBuffer[m_ByteInOut.size() - 1] == crc[1] //hibyte
-                            )) {
+                    if (!CRC16.isValid(m_InBuffer, 0, m_ByteInOut.size())) {
                         continue;
                     }
                     m_ByteIn.reset(m_InBuffer, m_ByteInOut.size());
@@ -42,6 +42,7 @@ import com.ghgande.j2mod.modbus.ModbusIOException;
 import com.ghgande.j2mod.modbus.msg.ModbusMessage;
 import com.ghgande.j2mod.modbus.msg.ModbusRequest;
 import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+import com.ghgande.j2mod.modbus.util.CRC16;
 import com.ghgande.j2mod.modbus.util.ModbusUtil;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -93,10 +94,9 @@ public class ModbusRTUTransport extends ModbusSerialTransport {
                 msg.setHeadless(true);
                 msg.writeTo(m_ByteOut);
                 len = m_ByteOut.size();
-                int[] crc = ModbusUtil.calculateCRC(m_ByteOut.getBuffer(), 0,
-                        len);
-                m_ByteOut.writeByte(crc[0]);
-                m_ByteOut.writeByte(crc[1]);
+                int crc = CRC16.calculate(m_ByteOut.getBuffer(), 0, len);
+                m_ByteOut.writeByte(crc & 0xFF);
+                m_ByteOut.writeByte(crc >>> 8);
                 // write message
                 len = m_ByteOut.size();
                 byte buf[] = m_ByteOut.getBuffer();
@@ -323,13 +323,10 @@ public class ModbusRTUTransport extends ModbusSerialTransport {
                         m_ByteIn.reset(m_InBuffer, dlength);
 
                         // check CRC
-                        int[] crc = ModbusUtil.calculateCRC(m_InBuffer, 0,
-                                dlength); // does not include CRC
-                        if (ModbusUtil.unsignedByteToInt(m_InBuffer[dlength]) != crc[0]
-                                && ModbusUtil
-                                .unsignedByteToInt(m_InBuffer[dlength + 1]) != crc[1]) {
+                        if (!CRC16.isValid(m_InBuffer, 0, dlength + 2)) {
+                            int crc = CRC16.calculate(m_InBuffer, 0, dlength); // does not include CRC
                             Logger.getLogger(ModbusRTUTransport.class.getName()).log(Level.FINE,
-                                    "CRC should be " + crc[0] + ", " + crc[1]);
+                                    "CRC should be " + (crc & 0xFF) + ", " + (crc >>> 8));
 
                             /*
                              * Drain the input in case the frame was misread and more
@@ -615,12 +612,9 @@ public class ModbusRTUTransport extends ModbusSerialTransport {
                         m_ByteIn.reset(m_InBuffer, dlength);
 
                         // check CRC
-                        int[] crc = ModbusUtil.calculateCRC(m_InBuffer, 0,
-                                dlength); // does not include CRC
-                        if (ModbusUtil.unsignedByteToInt(m_InBuffer[dlength]) != crc[0]
-                                && ModbusUtil
-                                .unsignedByteToInt(m_InBuffer[dlength + 1]) != crc[1]) {
-                            Logger.getLogger(ModbusRTUTransport.class.getName()).log(Level.FINE, "CRC should be {0}, {1}", new Object[]{crc[0], crc[1]});
+                        if (!CRC16.isValid(m_InBuffer, 0, dlength + 2)) {
+                            int crc = CRC16.calculate(m_InBuffer, 0, dlength); // does not include CRC
+                            Logger.getLogger(ModbusRTUTransport.class.getName()).log(Level.FINE, "CRC should be {0}, {1}", new Object[]{crc & 0xFF, crc >>> 8});
 
                             throw new IOException(
                                     "CRC Error in received frame: "
@@ -63,6 +63,7 @@ public class ModbusSerialTransaction
     private int m_Retries = Modbus.DEFAULT_RETRIES;
     private int m_TransDelayMS = Modbus.DEFAULT_TRANSMIT_DELAY;
     private SerialConnection m_SerialCon;
+    private boolean m_AdaptiveTimeout = Modbus.DEFAULT_ADAPTIVE_TIMEOUT;
 
     /**
      * Constructs a new <tt>ModbusSerialTransaction</tt>
@@ -168,6 +169,29 @@ public class ModbusSerialTransaction
         this.m_TransDelayMS = newTransDelayMS;
     }
 
+    /**
+     * Sets the flag that controls whether the receive timeout of each
+     * attempt is derived from the round-trip times measured for the unit.
+     * Only transactions executed on a <tt>SerialConnection</tt> adapt their
+     * timeout.
+     *
+     * @param b true if adaptive, false otherwise.
+     * @see SerialConnection#getRTTEstimator(int)
+     */
+    public void setAdaptiveTimeout(boolean b) {
+        m_AdaptiveTimeout = b;
+    }
+
+    /**
+     * Tests if the receive timeout is derived from the measured round-trip
+     * times.
+     *
+     * @return true if adaptive, false otherwise.
+     */
+    public boolean isAdaptiveTimeout() {
+        return m_AdaptiveTimeout;
+    }
+
     @Override
     public void execute() throws ModbusIOException,
             ModbusSlaveException,
@@ -177,9 +201,13 @@ public class ModbusSerialTransaction
 
         //3. write request, and read response,
         //   while holding the lock on the IO object
+        RTTEstimator rtt = m_AdaptiveTimeout && m_SerialCon != null
+                && m_IO instanceof ModbusSerialTransport
+                ? m_SerialCon.getRTTEstimator(m_Request.getUnitID()) : null;
         synchronized (m_IO) {
             int tries = 0;
             boolean finished = false;
+            long start = 0;
             do {
                 try {
                     if (m_TransDelayMS > 0) {
@@ -189,10 +217,25 @@ public class ModbusSerialTransaction
                             Logger.getLogger(ModbusBINTransport.class.getName()).log(Level.FINE, null, ex);
                         }
                     }
-                    //write request message
-                    m_IO.writeMessage(m_Request);
-                    //read response message
-                    m_Response = m_IO.readResponse();
+                    if (tries == 0) {
+                        start = System.nanoTime();
+                    }
+                    int timeout = setAdaptiveTimeout(rtt, tries);
+                    try {
+                        //write request message
+                        m_IO.writeMessage(m_Request);
+                        //read response message
+                        m_Response = m_IO.readResponse();
+                    } finally {
+                        if (timeout >= 0) {
+                            ((ModbusSerialTransport) m_IO).setReceiveTimeout(timeout);
+                        }
+                    }
+                    //only sampled if the request was sent once, as a
+                    //response after a retry may answer any attempt
+                    if (rtt != null && tries == 0) {
+                        rtt.addSample(System.nanoTime() - start);
+                    }
                     finished = true;
                 } catch (ModbusIOException e) {
                     if (++tries >= m_Retries) {
@@ -232,6 +275,25 @@ public class ModbusSerialTransaction
         }
     }//assertExecuteable
 
+    /**
+     * Sets the receive timeout of the transport for the given attempt from
+     * the measured round-trip times. Until a round-trip time has been
+     * measured, the timeout of the port applies.
+     *
+     * @param rtt the <tt>RTTEstimator</tt> of the unit, or null.
+     * @param attempt the attempt, counting from zero.
+     * @return the timeout to restore afterwards, or -1 if unchanged.
+     */
+    private int setAdaptiveTimeout(RTTEstimator rtt, int attempt) {
+        if (rtt == null || rtt.getSampleCount() == 0) {
+            return -1;
+        }
+        ModbusSerialTransport transport = (ModbusSerialTransport) m_IO;
+        int timeout = transport.getReceiveTimeout();
+        transport.setReceiveTimeout(rtt.getTimeout(attempt));
+        return timeout;
+    }//setAdaptiveTimeout
+
     /**
      * Checks the validity of the transaction, by checking if the values of the
      * response correspond to the values of the request.
@@ -178,6 +178,16 @@ abstract public class ModbusSerialTransport
         }
     }
 
+    /**
+     * <code>getReceiveTimeout</code> - Returns the receive timeout of the
+     * serial port.
+     *
+     * @return the timeout in milliseconds, 0 if disabled.
+     */
+    public int getReceiveTimeout() {
+        return m_CommPort.getReceiveTimeout();
+    }
+
     /**
      * <code>setBaudRate</code> - Change the serial port baud rate
      *
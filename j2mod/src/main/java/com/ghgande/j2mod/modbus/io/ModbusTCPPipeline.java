@@ -0,0 +1,488 @@
+//License
+/**
+ * *
+ * Java Modbus Library (j2mod) Copyright 2012, Julianne Frances Haugh d/b/a
+ * greenHouse Gas and Electric All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. *
+ */
+package com.ghgande.j2mod.modbus.io;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.ModbusIOException;
+import com.ghgande.j2mod.modbus.msg.ModbusRequest;
+import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Class that keeps several Modbus/TCP transactions outstanding on a single
+ * <tt>ModbusTCPTransport</tt>.
+ *
+ * <p>
+ * Requests are written as soon as a slot in the window is available, and a
+ * reader thread matches each response to its request using the MBAP
+ * transaction identifier. Each caller is completed independently of the
+ * others, so a slow response does not hold up the requests queued behind it.
+ *
+ * <p>
+ * Only one pipeline may read from a given transport, and the transport must
+ * not be used for ordinary transactions while the pipeline is running.
+ */
+public class ModbusTCPPipeline {
+
+    private final ModbusTCPTransport m_Transport;
+    private final int m_Depth;
+    private final Semaphore m_Window;
+    private final Map<Integer, PendingTransaction> m_Pending;
+    private final Queue<WaitingTransaction> m_Waiting
+            = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger m_Sending = new AtomicInteger();
+    private final Object m_WriteLock = new Object();
+    private final TransactionIDAllocator m_TransactionIDs;
+    private Thread m_Reader;
+    private volatile boolean m_Running;
+
+    /**
+     * Constructs a new <tt>ModbusTCPPipeline</tt> for the given transport.
+     *
+     * @param transport the transport carrying the transactions. It must not
+     * be headless, as responses are matched by transaction identifier.
+     * @param depth the maximum number of outstanding transactions.
+     */
+    public ModbusTCPPipeline(ModbusTCPTransport transport, int depth) {
+        this(transport, depth, new TransactionIDAllocator());
+    }
+
+    /**
+     * Constructs a new <tt>ModbusTCPPipeline</tt> for the given transport,
+     * taking transaction identifiers from the given allocator.
+     *
+     * @param transport the transport carrying the transactions. It must not
+     * be headless, as responses are matched by transaction identifier.
+     * @param depth the maximum number of outstanding transactions.
+     * @param ids the <tt>TransactionIDAllocator</tt> of the connection.
+     */
+    public ModbusTCPPipeline(ModbusTCPTransport transport, int depth,
+            TransactionIDAllocator ids) {
+        if (transport.isHeadless()) {
+            throw new IllegalArgumentException(
+                    "Headless transports cannot be pipelined");
+        }
+        if (depth < 1) {
+            throw new IllegalArgumentException("Invalid depth: " + depth);
+        }
+        m_Transport = transport;
+        m_Depth = depth;
+        m_Window = new Semaphore(depth, true);
+        m_Pending = new ConcurrentHashMap<>(depth * 2);
+        m_TransactionIDs = ids;
+    }
+
+    /**
+     * Returns the maximum number of outstanding transactions.
+     *
+     * @return the window size as <tt>int</tt>.
+     */
+    public int getDepth() {
+        return m_Depth;
+    }
+
+    /**
+     * Returns the number of transactions currently awaiting a response.
+     *
+     * @return the number of outstanding transactions.
+     */
+    public int getOutstanding() {
+        return m_Pending.size();
+    }
+
+    /**
+     * Tests if the reader of this pipeline is running.
+     *
+     * @return true if running, false otherwise.
+     */
+    public boolean isRunning() {
+        return m_Running;
+    }
+
+    /**
+     * Starts the thread reading responses from the transport.
+     */
+    public synchronized void start() {
+        if (m_Running) {
+            return;
+        }
+        m_Running = true;
+        m_Reader = new Thread(new ResponseReader(), "ModbusTCPPipeline");
+        m_Reader.setDaemon(true);
+        m_Reader.start();
+    }
+
+    /**
+     * Stops this pipeline. All outstanding transactions are failed.
+     *
+     * <p>
+     * The transport is not closed; the reader thread terminates when the
+     * owner of the transport closes it, or at the next read timeout.
+     */
+    public synchronized void stop() {
+        m_Running = false;
+        failAll(new ModbusIOException("Pipeline stopped", true));
+    }
+
+    /**
+     * Writes the request and returns a future for its response.
+     *
+     * <p>
+     * A transaction identifier that is unique among the outstanding
+     * transactions is assigned to the request before it is written.
+     *
+     * @param request the request to be sent.
+     * @param timeout the time in milliseconds to wait for a slot in the window
+     * and then for the response.
+     * @return a future which is completed with the response, or exceptionally
+     * with a <tt>ModbusIOException</tt>.
+     */
+    public CompletableFuture<ModbusResponse> submit(ModbusRequest request,
+            int timeout) {
+        CompletableFuture<ModbusResponse> result = new CompletableFuture<>();
+
+        if (!m_Running) {
+            result.completeExceptionally(
+                    new ModbusIOException("Pipeline not running"));
+            return result;
+        }
+
+        try {
+            if (!m_Window.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                result.completeExceptionally(
+                        new ModbusIOException("Timeout waiting for pipeline slot"));
+                return result;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            result.completeExceptionally(
+                    new ModbusIOException("Interrupted waiting for pipeline slot"));
+            return result;
+        }
+        send(request, result, System.currentTimeMillis() + timeout);
+        return result;
+    }
+
+    /**
+     * Queues the request and returns a future for its response, without
+     * blocking the calling thread.
+     *
+     * <p>
+     * The request is written once a slot in the window is free, by the thread
+     * which frees it. A request whose future has been completed while it was
+     * waiting, for instance by a caller enforcing a timeout, is not written.
+     *
+     * @param request the request to be sent.
+     * @param timeout the time in milliseconds to wait for a slot in the window
+     * and then for the response.
+     * @return a future which is completed with the response, or exceptionally
+     * with a <tt>ModbusIOException</tt>.
+     */
+    public CompletableFuture<ModbusResponse> submitAsync(ModbusRequest request,
+            int timeout) {
+        CompletableFuture<ModbusResponse> result = new CompletableFuture<>();
+
+        if (!m_Running) {
+            result.completeExceptionally(
+                    new ModbusIOException("Pipeline not running"));
+            return result;
+        }
+        m_Waiting.add(new WaitingTransaction(request, result,
+                System.currentTimeMillis() + timeout));
+        sendWaiting();
+        return result;
+    }
+
+    /**
+     * Writes waiting requests while there are free slots in the window.
+     *
+     * <p>
+     * A request is queued before a slot is tried, and a slot is released
+     * before the queue is checked, so a request never waits while a slot is
+     * free.
+     */
+    private void sendWaiting() {
+        /*
+         * Only one thread writes waiting requests at a time. A call made while
+         * another is in progress, including one made from a future completed
+         * by it, makes that one check the queue again instead of recursing.
+         */
+        if (m_Sending.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            while (!m_Waiting.isEmpty() && m_Window.tryAcquire()) {
+                WaitingTransaction waiting = m_Waiting.poll();
+                if (waiting == null || waiting.m_Future.isDone()) {
+                    m_Window.release();
+                    continue;
+                }
+                if (!m_Running) {
+                    m_Window.release();
+                    waiting.m_Future.completeExceptionally(
+                            new ModbusIOException("Pipeline stopped", true));
+                    continue;
+                }
+                send(waiting.m_Request, waiting.m_Future, waiting.m_Deadline);
+            }
+            missed = m_Sending.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    /**
+     * Writes a request for which a slot in the window has been taken. The
+     * slot is given back when the future completes.
+     */
+    private void send(ModbusRequest request,
+            CompletableFuture<ModbusResponse> result, long deadline) {
+        result.whenComplete((response, ex) -> {
+            m_Window.release();
+            sendWaiting();
+        });
+
+        PendingTransaction pending = new PendingTransaction(result, deadline);
+        synchronized (m_WriteLock) {
+            int tid;
+            try {
+                tid = m_TransactionIDs.acquire();
+            } catch (IllegalStateException ex) {
+                result.completeExceptionally(new ModbusIOException(ex.getMessage()));
+                return;
+            }
+            request.setTransactionID(tid);
+            m_Pending.put(tid, pending);
+            try {
+                m_Transport.writeMessage(request);
+            } catch (ModbusIOException ex) {
+                m_Pending.remove(tid);
+                m_TransactionIDs.release(tid);
+                result.completeExceptionally(ex);
+            }
+        }
+    }
+
+    /**
+     * Sends the request and waits for the response.
+     *
+     * @param request the request to be sent.
+     * @param timeout the time to wait in milliseconds.
+     * @return the response of the slave.
+     * @throws ModbusIOException if the response could not be obtained in
+     * time.
+     */
+    public ModbusResponse execute(ModbusRequest request, int timeout)
+            throws ModbusIOException {
+        CompletableFuture<ModbusResponse> future = submit(request, timeout);
+        try {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException ex) {
+            expire(request.getTransactionID(), future);
+            throw new ModbusIOException("Timeout reading response");
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            expire(request.getTransactionID(), future);
+            throw new ModbusIOException("Interrupted reading response");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof ModbusIOException) {
+                throw (ModbusIOException) ex.getCause();
+            }
+            throw new ModbusIOException("I/O exception - failed to read.");
+        }
+    }
+
+    private void expire(int tid, CompletableFuture<ModbusResponse> future) {
+        PendingTransaction pending = m_Pending.get(tid);
+        if (pending != null && pending.m_Future == future
+                && m_Pending.remove(tid, pending)) {
+            m_TransactionIDs.release(tid);
+        }
+        future.completeExceptionally(
+                new ModbusIOException("Timeout reading response"));
+    }
+
+    /**
+     * Fails all transactions whose deadline has passed.
+     */
+    private void expireOverdue() {
+        long now = System.currentTimeMillis();
+        Iterator<WaitingTransaction> waiting = m_Waiting.iterator();
+        while (waiting.hasNext()) {
+            WaitingTransaction transaction = waiting.next();
+            if (transaction.m_Deadline <= now) {
+                waiting.remove();
+                transaction.m_Future.completeExceptionally(
+                        new ModbusIOException("Timeout waiting for pipeline slot"));
+            }
+        }
+        Iterator<Map.Entry<Integer, PendingTransaction>> it
+                = m_Pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, PendingTransaction> entry = it.next();
+            PendingTransaction pending = entry.getValue();
+            if (pending.m_Deadline <= now && m_Pending.remove(entry.getKey(), pending)) {
+                m_TransactionIDs.release(entry.getKey());
+                pending.m_Future.completeExceptionally(
+                        new ModbusIOException("Timeout reading response"));
+            }
+        }
+    }
+
+    private void failAll(ModbusException ex) {
+        WaitingTransaction waiting;
+        while ((waiting = m_Waiting.poll()) != null) {
+            waiting.m_Future.completeExceptionally(ex);
+        }
+        List<PendingTransaction> failed = new ArrayList<>();
+        for (Integer tid : new ArrayList<>(m_Pending.keySet())) {
+            PendingTransaction pending = m_Pending.remove(tid);
+            if (pending != null) {
+                m_TransactionIDs.release(tid);
+                failed.add(pending);
+            }
+        }
+        for (PendingTransaction pending : failed) {
+            pending.m_Future.completeExceptionally(ex);
+        }
+    }
+
+    /**
+     * A transaction awaiting its response.
+     */
+    private static class PendingTransaction {
+
+        final CompletableFuture<ModbusResponse> m_Future;
+        final long m_Deadline;
+
+        PendingTransaction(CompletableFuture<ModbusResponse> future,
+                long deadline) {
+            m_Future = future;
+            m_Deadline = deadline;
+        }
+    }
+
+    /**
+     * A transaction waiting for a slot in the window.
+     */
+    private static class WaitingTransaction {
+
+        final ModbusRequest m_Request;
+        final CompletableFuture<ModbusResponse> m_Future;
+        final long m_Deadline;
+
+        WaitingTransaction(ModbusRequest request,
+                CompletableFuture<ModbusResponse> future, long deadline) {
+            m_Request = request;
+            m_Future = future;
+            m_Deadline = deadline;
+        }
+    }
+
+    /**
+     * Reads responses and hands them to the waiting callers.
+     */
+    private class ResponseReader implements Runnable {
+
+        @Override
+        public void run() {
+            while (m_Running) {
+                try {
+                    ModbusResponse response = m_Transport.readResponse();
+                    PendingTransaction pending = m_Pending.remove(
+                            response.getTransactionID());
+                    if (pending != null) {
+                        m_TransactionIDs.release(response.getTransactionID());
+                        pending.m_Future.complete(response);
+                    } else {
+                        Logger.getLogger(ModbusTCPPipeline.class.getName()).log(Level.FINE, "discarding response, transaction ID = {0}", response.getTransactionID());
+                    }
+                } catch (ModbusIOException ex) {
+                    /*
+                     * A failure within a frame, a timeout included, marks
+                     * the transport broken: later headers would be read at
+                     * the wrong offset, so the connection is closed for its
+                     * owner to reconnect.
+                     */
+                    if (ex.isEOF() || !m_Transport.isOpen()
+                            || m_Transport.isBroken()) {
+                        abort(ex);
+                        break;
+                    }
+                    /*
+                     * A read timeout before any byte of a frame -- nothing
+                     * arrived, which is normal for an idle connection.
+                     */
+                } catch (RuntimeException ex) {
+                    /*
+                     * A response which cannot be decoded. The stream can no
+                     * longer be trusted to be in step with the frames.
+                     */
+                    Logger.getLogger(ModbusTCPPipeline.class.getName()).log(Level.WARNING, "Invalid response, closing connection", ex);
+                    abort(new ModbusIOException("Invalid response", true));
+                    break;
+                }
+                expireOverdue();
+            }
+        }
+
+        /**
+         * Stops the pipeline after a failure of the connection, failing the
+         * outstanding transactions and closing the transport, so the owner
+         * of the connection sees it as lost and reconnects.
+         */
+        private void abort(ModbusIOException ex) {
+            m_Running = false;
+            failAll(ex);
+            try {
+                m_Transport.close();
+            } catch (IOException e) {
+                // Nothing to do.
+            }
+        }
+    }
+}
@@ -38,6 +38,7 @@ import com.ghgande.j2mod.modbus.ModbusSlaveException;
 import com.ghgande.j2mod.modbus.msg.ExceptionResponse;
 import com.ghgande.j2mod.modbus.msg.ModbusRequest;
 import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+import com.ghgande.j2mod.modbus.net.CircuitBreaker;
 import com.ghgande.j2mod.modbus.net.TCPMasterConnection;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -53,9 +54,6 @@ import java.util.logging.Logger;
  */
 public class ModbusTCPTransaction implements ModbusTransaction {
 
-    // class attributes
-    private static int c_TransactionID = Modbus.DEFAULT_TRANSACTION_ID;
-
     // instance attributes and associations
     private TCPMasterConnection m_Connection;
     private ModbusTransport m_IO;
@@ -64,6 +62,8 @@ public class ModbusTCPTransaction implements ModbusTransaction {
     private boolean m_ValidityCheck = Modbus.DEFAULT_VALIDITYCHECK;
     private boolean m_Reconnecting = Modbus.DEFAULT_RECONNECTING;
     private int m_Retries = Modbus.DEFAULT_RETRIES;
+    private boolean m_AdaptiveTimeout = Modbus.DEFAULT_ADAPTIVE_TIMEOUT;
+    private boolean m_ConnectFailed;
 
     /**
      * Constructs a new <tt>ModbusTCPTransaction</tt> instance.
@@ -125,28 +125,13 @@ public class ModbusTCPTransaction implements ModbusTransaction {
     }
 
     /**
-     * getTransactionID -- get the next transaction ID to use.
-     *
-     * Note that this method is not synchronized. Callers should synchronize on
-     * this class instance if multiple threads can create requests at the same
-     * time.
+     * getTransactionID -- get the transaction ID of the request. It is
+     * assigned by the connection when the transaction is executed, and is
+     * unique among the outstanding transactions of the connection.
      */
     @Override
     public int getTransactionID() {
-        /*
-         * Ensure that the transaction ID is in the valid range between
-         * 1 and MAX_TRANSACTION_ID (65534).  If not, the value will be forced
-         * to 1.
-         */
-        if (c_TransactionID <= 0 && isCheckingValidity()) {
-            c_TransactionID = 1;
-        }
-
-        if (c_TransactionID >= Modbus.MAX_TRANSACTION_ID) {
-            c_TransactionID = 1;
-        }
-
-        return c_TransactionID;
+        return m_Request == null ? 0 : m_Request.getTransactionID();
     }
 
     @Override
@@ -161,7 +146,8 @@ public class ModbusTCPTransaction implements ModbusTransaction {
 
     /**
      * Sets the flag that controls whether a connection is opened and closed for
-     * <b>each</b> execution or not.
+     * <b>each</b> execution or not. The flag has no effect on a pipelined
+     * connection, which is shared by the transactions in flight.
      * <p>
      *
      * @param b true if reconnecting, false otherwise.
@@ -181,6 +167,29 @@ public class ModbusTCPTransaction implements ModbusTransaction {
         return m_Reconnecting;
     }
 
+    /**
+     * Sets the flag that controls whether the timeout of each attempt is
+     * derived from the round-trip times measured for the unit, rather than
+     * being the timeout of the connection.
+     * <p>
+     *
+     * @param b true if adaptive, false otherwise.
+     * @see TCPMasterConnection#getRTTEstimator(int)
+     */
+    public void setAdaptiveTimeout(boolean b) {
+        m_AdaptiveTimeout = b;
+    }
+
+    /**
+     * Tests if the timeout is derived from the measured round-trip times.
+     * <p>
+     *
+     * @return true if adaptive, false otherwise.
+     */
+    public boolean isAdaptiveTimeout() {
+        return m_AdaptiveTimeout;
+    }
+
     @Override
     public int getRetries() {
         return m_Retries;
@@ -199,6 +208,57 @@ public class ModbusTCPTransaction implements ModbusTransaction {
             throw new ModbusException("Invalid request or connection");
         }
 
+        CircuitBreaker breaker = m_Connection.getCircuitBreaker();
+        if (breaker == null) {
+            executeTransaction();
+            return;
+        }
+
+        /*
+         * Fail immediately while the circuit of the slave is open, and report
+         * the outcome otherwise. A slave returning an exception is alive.
+         * Failures to connect have been reported by the connection.
+         */
+        long ticket = breaker.acquire();
+        if (ticket < 0) {
+            throw new ModbusIOException("Circuit open for "
+                    + breaker.getName());
+        }
+        m_ConnectFailed = false;
+        try {
+            executeTransaction();
+            breaker.recordSuccess(ticket);
+        } catch (ModbusSlaveException ex) {
+            breaker.recordSuccess(ticket);
+            throw ex;
+        } catch (ModbusIOException ex) {
+            if (!m_ConnectFailed) {
+                breaker.recordFailure(ticket);
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * executeTransaction -- Execute the transaction on the connection,
+     * connecting it if needed.
+     *
+     * @throws ModbusException if the transaction fails.
+     */
+    private void executeTransaction() throws ModbusException {
+
+        /*
+         * A pipelined connection matches the response to the request itself,
+         * so other transactions may be in flight at the same time. The
+         * connection is not probed here, as that would write to the socket
+         * while other requests are being sent.
+         */
+        ModbusTCPPipeline pipeline = m_Connection.getPipeline();
+        if (pipeline != null && pipeline.isRunning()) {
+            executePipelined();
+            return;
+        }
+
         /*
          * Automatically re-connect if disconnected.
          */
@@ -206,37 +266,81 @@ public class ModbusTCPTransaction implements ModbusTransaction {
             try {
                 m_Connection.connect();
             } catch (Exception ex) {
+                m_ConnectFailed = true;
                 throw new ModbusIOException("Connection failed.");
             }
         }
+        m_IO = m_Connection.getModbusTransport();
+
+        pipeline = m_Connection.getPipeline();
+        if (pipeline != null) {
+            executePipelined();
+            return;
+        }
+
+        /*
+         * Take a transaction ID which no other outstanding transaction of the
+         * connection uses, and try sending the message up to m_Retries time.
+         * Note that the message is read immediately after being written, with
+         * no flushing of buffers.
+         */
+        TransactionIDAllocator ids = m_Connection.getTransactionIDAllocator();
+        int tid = ids.acquire();
+        m_Request.setTransactionID(tid);
+        try {
+            executeWithRetries();
+        } finally {
+            ids.release(tid);
+        }
+
+        /*
+         * The slave may have returned an exception -- check for that.
+         */
+        if (m_Response instanceof ExceptionResponse) {
+            throw new ModbusSlaveException(
+                    ((ExceptionResponse) m_Response).getExceptionCode());
+        }
 
         /*
-         * Try sending the message up to m_Retries time. Note that the message
-         * is read immediately after being written, with no flushing of buffers.
+         * Close the connection if it isn't supposed to stick around.
          */
+        if (isReconnecting()) {
+            m_Connection.close();
+        }
+
+        /*
+         * See if packets require validity checking.
+         */
+        if (isCheckingValidity() && m_Request != null && m_Response != null) {
+            checkValidity();
+        }
+    }
+
+    /**
+     * executeWithRetries -- Write the request and read the response, trying
+     * up to the retry limit. Responses carrying another transaction ID are
+     * left over from earlier transactions and are skipped.
+     *
+     * @throws ModbusIOException if no matching response was read.
+     */
+    private void executeWithRetries() throws ModbusIOException {
         int retryCounter = 0;
         int retryLimit = (m_Retries > 0 ? m_Retries : 1);
+        RTTEstimator rtt = getRTTEstimator();
 
         while (retryCounter < retryLimit) {
             try {
                 synchronized (m_IO) {
-                    Logger.getLogger(ModbusTCPTransaction.class.getName()).log(Level.FINE, "request transaction ID = {0}", m_Request.getTransactionID());
-
-                    m_IO.writeMessage(m_Request);
-                    m_Response = null;
-                    do {
-                        m_Response = m_IO.readResponse();
-                        Logger.getLogger(ModbusTCPTransaction.class.getName()).log(Level.FINE, "response transaction ID = {0}", m_Response.getTransactionID());
-
-                        if (m_Response.getTransactionID() != m_Request.getTransactionID()) {
-                            Logger.getLogger(ModbusTCPTransaction.class.getName()).log(Level.FINE, "expected {0}, got {1}", new Object[]{m_Request.getTransactionID(), m_Response.getTransactionID()});
+                    int timeout = setAdaptiveTimeout(rtt, retryCounter);
+                    int attempt = retryCounter;
+                    long start = System.nanoTime();
+                    try {
+                        retryCounter = writeAndRead(retryCounter, retryLimit);
+                    } finally {
+                        if (timeout >= 0) {
+                            ((ModbusTCPTransport) m_IO).setTimeout(timeout);
                         }
-                    } while (m_Response != null
-                            && (!isCheckingValidity()
-                            || (m_Request.getTransactionID() != 0
-                            && m_Request.getTransactionID()
-                            != m_Response.getTransactionID()))
-                            && ++retryCounter < retryLimit);
+                    }
 
                     if (retryCounter >= retryLimit) {
                         throw new ModbusIOException(
@@ -246,8 +350,14 @@ public class ModbusTCPTransaction implements ModbusTransaction {
 
                     /*
                      * Both methods were successful, so the transaction must
-                     * have been executed.
+                     * have been executed. The round-trip time is only
+                     * sampled if the request was sent once, as a response
+                     * after a retry may answer any of the attempts (Karn's
+                     * algorithm).
                      */
+                    if (rtt != null && attempt == 0) {
+                        rtt.addSample(System.nanoTime() - start);
+                    }
                     break;
                 }
             } catch (ModbusIOException ex) {
@@ -258,6 +368,7 @@ public class ModbusTCPTransaction implements ModbusTransaction {
                         /*
                          * Nope, fail this transaction.
                          */
+                        m_ConnectFailed = true;
                         throw new ModbusIOException("Connection lost.");
                     }
                 }
@@ -271,29 +382,139 @@ public class ModbusTCPTransaction implements ModbusTransaction {
             }
         }
 
-        /*
-         * The slave may have returned an exception -- check for that.
-         */
+        if (m_Response == null) {
+            throw new ModbusIOException("Executing transaction failed (tried "
+                    + m_Retries + " times)");
+        }
+    }
+
+    /**
+     * writeAndRead -- Write the request and read responses until the one
+     * matching it arrives. Every mismatched response counts as a retry.
+     *
+     * @param retryCounter the retries so far.
+     * @param retryLimit the number of tries allowed.
+     * @return the retries after reading the response.
+     * @throws ModbusIOException if the request cannot be written or no
+     * response read.
+     */
+    private int writeAndRead(int retryCounter, int retryLimit)
+            throws ModbusIOException {
+        Logger.getLogger(ModbusTCPTransaction.class.getName()).log(Level.FINE, "request transaction ID = {0}", m_Request.getTransactionID());
+
+        m_IO.writeMessage(m_Request);
+        m_Response = null;
+        do {
+            m_Response = m_IO.readResponse();
+            Logger.getLogger(ModbusTCPTransaction.class.getName()).log(Level.FINE, "response transaction ID = {0}", m_Response.getTransactionID());
+
+            if (m_Response.getTransactionID() != m_Request.getTransactionID()) {
+                Logger.getLogger(ModbusTCPTransaction.class.getName()).log(Level.FINE, "expected {0}, got {1}", new Object[]{m_Request.getTransactionID(), m_Response.getTransactionID()});
+            }
+        } while (m_Response != null
+                && isCheckingValidity()
+                && m_Request.getTransactionID() != 0
+                && m_Response.getTransactionID() != 0
+                && m_Request.getTransactionID()
+                != m_Response.getTransactionID()
+                && ++retryCounter < retryLimit);
+        return retryCounter;
+    }
+
+    /**
+     * setAdaptiveTimeout -- Set the timeout of the transport for the given
+     * attempt from the measured round-trip times. Until a round-trip time
+     * has been measured, the timeout of the connection applies.
+     *
+     * @param rtt the <tt>RTTEstimator</tt> of the unit, or null.
+     * @param attempt the attempt, counting from zero.
+     * @return the timeout to restore afterwards, or -1 if unchanged.
+     */
+    private int setAdaptiveTimeout(RTTEstimator rtt, int attempt) {
+        if (rtt == null || rtt.getSampleCount() == 0) {
+            return -1;
+        }
+        ModbusTCPTransport transport = (ModbusTCPTransport) m_IO;
+        int timeout = transport.getTimeout();
+        transport.setTimeout(rtt.getTimeout(attempt));
+        return timeout;
+    }
+
+    /**
+     * executePipelined -- Execute the transaction on the pipeline of the
+     * connection. The pipeline assigns the transaction ID, so the request and
+     * response always match.
+     *
+     * @throws ModbusException if the transaction fails.
+     */
+    private void executePipelined() throws ModbusException {
+        int retryCounter = 0;
+        int retryLimit = (m_Retries > 0 ? m_Retries : 1);
+
+        RTTEstimator rtt = m_AdaptiveTimeout
+                ? m_Connection.getRTTEstimator(m_Request.getUnitID()) : null;
+        long start = System.nanoTime();
+
+        m_Response = null;
+        while (m_Response == null) {
+            ModbusTCPPipeline pipeline = m_Connection.getPipeline();
+            try {
+                if (pipeline == null) {
+                    throw new ModbusIOException("Connection lost.");
+                }
+                m_Response = pipeline.execute(m_Request, rtt != null
+                        && rtt.getSampleCount() > 0
+                        ? rtt.getTimeout(retryCounter)
+                        : m_Connection.getTimeout());
+                // only unambiguous round-trip times, see executeWithRetries
+                if (rtt != null && retryCounter == 0) {
+                    rtt.addSample(System.nanoTime() - start);
+                }
+            } catch (ModbusIOException ex) {
+                if (++retryCounter >= retryLimit) {
+                    throw new ModbusIOException(
+                            "Executing transaction failed (tried " + m_Retries
+                            + " times)");
+                }
+                if (pipeline == null || !pipeline.isRunning()) {
+                    try {
+                        synchronized (m_Connection) {
+                            if (m_Connection.getPipeline() == pipeline) {
+                                m_Connection.close();
+                                m_Connection.connect();
+                            }
+                        }
+                    } catch (Exception e) {
+                        m_ConnectFailed = true;
+                        throw new ModbusIOException("Connection lost.");
+                    }
+                }
+            }
+        }
+
         if (m_Response instanceof ExceptionResponse) {
             throw new ModbusSlaveException(
                     ((ExceptionResponse) m_Response).getExceptionCode());
         }
 
         /*
-         * Close the connection if it isn't supposed to stick around.
+         * The pipeline is shared by all transactions in flight on the
+         * connection, so it is not closed after each of them even if the
+         * transaction is reconnecting.
          */
-        if (isReconnecting()) {
-            m_Connection.close();
-        }
+    }
 
-        /*
-         * See if packets require validity checking.
-         */
-        if (isCheckingValidity() && m_Request != null && m_Response != null) {
-            checkValidity();
+    /**
+     * getRTTEstimator -- Returns the round-trip time estimator of the unit if
+     * the timeout is adaptive, or null.
+     *
+     * @return the <tt>RTTEstimator</tt>, or null.
+     */
+    private RTTEstimator getRTTEstimator() {
+        if (!m_AdaptiveTimeout || !(m_IO instanceof ModbusTCPTransport)) {
+            return null;
         }
-
-        incrementTransactionID();
+        return m_Connection.getRTTEstimator(m_Request.getUnitID());
     }
 
     /**
@@ -311,23 +532,4 @@ public class ModbusTCPTransaction implements ModbusTransaction {
             throw new ModbusException("Transaction ID mismatch");
         }
     }
-
-    /**
-     * incrementTransactionID -- Increment the transaction ID for the next
-     * transaction. Note that the caller must get the new transaction ID with
-     * getTransactionID(). This is only done validity checking is enabled so
-     * that dumb slaves don't cause problems. The original request will have its
-     * transaction ID incremented as well so that sending the same transaction
-     * again won't cause problems.
-     */
-    private void incrementTransactionID() {
-        if (isCheckingValidity()) {
-            if (c_TransactionID >= Modbus.MAX_TRANSACTION_ID) {
-                c_TransactionID = 1;
-            } else {
-                c_TransactionID++;
-            }
-        }
-        m_Request.setTransactionID(getTransactionID());
-    }
 }
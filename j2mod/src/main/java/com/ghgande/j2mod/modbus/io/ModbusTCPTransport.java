@@ -71,6 +71,8 @@ public class ModbusTCPTransport implements ModbusTransport {
     private Socket m_Socket = null;
     private TCPMasterConnection m_Master = null;
     private boolean headless = false; // Some TCP implementations are.
+    private volatile long m_LastActivity;
+    private volatile boolean m_Broken;
 
     /**
      * Sets the <tt>Socket</tt> used for message transport and prepares the
@@ -85,6 +87,8 @@ public class ModbusTCPTransport implements ModbusTransport {
             m_Socket = null;
         }
         m_Socket = socket;
+        m_Broken = false;
+        m_LastActivity = System.currentTimeMillis();
         setTimeout(m_Timeout);
 
         prepareStreams(socket);
@@ -94,6 +98,45 @@ public class ModbusTCPTransport implements ModbusTransport {
         headless = true;
     }
 
+    /**
+     * Tests if the socket of this transport is still open.
+     *
+     * @return true if open, false otherwise.
+     */
+    public boolean isOpen() {
+        return m_Socket != null && !m_Socket.isClosed();
+    }
+
+    /**
+     * Tests if a read or write of this transport has shown the connection to
+     * be lost: the peer closed it, or the socket failed. Read timeouts do not
+     * count, as an idle or slow slave is not a lost connection.
+     *
+     * @return true if the connection is lost, false otherwise.
+     */
+    public boolean isBroken() {
+        return m_Broken;
+    }
+
+    /**
+     * Returns the time of the last message successfully written or read.
+     *
+     * @return the time in milliseconds, as by
+     * <tt>System.currentTimeMillis()</tt>.
+     */
+    public long getLastActivity() {
+        return m_LastActivity;
+    }
+
+    /**
+     * Tests if this transport omits the Modbus/TCP (MBAP) header.
+     *
+     * @return true if headless, false otherwise.
+     */
+    public boolean isHeadless() {
+        return headless;
+    }
+
     public void setTimeout(int time) {
         m_Timeout = time;
 
@@ -106,6 +149,10 @@ public class ModbusTCPTransport implements ModbusTransport {
         }
     }
 
+    public int getTimeout() {
+        return m_Timeout;
+    }
+
     @Override
     public void close() throws IOException {
         m_Input.close();
@@ -142,13 +189,17 @@ public class ModbusTCPTransport implements ModbusTransport {
                 m_ByteOut.write(message);
             }
 
-            m_Output.write(m_ByteOut.toByteArray());
+            m_Output.write(m_ByteOut.getBuffer(), 0, m_ByteOut.size());
             m_Output.flush();
-            Logger.getLogger(ModbusTCPTransport.class.getName()).log(Level.FINE, "Sent: {0}", ModbusUtil.toHex(m_ByteOut.toByteArray()));
+            m_LastActivity = System.currentTimeMillis();
+            if (Logger.getLogger(ModbusTCPTransport.class.getName()).isLoggable(Level.FINE)) {
+                Logger.getLogger(ModbusTCPTransport.class.getName()).log(Level.FINE, "Sent: {0}", ModbusUtil.toHex(m_ByteOut.getBuffer(), 0, m_ByteOut.size()));
+            }
 
             // write more sophisticated exception handling
         } catch (SocketException ex) {
-            if (!m_Master.isConnected()) {
+            m_Broken = true;
+            if (m_Master != null && !m_Master.isConnected()) {
                 try {
                     m_Master.connect();
                 } catch (Exception e) {
@@ -156,6 +207,9 @@ public class ModbusTCPTransport implements ModbusTransport {
                 }
             }
             throw new ModbusIOException("I/O exception - failed to write.");
+        } catch (IOException ex) {
+            m_Broken = true;
+            throw new ModbusIOException("I/O exception - failed to write.");
         } catch (Exception ex) {
             throw new ModbusIOException("I/O exception - failed to write.");
         }
@@ -179,10 +233,7 @@ public class ModbusTCPTransport implements ModbusTransport {
                 byte[] buffer = m_ByteIn.getBuffer();
 
                 if (!headless) {
-                    if (m_Input.read(buffer, 0, 6) == -1) {
-                        throw new EOFException(
-                                "Premature end of stream (Header truncated).");
-                    }
+                    m_Input.readFully(buffer, 0, 6);
 
                     /*
                      * The transaction ID must be treated as an unsigned short in
@@ -192,10 +243,7 @@ public class ModbusTCPTransport implements ModbusTransport {
                     int protocol = ModbusUtil.registerToShort(buffer, 2);
                     int count = ModbusUtil.registerToShort(buffer, 4);
 
-                    if (m_Input.read(buffer, 6, count) == -1) {
-                        throw new ModbusIOException(
-                                "Premature end of stream (Message truncated).");
-                    }
+                    m_Input.readFully(buffer, 6, count);
 
                     Logger.getLogger(ModbusTCPTransport.class.getName()).log(Level.FINE, "Read: {0}", ModbusUtil.toHex(buffer, 0, count + 6));
 
@@ -237,17 +285,20 @@ public class ModbusTCPTransport implements ModbusTransport {
                     Logger.getLogger(ModbusTCPTransport.class.getName()).log(Level.FINE, "Read: {0}", req.getHexMessage());
                 }
             }
+            m_LastActivity = System.currentTimeMillis();
             return req;
         } catch (EOFException ex) {
+            m_Broken = true;
             Logger.getLogger(ModbusTCPTransport.class.getName()).log(Level.SEVERE, null, ex);
             throw new ModbusIOException("End of File", true);
         } catch (SocketTimeoutException ex) {
             Logger.getLogger(ModbusTCPTransport.class.getName()).log(Level.SEVERE, null, ex);
             throw new ModbusIOException("Timeout reading request");
         } catch (SocketException ex) {
+            m_Broken = true;
             Logger.getLogger(ModbusTCPTransport.class.getName()).log(Level.SEVERE, null, ex);
             throw new ModbusIOException("Socket Exception", true);
-        } catch (IOException | ModbusIOException ex) {
+        } catch (IOException ex) {
             Logger.getLogger(ModbusTCPTransport.class.getName()).log(Level.SEVERE, null, ex);
             throw new ModbusIOException("I/O exception - failed to read.");
         }
@@ -256,6 +307,13 @@ public class ModbusTCPTransport implements ModbusTransport {
     @Override
     public ModbusResponse readResponse() throws ModbusIOException {
 
+        /*
+         * Set once the first byte of a response has arrived. A timeout or
+         * any other failure after that leaves the rest of the frame in the
+         * stream, so the stream is out of step and the connection is of no
+         * further use.
+         */
+        boolean started = false;
         try {
 
             ModbusResponse response = null;
@@ -268,11 +326,12 @@ public class ModbusTCPTransport implements ModbusTransport {
                 if (!headless) {
                     /*
                      * All Modbus TCP transactions start with 6 bytes. Get them.
+                     * The whole frame must be read, as a pipelined connection
+                     * may have several responses waiting in the stream.
                      */
-                    if (m_Input.read(buffer, 0, 6) == -1) {
-                        throw new ModbusIOException(
-                                "Premature end of stream (Header truncated).");
-                    }
+                    buffer[0] = m_Input.readByte();
+                    started = true;
+                    m_Input.readFully(buffer, 1, 5);
 
                     /*
                      * The transaction ID is the first word (offset 0) in the
@@ -288,13 +347,15 @@ public class ModbusTCPTransport implements ModbusTransport {
                      */
                     int transaction = ModbusUtil.registerToShort(buffer, 0) & 0x0000FFFF;
                     int protocol = ModbusUtil.registerToShort(buffer, 2);
-                    int count = ModbusUtil.registerToShort(buffer, 4);
-
-                    if (m_Input.read(buffer, 6, count) == -1) {
-                        throw new ModbusIOException(
-                                "Premature end of stream (Message truncated).");
+                    int count = ModbusUtil.registerToShort(buffer, 4) & 0x0000FFFF;
+                    if (count < 2 || 6 + count > buffer.length) {
+                        m_Broken = true;
+                        throw new ModbusIOException("Invalid frame length: "
+                                + count, true);
                     }
 
+                    m_Input.readFully(buffer, 6, count);
+
                     m_ByteIn.reset(buffer, (6 + count));
 
                     m_ByteIn.reset();
@@ -317,6 +378,7 @@ public class ModbusTCPTransport implements ModbusTransport {
                      * RTU over Serial response.
                      */
                     int unit = m_Input.readByte();
+                    started = true;
                     int function = m_Input.readByte();
 
                     response = ModbusResponse.createModbusResponse(function);
@@ -331,10 +393,25 @@ public class ModbusTCPTransport implements ModbusTransport {
                     m_Input.readShort();
                 }
             }
+            m_LastActivity = System.currentTimeMillis();
             return response;
+        } catch (EOFException ex) {
+            m_Broken = true;
+            throw new ModbusIOException("End of File", true);
         } catch (SocketTimeoutException ex) {
+            if (started) {
+                m_Broken = true;
+                throw new ModbusIOException("Timeout within response", true);
+            }
             throw new ModbusIOException("Timeout reading response");
-        } catch (IOException | ModbusIOException ex) {
+        } catch (SocketException ex) {
+            m_Broken = true;
+            throw new ModbusIOException("Socket Exception", true);
+        } catch (IOException ex) {
+            if (started) {
+                m_Broken = true;
+                throw new ModbusIOException("Failure within response", true);
+            }
             throw new ModbusIOException("I/O exception - failed to read.");
         }
     }
@@ -53,12 +53,10 @@ import java.util.logging.Logger;
 public class ModbusUDPTransaction
         implements ModbusTransaction {
 
-    //class attributes
-    private static int c_TransactionID
-            = Modbus.DEFAULT_TRANSACTION_ID;
-
     //instance attributes and associations
     private UDPTerminal m_Terminal;
+    private UDPMasterConnection m_Connection;
+    private TransactionIDAllocator m_TransactionIDs;
     private ModbusTransport m_IO;
     private ModbusRequest m_Request;
     private ModbusResponse m_Response;
@@ -66,6 +64,7 @@ public class ModbusUDPTransaction
             = Modbus.DEFAULT_VALIDITYCHECK;
     private int m_Retries = Modbus.DEFAULT_RETRIES;
     private int m_RetryCounter = 0;
+    private boolean m_AdaptiveTimeout = Modbus.DEFAULT_ADAPTIVE_TIMEOUT;
 
     /**
      * Constructs a new <tt>ModbusUDPTransaction</tt>
@@ -104,11 +103,16 @@ public class ModbusUDPTransaction
      */
     public ModbusUDPTransaction(UDPMasterConnection con) {
         setTerminal(con.getTerminal());
+        m_Connection = con;
+        m_TransactionIDs = con.getTransactionIDAllocator();
     }//constructor
 
     /**
      * Sets the terminal on which this <tt>ModbusTransaction</tt>
      * should be executed.<p>
+     * Transactions created for a <tt>UDPMasterConnection</tt> share the
+     * transaction identifiers of the connection; otherwise this transaction
+     * allocates its own.<p>
      *
      * @param terminal a <tt>UDPSlaveTerminal</tt>.
      */
@@ -137,7 +141,7 @@ public class ModbusUDPTransaction
 
     @Override
     public int getTransactionID() {
-        return c_TransactionID & 0x0000FFFF;
+        return m_Request == null ? 0 : m_Request.getTransactionID();
     }//getTransactionID
 
     @Override
@@ -160,6 +164,28 @@ public class ModbusUDPTransaction
         m_Retries = num;
     }//setRetries
 
+    /**
+     * Sets the flag that controls whether the timeout of each attempt is
+     * derived from the round-trip times measured for the unit, rather than
+     * being the timeout of the terminal. Only transactions created for a
+     * <tt>UDPMasterConnection</tt> adapt their timeout.
+     *
+     * @param b true if adaptive, false otherwise.
+     * @see UDPMasterConnection#getRTTEstimator(int)
+     */
+    public void setAdaptiveTimeout(boolean b) {
+        m_AdaptiveTimeout = b;
+    }//setAdaptiveTimeout
+
+    /**
+     * Tests if the timeout is derived from the measured round-trip times.
+     *
+     * @return true if adaptive, false otherwise.
+     */
+    public boolean isAdaptiveTimeout() {
+        return m_AdaptiveTimeout;
+    }//isAdaptiveTimeout
+
     @Override
     public void execute() throws ModbusIOException,
             ModbusSlaveException,
@@ -181,21 +207,63 @@ public class ModbusUDPTransaction
 
         //3. Retry transaction m_Retries times, in case of
         //I/O Exception problems.
+        if (m_TransactionIDs == null) {
+            m_TransactionIDs = new TransactionIDAllocator();
+        }
+        int tid = m_TransactionIDs.acquire();
+        m_Request.setTransactionID(tid);
+        m_Response = null;
         m_RetryCounter = 0;
-        while (m_RetryCounter <= m_Retries) {
-            try {
-                //3. write request, and read response,
-                //   while holding the lock on the IO object
-                synchronized (m_IO) {
-                    //write request message
-                    m_IO.writeMessage(m_Request);
-                    //read response message
-                    m_Response = m_IO.readResponse();
-                    break;
+        RTTEstimator rtt = m_AdaptiveTimeout && m_Connection != null
+                ? m_Connection.getRTTEstimator(m_Request.getUnitID()) : null;
+        long start = 0;
+        try {
+            while (m_RetryCounter <= m_Retries) {
+                try {
+                    //3. write request, and read response,
+                    //   while holding the lock on the IO object
+                    synchronized (m_IO) {
+                        int timeout = m_Terminal.getTimeout();
+                        boolean adapt = rtt != null && rtt.getSampleCount() > 0;
+                        if (adapt) {
+                            m_Terminal.setTimeout(rtt.getTimeout(m_RetryCounter));
+                        }
+                        try {
+                            if (m_RetryCounter == 0) {
+                                start = System.nanoTime();
+                            }
+                            //write request message
+                            m_IO.writeMessage(m_Request);
+                            //read response message, skipping late responses
+                            //to earlier requests
+                            do {
+                                m_Response = m_IO.readResponse();
+                            } while (isCheckingValidity()
+                                    && m_Response.getTransactionID() != 0
+                                    && m_Response.getTransactionID() != tid);
+                        } finally {
+                            if (adapt) {
+                                m_Terminal.setTimeout(timeout);
+                            }
+                        }
+                        //only sampled if the request was sent once, as a
+                        //response after a retry may answer any attempt
+                        if (rtt != null && m_RetryCounter == 0) {
+                            rtt.addSample(System.nanoTime() - start);
+                        }
+                        break;
+                    }
+                } catch (ModbusIOException ex) {
+                    m_Response = null;
+                    m_RetryCounter++;
                 }
-            } catch (ModbusIOException ex) {
-                m_RetryCounter++;
             }
+        } finally {
+            m_TransactionIDs.release(tid);
+        }
+        if (m_Response == null) {
+            throw new ModbusIOException("Executing transaction failed (tried "
+                    + m_Retries + " times)");
         }
 
         //4. deal with "application level" exceptions
@@ -208,9 +276,6 @@ public class ModbusUDPTransaction
         if (isCheckingValidity()) {
             checkValidity();
         }
-
-        //toggle the id
-        incrementTransactionID();
     }//execute
 
     /**
@@ -241,21 +306,4 @@ public class ModbusUDPTransaction
 
         //}
     }//checkValidity
-
-    /**
-     * Toggles the transaction identifier, to ensure that each transaction has a
-     * distinctive identifier.<br>
-     * When the maximum value of 65535 has been reached, the identifiers will
-     * start from zero again.
-     */
-    private void incrementTransactionID() {
-        if (isCheckingValidity()) {
-            if (c_TransactionID >= Modbus.MAX_TRANSACTION_ID) {
-                c_TransactionID = 1;
-            } else {
-                c_TransactionID++;
-            }
-        }
-        m_Request.setTransactionID(getTransactionID());
-    }
 }//class ModbusUDPTransaction
@@ -0,0 +1,188 @@
+//License
+/**
+ * *
+ * Java Modbus Library (j2mod) Copyright 2012, Julianne Frances Haugh d/b/a
+ * greenHouse Gas and Electric All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. *
+ */
+package com.ghgande.j2mod.modbus.io;
+
+import com.ghgande.j2mod.modbus.Modbus;
+
+/**
+ * Class estimating the round-trip time of a slave, to derive the timeout of
+ * its transactions from the latencies actually observed.
+ * <p>
+ * The estimator follows the retransmission timer of TCP (RFC 6298): it keeps
+ * a smoothed round-trip time and its mean deviation, and the timeout is the
+ * smoothed round-trip time plus four times the deviation, kept within the
+ * configured bounds. Until the first sample, the timeout is the upper bound.
+ * A retry waits twice as long as the attempt before it, up to the upper
+ * bound.
+ */
+public class RTTEstimator {
+
+    /**
+     * Defines the default lower bound of the timeout in milliseconds.
+     */
+    public static final int DEFAULT_MIN_TIMEOUT = 20;
+
+    private int m_MinTimeout;
+    private int m_MaxTimeout;
+    private long m_SmoothedRTT;
+    private long m_RTTVariation;
+    private long m_Samples;
+
+    /**
+     * Constructs a new <tt>RTTEstimator</tt> with timeouts between
+     * <tt>DEFAULT_MIN_TIMEOUT</tt> and <tt>Modbus.DEFAULT_TIMEOUT</tt>.
+     */
+    public RTTEstimator() {
+        this(DEFAULT_MIN_TIMEOUT, Modbus.DEFAULT_TIMEOUT);
+    }//constructor
+
+    /**
+     * Constructs a new <tt>RTTEstimator</tt>.
+     *
+     * @param min the lower bound of the timeout in milliseconds.
+     * @param max the upper bound of the timeout in milliseconds.
+     */
+    public RTTEstimator(int min, int max) {
+        setBounds(min, max);
+    }//constructor
+
+    /**
+     * Sets the bounds of the timeout.
+     *
+     * @param min the lower bound in milliseconds.
+     * @param max the upper bound in milliseconds.
+     */
+    public synchronized void setBounds(int min, int max) {
+        if (min <= 0 || max < min) {
+            throw new IllegalArgumentException("Illegal timeout bounds "
+                    + min + ", " + max);
+        }
+        m_MinTimeout = min;
+        m_MaxTimeout = max;
+    }//setBounds
+
+    /**
+     * Returns the lower bound of the timeout.
+     *
+     * @return the lower bound in milliseconds.
+     */
+    public synchronized int getMinTimeout() {
+        return m_MinTimeout;
+    }//getMinTimeout
+
+    /**
+     * Returns the upper bound of the timeout.
+     *
+     * @return the upper bound in milliseconds.
+     */
+    public synchronized int getMaxTimeout() {
+        return m_MaxTimeout;
+    }//getMaxTimeout
+
+    /**
+     * Adds a measured round-trip time.
+     *
+     * @param nanos the round-trip time in nanoseconds.
+     */
+    public synchronized void addSample(long nanos) {
+        long rtt = Math.max(0, nanos) / 1000;
+        if (m_Samples++ == 0) {
+            m_SmoothedRTT = rtt;
+            m_RTTVariation = rtt / 2;
+        } else {
+            m_RTTVariation += (Math.abs(m_SmoothedRTT - rtt) - m_RTTVariation) / 4;
+            m_SmoothedRTT += (rtt - m_SmoothedRTT) / 8;
+        }
+    }//addSample
+
+    /**
+     * Returns the timeout of the first attempt of a transaction.
+     *
+     * @return the timeout in milliseconds.
+     */
+    public int getTimeout() {
+        return getTimeout(0);
+    }//getTimeout
+
+    /**
+     * Returns the timeout of the given attempt of a transaction, doubling
+     * for every retry.
+     *
+     * @param attempt the attempt, counting from zero.
+     * @return the timeout in milliseconds.
+     */
+    public synchronized int getTimeout(int attempt) {
+        if (m_Samples == 0) {
+            return m_MaxTimeout;
+        }
+        long timeout = (m_SmoothedRTT + 4 * m_RTTVariation + 999) / 1000;
+        timeout = Math.max(m_MinTimeout, timeout) << Math.min(attempt, 16);
+        return (int) Math.min(m_MaxTimeout, timeout);
+    }//getTimeout
+
+    /**
+     * Returns the smoothed round-trip time.
+     *
+     * @return the round-trip time in microseconds.
+     */
+    public synchronized long getSmoothedRTT() {
+        return m_SmoothedRTT;
+    }//getSmoothedRTT
+
+    /**
+     * Returns the mean deviation of the round-trip time.
+     *
+     * @return the deviation in microseconds.
+     */
+    public synchronized long getRTTVariation() {
+        return m_RTTVariation;
+    }//getRTTVariation
+
+    /**
+     * Returns the number of round-trip times measured.
+     *
+     * @return the sample count.
+     */
+    public synchronized long getSampleCount() {
+        return m_Samples;
+    }//getSampleCount
+
+    /**
+     * Discards the measured round-trip times.
+     */
+    public synchronized void reset() {
+        m_SmoothedRTT = 0;
+        m_RTTVariation = 0;
+        m_Samples = 0;
+    }//reset
+
+}//class RTTEstimator
@@ -0,0 +1,139 @@
+//License
+/**
+ * *
+ * Java Modbus Library (j2mod) Copyright 2012, Julianne Frances Haugh d/b/a
+ * greenHouse Gas and Electric All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. *
+ */
+package com.ghgande.j2mod.modbus.io;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.ghgande.j2mod.modbus.Modbus;
+
+/**
+ * Class allocating the transaction identifiers of a connection.
+ * <p>
+ * Identifiers are handed out in sequence from <tt>1</tt> to
+ * <tt>Modbus.MAX_TRANSACTION_ID</tt>, skipping those still held by an
+ * outstanding request, so no two outstanding requests of the connection
+ * share an identifier. An identifier must be released once its response
+ * has arrived or the request has been given up.
+ * <p>
+ * Allocation and release are lock free: a counter picks the candidate and
+ * a bitmap of the identifiers in flight is updated by compare-and-set.
+ */
+public final class TransactionIDAllocator {
+
+    private final AtomicInteger m_Next = new AtomicInteger();
+    private final AtomicLongArray m_InFlight
+            = new AtomicLongArray((Modbus.MAX_TRANSACTION_ID >> 6) + 1);
+    private final AtomicInteger m_Count = new AtomicInteger();
+
+    /**
+     * Allocates a transaction identifier which is not in flight.
+     *
+     * @return the identifier, between <tt>1</tt> and
+     * <tt>Modbus.MAX_TRANSACTION_ID</tt>.
+     * @throws IllegalStateException if all identifiers are in flight.
+     */
+    public int acquire() {
+        for (int i = 0; i < Modbus.MAX_TRANSACTION_ID; i++) {
+            int tid = (m_Next.getAndIncrement() & Integer.MAX_VALUE)
+                    % Modbus.MAX_TRANSACTION_ID + 1;
+            if (tryAcquire(tid)) {
+                return tid;
+            }
+        }
+        throw new IllegalStateException("No free transaction identifier");
+    }//acquire
+
+    /**
+     * Marks the given identifier as in flight, if it is not already.
+     *
+     * @param tid the transaction identifier.
+     * @return true if the identifier was free, false otherwise.
+     */
+    public boolean tryAcquire(int tid) {
+        int word = tid >> 6;
+        long bit = 1L << (tid & 63);
+        long bits;
+        do {
+            bits = m_InFlight.get(word);
+            if ((bits & bit) != 0) {
+                return false;
+            }
+        } while (!m_InFlight.compareAndSet(word, bits, bits | bit));
+        m_Count.incrementAndGet();
+        return true;
+    }//tryAcquire
+
+    /**
+     * Releases an identifier, so it may be allocated again.
+     *
+     * @param tid the transaction identifier.
+     */
+    public void release(int tid) {
+        if (tid <= 0 || tid > Modbus.MAX_TRANSACTION_ID) {
+            return;
+        }
+        int word = tid >> 6;
+        long bit = 1L << (tid & 63);
+        long bits;
+        do {
+            bits = m_InFlight.get(word);
+            if ((bits & bit) == 0) {
+                return;
+            }
+        } while (!m_InFlight.compareAndSet(word, bits, bits & ~bit));
+        m_Count.decrementAndGet();
+    }//release
+
+    /**
+     * Tests whether the given identifier is in flight.
+     *
+     * @param tid the transaction identifier.
+     * @return true if in flight, false otherwise.
+     */
+    public boolean isInFlight(int tid) {
+        if (tid <= 0 || tid > Modbus.MAX_TRANSACTION_ID) {
+            return false;
+        }
+        return (m_InFlight.get(tid >> 6) & (1L << (tid & 63))) != 0;
+    }//isInFlight
+
+    /**
+     * Returns the number of identifiers in flight.
+     *
+     * @return the number of outstanding transactions.
+     */
+    public int getInFlightCount() {
+        return m_Count.get();
+    }//getInFlightCount
+
+}//class TransactionIDAllocator
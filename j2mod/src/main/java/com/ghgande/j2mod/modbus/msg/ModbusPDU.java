@@ -0,0 +1,321 @@
+//License
+/**
+ * *
+ * Java Modbus Library (j2mod) Copyright 2012, Julianne Frances Haugh d/b/a
+ * greenHouse Gas and Electric All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. *
+ */
+package com.ghgande.j2mod.modbus.msg;
+
+import java.nio.ByteBuffer;
+
+import com.ghgande.j2mod.modbus.Modbus;
+
+/**
+ * Class implementing a flyweight view of a Modbus PDU (function code and
+ * data) held in a <tt>ByteBuffer</tt>.
+ *
+ * <p>
+ * Unlike the <tt>ModbusRequest</tt> and <tt>ModbusResponse</tt> classes,
+ * nothing is copied or allocated: the accessors read the fields straight
+ * from the buffer, and register values are returned as primitives. One
+ * instance may be re-used for any number of messages by wrapping each in
+ * turn. The view is only valid until the buffer contents change, and the
+ * buffer must use big-endian byte order, which is the default.
+ *
+ * <p>
+ * The layout of a PDU depends on whether it is a request or a response, so
+ * the direction is given when wrapping. The typed accessors cover the
+ * function codes with a fixed structure; other messages can be read through
+ * <tt>getByte</tt> and <tt>getShort</tt>.
+ *
+ * @see ModbusPDUCodec
+ */
+public final class ModbusPDU {
+
+    private ByteBuffer m_Buffer;
+    private int m_Offset;
+    private int m_Length;
+    private boolean m_Request;
+
+    /**
+     * Wraps a request PDU.
+     *
+     * @param buffer the buffer holding the PDU.
+     * @param offset the absolute offset of the function code.
+     * @param length the length of the PDU in bytes.
+     * @return this <tt>ModbusPDU</tt>.
+     */
+    public ModbusPDU wrapRequest(ByteBuffer buffer, int offset, int length) {
+        return wrap(buffer, offset, length, true);
+    }
+
+    /**
+     * Wraps a response PDU.
+     *
+     * @param buffer the buffer holding the PDU.
+     * @param offset the absolute offset of the function code.
+     * @param length the length of the PDU in bytes.
+     * @return this <tt>ModbusPDU</tt>.
+     */
+    public ModbusPDU wrapResponse(ByteBuffer buffer, int offset, int length) {
+        return wrap(buffer, offset, length, false);
+    }
+
+    private ModbusPDU wrap(ByteBuffer buffer, int offset, int length,
+            boolean request) {
+        if (length < 1 || offset < 0 || offset + length > buffer.limit()) {
+            throw new IllegalArgumentException("Invalid PDU bounds");
+        }
+        m_Buffer = buffer;
+        m_Offset = offset;
+        m_Length = length;
+        m_Request = request;
+
+        return this;
+    }
+
+    /**
+     * Tests if the wrapped PDU is a request.
+     *
+     * @return true for a request, false for a response.
+     */
+    public boolean isRequest() {
+        return m_Request;
+    }
+
+    /**
+     * Returns the length of the wrapped PDU.
+     *
+     * @return the length in bytes.
+     */
+    public int getLength() {
+        return m_Length;
+    }
+
+    /**
+     * Returns the function code, without the exception flag.
+     *
+     * @return the function code.
+     */
+    public int getFunctionCode() {
+        return getByte(0) & 0x7F;
+    }
+
+    /**
+     * Tests if the wrapped PDU is an exception response.
+     *
+     * @return true if the exception flag of the function code is set.
+     */
+    public boolean isException() {
+        return (getByte(0) & Modbus.EXCEPTION_OFFSET) != 0;
+    }
+
+    /**
+     * Returns the exception code of an exception response.
+     *
+     * @return the exception code.
+     */
+    public int getExceptionCode() {
+        return getByte(1);
+    }
+
+    /**
+     * Returns the reference of a request for function codes 1 to 6, 15, 16,
+     * 22 and 23, or of a response for function codes 5, 6, 15, 16 and 22. For
+     * function code 23 this is the read reference. For function code 24 it
+     * is the FIFO pointer address.
+     *
+     * @return the reference.
+     */
+    public int getReference() {
+        return getShort(1);
+    }
+
+    /**
+     * Returns the number of objects of a request for function codes 1 to 4,
+     * 15, 16 and 23, or of a response for function codes 15 and 16. For
+     * function code 23 this is the read count. For function codes 5 and 6 it
+     * is the written value.
+     *
+     * @return the count or value.
+     */
+    public int getCount() {
+        return getShort(3);
+    }
+
+    /**
+     * Returns the write reference of a function code 23 request.
+     *
+     * @return the write reference.
+     */
+    public int getWriteReference() {
+        return getShort(5);
+    }
+
+    /**
+     * Returns the write count of a function code 23 request.
+     *
+     * @return the number of registers to write.
+     */
+    public int getWriteCount() {
+        return getShort(7);
+    }
+
+    /**
+     * Returns the AND mask of a function code 22 message.
+     *
+     * @return the AND mask.
+     */
+    public int getAndMask() {
+        return getShort(3);
+    }
+
+    /**
+     * Returns the OR mask of a function code 22 message.
+     *
+     * @return the OR mask.
+     */
+    public int getOrMask() {
+        return getShort(5);
+    }
+
+    /**
+     * Returns the number of data bytes of a message which carries packed bits
+     * or register values: read responses and write multiple requests.
+     *
+     * @return the byte count.
+     */
+    public int getByteCount() {
+        if (!m_Request && getFunctionCode() == Modbus.READ_FIFO_QUEUE) {
+            return getShort(1);
+        }
+        return getByte(getDataOffset() - 1);
+    }
+
+    /**
+     * Returns the number of register values which can be read with
+     * <tt>getRegister</tt>.
+     *
+     * @return the number of registers.
+     */
+    public int getRegisterCount() {
+        if (!m_Request && getFunctionCode() == Modbus.READ_FIFO_QUEUE) {
+            return getShort(3);
+        }
+        return getByteCount() / 2;
+    }
+
+    /**
+     * Returns a register value carried by the message.
+     *
+     * @param index the index of the register, starting at 0.
+     * @return the value as an unsigned short.
+     */
+    public int getRegister(int index) {
+        return getShort(getDataOffset() + 2 * index);
+    }
+
+    /**
+     * Copies the register values carried by the message.
+     *
+     * @param dst the array receiving the values.
+     * @param off the offset in <tt>dst</tt>.
+     * @return the number of values copied.
+     * @throws IndexOutOfBoundsException if the message is shorter than its
+     * register count claims.
+     */
+    public int getRegisters(short[] dst, int off) {
+        int count = getRegisterCount();
+        checkIndex(getDataOffset(), 2 * count);
+        int pos = m_Offset + getDataOffset();
+        for (int i = 0; i < count; i++) {
+            dst[off + i] = m_Buffer.getShort(pos + 2 * i);
+        }
+        return count;
+    }
+
+    /**
+     * Returns a bit carried by the message, for read coils and read discretes
+     * responses and write multiple coils requests.
+     *
+     * @param index the index of the bit, starting at 0.
+     * @return the state of the bit.
+     */
+    public boolean getBit(int index) {
+        return (getByte(getDataOffset() + (index >>> 3)) & (1 << (index & 7)))
+                != 0;
+    }
+
+    /**
+     * Returns the offset within the PDU of the packed bits or register
+     * values.
+     *
+     * @return the data offset.
+     */
+    public int getDataOffset() {
+        switch (getFunctionCode()) {
+            case Modbus.WRITE_MULTIPLE_COILS:
+            case Modbus.WRITE_MULTIPLE_REGISTERS:
+                return m_Request ? 6 : 1;
+            case Modbus.READ_WRITE_MULTIPLE:
+                return m_Request ? 10 : 2;
+            case Modbus.READ_FIFO_QUEUE:
+                return m_Request ? 1 : 5;
+            default:
+                return m_Request ? 1 : 2;
+        }
+    }
+
+    /**
+     * Returns an unsigned byte of the PDU.
+     *
+     * @param index the offset within the PDU.
+     * @return the byte value.
+     */
+    public int getByte(int index) {
+        checkIndex(index, 1);
+        return m_Buffer.get(m_Offset + index) & 0xFF;
+    }
+
+    /**
+     * Returns a big-endian unsigned short of the PDU.
+     *
+     * @param index the offset within the PDU.
+     * @return the short value.
+     */
+    public int getShort(int index) {
+        checkIndex(index, 2);
+        return m_Buffer.getShort(m_Offset + index) & 0xFFFF;
+    }
+
+    private void checkIndex(int index, int size) {
+        if (index < 0 || index + size > m_Length) {
+            throw new IndexOutOfBoundsException("PDU offset " + index);
+        }
+    }
+}
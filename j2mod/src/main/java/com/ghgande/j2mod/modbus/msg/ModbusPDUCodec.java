@@ -0,0 +1,368 @@
+//License
+/**
+ * *
+ * Java Modbus Library (j2mod) Copyright 2012, Julianne Frances Haugh d/b/a
+ * greenHouse Gas and Electric All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. *
+ */
+package com.ghgande.j2mod.modbus.msg;
+
+import java.nio.ByteBuffer;
+
+import com.ghgande.j2mod.modbus.Modbus;
+
+/**
+ * Class implementing allocation-free encoding of Modbus PDUs and Modbus/TCP
+ * frames into a caller-supplied <tt>ByteBuffer</tt>.
+ *
+ * <p>
+ * Each <tt>put</tt> method writes at the current position of the buffer and
+ * advances it, like the relative <tt>ByteBuffer</tt> methods. The buffer must
+ * use big-endian byte order, which is the default. Decoding is done with a
+ * <tt>ModbusPDU</tt>.
+ *
+ * @see ModbusPDU
+ */
+public final class ModbusPDUCodec {
+
+    /**
+     * The length of the Modbus/TCP (MBAP) header, including the unit ID.
+     */
+    public static final int MBAP_LENGTH = 7;
+
+    private ModbusPDUCodec() {
+    }
+
+    /*
+     * Modbus/TCP framing
+     */
+    /**
+     * Writes a Modbus/TCP (MBAP) header.
+     *
+     * @param buf the buffer to write to.
+     * @param transactionID the transaction identifier.
+     * @param unitID the unit identifier.
+     * @param pduLength the length of the PDU which follows.
+     */
+    public static void putMBAPHeader(ByteBuffer buf, int transactionID,
+            int unitID, int pduLength) {
+        buf.putShort((short) transactionID);
+        buf.putShort((short) Modbus.DEFAULT_PROTOCOL_ID);
+        buf.putShort((short) (pduLength + 1));
+        buf.put((byte) unitID);
+    }
+
+    /**
+     * Updates the length field of a Modbus/TCP header once the PDU has been
+     * written after it.
+     *
+     * @param buf the buffer holding the frame.
+     * @param frameStart the absolute offset of the header.
+     */
+    public static void finishMBAPFrame(ByteBuffer buf, int frameStart) {
+        buf.putShort(frameStart + 4, (short) (buf.position() - frameStart - 6));
+    }
+
+    /**
+     * Returns the transaction identifier of a Modbus/TCP frame.
+     *
+     * @param buf the buffer holding the frame.
+     * @param frameStart the absolute offset of the frame.
+     * @return the transaction identifier.
+     */
+    public static int getTransactionID(ByteBuffer buf, int frameStart) {
+        return buf.getShort(frameStart) & 0xFFFF;
+    }
+
+    /**
+     * Returns the unit identifier of a Modbus/TCP frame.
+     *
+     * @param buf the buffer holding the frame.
+     * @param frameStart the absolute offset of the frame.
+     * @return the unit identifier.
+     */
+    public static int getUnitID(ByteBuffer buf, int frameStart) {
+        return buf.get(frameStart + 6) & 0xFF;
+    }
+
+    /**
+     * Returns the length of the PDU in a Modbus/TCP frame, or -1 if the header
+     * has not been received completely.
+     *
+     * @param buf the buffer holding the frame.
+     * @param frameStart the absolute offset of the frame.
+     * @return the PDU length in bytes.
+     */
+    public static int getPDULength(ByteBuffer buf, int frameStart) {
+        if (buf.limit() - frameStart < MBAP_LENGTH) {
+            return -1;
+        }
+        return (buf.getShort(frameStart + 4) & 0xFFFF) - 1;
+    }
+
+    /*
+     * Requests
+     */
+    /**
+     * Writes a read request for function codes 1 to 4.
+     *
+     * @param buf the buffer to write to.
+     * @param functionCode the function code.
+     * @param ref the reference of the first object.
+     * @param count the number of objects.
+     */
+    public static void putReadRequest(ByteBuffer buf, int functionCode,
+            int ref, int count) {
+        buf.put((byte) functionCode);
+        buf.putShort((short) ref);
+        buf.putShort((short) count);
+    }
+
+    /**
+     * Writes a write coil request (function code 5).
+     *
+     * @param buf the buffer to write to.
+     * @param ref the reference of the coil.
+     * @param state the state to write.
+     */
+    public static void putWriteCoilRequest(ByteBuffer buf, int ref,
+            boolean state) {
+        buf.put((byte) Modbus.WRITE_COIL);
+        buf.putShort((short) ref);
+        buf.put(state ? (byte) Modbus.COIL_ON : (byte) Modbus.COIL_OFF);
+        buf.put((byte) 0);
+    }
+
+    /**
+     * Writes a write single register request (function code 6).
+     *
+     * @param buf the buffer to write to.
+     * @param ref the reference of the register.
+     * @param value the value to write.
+     */
+    public static void putWriteRegisterRequest(ByteBuffer buf, int ref,
+            int value) {
+        buf.put((byte) Modbus.WRITE_SINGLE_REGISTER);
+        buf.putShort((short) ref);
+        buf.putShort((short) value);
+    }
+
+    /**
+     * Writes a write multiple coils request (function code 15).
+     *
+     * @param buf the buffer to write to.
+     * @param ref the reference of the first coil.
+     * @param count the number of coils.
+     * @param bits the coil states, packed eight to a byte with the first coil
+     * in the least significant bit.
+     * @param off the offset in <tt>bits</tt>.
+     */
+    public static void putWriteCoilsRequest(ByteBuffer buf, int ref, int count,
+            byte[] bits, int off) {
+        int byteCount = (count + 7) >>> 3;
+        buf.put((byte) Modbus.WRITE_MULTIPLE_COILS);
+        buf.putShort((short) ref);
+        buf.putShort((short) count);
+        buf.put((byte) byteCount);
+        buf.put(bits, off, byteCount);
+    }
+
+    /**
+     * Writes a write multiple registers request (function code 16).
+     *
+     * @param buf the buffer to write to.
+     * @param ref the reference of the first register.
+     * @param values the register values.
+     * @param off the offset in <tt>values</tt>.
+     * @param count the number of registers.
+     */
+    public static void putWriteRegistersRequest(ByteBuffer buf, int ref,
+            short[] values, int off, int count) {
+        buf.put((byte) Modbus.WRITE_MULTIPLE_REGISTERS);
+        buf.putShort((short) ref);
+        buf.putShort((short) count);
+        buf.put((byte) (count * 2));
+        putShorts(buf, values, off, count);
+    }
+
+    /**
+     * Writes a mask write register request (function code 22).
+     *
+     * @param buf the buffer to write to.
+     * @param ref the reference of the register.
+     * @param andMask the AND mask.
+     * @param orMask the OR mask.
+     */
+    public static void putMaskWriteRequest(ByteBuffer buf, int ref,
+            int andMask, int orMask) {
+        buf.put((byte) Modbus.MASK_WRITE_REGISTER);
+        buf.putShort((short) ref);
+        buf.putShort((short) andMask);
+        buf.putShort((short) orMask);
+    }
+
+    /**
+     * Writes a read/write multiple registers request (function code 23).
+     *
+     * @param buf the buffer to write to.
+     * @param readRef the reference of the first register to read.
+     * @param readCount the number of registers to read.
+     * @param writeRef the reference of the first register to write.
+     * @param values the register values to write.
+     * @param off the offset in <tt>values</tt>.
+     * @param writeCount the number of registers to write.
+     */
+    public static void putReadWriteRequest(ByteBuffer buf, int readRef,
+            int readCount, int writeRef, short[] values, int off,
+            int writeCount) {
+        buf.put((byte) Modbus.READ_WRITE_MULTIPLE);
+        buf.putShort((short) readRef);
+        buf.putShort((short) readCount);
+        buf.putShort((short) writeRef);
+        buf.putShort((short) writeCount);
+        buf.put((byte) (writeCount * 2));
+        putShorts(buf, values, off, writeCount);
+    }
+
+    /**
+     * Writes a read FIFO queue request (function code 24).
+     *
+     * @param buf the buffer to write to.
+     * @param address the FIFO pointer address.
+     */
+    public static void putReadFIFORequest(ByteBuffer buf, int address) {
+        buf.put((byte) Modbus.READ_FIFO_QUEUE);
+        buf.putShort((short) address);
+    }
+
+    /**
+     * Writes a PDU with arbitrary data, for the function codes which have no
+     * dedicated method, such as 7, 8, 11, 12, 17, 20, 21 and 43.
+     *
+     * @param buf the buffer to write to.
+     * @param functionCode the function code.
+     * @param data the data following the function code.
+     * @param off the offset in <tt>data</tt>.
+     * @param len the number of data bytes.
+     */
+    public static void putPDU(ByteBuffer buf, int functionCode, byte[] data,
+            int off, int len) {
+        buf.put((byte) functionCode);
+        if (len > 0) {
+            buf.put(data, off, len);
+        }
+    }
+
+    /*
+     * Responses
+     */
+    /**
+     * Writes a read coils or read discretes response (function codes 1 and
+     * 2).
+     *
+     * @param buf the buffer to write to.
+     * @param functionCode the function code.
+     * @param count the number of bits.
+     * @param bits the packed bits, as for <tt>putWriteCoilsRequest</tt>.
+     * @param off the offset in <tt>bits</tt>.
+     */
+    public static void putBitsResponse(ByteBuffer buf, int functionCode,
+            int count, byte[] bits, int off) {
+        int byteCount = (count + 7) >>> 3;
+        buf.put((byte) functionCode);
+        buf.put((byte) byteCount);
+        buf.put(bits, off, byteCount);
+    }
+
+    /**
+     * Writes a read registers response (function codes 3, 4 and 23).
+     *
+     * @param buf the buffer to write to.
+     * @param functionCode the function code.
+     * @param values the register values.
+     * @param off the offset in <tt>values</tt>.
+     * @param count the number of registers.
+     */
+    public static void putRegistersResponse(ByteBuffer buf, int functionCode,
+            short[] values, int off, int count) {
+        buf.put((byte) functionCode);
+        buf.put((byte) (count * 2));
+        putShorts(buf, values, off, count);
+    }
+
+    /**
+     * Writes a read FIFO queue response (function code 24).
+     *
+     * @param buf the buffer to write to.
+     * @param values the queued values.
+     * @param off the offset in <tt>values</tt>.
+     * @param count the number of values.
+     */
+    public static void putFIFOResponse(ByteBuffer buf, short[] values, int off,
+            int count) {
+        buf.put((byte) Modbus.READ_FIFO_QUEUE);
+        buf.putShort((short) (count * 2 + 2));
+        buf.putShort((short) count);
+        putShorts(buf, values, off, count);
+    }
+
+    /**
+     * Writes a response which echoes a reference and a value or count, for
+     * function codes 5, 6, 15 and 16.
+     *
+     * @param buf the buffer to write to.
+     * @param functionCode the function code.
+     * @param ref the reference.
+     * @param value the value (5 and 6) or count (15 and 16).
+     */
+    public static void putWriteResponse(ByteBuffer buf, int functionCode,
+            int ref, int value) {
+        buf.put((byte) functionCode);
+        buf.putShort((short) ref);
+        buf.putShort((short) value);
+    }
+
+    /**
+     * Writes an exception response.
+     *
+     * @param buf the buffer to write to.
+     * @param functionCode the function code of the request.
+     * @param exceptionCode the exception code.
+     */
+    public static void putExceptionResponse(ByteBuffer buf, int functionCode,
+            int exceptionCode) {
+        buf.put((byte) (functionCode | Modbus.EXCEPTION_OFFSET));
+        buf.put((byte) exceptionCode);
+    }
+
+    private static void putShorts(ByteBuffer buf, short[] values, int off,
+            int count) {
+        for (int i = 0; i < count; i++) {
+            buf.putShort(values[off + i]);
+        }
+    }
+}
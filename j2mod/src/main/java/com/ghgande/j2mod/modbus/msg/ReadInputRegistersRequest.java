@@ -39,6 +39,8 @@ import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.procimg.IllegalAddressException;
 import com.ghgande.j2mod.modbus.procimg.InputRegister;
 import com.ghgande.j2mod.modbus.procimg.ProcessImage;
+import com.ghgande.j2mod.modbus.procimg.RangeProcessImage;
+import com.ghgande.j2mod.modbus.procimg.SimpleInputRegister;
 
 /**
  * Class implementing a <tt>ReadInputRegistersRequest</tt>. The implementation
@@ -107,8 +109,12 @@ public final class ReadInputRegistersRequest extends ModbusRequest {
 
         // 2. get input registers range
         try {
-            inpregs = procimg.getInputRegisterRange(getReference(),
-                    getWordCount());
+            if (procimg instanceof RangeProcessImage) {
+                inpregs = snapshot((RangeProcessImage) procimg);
+            } else {
+                inpregs = procimg.getInputRegisterRange(getReference(),
+                        getWordCount());
+            }
         } catch (IllegalAddressException iaex) {
             return createExceptionResponse(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
         }
@@ -118,6 +124,20 @@ public final class ReadInputRegistersRequest extends ModbusRequest {
         return response;
     }
 
+    /**
+     * Copies the requested input registers out of the image in one atomic
+     * read, so that the response does not change while it is written.
+     */
+    private InputRegister[] snapshot(RangeProcessImage procimg) {
+        short[] values = new short[getWordCount()];
+        procimg.readInputRegisters(getReference(), values, 0, values.length);
+        InputRegister[] regs = new InputRegister[values.length];
+        for (int i = 0; i < values.length; i++) {
+            regs[i] = new SimpleInputRegister(values[i] & 0xFFFF);
+        }
+        return regs;
+    }
+
     /**
      * Sets the reference of the register to start reading from with this
      * <tt>ReadInputRegistersRequest</tt>.
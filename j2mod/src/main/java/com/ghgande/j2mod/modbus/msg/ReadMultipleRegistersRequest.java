@@ -38,7 +38,9 @@ import java.io.IOException;
 import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.procimg.IllegalAddressException;
 import com.ghgande.j2mod.modbus.procimg.ProcessImage;
+import com.ghgande.j2mod.modbus.procimg.RangeProcessImage;
 import com.ghgande.j2mod.modbus.procimg.Register;
+import com.ghgande.j2mod.modbus.procimg.SimpleRegister;
 
 /**
  * Class implementing a <tt>ReadMultipleRegistersRequest</tt>. The
@@ -105,7 +107,11 @@ public final class ReadMultipleRegistersRequest extends ModbusRequest {
 
         // 2. get input registers range
         try {
-            regs = procimg.getRegisterRange(getReference(), getWordCount());
+            if (procimg instanceof RangeProcessImage) {
+                regs = snapshot((RangeProcessImage) procimg);
+            } else {
+                regs = procimg.getRegisterRange(getReference(), getWordCount());
+            }
         } catch (IllegalAddressException e) {
             return createExceptionResponse(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
         }
@@ -115,6 +121,20 @@ public final class ReadMultipleRegistersRequest extends ModbusRequest {
         return response;
     }
 
+    /**
+     * Copies the requested registers out of the image in one atomic read, so
+     * that the response does not change while it is written.
+     */
+    private Register[] snapshot(RangeProcessImage procimg) {
+        short[] values = new short[getWordCount()];
+        procimg.readRegisters(getReference(), values, 0, values.length);
+        Register[] regs = new Register[values.length];
+        for (int i = 0; i < values.length; i++) {
+            regs[i] = new SimpleRegister(values[i] & 0xFFFF);
+        }
+        return regs;
+    }
+
     /**
      * Sets the reference of the register to start reading from with this
      * <tt>ReadMultipleRegistersRequest</tt>.
@@ -70,6 +70,7 @@ import com.ghgande.j2mod.modbus.io.NonWordDataHandler;
 import com.ghgande.j2mod.modbus.procimg.IllegalAddressException;
 import com.ghgande.j2mod.modbus.procimg.InputRegister;
 import com.ghgande.j2mod.modbus.procimg.ProcessImage;
+import com.ghgande.j2mod.modbus.procimg.RangeProcessImage;
 import com.ghgande.j2mod.modbus.procimg.Register;
 import com.ghgande.j2mod.modbus.procimg.SimpleInputRegister;
 import com.ghgande.j2mod.modbus.procimg.SimpleRegister;
@@ -127,6 +128,10 @@ public final class ReadWriteMultipleRequest extends ModbusRequest {
         InputRegister[] readRegs = null;
         Register[] writeRegs = null;
 
+        if (procimg instanceof RangeProcessImage) {
+            return createAtomicResponse((RangeProcessImage) procimg);
+        }
+
         // 2. get input registers range
         try {
             readRegs = procimg.getRegisterRange(getReadReference(),
@@ -154,6 +159,34 @@ public final class ReadWriteMultipleRequest extends ModbusRequest {
         return response;
     }
 
+    /**
+     * Writes and then reads the registers in one atomic operation of the
+     * image, the write being performed before the read as the function
+     * requires.
+     */
+    private ModbusResponse createAtomicResponse(RangeProcessImage procimg) {
+        short[] values = new short[getWriteWordCount()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = getRegister(i).toShort();
+        }
+        short[] read = new short[getReadWordCount()];
+        try {
+            procimg.readWriteRegisters(getWriteReference(), values, 0,
+                    values.length, getReadReference(), read, 0, read.length);
+        } catch (IllegalAddressException e) {
+            return createExceptionResponse(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+        }
+        InputRegister[] readRegs = new InputRegister[read.length];
+        for (int i = 0; i < read.length; i++) {
+            readRegs[i] = new SimpleInputRegister(read[i] & 0xFFFF);
+        }
+        ReadWriteMultipleResponse response
+                = (ReadWriteMultipleResponse) getResponse();
+        response.setRegisters(readRegs);
+
+        return response;
+    }
+
     /**
      * setReadReference - Sets the reference of the register to writing to with
      * this <tt>ReadWriteMultipleRequest</tt>.
@@ -39,6 +39,7 @@ import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.procimg.DigitalOut;
 import com.ghgande.j2mod.modbus.procimg.IllegalAddressException;
 import com.ghgande.j2mod.modbus.procimg.ProcessImage;
+import com.ghgande.j2mod.modbus.procimg.RangeProcessImage;
 import com.ghgande.j2mod.modbus.util.BitVector;
 
 /**
@@ -84,10 +85,23 @@ public final class WriteMultipleCoilsRequest extends ModbusRequest {
 
         // 2. get coil range
         try {
-            douts = procimg.getDigitalOutRange(m_Reference, m_Coils.size());
-            // 3. set coils
-            for (int i = 0; i < douts.length; i++) {
-                douts[i].set(m_Coils.getBit(i));
+            if (procimg instanceof RangeProcessImage) {
+                // 3. set all coils at once
+                byte[] states = new byte[(m_Coils.size() + 7) / 8];
+                for (int i = 0; i < m_Coils.size(); i++) {
+                    if (m_Coils.getBit(i)) {
+                        states[i / 8] |= 1 << (i % 8);
+                    }
+                }
+                ((RangeProcessImage) procimg).writeCoils(m_Reference,
+                        m_Coils.size(), states, 0);
+            } else {
+                douts = procimg.getDigitalOutRange(m_Reference,
+                        m_Coils.size());
+                // 3. set coils
+                for (int i = 0; i < douts.length; i++) {
+                    douts[i].set(m_Coils.getBit(i));
+                }
             }
         } catch (IllegalAddressException iaex) {
             return createExceptionResponse(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
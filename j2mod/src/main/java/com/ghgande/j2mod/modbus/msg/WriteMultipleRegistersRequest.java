@@ -130,10 +130,21 @@ public final class WriteMultipleRegistersRequest extends ModbusRequest {
             Register[] regs = null;
             // 2. get registers
             try {
-                regs = procimg.getRegisterRange(getReference(), getWordCount());
-                // 3. set Register values
-                for (int i = 0; i < regs.length; i++) {
-                    regs[i].setValue(this.getRegister(i).getValue());
+                if (procimg instanceof RangeProcessImage) {
+                    // 3. set all values at once
+                    short[] values = new short[getWordCount()];
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = getRegister(i).toShort();
+                    }
+                    ((RangeProcessImage) procimg).writeRegisters(
+                            getReference(), values, 0, values.length);
+                } else {
+                    regs = procimg.getRegisterRange(getReference(),
+                            getWordCount());
+                    // 3. set Register values
+                    for (int i = 0; i < regs.length; i++) {
+                        regs[i].setValue(this.getRegister(i).getValue());
+                    }
                 }
             } catch (IllegalAddressException iaex) {
                 return createExceptionResponse(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
@@ -0,0 +1,375 @@
+//License
+/**
+ * *
+ * Java Modbus Library (j2mod) Copyright 2012, Julianne Frances Haugh d/b/a
+ * greenHouse Gas and Electric All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. *
+ */
+package com.ghgande.j2mod.modbus.net;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Class implementing a circuit breaker for the connection to a slave.
+ * <p>
+ * While <tt>CLOSED</tt>, requests pass, and <tt>failureThreshold</tt>
+ * consecutive failures open the circuit. While <tt>OPEN</tt>, requests fail
+ * immediately until the backoff has elapsed; the circuit then becomes
+ * <tt>HALF_OPEN</tt> and lets a single trial request pass. A successful
+ * trial closes the circuit, a failed one opens it again with twice the
+ * backoff, up to <tt>maxBackoff</tt>. Each backoff is shortened by a random
+ * fraction of up to <tt>jitter</tt>, so masters of many failed slaves do not
+ * retry in lockstep.
+ * <p>
+ * Requests which may overlap state transitions should pass through
+ * <tt>acquire</tt> and report their outcome with the ticket it returned.
+ * Every transition starts a new generation of tickets, and the outcome of
+ * a request admitted in an earlier generation is ignored, so a request
+ * admitted while the circuit was closed cannot be taken for the trial
+ * request of the half open circuit.
+ */
+public class CircuitBreaker {
+
+    /**
+     * The states of a circuit breaker.
+     */
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * Interface for objects notified of the state transitions of a circuit
+     * breaker. Listeners are called on the thread which caused the
+     * transition and should return quickly.
+     */
+    public interface Listener {
+
+        /**
+         * Called when the state of the circuit breaker changed.
+         *
+         * @param breaker the <tt>CircuitBreaker</tt>.
+         * @param previous the previous state.
+         * @param state the new state.
+         */
+        public void stateChanged(CircuitBreaker breaker, State previous,
+                State state);
+    }//interface Listener
+
+    private final String m_Name;
+    private int m_FailureThreshold = 3;
+    private long m_InitialBackoff = 1000;
+    private long m_MaxBackoff = 60000;
+    private double m_Jitter = 0.5;
+    private Listener m_Listener;
+
+    private State m_State = State.CLOSED;
+    private int m_Failures;
+    private long m_Backoff;
+    private long m_RetryTime;
+    private long m_Generation;
+
+    /**
+     * Constructs a new <tt>CircuitBreaker</tt>.
+     *
+     * @param name the name of the slave, used in messages.
+     */
+    public CircuitBreaker(String name) {
+        m_Name = name;
+    }//constructor
+
+    /**
+     * Returns the name of the slave guarded by this breaker.
+     *
+     * @return the name.
+     */
+    public String getName() {
+        return m_Name;
+    }//getName
+
+    /**
+     * Sets the number of consecutive failures which open the circuit.
+     *
+     * @param threshold the failure count, at least 1.
+     */
+    public synchronized void setFailureThreshold(int threshold) {
+        if (threshold < 1) {
+            throw new IllegalArgumentException("Failure threshold must be positive");
+        }
+        m_FailureThreshold = threshold;
+    }//setFailureThreshold
+
+    /**
+     * Returns the number of consecutive failures which open the circuit.
+     *
+     * @return the failure count.
+     */
+    public synchronized int getFailureThreshold() {
+        return m_FailureThreshold;
+    }//getFailureThreshold
+
+    /**
+     * Sets the bounds of the backoff.
+     *
+     * @param initial the backoff after the circuit opened, in milliseconds.
+     * @param max the maximum backoff in milliseconds.
+     */
+    public synchronized void setBackoff(long initial, long max) {
+        if (initial <= 0 || max < initial) {
+            throw new IllegalArgumentException("Illegal backoff " + initial
+                    + ", " + max);
+        }
+        m_InitialBackoff = initial;
+        m_MaxBackoff = max;
+    }//setBackoff
+
+    /**
+     * Returns the backoff after the circuit opened.
+     *
+     * @return the initial backoff in milliseconds.
+     */
+    public synchronized long getInitialBackoff() {
+        return m_InitialBackoff;
+    }//getInitialBackoff
+
+    /**
+     * Returns the maximum backoff.
+     *
+     * @return the maximum backoff in milliseconds.
+     */
+    public synchronized long getMaxBackoff() {
+        return m_MaxBackoff;
+    }//getMaxBackoff
+
+    /**
+     * Sets the largest fraction by which a backoff is randomly shortened.
+     *
+     * @param jitter the fraction, between 0 and 1.
+     */
+    public synchronized void setJitter(double jitter) {
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("Jitter must be between 0 and 1");
+        }
+        m_Jitter = jitter;
+    }//setJitter
+
+    /**
+     * Returns the largest fraction by which a backoff is shortened.
+     *
+     * @return the jitter fraction.
+     */
+    public synchronized double getJitter() {
+        return m_Jitter;
+    }//getJitter
+
+    /**
+     * Sets the listener notified of state transitions.
+     *
+     * @param listener the <tt>Listener</tt>, or null.
+     */
+    public synchronized void setListener(Listener listener) {
+        m_Listener = listener;
+    }//setListener
+
+    /**
+     * Returns the state of the circuit.
+     *
+     * @return the <tt>State</tt>.
+     */
+    public synchronized State getState() {
+        return m_State;
+    }//getState
+
+    /**
+     * Returns the time left before the next trial request may pass.
+     *
+     * @return the remaining backoff in milliseconds, 0 if requests pass.
+     */
+    public synchronized long getRemainingBackoff() {
+        if (m_State == State.CLOSED) {
+            return 0;
+        }
+        return Math.max(0, m_RetryTime - System.currentTimeMillis());
+    }//getRemainingBackoff
+
+    /**
+     * Returns the generation of the current state, which changes with every
+     * state transition.
+     *
+     * @return the ticket of a request admitted now.
+     */
+    public synchronized long getGeneration() {
+        return m_Generation;
+    }//getGeneration
+
+    /**
+     * Tests if a request may pass. While the circuit is open, this is only
+     * the case once the backoff has elapsed, which makes the circuit half
+     * open; the caller must then report the outcome of its trial request.
+     * Should the outcome never be reported, another trial is allowed after
+     * the backoff.
+     *
+     * @return true if the request may pass, false if it must fail.
+     */
+    public boolean allowRequest() {
+        return acquire() >= 0;
+    }//allowRequest
+
+    /**
+     * Tests if a request may pass, like <tt>allowRequest</tt>, and returns
+     * the ticket with which its outcome must be reported.
+     *
+     * @return the ticket, or -1 if the request must fail.
+     */
+    public long acquire() {
+        State previous;
+        long ticket;
+        synchronized (this) {
+            if (m_State == State.CLOSED) {
+                return m_Generation;
+            }
+            long now = System.currentTimeMillis();
+            if (now < m_RetryTime) {
+                return -1;
+            }
+            previous = m_State;
+            m_State = State.HALF_OPEN;
+            m_RetryTime = now + nextBackoff();
+            // a trial whose outcome never came is abandoned
+            ticket = ++m_Generation;
+        }
+        fireStateChanged(previous, State.HALF_OPEN);
+        return ticket;
+    }//acquire
+
+    /**
+     * Reports a successful request, which closes the circuit.
+     */
+    public void recordSuccess() {
+        recordSuccess(-1);
+    }//recordSuccess
+
+    /**
+     * Reports a successful request admitted with the given ticket, which
+     * closes the circuit. The outcome is ignored if the state has changed
+     * since the request was admitted.
+     *
+     * @param ticket the ticket returned by <tt>acquire</tt>, or -1 to
+     * report for the current state.
+     */
+    public void recordSuccess(long ticket) {
+        State previous;
+        synchronized (this) {
+            if (ticket >= 0 && ticket != m_Generation) {
+                return;
+            }
+            m_Failures = 0;
+            if (m_State == State.CLOSED) {
+                return;
+            }
+            previous = m_State;
+            m_State = State.CLOSED;
+            m_Backoff = 0;
+            m_Generation++;
+        }
+        fireStateChanged(previous, State.CLOSED);
+    }//recordSuccess
+
+    /**
+     * Reports a failed request. It opens the circuit after
+     * <tt>failureThreshold</tt> consecutive failures, or when the trial
+     * request of a half open circuit failed. Failures of requests which
+     * passed before the circuit opened are ignored.
+     */
+    public void recordFailure() {
+        recordFailure(-1);
+    }//recordFailure
+
+    /**
+     * Reports a failed request admitted with the given ticket, like
+     * <tt>recordFailure()</tt>. The outcome is ignored if the state has
+     * changed since the request was admitted.
+     *
+     * @param ticket the ticket returned by <tt>acquire</tt>, or -1 to
+     * report for the current state.
+     */
+    public void recordFailure(long ticket) {
+        State previous;
+        synchronized (this) {
+            if (ticket >= 0 && ticket != m_Generation) {
+                return;
+            }
+            if (m_State == State.OPEN
+                    || (m_State == State.CLOSED && ++m_Failures < m_FailureThreshold)) {
+                return;
+            }
+            previous = m_State;
+            m_State = State.OPEN;
+            m_Backoff = previous == State.CLOSED ? m_InitialBackoff
+                    : Math.min(m_MaxBackoff, m_Backoff * 2);
+            m_RetryTime = System.currentTimeMillis() + nextBackoff();
+            m_Generation++;
+        }
+        fireStateChanged(previous, State.OPEN);
+    }//recordFailure
+
+    /**
+     * Closes the circuit and forgets the failures.
+     */
+    public void reset() {
+        recordSuccess(-1);
+    }//reset
+
+    /**
+     * Returns the current backoff shortened by the jitter. Must be called
+     * with the monitor held.
+     */
+    private long nextBackoff() {
+        long backoff = Math.max(m_Backoff, m_InitialBackoff);
+        return backoff - (long) (backoff * m_Jitter
+                * ThreadLocalRandom.current().nextDouble());
+    }//nextBackoff
+
+    private void fireStateChanged(State previous, State state) {
+        Logger.getLogger(CircuitBreaker.class.getName()).log(Level.FINE, "Circuit of {0} {1} -> {2}",
+                new Object[]{m_Name, previous, state});
+        Listener listener;
+        synchronized (this) {
+            listener = m_Listener;
+        }
+        if (listener != null) {
+            listener.stateChanged(this, previous, state);
+        }
+    }//fireStateChanged
+
+    @Override
+    public String toString() {
+        return "CircuitBreaker[" + m_Name + ", " + getState() + "]";
+    }//toString
+
+}//class CircuitBreaker
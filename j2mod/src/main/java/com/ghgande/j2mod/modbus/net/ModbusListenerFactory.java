@@ -60,11 +60,11 @@ public class ModbusListenerFactory {
             }
             case "tcp": {
                 /*
-                 * Create a ModbusTCPListener with the default interface
+                 * Create a ModbusNIOTCPListener with the default interface
                  * value.  The second optional value is the TCP port number
                  * and the third optional value is the Modbus unit number.
                  */
-                ModbusTCPListener listener = new ModbusTCPListener(5);
+                ModbusNIOTCPListener listener = new ModbusNIOTCPListener();
                 if (parts.length > 2) {
                     int port = Integer.parseInt(parts[2]);
                     listener.setPort(port);
@@ -0,0 +1,393 @@
+//License
+/**
+ * *
+ * Java Modbus Library (j2mod) Copyright 2012, Julianne Frances Haugh d/b/a
+ * greenHouse Gas and Electric All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. *
+ */
+package com.ghgande.j2mod.modbus.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.procimg.ProcessImage;
+import com.ghgande.j2mod.modbus.util.InstrumentedExecutor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Class that implements an event-driven Modbus/TCP listener.
+ *
+ * <p>
+ * Unlike <tt>ModbusTCPListener</tt>, no thread is dedicated to a connection.
+ * A fixed number of I/O threads, each owning one <tt>Selector</tt>, read and
+ * write the connections. Complete requests are executed against the
+ * <tt>ProcessImage</tt> by a separate, bounded pool of worker threads, so a
+ * slow process image does not stall the I/O of other connections.
+ *
+ * <p>
+ * If the worker queue is full the request is answered with a slave busy
+ * exception response. A connection with too many requests in progress is not
+ * read from until some of them have been answered.
+ */
+public class ModbusNIOTCPListener implements ModbusListener {
+
+    /**
+     * The number of requests of one connection which may be in progress
+     * before reading from that connection is suspended.
+     */
+    static final int MAX_PENDING_REQUESTS = 16;
+
+    private final IOLoop[] m_Loops;
+    private final int m_WorkerThreads;
+    private final int m_WorkerQueueSize;
+    private volatile InstrumentedExecutor m_Workers;
+    private ServerSocketChannel m_ServerChannel;
+    private Thread m_Listener;
+    private int m_Port = Modbus.DEFAULT_PORT;
+    private int m_Unit = 0;
+    private int m_Backlog = 50;
+    private int m_NextLoop;
+    private volatile boolean m_Listening;
+    private InetAddress m_Address;
+    private volatile ProcessImage m_ProcessImage;
+
+    /**
+     * Constructs a new <tt>ModbusNIOTCPListener</tt> instance.
+     *
+     * @param ioThreads the number of I/O threads.
+     * @param workerThreads the number of threads executing requests.
+     * @param queueSize the number of requests which may wait for a worker.
+     * @param addr the interface to use for listening.
+     */
+    public ModbusNIOTCPListener(int ioThreads, int workerThreads,
+            int queueSize, InetAddress addr) {
+        if (ioThreads < 1 || workerThreads < 1 || queueSize < 1) {
+            throw new IllegalArgumentException("Invalid thread or queue size");
+        }
+        m_Loops = new IOLoop[ioThreads];
+        m_WorkerThreads = workerThreads;
+        m_WorkerQueueSize = queueSize;
+        m_Address = addr;
+    }
+
+    /**
+     * Constructs a new <tt>ModbusNIOTCPListener</tt> instance listening on the
+     * wildcard address, with one I/O thread and one worker thread per
+     * available processor.
+     */
+    public ModbusNIOTCPListener() {
+        this(Runtime.getRuntime().availableProcessors(),
+                Runtime.getRuntime().availableProcessors(), 1024, null);
+        try {
+            m_Address = InetAddress.getByAddress(new byte[]{0, 0, 0, 0});
+        } catch (UnknownHostException ex) {
+            // Can't happen -- size is fixed.
+        }
+    }
+
+    /**
+     * Sets the port to be listened to.
+     *
+     * @param port the number of the IP port as <tt>int</tt>.
+     */
+    public void setPort(int port) {
+        m_Port = port;
+    }
+
+    /**
+     * Sets the address of the interface to be listened to.
+     *
+     * @param addr an <tt>InetAddress</tt> instance.
+     */
+    public void setAddress(InetAddress addr) {
+        m_Address = addr;
+    }
+
+    /**
+     * Sets the length of the queue of connections which have not yet been
+     * accepted.
+     *
+     * @param backlog the backlog of the server socket.
+     */
+    public void setBacklog(int backlog) {
+        m_Backlog = backlog;
+    }
+
+    @Override
+    public int getUnit() {
+        return m_Unit;
+    }
+
+    @Override
+    public void setUnit(int unit) {
+        m_Unit = unit;
+    }
+
+    @Override
+    public ProcessImage getProcessImage() {
+        return m_ProcessImage;
+    }
+
+    @Override
+    public void setProcessImage(ProcessImage processImage) {
+        m_ProcessImage = processImage;
+    }
+
+    @Override
+    public boolean isListening() {
+        return m_Listening;
+    }
+
+    /**
+     * Returns the number of open connections.
+     *
+     * @return the number of connections served by this listener.
+     */
+    public int getConnectionCount() {
+        int count = 0;
+        for (IOLoop loop : m_Loops) {
+            if (loop != null) {
+                count += loop.m_Connections.size();
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized Thread listen() {
+        m_Listening = true;
+        m_Listener = new Thread(this, "ModbusNIOTCPListener");
+        m_Listener.start();
+
+        return m_Listener;
+    }
+
+    @Override
+    public void stop() {
+        m_Listening = false;
+        try {
+            if (m_ServerChannel != null) {
+                m_ServerChannel.close();
+            }
+            if (m_Listener != null) {
+                m_Listener.join();
+            }
+        } catch (IOException | InterruptedException ex) {
+            Logger.getLogger(ModbusNIOTCPListener.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Accepts incoming connections and hands them to the I/O threads.
+     */
+    @Override
+    public void run() {
+        try {
+            m_Workers = new InstrumentedExecutor("ModbusNIOTCPListener worker",
+                    m_WorkerThreads, m_WorkerQueueSize);
+            for (int i = 0; i < m_Loops.length; i++) {
+                m_Loops[i] = new IOLoop(Selector.open());
+                Thread thread = new Thread(m_Loops[i],
+                        "ModbusNIOTCPListener-" + i);
+                thread.setDaemon(true);
+                thread.start();
+            }
+
+            m_ServerChannel = ServerSocketChannel.open();
+            m_ServerChannel.socket().setReuseAddress(true);
+            m_ServerChannel.bind(new InetSocketAddress(m_Address, m_Port),
+                    m_Backlog);
+            Logger.getLogger(ModbusNIOTCPListener.class.getName()).log(Level.FINE, "Listenening to {0}(Port {1})", new Object[]{m_ServerChannel.toString(), m_Port});
+
+            while (m_Listening) {
+                SocketChannel incoming = m_ServerChannel.accept();
+                Logger.getLogger(ModbusNIOTCPListener.class.getName()).log(Level.FINE, "Making new connection {0}", incoming.toString());
+
+                if (!m_Listening) {
+                    incoming.close();
+                    break;
+                }
+                try {
+                    incoming.configureBlocking(false);
+                    incoming.socket().setTcpNoDelay(true);
+                } catch (IOException ex) {
+                    incoming.close();
+                    continue;
+                }
+                IOLoop loop = m_Loops[m_NextLoop];
+                m_NextLoop = (m_NextLoop + 1) % m_Loops.length;
+                loop.register(new TCPNIOSlaveConnection(this, loop, incoming));
+            }
+        } catch (ClosedChannelException ex) {
+            if (m_Listening) {
+                Logger.getLogger(ModbusNIOTCPListener.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(ModbusNIOTCPListener.class.getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            m_Listening = false;
+            for (IOLoop loop : m_Loops) {
+                if (loop != null) {
+                    loop.shutdown();
+                }
+            }
+            if (m_Workers != null) {
+                m_Workers.shutdown();
+            }
+            try {
+                if (m_ServerChannel != null) {
+                    m_ServerChannel.close();
+                }
+            } catch (IOException ex) {
+                // Nothing to do.
+            }
+        }
+    }
+
+    /**
+     * Returns the pool executing requests, whose statistics show the load of
+     * the listener. Requests it rejects are answered with a slave busy
+     * exception.
+     *
+     * @return the <tt>InstrumentedExecutor</tt>, or null if not started yet.
+     */
+    public InstrumentedExecutor getWorkers() {
+        return m_Workers;
+    }
+
+    /**
+     * An I/O thread, multiplexing its connections over one <tt>Selector</tt>.
+     */
+    class IOLoop implements Runnable {
+
+        private final Selector m_Selector;
+        private final Queue<Runnable> m_Tasks = new ConcurrentLinkedQueue<>();
+        private final Set<TCPNIOSlaveConnection> m_Connections
+                = ConcurrentHashMap.newKeySet();
+        private volatile boolean m_Continue = true;
+
+        IOLoop(Selector selector) {
+            m_Selector = selector;
+        }
+
+        /**
+         * Runs a task on this loop.
+         */
+        void execute(Runnable task) {
+            m_Tasks.add(task);
+            m_Selector.wakeup();
+        }
+
+        void register(TCPNIOSlaveConnection connection) {
+            m_Connections.add(connection);
+            execute(() -> {
+                try {
+                    connection.register(m_Selector);
+                } catch (IOException ex) {
+                    connection.close();
+                }
+            });
+        }
+
+        void remove(TCPNIOSlaveConnection connection) {
+            m_Connections.remove(connection);
+        }
+
+        void shutdown() {
+            m_Continue = false;
+            m_Selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (m_Continue) {
+                    m_Selector.select();
+
+                    Runnable task;
+                    while ((task = m_Tasks.poll()) != null) {
+                        try {
+                            task.run();
+                        } catch (RuntimeException ex) {
+                            Logger.getLogger(ModbusNIOTCPListener.class.getName()).log(Level.WARNING, null, ex);
+                        }
+                    }
+
+                    Iterator<SelectionKey> keys
+                            = m_Selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        TCPNIOSlaveConnection connection
+                                = (TCPNIOSlaveConnection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flush();
+                            }
+                        } catch (RuntimeException ex) {
+                            /*
+                             * Whatever goes wrong with one connection closes
+                             * that connection only.
+                             */
+                            Logger.getLogger(ModbusNIOTCPListener.class.getName()).log(Level.WARNING, null, ex);
+                            connection.close();
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException ex) {
+                Logger.getLogger(ModbusNIOTCPListener.class.getName()).log(Level.SEVERE, null, ex);
+            } finally {
+                for (TCPNIOSlaveConnection c : m_Connections) {
+                    c.close();
+                }
+                try {
+                    m_Selector.close();
+                } catch (IOException ex) {
+                    // Nothing to do.
+                }
+            }
+        }
+    }
+}
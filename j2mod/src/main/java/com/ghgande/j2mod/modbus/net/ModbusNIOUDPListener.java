@@ -0,0 +1,479 @@
+//License
+/**
+ * *
+ * Java Modbus Library (j2mod) Copyright 2012, Julianne Frances Haugh d/b/a
+ * greenHouse Gas and Electric All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. *
+ */
+package com.ghgande.j2mod.modbus.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.io.BytesInputStream;
+import com.ghgande.j2mod.modbus.msg.ModbusMessage;
+import com.ghgande.j2mod.modbus.msg.ModbusRequest;
+import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+import com.ghgande.j2mod.modbus.procimg.ProcessImage;
+import com.ghgande.j2mod.modbus.util.InstrumentedExecutor;
+import com.ghgande.j2mod.modbus.util.MPSCQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Class that implements a Modbus/UDP listener on a <tt>DatagramChannel</tt>.
+ *
+ * <p>
+ * One receiver thread reads datagrams into pooled direct buffers, draining
+ * up to a batch of them each time the channel becomes readable, and hands
+ * them to a bounded pool of worker threads. A worker decodes the request,
+ * executes it against the <tt>ProcessImage</tt> and sends the response
+ * straight to the address the request came from, reusing the buffer of the
+ * request.
+ *
+ * <p>
+ * If the worker queue is full the request is answered with a slave busy
+ * exception response. Responses which do not fit the socket send buffer are
+ * dropped, as the network would drop them.
+ */
+public class ModbusNIOUDPListener implements ModbusListener {
+
+    /**
+     * The largest Modbus/UDP frame, including the MBAP header.
+     */
+    private static final int MAX_FRAME_LENGTH = Modbus.MAX_MESSAGE_LENGTH + 6;
+
+    /**
+     * The length of the MBAP header and function code.
+     */
+    private static final int MIN_FRAME_LENGTH = 8;
+
+    private final int m_WorkerThreads;
+    private final int m_WorkerQueueSize;
+    private final MPSCQueue<ByteBuffer> m_Buffers;
+    private volatile InstrumentedExecutor m_Workers;
+    private volatile DatagramChannel m_Channel;
+    private volatile Selector m_Selector;
+    private Thread m_Listener;
+    private int m_Port = Modbus.DEFAULT_PORT;
+    private int m_Unit = 0;
+    private int m_BatchSize = 32;
+    private int m_ReceiveBufferSize;
+    private int m_SendBufferSize;
+    private volatile boolean m_Listening;
+    private InetAddress m_Address;
+    private volatile ProcessImage m_ProcessImage;
+    private final ThreadLocal<BytesInputStream> m_ByteIn
+            = ThreadLocal.withInitial(() -> new BytesInputStream(MAX_FRAME_LENGTH));
+
+    /**
+     * Constructs a new <tt>ModbusNIOUDPListener</tt> instance.
+     *
+     * @param workerThreads the number of threads executing requests.
+     * @param queueSize the number of requests which may wait for a worker.
+     * @param addr the interface to use for listening.
+     */
+    public ModbusNIOUDPListener(int workerThreads, int queueSize,
+            InetAddress addr) {
+        if (workerThreads < 1 || queueSize < 1) {
+            throw new IllegalArgumentException("Invalid thread or queue size");
+        }
+        m_WorkerThreads = workerThreads;
+        m_WorkerQueueSize = queueSize;
+        m_Buffers = new MPSCQueue<>(workerThreads + queueSize);
+        m_Address = addr;
+    }
+
+    /**
+     * Constructs a new <tt>ModbusNIOUDPListener</tt> instance listening on the
+     * wildcard address, with one worker thread per available processor.
+     */
+    public ModbusNIOUDPListener() {
+        this(Runtime.getRuntime().availableProcessors(), 1024, null);
+        try {
+            m_Address = InetAddress.getByAddress(new byte[]{0, 0, 0, 0});
+        } catch (UnknownHostException ex) {
+            // Can't happen -- size is fixed.
+        }
+    }
+
+    /**
+     * Sets the port to be listened to.
+     *
+     * @param port the number of the IP port as <tt>int</tt>.
+     */
+    public void setPort(int port) {
+        m_Port = port;
+    }
+
+    /**
+     * Sets the address of the interface to be listened to.
+     *
+     * @param addr an <tt>InetAddress</tt> instance.
+     */
+    public void setAddress(InetAddress addr) {
+        m_Address = addr;
+    }
+
+    /**
+     * Sets the size of the socket receive buffer, which holds the requests
+     * arriving in a burst. Zero, the default, keeps the size chosen by the
+     * operating system.
+     *
+     * @param size the size in bytes.
+     */
+    public void setReceiveBufferSize(int size) {
+        m_ReceiveBufferSize = size;
+    }
+
+    /**
+     * Sets the size of the socket send buffer. Zero, the default, keeps the
+     * size chosen by the operating system.
+     *
+     * @param size the size in bytes.
+     */
+    public void setSendBufferSize(int size) {
+        m_SendBufferSize = size;
+    }
+
+    /**
+     * Sets the number of datagrams read in one go before they are handed to
+     * the workers. The default is 32.
+     *
+     * @param size the batch size, at least 1.
+     */
+    public void setBatchSize(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Invalid batch size " + size);
+        }
+        m_BatchSize = size;
+    }
+
+    @Override
+    public int getUnit() {
+        return m_Unit;
+    }
+
+    @Override
+    public void setUnit(int unit) {
+        m_Unit = unit;
+    }
+
+    @Override
+    public ProcessImage getProcessImage() {
+        return m_ProcessImage;
+    }
+
+    @Override
+    public void setProcessImage(ProcessImage processImage) {
+        m_ProcessImage = processImage;
+    }
+
+    @Override
+    public boolean isListening() {
+        return m_Listening;
+    }
+
+    /**
+     * Returns the local port the listener is bound to, which differs from
+     * the configured port if that was zero.
+     *
+     * @return the port, or -1 if not bound.
+     */
+    public int getLocalPort() {
+        DatagramChannel channel = m_Channel;
+        if (channel == null) {
+            return -1;
+        }
+        return channel.socket().getLocalPort();
+    }
+
+    @Override
+    public synchronized Thread listen() {
+        m_Listening = true;
+        m_Listener = new Thread(this, "ModbusNIOUDPListener");
+        m_Listener.start();
+
+        return m_Listener;
+    }
+
+    @Override
+    public void stop() {
+        m_Listening = false;
+        try {
+            Selector selector = m_Selector;
+            if (selector != null) {
+                selector.wakeup();
+            }
+            if (m_Listener != null) {
+                m_Listener.join();
+            }
+        } catch (InterruptedException ex) {
+            Logger.getLogger(ModbusNIOUDPListener.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Receives datagrams and hands them to the workers.
+     */
+    @Override
+    public void run() {
+        try {
+            m_Workers = new InstrumentedExecutor("ModbusNIOUDPListener worker",
+                    m_WorkerThreads, m_WorkerQueueSize);
+            m_Selector = Selector.open();
+            m_Channel = DatagramChannel.open();
+            m_Channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            if (m_ReceiveBufferSize > 0) {
+                m_Channel.setOption(StandardSocketOptions.SO_RCVBUF,
+                        m_ReceiveBufferSize);
+            }
+            if (m_SendBufferSize > 0) {
+                m_Channel.setOption(StandardSocketOptions.SO_SNDBUF,
+                        m_SendBufferSize);
+            }
+            m_Channel.bind(new InetSocketAddress(m_Address, m_Port));
+            m_Channel.configureBlocking(false);
+            m_Channel.register(m_Selector, SelectionKey.OP_READ);
+            Logger.getLogger(ModbusNIOUDPListener.class.getName()).log(Level.FINE, "Listenening to {0}(Port {1})", new Object[]{m_Channel.toString(), m_Port});
+
+            while (m_Listening) {
+                m_Selector.select();
+                m_Selector.selectedKeys().clear();
+                receive();
+            }
+        } catch (ClosedChannelException | ClosedSelectorException ex) {
+            if (m_Listening) {
+                Logger.getLogger(ModbusNIOUDPListener.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(ModbusNIOUDPListener.class.getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            m_Listening = false;
+            if (m_Workers != null) {
+                m_Workers.shutdown();
+                try {
+                    m_Workers.awaitTermination(Modbus.DEFAULT_TIMEOUT,
+                            TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            try {
+                if (m_Channel != null) {
+                    m_Channel.close();
+                }
+                if (m_Selector != null) {
+                    m_Selector.close();
+                }
+            } catch (IOException ex) {
+                // Nothing to do.
+            }
+        }
+    }
+
+    /**
+     * Returns the pool executing requests, whose statistics show the load of
+     * the listener. Requests it rejects are answered with a slave busy
+     * exception.
+     *
+     * @return the <tt>InstrumentedExecutor</tt>, or null if not started yet.
+     */
+    public InstrumentedExecutor getWorkers() {
+        return m_Workers;
+    }
+
+    /**
+     * Reads up to a batch of the datagrams which have arrived and dispatches
+     * them. Called on the receiver thread.
+     */
+    private void receive() throws IOException {
+        for (int i = 0; i < m_BatchSize; i++) {
+            ByteBuffer buffer = m_Buffers.poll();
+            if (buffer == null) {
+                buffer = ByteBuffer.allocateDirect(MAX_FRAME_LENGTH);
+            }
+            buffer.clear();
+            SocketAddress source = m_Channel.receive(buffer);
+            if (source == null) {
+                release(buffer);
+                return;
+            }
+            buffer.flip();
+            if (buffer.remaining() < MIN_FRAME_LENGTH) {
+                release(buffer);
+                continue;
+            }
+            final ByteBuffer request = buffer;
+            try {
+                m_Workers.execute(() -> execute(request, source));
+            } catch (RejectedExecutionException ex) {
+                busy(request, source);
+            }
+        }
+    }
+
+    /**
+     * Answers a request with a slave busy exception without decoding it
+     * further. Called on the receiver thread.
+     */
+    private void busy(ByteBuffer buffer, SocketAddress destination) {
+        int transaction = buffer.getShort(0);
+        int protocol = buffer.getShort(2);
+        int unit = buffer.get(6);
+        int functionCode = buffer.get(7) & 0xFF;
+        buffer.clear();
+        buffer.putShort((short) transaction);
+        buffer.putShort((short) protocol);
+        buffer.putShort((short) 3);
+        buffer.put((byte) unit);
+        buffer.put((byte) (functionCode | Modbus.EXCEPTION_OFFSET));
+        buffer.put((byte) Modbus.SLAVE_BUSY_EXCEPTION);
+        buffer.flip();
+        send(buffer, destination);
+    }
+
+    /**
+     * Decodes and executes a request against the process image, and sends
+     * the response. Called on a worker thread.
+     */
+    private void execute(ByteBuffer buffer, SocketAddress source) {
+        ProcessImage image = m_ProcessImage;
+        ModbusRequest request;
+        try {
+            request = decode(buffer);
+        } catch (IOException | RuntimeException ex) {
+            Logger.getLogger(ModbusNIOUDPListener.class.getName()).log(Level.FINE, "Dropped malformed request from {0}", source);
+            release(buffer);
+            return;
+        }
+        if (image == null) {
+            /*
+             * Do nothing -- non-existent devices do not respond to messages.
+             */
+            release(buffer);
+            return;
+        }
+        if (image.getUnitID() != 0
+                && request.getUnitID() != image.getUnitID()) {
+            /*
+             * Do nothing -- non-existent units do not respond to message.
+             */
+            release(buffer);
+            return;
+        }
+
+        ModbusResponse response;
+        try {
+            response = request.createResponse(image);
+        } catch (RuntimeException ex) {
+            Logger.getLogger(ModbusNIOUDPListener.class.getName()).log(Level.SEVERE, null, ex);
+            response = request.createExceptionResponse(
+                    Modbus.SLAVE_DEVICE_FAILURE);
+        }
+
+        Logger.getLogger(ModbusNIOUDPListener.class.getName()).log(Level.FINE, "Request:{0}", request.getHexMessage());
+        Logger.getLogger(ModbusNIOUDPListener.class.getName()).log(Level.FINE, "Response:{0}", response.getHexMessage());
+
+        encode(response, buffer);
+        send(buffer, source);
+    }
+
+    /**
+     * Decodes the request in a buffer.
+     */
+    private ModbusRequest decode(ByteBuffer buffer) throws IOException {
+        BytesInputStream in = m_ByteIn.get();
+        int length = buffer.remaining();
+        buffer.get(in.getBuffer(), 0, length);
+        in.reset(length);
+
+        int functionCode = in.getBuffer()[7] & 0xFF;
+        ModbusRequest req = ModbusRequest.createModbusRequest(functionCode);
+        req.setHeadless(false);
+        req.readFrom(in);
+
+        return req;
+    }
+
+    /**
+     * Encodes a message as a Modbus/UDP frame into a buffer.
+     */
+    private static void encode(ModbusMessage msg, ByteBuffer buffer) {
+        byte[] message = msg.getMessage();
+        int length = (message != null ? message.length : 0);
+
+        buffer.clear();
+        buffer.putShort((short) msg.getTransactionID());
+        buffer.putShort((short) msg.getProtocolID());
+        buffer.putShort((short) (length + 2));
+        buffer.put((byte) msg.getUnitID());
+        buffer.put((byte) msg.getFunctionCode());
+        if (length > 0) {
+            buffer.put(message);
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Sends a frame and returns its buffer to the pool.
+     */
+    private void send(ByteBuffer buffer, SocketAddress destination) {
+        try {
+            if (m_Channel.send(buffer, destination) == 0) {
+                Logger.getLogger(ModbusNIOUDPListener.class.getName()).log(Level.FINE, "Send buffer full, dropped response to {0}", destination);
+            }
+        } catch (IOException ex) {
+            if (m_Listening) {
+                Logger.getLogger(ModbusNIOUDPListener.class.getName()).log(Level.FINE, null, ex);
+            }
+        } finally {
+            release(buffer);
+        }
+    }
+
+    /**
+     * Returns a buffer to the pool, or leaves it to the collector if the pool
+     * is full.
+     */
+    private void release(ByteBuffer buffer) {
+        m_Buffers.offer(buffer);
+    }
+}
@@ -68,6 +68,7 @@ import com.ghgande.j2mod.modbus.msg.ModbusRequest;
 import com.ghgande.j2mod.modbus.msg.ModbusResponse;
 import com.ghgande.j2mod.modbus.procimg.ProcessImage;
 import com.ghgande.j2mod.modbus.util.SerialParameters;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -88,6 +89,7 @@ public class ModbusSerialListener implements ModbusListener {
     private final SerialConnection m_SerialCon;
     private int m_Unit = 0;
     private ProcessImage m_ProcessImage = null;
+    private ThreadFactory m_ThreadFactory;
 
     /**
      * run
@@ -213,6 +215,16 @@ public class ModbusSerialListener implements ModbusListener {
         m_Running = false;
     }
 
+    /**
+     * Sets the factory of the listener thread. By default, a platform thread
+     * is created.
+     *
+     * @param factory the <tt>ThreadFactory</tt>, or null for the default.
+     */
+    public void setThreadFactory(ThreadFactory factory) {
+        m_ThreadFactory = factory;
+    }
+
     /**
      * Start the listener thread for this serial interface.
      *
@@ -221,7 +233,8 @@ public class ModbusSerialListener implements ModbusListener {
     @Override
     public Thread listen() {
         m_Listening = true;
-        Thread result = new Thread(this);
+        Thread result = m_ThreadFactory == null ? new Thread(this)
+                : m_ThreadFactory.newThread(this);
         result.start();
 
         return result;
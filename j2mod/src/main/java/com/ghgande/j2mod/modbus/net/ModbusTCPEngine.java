@@ -0,0 +1,362 @@
+//License
+/**
+ * *
+ * Java Modbus Library (j2mod) Copyright 2012, Julianne Frances Haugh d/b/a
+ * greenHouse Gas and Electric All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. *
+ */
+package com.ghgande.j2mod.modbus.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.ModbusIOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Class that implements a non-blocking Modbus/TCP master engine.
+ *
+ * <p>
+ * The engine multiplexes any number of <tt>TCPEngineConnection</tt> instances
+ * over a small, fixed number of event loops, each of which owns one
+ * <tt>Selector</tt>. No thread is tied up while a request is waiting for its
+ * response, so a single engine can poll thousands of slaves.
+ *
+ * <p>
+ * Responses are completed on the event loop threads. Callers which do more
+ * than hand the response over to another thread should use the
+ * <tt>...Async</tt> methods of <tt>CompletableFuture</tt>.
+ */
+public class ModbusTCPEngine {
+
+    /**
+     * The interval in milliseconds at which outstanding requests are checked
+     * for timeouts.
+     */
+    private static final int TIMEOUT_TICK = 50;
+
+    private final EventLoop[] m_Loops;
+    private final AtomicInteger m_NextLoop = new AtomicInteger();
+    private int m_Timeout = Modbus.DEFAULT_TIMEOUT;
+    private volatile boolean m_Running;
+
+    /**
+     * Constructs a new <tt>ModbusTCPEngine</tt> with the given number of event
+     * loops.
+     *
+     * @param threads the number of event loop threads.
+     */
+    public ModbusTCPEngine(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Invalid thread count: "
+                    + threads);
+        }
+        m_Loops = new EventLoop[threads];
+    }
+
+    /**
+     * Constructs a new <tt>ModbusTCPEngine</tt> with one event loop per
+     * available processor.
+     */
+    public ModbusTCPEngine() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Starts the event loops of this <tt>ModbusTCPEngine</tt>.
+     *
+     * @throws IOException if a selector cannot be opened.
+     */
+    public synchronized void start() throws IOException {
+        if (m_Running) {
+            return;
+        }
+        for (int i = 0; i < m_Loops.length; i++) {
+            m_Loops[i] = new EventLoop(Selector.open());
+            Thread thread = new Thread(m_Loops[i], "ModbusTCPEngine-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        m_Running = true;
+    }
+
+    /**
+     * Stops the event loops and closes all connections. Outstanding requests
+     * are failed.
+     */
+    public synchronized void stop() {
+        if (!m_Running) {
+            return;
+        }
+        m_Running = false;
+        for (EventLoop loop : m_Loops) {
+            loop.shutdown();
+        }
+    }
+
+    /**
+     * Tests if this <tt>ModbusTCPEngine</tt> is running. An engine one of
+     * whose event loops has failed is not running.
+     *
+     * @return true if running, false otherwise.
+     */
+    public boolean isRunning() {
+        if (!m_Running) {
+            return false;
+        }
+        for (EventLoop loop : m_Loops) {
+            if (loop.isTerminated()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the default response timeout for new connections.
+     *
+     * @return the timeout in milliseconds.
+     */
+    public int getTimeout() {
+        return m_Timeout;
+    }
+
+    /**
+     * Sets the default response timeout for new connections.
+     *
+     * @param timeout the timeout in milliseconds.
+     */
+    public void setTimeout(int timeout) {
+        m_Timeout = timeout;
+    }
+
+    /**
+     * Creates a connection to the given slave and starts connecting it. The
+     * connection may be used immediately; requests are sent once the
+     * connection has been established.
+     *
+     * @param addr the address of the slave.
+     * @param port the port of the slave.
+     * @return the new <tt>TCPEngineConnection</tt>.
+     * @throws IOException if the channel cannot be opened.
+     */
+    public TCPEngineConnection connect(InetAddress addr, int port)
+            throws IOException {
+        if (!isRunning()) {
+            throw new IllegalStateException("Engine not running");
+        }
+        EventLoop loop = m_Loops[Math.floorMod(m_NextLoop.getAndIncrement(),
+                m_Loops.length)];
+        TCPEngineConnection connection = new TCPEngineConnection(this, loop,
+                new InetSocketAddress(addr, port));
+        connection.setTimeout(m_Timeout);
+        connection.open();
+
+        return connection;
+    }
+
+    /**
+     * Creates a connection to the given slave on the default Modbus port.
+     *
+     * @param addr the address of the slave.
+     * @return the new <tt>TCPEngineConnection</tt>.
+     * @throws IOException if the channel cannot be opened.
+     */
+    public TCPEngineConnection connect(InetAddress addr) throws IOException {
+        return connect(addr, Modbus.DEFAULT_PORT);
+    }
+
+    /**
+     * An event loop, multiplexing the I/O of its connections over one
+     * <tt>Selector</tt>.
+     */
+    class EventLoop implements Runnable {
+
+        private final Selector m_Selector;
+        private final Queue<Runnable> m_Tasks = new ConcurrentLinkedQueue<>();
+        private final Queue<TCPEngineConnection> m_Flushes
+                = new ConcurrentLinkedQueue<>();
+        private final Set<TCPEngineConnection> m_Connections
+                = ConcurrentHashMap.newKeySet();
+        private volatile boolean m_Continue = true;
+        private volatile boolean m_Terminated;
+
+        EventLoop(Selector selector) {
+            m_Selector = selector;
+        }
+
+        /**
+         * Runs a task on this loop.
+         */
+        void execute(Runnable task) {
+            m_Tasks.add(task);
+            m_Selector.wakeup();
+        }
+
+        /**
+         * Asks this loop to write the queued requests of a connection.
+         */
+        void flush(TCPEngineConnection connection) {
+            m_Flushes.add(connection);
+            m_Selector.wakeup();
+        }
+
+        void add(TCPEngineConnection connection) {
+            m_Connections.add(connection);
+        }
+
+        void remove(TCPEngineConnection connection) {
+            m_Connections.remove(connection);
+        }
+
+        Selector getSelector() {
+            return m_Selector;
+        }
+
+        void shutdown() {
+            m_Continue = false;
+            m_Selector.wakeup();
+        }
+
+        /**
+         * Tests if this loop has ended, so tasks given to it no longer run.
+         */
+        boolean isTerminated() {
+            return m_Terminated;
+        }
+
+        @Override
+        public void run() {
+            long lastTick = System.currentTimeMillis();
+            try {
+                while (m_Continue) {
+                    m_Selector.select(TIMEOUT_TICK);
+
+                    Runnable task;
+                    while ((task = m_Tasks.poll()) != null) {
+                        try {
+                            task.run();
+                        } catch (RuntimeException ex) {
+                            Logger.getLogger(ModbusTCPEngine.class.getName()).log(Level.SEVERE, null, ex);
+                        }
+                    }
+                    TCPEngineConnection connection;
+                    while ((connection = m_Flushes.poll()) != null) {
+                        handle(connection, null);
+                    }
+
+                    Iterator<SelectionKey> keys
+                            = m_Selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        connection = (TCPEngineConnection) key.attachment();
+                        if (key.isValid()) {
+                            handle(connection, key);
+                        }
+                    }
+
+                    long now = System.currentTimeMillis();
+                    if (now - lastTick >= TIMEOUT_TICK) {
+                        lastTick = now;
+                        for (TCPEngineConnection c : m_Connections) {
+                            try {
+                                c.expireOverdue(now);
+                            } catch (RuntimeException ex) {
+                                Logger.getLogger(ModbusTCPEngine.class.getName()).log(Level.SEVERE, null, ex);
+                            }
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException ex) {
+                Logger.getLogger(ModbusTCPEngine.class.getName()).log(Level.SEVERE, null, ex);
+            } finally {
+                m_Terminated = true;
+                for (TCPEngineConnection c : m_Connections) {
+                    c.closeChannel(new ModbusIOException("Engine stopped", true));
+                }
+                try {
+                    m_Selector.close();
+                } catch (IOException ex) {
+                    // Nothing to do.
+                }
+            }
+        }
+
+        /**
+         * Handles the ready operations of a connection, or only flushes it if
+         * no key is given. A failure closes that connection and leaves the
+         * loop running for the others.
+         */
+        private void handle(TCPEngineConnection connection, SelectionKey key) {
+            try {
+                if (key == null) {
+                    connection.flush();
+                    return;
+                }
+                if (key.isConnectable()) {
+                    connection.finishConnect();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    connection.read();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    connection.flush();
+                }
+            } catch (RuntimeException ex) {
+                Logger.getLogger(ModbusTCPEngine.class.getName()).log(Level.SEVERE, null, ex);
+                connection.closeChannel(new ModbusIOException(
+                        "Connection failed", true));
+            }
+        }
+    }
+
+    /**
+     * Opens a non-blocking channel configured for Modbus/TCP.
+     */
+    static SocketChannel openChannel() throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        channel.socket().setKeepAlive(true);
+
+        return channel;
+    }
+}
@@ -67,10 +67,21 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.ModbusIOException;
+import com.ghgande.j2mod.modbus.io.ModbusTransport;
+import com.ghgande.j2mod.modbus.msg.ModbusRequest;
 import com.ghgande.j2mod.modbus.procimg.ProcessImage;
-import com.ghgande.j2mod.modbus.util.ThreadPool;
+import com.ghgande.j2mod.modbus.util.InstrumentedExecutor;
+import com.ghgande.j2mod.modbus.util.ThreadFactories;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -80,6 +91,11 @@ import java.util.logging.Logger;
  * <p>
  * If listening, it accepts incoming requests passing them on to be handled. If
  * not listening, silently drops the requests.
+ * <p>
+ * Each connection is handled as a task of an executor, by default an
+ * <tt>InstrumentedExecutor</tt> with a bounded queue. When it is saturated,
+ * the first request of a new connection is answered with a slave busy
+ * exception and the connection is closed.
  *
  * @author Dieter Wimberger
  * @version 1.2rc1 (09/11/2004)
@@ -90,7 +106,25 @@ import java.util.logging.Logger;
 public class ModbusTCPListener implements ModbusListener {
 
     private ServerSocket m_ServerSocket = null;
-    private ThreadPool m_ThreadPool;
+    /**
+     * BUSY_TIMEOUT - the time in milliseconds to wait for the request of a
+     * connection which is refused as busy.
+     */
+    private static final int BUSY_TIMEOUT = 250;
+    /**
+     * BUSY_QUEUE_SIZE - the number of refused connections which may wait to
+     * be answered. Beyond it, they are closed without an answer.
+     */
+    private static final int BUSY_QUEUE_SIZE = 16;
+
+    private volatile Executor m_Executor;
+    private final boolean m_OwnsExecutor;
+    private volatile ExecutorService m_BusyExecutor;
+    private int m_PoolSize;
+    private int m_QueueSize;
+    private final Set<TCPSlaveConnection> m_Connections
+            = ConcurrentHashMap.newKeySet();
+    private ThreadFactory m_ThreadFactory;
     private Thread m_Listener;
     private int m_Port = Modbus.DEFAULT_PORT;
     private int m_Unit = 0;
@@ -143,6 +177,16 @@ public class ModbusTCPListener implements ModbusListener {
         m_Address = addr;
     }
 
+    /**
+     * Sets the factory of the thread accepting connections. By default, a
+     * platform thread is created.
+     *
+     * @param factory the <tt>ThreadFactory</tt>, or null for the default.
+     */
+    public void setThreadFactory(ThreadFactory factory) {
+        m_ThreadFactory = factory;
+    }
+
     /**
      * Starts this <tt>ModbusTCPListener</tt>.
      *
@@ -151,22 +195,68 @@ public class ModbusTCPListener implements ModbusListener {
     public void start() {
         m_Listening = true;
 
-        m_Listener = new Thread(this);
+        m_Listener = newThread();
         m_Listener.start();
     }
 
     /**
-     * Stops this <tt>ModbusTCPListener</tt>.
+     * Creates the thread accepting connections.
+     */
+    private Thread newThread() {
+        return m_ThreadFactory == null ? new Thread(this)
+                : m_ThreadFactory.newThread(this);
+    }
+
+    /**
+     * Stops this <tt>ModbusTCPListener</tt>, closing the connections being
+     * handled. An executor created by the listener is shut down; one passed
+     * to the constructor is left running.
      */
     @Override
     public void stop() {
         m_Listening = false;
         try {
-            m_ServerSocket.close();
-            m_Listener.join();
+            if (m_ServerSocket != null) {
+                m_ServerSocket.close();
+            }
+            if (m_Listener != null) {
+                m_Listener.join();
+            }
         } catch (IOException | InterruptedException ex) {
             Logger.getLogger(ModbusTCPListener.class.getName()).log(Level.SEVERE, null, ex);
         }
+        ExecutorService busy = m_BusyExecutor;
+        if (busy != null) {
+            busy.shutdownNow();
+        }
+        for (TCPSlaveConnection connection : m_Connections) {
+            connection.close();
+        }
+        Executor executor = m_Executor;
+        if (m_OwnsExecutor && executor != null) {
+            ExecutorService service = (ExecutorService) executor;
+            service.shutdown();
+            try {
+                if (!service.awaitTermination(Modbus.DEFAULT_TIMEOUT,
+                        TimeUnit.MILLISECONDS)) {
+                    service.shutdownNow();
+                }
+            } catch (InterruptedException ex) {
+                service.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Returns the executor handling the connections. Unless one was passed
+     * to the constructor, it is an <tt>InstrumentedExecutor</tt> created when
+     * the listener starts.
+     *
+     * @return the <tt>Executor</tt>, or null if not started yet.
+     */
+    public Executor getExecutor() {
+        return m_Executor;
     }
 
     /**
@@ -183,6 +273,15 @@ public class ModbusTCPListener implements ModbusListener {
              * attacks via massive parallel program logins can probably be
              * prevented.
              */
+            if (m_OwnsExecutor && (m_Executor == null
+                    || ((ExecutorService) m_Executor).isShutdown())) {
+                m_Executor = new InstrumentedExecutor("ModbusTCPListener",
+                        m_PoolSize, m_QueueSize);
+            }
+            if (m_BusyExecutor == null || m_BusyExecutor.isShutdown()) {
+                m_BusyExecutor = new InstrumentedExecutor(
+                        "ModbusTCPListener busy", 1, BUSY_QUEUE_SIZE);
+            }
             m_ServerSocket = new ServerSocket(m_Port, m_FloodProtection,
                     m_Address);
             Logger.getLogger(ModbusTCPListener.class.getName()).log(Level.FINE, "Listenening to {0}(Port {1})", new Object[]{m_ServerSocket.toString(), m_Port});
@@ -197,9 +296,21 @@ public class ModbusTCPListener implements ModbusListener {
                 Logger.getLogger(ModbusTCPListener.class.getName()).log(Level.FINE, "Making new connection {0}", incoming.toString());
 
                 if (m_Listening) {
-                    // FIXME: Replace with object pool due to resource issues
-                    m_ThreadPool.execute(new TCPConnectionHandler(
-                            new TCPSlaveConnection(incoming), m_ProcessImage));
+                    TCPSlaveConnection connection = new TCPSlaveConnection(incoming);
+                    Runnable handler = new TCPConnectionHandler(connection,
+                            m_ProcessImage);
+                    m_Connections.add(connection);
+                    try {
+                        m_Executor.execute(() -> {
+                            try {
+                                handler.run();
+                            } finally {
+                                m_Connections.remove(connection);
+                            }
+                        });
+                    } catch (RejectedExecutionException ex) {
+                        rejectBusy(connection);
+                    }
                 } else {
                     incoming.close();
                 }
@@ -215,6 +326,49 @@ public class ModbusTCPListener implements ModbusListener {
         }
     }
 
+    /**
+     * Refuses a connection which cannot be handled. Its first request is
+     * answered with a slave busy exception on a thread of its own, so the
+     * accepting thread never waits for it; if that thread has too many
+     * connections to answer already, the connection is closed at once.
+     *
+     * @param connection the refused <tt>TCPSlaveConnection</tt>.
+     */
+    private void rejectBusy(TCPSlaveConnection connection) {
+        Logger.getLogger(ModbusTCPListener.class.getName()).log(Level.FINE, "Busy, refusing connection");
+        try {
+            m_BusyExecutor.execute(() -> {
+                try {
+                    answerBusy(connection);
+                } finally {
+                    m_Connections.remove(connection);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            m_Connections.remove(connection);
+            connection.close();
+        }
+    }
+
+    /**
+     * Answers the first request of a refused connection with a slave busy
+     * exception, and closes it. The request is waited for at most
+     * <tt>BUSY_TIMEOUT</tt>.
+     */
+    private void answerBusy(TCPSlaveConnection connection) {
+        try {
+            connection.setTimeout(BUSY_TIMEOUT);
+            ModbusTransport transport = connection.getModbusTransport();
+            ModbusRequest request = transport.readRequest();
+            transport.writeMessage(request.createExceptionResponse(
+                    Modbus.SLAVE_BUSY_EXCEPTION));
+        } catch (ModbusIOException ex) {
+            Logger.getLogger(ModbusTCPListener.class.getName()).log(Level.FINE, "Refused connection: {0}", ex.getMessage());
+        } finally {
+            connection.close();
+        }
+    }
+
     /**
      * Tests if this <tt>ModbusTCPListener</tt> is listening and accepting
      * incoming connections.
@@ -235,21 +389,52 @@ public class ModbusTCPListener implements ModbusListener {
     @Override
     public Thread listen() {
         m_Listening = true;
-        Thread result = new Thread(this);
-        result.start();
+        m_Listener = newThread();
+        m_Listener.start();
 
-        return result;
+        return m_Listener;
     }
 
     /**
      * Constructs a ModbusTCPListener instance.<br>
      *
-     * @param poolsize the size of the <tt>ThreadPool</tt> used to handle
-     * incoming requests.
+     * @param poolsize the number of threads used to handle incoming
+     * connections; as many connections again may wait for a thread.
      * @param addr the interface to use for listening.
      */
     public ModbusTCPListener(int poolsize, InetAddress addr) {
-        m_ThreadPool = new ThreadPool(poolsize);
+        this(poolsize, poolsize, addr);
+    }
+
+    /**
+     * Constructs a ModbusTCPListener instance.<br>
+     *
+     * @param poolsize the number of threads used to handle incoming
+     * connections.
+     * @param queueSize the number of connections which may wait for a
+     * thread before new ones are refused as busy.
+     * @param addr the interface to use for listening.
+     */
+    public ModbusTCPListener(int poolsize, int queueSize, InetAddress addr) {
+        m_OwnsExecutor = true;
+        m_PoolSize = poolsize;
+        m_QueueSize = queueSize;
+        m_Address = addr;
+    }
+
+    /**
+     * Constructs a ModbusTCPListener instance handling each connection as a
+     * task of the given executor. With an executor starting a thread per
+     * task, such as one of virtual threads, the number of connections served
+     * at the same time is not bounded by a pool.
+     *
+     * @param executor the <tt>Executor</tt> running the connection handlers.
+     * @param addr the interface to use for listening.
+     * @see ThreadFactories
+     */
+    public ModbusTCPListener(Executor executor, InetAddress addr) {
+        m_Executor = executor;
+        m_OwnsExecutor = false;
         m_Address = addr;
     }
 
@@ -259,11 +444,13 @@ public class ModbusTCPListener implements ModbusListener {
      * listen on the wildcard address, which will accept TCP packets on all
      * available interfaces.
      *
-     * @param poolsize the size of the <tt>ThreadPool</tt> used to handle
-     * incoming requests.
+     * @param poolsize the number of threads used to handle incoming
+     * connections; as many connections again may wait for a thread.
      */
     public ModbusTCPListener(int poolsize) {
-        m_ThreadPool = new ThreadPool(poolsize);
+        m_OwnsExecutor = true;
+        m_PoolSize = poolsize;
+        m_QueueSize = poolsize;
         try {
             /*
              * TODO -- Check for an IPv6 interface and listen on that
@@ -0,0 +1,502 @@
+//License
+/**
+ * *
+ * Java Modbus Library (j2mod) Copyright 2012, Julianne Frances Haugh d/b/a
+ * greenHouse Gas and Electric All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. *
+ */
+package com.ghgande.j2mod.modbus.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.ModbusIOException;
+import com.ghgande.j2mod.modbus.ModbusSlaveException;
+import com.ghgande.j2mod.modbus.io.BytesInputStream;
+import com.ghgande.j2mod.modbus.io.TransactionIDAllocator;
+import com.ghgande.j2mod.modbus.msg.ExceptionResponse;
+import com.ghgande.j2mod.modbus.msg.ModbusRequest;
+import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+import com.ghgande.j2mod.modbus.util.ModbusUtil;
+import com.ghgande.j2mod.modbus.util.TimerWheel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Class that implements a Modbus/UDP master engine.
+ *
+ * <p>
+ * All slaves are reached through one datagram channel. Requests are sent
+ * as soon as they are submitted, without waiting for the responses to
+ * earlier requests, so any number of requests to any number of slaves may
+ * be outstanding. Each request is given a transaction identifier which is
+ * unique among the outstanding requests to its slave, and a response is
+ * matched by its source address and transaction identifier.
+ *
+ * <p>
+ * Timeouts are kept on a <tt>TimerWheel</tt> rather than on the socket. A
+ * request which times out is sent again with the same transaction
+ * identifier until its retries are exhausted.
+ *
+ * <p>
+ * Responses are completed on the receiver thread and timeouts on the timer
+ * thread. Callers which do more than hand the response over to another
+ * thread should use the <tt>...Async</tt> methods of
+ * <tt>CompletableFuture</tt>.
+ */
+public class ModbusUDPEngine {
+
+    /**
+     * The largest Modbus/UDP frame, including the MBAP header.
+     */
+    private static final int MAX_FRAME_LENGTH = Modbus.MAX_MESSAGE_LENGTH + 6;
+
+    private final Map<SocketAddress, Endpoint> m_Endpoints
+            = new ConcurrentHashMap<>();
+    private volatile DatagramChannel m_Channel;
+    private volatile TimerWheel m_Timer;
+    private Thread m_Receiver;
+    private int m_Timeout = Modbus.DEFAULT_TIMEOUT;
+    private int m_Retries = Modbus.DEFAULT_RETRIES;
+    private int m_ReceiveBufferSize;
+    private volatile boolean m_Running;
+
+    /**
+     * Sets the size of the socket receive buffer, which holds the responses
+     * arriving in a burst. Zero, the default, keeps the size chosen by the
+     * operating system. Takes effect when the engine is started.
+     *
+     * @param size the size in bytes.
+     */
+    public void setReceiveBufferSize(int size) {
+        m_ReceiveBufferSize = size;
+    }
+
+    /**
+     * Starts this <tt>ModbusUDPEngine</tt> on an ephemeral local port.
+     *
+     * @throws IOException if the channel cannot be opened.
+     */
+    public synchronized void start() throws IOException {
+        if (m_Running) {
+            return;
+        }
+        m_Channel = DatagramChannel.open();
+        if (m_ReceiveBufferSize > 0) {
+            m_Channel.setOption(StandardSocketOptions.SO_RCVBUF,
+                    m_ReceiveBufferSize);
+        }
+        m_Channel.bind(null);
+        m_Timer = new TimerWheel("ModbusUDPEngine timer");
+        m_Running = true;
+        m_Receiver = new Thread(this::receive, "ModbusUDPEngine");
+        m_Receiver.setDaemon(true);
+        m_Receiver.start();
+    }
+
+    /**
+     * Stops this <tt>ModbusUDPEngine</tt>. Outstanding requests are failed.
+     */
+    public synchronized void stop() {
+        if (!m_Running) {
+            return;
+        }
+        m_Running = false;
+        try {
+            m_Channel.close();
+            m_Receiver.join();
+        } catch (IOException ex) {
+            // Nothing to do.
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        m_Timer.stop();
+
+        ModbusIOException ex = new ModbusIOException("Engine stopped", true);
+        for (Endpoint endpoint : m_Endpoints.values()) {
+            for (Integer tid : new ArrayList<>(endpoint.m_Pending.keySet())) {
+                PendingRequest pending = endpoint.m_Pending.remove(tid);
+                if (pending != null) {
+                    endpoint.m_TransactionIDs.release(tid);
+                    pending.m_Future.completeExceptionally(ex);
+                }
+            }
+        }
+        m_Endpoints.clear();
+    }
+
+    /**
+     * Tests if this <tt>ModbusUDPEngine</tt> is running.
+     *
+     * @return true if running, false otherwise.
+     */
+    public boolean isRunning() {
+        return m_Running;
+    }
+
+    /**
+     * Returns the local port of the channel.
+     *
+     * @return the port, or -1 if not started.
+     */
+    public int getLocalPort() {
+        DatagramChannel channel = m_Channel;
+        return channel == null ? -1 : channel.socket().getLocalPort();
+    }
+
+    /**
+     * Returns the response timeout of each attempt of a request.
+     *
+     * @return the timeout in milliseconds.
+     */
+    public int getTimeout() {
+        return m_Timeout;
+    }
+
+    /**
+     * Sets the response timeout of each attempt of a request.
+     *
+     * @param timeout the timeout in milliseconds.
+     */
+    public void setTimeout(int timeout) {
+        m_Timeout = timeout;
+    }
+
+    /**
+     * Returns the number of times a request is sent again after a timeout.
+     *
+     * @return the number of retries.
+     */
+    public int getRetries() {
+        return m_Retries;
+    }
+
+    /**
+     * Sets the number of times a request is sent again after a timeout.
+     *
+     * @param retries the number of retries.
+     */
+    public void setRetries(int retries) {
+        m_Retries = retries;
+    }
+
+    /**
+     * Returns the number of requests awaiting their response.
+     *
+     * @return the number of outstanding requests of all slaves.
+     */
+    public int getOutstanding() {
+        int count = 0;
+        for (Endpoint endpoint : m_Endpoints.values()) {
+            count += endpoint.m_Pending.size();
+        }
+        return count;
+    }
+
+    /**
+     * Sends a request to a slave on the default Modbus port.
+     *
+     * @param addr the address of the slave.
+     * @param request the request to be sent.
+     * @return a future which is completed with the response.
+     */
+    public CompletableFuture<ModbusResponse> submit(InetAddress addr,
+            ModbusRequest request) {
+        return submit(new InetSocketAddress(addr, Modbus.DEFAULT_PORT),
+                request);
+    }
+
+    /**
+     * Sends a request to a slave, using the timeout and retries of this
+     * engine.
+     *
+     * @param slave the address and port of the slave.
+     * @param request the request to be sent. It is encoded before this method
+     * returns, so it may be re-used by the caller.
+     * @return a future which is completed with the response. It is completed
+     * exceptionally with a <tt>ModbusIOException</tt> if all attempts time
+     * out or sending fails, and with a <tt>ModbusSlaveException</tt> if the
+     * slave returns an exception response.
+     */
+    public CompletableFuture<ModbusResponse> submit(InetSocketAddress slave,
+            ModbusRequest request) {
+        CompletableFuture<ModbusResponse> result = new CompletableFuture<>();
+
+        if (!m_Running) {
+            result.completeExceptionally(
+                    new ModbusIOException("Engine not running"));
+            return result;
+        }
+
+        Endpoint endpoint = m_Endpoints.computeIfAbsent(slave, Endpoint::new);
+        PendingRequest pending;
+        synchronized (endpoint) {
+            int tid;
+            try {
+                tid = endpoint.m_TransactionIDs.acquire();
+            } catch (IllegalStateException ex) {
+                result.completeExceptionally(new ModbusIOException(ex.getMessage()));
+                return result;
+            }
+            request.setTransactionID(tid);
+            pending = new PendingRequest(endpoint, tid, encode(request),
+                    result, m_Retries, m_Timeout);
+            endpoint.m_Pending.put(tid, pending);
+        }
+        transmit(pending);
+
+        return result;
+    }
+
+    /**
+     * Sends a request to a slave and waits for the response.
+     *
+     * @param slave the address and port of the slave.
+     * @param request the request to be sent.
+     * @return the response of the slave.
+     * @throws ModbusException if the request fails or the slave returns an
+     * exception response.
+     */
+    public ModbusResponse execute(InetSocketAddress slave,
+            ModbusRequest request) throws ModbusException {
+        try {
+            return submit(slave, request).get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ModbusIOException("Interrupted waiting for response");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof ModbusException) {
+                throw (ModbusException) ex.getCause();
+            }
+            throw new ModbusIOException("I/O exception - failed to read.");
+        }
+    }
+
+    /**
+     * Sends one attempt of a request and schedules its timeout.
+     */
+    private void transmit(PendingRequest pending) {
+        try {
+            pending.m_Timeout = m_Timer.schedule(() -> expire(pending),
+                    pending.m_TimeoutMillis, TimeUnit.MILLISECONDS);
+            m_Channel.send(pending.m_Frame.duplicate(),
+                    pending.m_Endpoint.m_Address);
+        } catch (IOException | IllegalStateException ex) {
+            if (complete(pending)) {
+                pending.m_Future.completeExceptionally(
+                        new ModbusIOException("I/O exception - failed to write.", true));
+            }
+        }
+    }
+
+    /**
+     * Handles the timeout of an attempt. Called on the timer thread.
+     */
+    private void expire(PendingRequest pending) {
+        if (pending.m_Endpoint.m_Pending.get(pending.m_TransactionID) != pending) {
+            return;
+        }
+        if (pending.m_RetriesLeft-- > 0) {
+            Logger.getLogger(ModbusUDPEngine.class.getName()).log(Level.FINE, "Resending transaction {0} to {1}", new Object[]{pending.m_TransactionID, pending.m_Endpoint.m_Address});
+            transmit(pending);
+        } else if (complete(pending)) {
+            pending.m_Future.completeExceptionally(
+                    new ModbusIOException("Timeout reading response"));
+        }
+    }
+
+    /**
+     * Removes a request from the outstanding ones and releases its
+     * transaction identifier.
+     *
+     * @return false if it had been completed before.
+     */
+    private boolean complete(PendingRequest pending) {
+        Endpoint endpoint = pending.m_Endpoint;
+        if (!endpoint.m_Pending.remove(pending.m_TransactionID, pending)) {
+            return false;
+        }
+        TimerWheel.Timeout timeout = pending.m_Timeout;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        endpoint.m_TransactionIDs.release(pending.m_TransactionID);
+        return true;
+    }
+
+    /**
+     * Receives responses until the engine is stopped. Runs on the receiver
+     * thread.
+     */
+    private void receive() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_FRAME_LENGTH);
+        BytesInputStream in = new BytesInputStream(MAX_FRAME_LENGTH);
+        while (m_Running) {
+            SocketAddress source;
+            try {
+                buffer.clear();
+                source = m_Channel.receive(buffer);
+            } catch (ClosedChannelException ex) {
+                break;
+            } catch (IOException ex) {
+                if (m_Running) {
+                    Logger.getLogger(ModbusUDPEngine.class.getName()).log(Level.FINE, null, ex);
+                }
+                continue;
+            }
+            buffer.flip();
+            int length = buffer.remaining();
+            if (length < 8) {
+                continue;
+            }
+            buffer.get(in.getBuffer(), 0, length);
+            try {
+                dispatch(source, in, length);
+            } catch (RuntimeException ex) {
+                Logger.getLogger(ModbusUDPEngine.class.getName()).log(Level.WARNING, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Decodes one response and completes the matching request.
+     */
+    private void dispatch(SocketAddress source, BytesInputStream in,
+            int length) {
+        Endpoint endpoint = m_Endpoints.get(source);
+        int tid = ModbusUtil.registerToShort(in.getBuffer(), 0) & 0x0000FFFF;
+        PendingRequest pending = endpoint == null ? null
+                : endpoint.m_Pending.get(tid);
+        if (pending == null || !complete(pending)) {
+            Logger.getLogger(ModbusUDPEngine.class.getName()).log(Level.FINE, "discarding response from {0}, transaction ID = {1}", new Object[]{source, tid});
+            return;
+        }
+
+        ModbusResponse response;
+        try {
+            in.reset(length);
+            in.skip(7);
+            int function = in.readUnsignedByte();
+            response = ModbusResponse.createModbusResponse(function);
+            in.reset(length);
+            response.readFrom(in);
+        } catch (IOException | RuntimeException ex) {
+            /*
+             * A malformed response, such as a FIFO count beyond the frame,
+             * fails its request only.
+             */
+            Logger.getLogger(ModbusUDPEngine.class.getName()).log(Level.FINE, "malformed response from " + source, ex);
+            pending.m_Future.completeExceptionally(
+                    new ModbusIOException("I/O exception - failed to read."));
+            return;
+        }
+
+        if (response instanceof ExceptionResponse) {
+            pending.m_Future.completeExceptionally(new ModbusSlaveException(
+                    ((ExceptionResponse) response).getExceptionCode()));
+        } else {
+            pending.m_Future.complete(response);
+        }
+    }
+
+    /**
+     * Encodes a request as a Modbus/UDP frame.
+     */
+    private static ByteBuffer encode(ModbusRequest request) {
+        byte[] message = request.getMessage();
+        int length = (message != null ? message.length : 0);
+        ByteBuffer frame = ByteBuffer.allocate(length + 8);
+
+        frame.putShort((short) request.getTransactionID());
+        frame.putShort((short) request.getProtocolID());
+        frame.putShort((short) (length + 2));
+        frame.put((byte) request.getUnitID());
+        frame.put((byte) request.getFunctionCode());
+        if (length > 0) {
+            frame.put(message);
+        }
+        frame.flip();
+
+        return frame;
+    }
+
+    /**
+     * The outstanding requests of one slave.
+     */
+    private static class Endpoint {
+
+        final SocketAddress m_Address;
+        final TransactionIDAllocator m_TransactionIDs
+                = new TransactionIDAllocator();
+        final Map<Integer, PendingRequest> m_Pending
+                = new ConcurrentHashMap<>();
+
+        Endpoint(SocketAddress address) {
+            m_Address = address;
+        }
+    }
+
+    /**
+     * A request awaiting its response.
+     */
+    private static class PendingRequest {
+
+        final Endpoint m_Endpoint;
+        final int m_TransactionID;
+        final ByteBuffer m_Frame;
+        final CompletableFuture<ModbusResponse> m_Future;
+        final int m_TimeoutMillis;
+        volatile TimerWheel.Timeout m_Timeout;
+        int m_RetriesLeft;
+
+        PendingRequest(Endpoint endpoint, int tid, ByteBuffer frame,
+                CompletableFuture<ModbusResponse> future, int retries,
+                int timeout) {
+            m_Endpoint = endpoint;
+            m_TransactionID = tid;
+            m_Frame = frame;
+            m_Future = future;
+            m_RetriesLeft = retries;
+            m_TimeoutMillis = timeout;
+        }
+    }
+}
@@ -63,6 +63,7 @@ package com.ghgande.j2mod.modbus.net;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.concurrent.ThreadFactory;
 
 import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.ModbusIOException;
@@ -94,6 +95,9 @@ public class ModbusUDPListener implements ModbusListener {
     private ModbusTransport m_Transport;
     private int m_Unit = 0;
     private ProcessImage m_ProcessImage;
+    private ThreadFactory m_ThreadFactory;
+    private int m_ReceiveBufferSize;
+    private int m_SendBufferSize;
 
     @Override
     public int getUnit() {
@@ -125,6 +129,28 @@ public class ModbusUDPListener implements ModbusListener {
         m_Port = ((port > 0) ? port : Modbus.DEFAULT_PORT);
     }
 
+    /**
+     * Sets the factory of the threads of this listener and of its terminal.
+     * By default, platform threads are created.
+     *
+     * @param factory the <tt>ThreadFactory</tt>, or null for the default.
+     */
+    public void setThreadFactory(ThreadFactory factory) {
+        m_ThreadFactory = factory;
+    }
+
+    /**
+     * Sets the sizes of the socket buffers of the terminal. Zero, the
+     * default, keeps the size chosen by the operating system.
+     *
+     * @param receive the receive buffer size in bytes.
+     * @param send the send buffer size in bytes.
+     */
+    public void setBufferSizes(int receive, int send) {
+        m_ReceiveBufferSize = receive;
+        m_SendBufferSize = send;
+    }
+
     /**
      * Starts this <tt>ModbusUDPListener</tt>.
      */
@@ -138,6 +164,8 @@ public class ModbusUDPListener implements ModbusListener {
                 m_Terminal = new UDPSlaveTerminal(m_Interface);
             }
             m_Terminal.setLocalPort(m_Port);
+            m_Terminal.setThreadFactory(m_ThreadFactory);
+            m_Terminal.setBufferSizes(m_ReceiveBufferSize, m_SendBufferSize);
             m_Terminal.activate();
 
             m_Transport = new ModbusUDPTransport(m_Terminal);
@@ -225,7 +253,8 @@ public class ModbusUDPListener implements ModbusListener {
     @Override
     public Thread listen() {
         m_Listening = true;
-        Thread result = new Thread(this);
+        Thread result = m_ThreadFactory == null ? new Thread(this)
+                : m_ThreadFactory.newThread(this);
         result.start();
 
         return result;
@@ -65,7 +65,9 @@ import gnu.io.*;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Map;
 import java.util.TooManyListenersException;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.io.*;
@@ -88,6 +90,8 @@ public class SerialConnection implements SerialPortEventListener {
     private SerialPort m_SerialPort;
     private boolean m_Open;
     private InputStream m_SerialIn;
+    private final Map<Integer, RTTEstimator> m_RTTEstimators
+            = new ConcurrentHashMap<>();
 
     /**
      * Returns the <tt>ModbusTransport</tt> instance to be used for receiving
@@ -99,6 +103,24 @@ public class SerialConnection implements SerialPortEventListener {
         return m_Transport;
     }// getModbusTransport
 
+    /**
+     * Returns the round-trip time estimator of a unit on this serial line,
+     * shared by all transactions executed on it. Its timeouts are bounded by
+     * the receive timeout of the port at the time it is created.
+     *
+     * @param unitid the unit identifier.
+     * @return the <tt>RTTEstimator</tt> of the unit.
+     */
+    public RTTEstimator getRTTEstimator(int unitid) {
+        return m_RTTEstimators.computeIfAbsent(unitid, k -> {
+            int timeout = m_SerialPort != null
+                    ? m_SerialPort.getReceiveTimeout() : 0;
+            return new RTTEstimator(RTTEstimator.DEFAULT_MIN_TIMEOUT,
+                    Math.max(RTTEstimator.DEFAULT_MIN_TIMEOUT,
+                            timeout > 0 ? timeout : Modbus.DEFAULT_TIMEOUT));
+        });
+    }// getRTTEstimator
+
     /**
      * Opens the communication port.
      *
@@ -0,0 +1,590 @@
+//License
+/**
+ * *
+ * Java Modbus Library (j2mod) Copyright 2012, Julianne Frances Haugh d/b/a
+ * greenHouse Gas and Electric All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. *
+ */
+package com.ghgande.j2mod.modbus.net;
+
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.ModbusIOException;
+import com.ghgande.j2mod.modbus.ModbusSlaveException;
+import com.ghgande.j2mod.modbus.io.ModbusTCPTransaction;
+import com.ghgande.j2mod.modbus.msg.ModbusRequest;
+import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+
+/**
+ * Class implementing a pool of <tt>TCPMasterConnection</tt>s, kept per
+ * device: an address, a port and a unit identifier.
+ * <p>
+ * Each device may have up to <tt>maxConnections</tt> sockets in use; callers
+ * borrowing beyond that wait in arrival order. Idle connections are reused
+ * most recently returned first, checked before they are handed out, and
+ * closed once they have been idle for <tt>idleTimeout</tt>, down to
+ * <tt>minConnections</tt>. A background task tops each device up to
+ * <tt>minConnections</tt> and discards idle connections which were lost.
+ * The connections of a device share a <tt>CircuitBreaker</tt>, so a device
+ * which went offline fails fast instead of being connected to for every
+ * request.
+ * <p>
+ * Connections are borrowed as a <tt>Lease</tt>, to be closed when done:
+ * <pre>
+ * try (TCPConnectionPool.Lease lease = pool.borrow(addr, 502, 1)) {
+ *     ModbusTCPTransaction trans = new ModbusTCPTransaction(lease.getConnection());
+ *     ...
+ * }
+ * </pre>
+ * or used through {@link #execute(InetAddress, int, int, ModbusRequest)}.
+ */
+public class TCPConnectionPool {
+
+    private final Map<Device, DevicePool> m_Devices = new ConcurrentHashMap<>();
+    private int m_MinConnections = 0;
+    private int m_MaxConnections = 4;
+    private int m_IdleTimeout = 60000;
+    private int m_BorrowTimeout = Modbus.DEFAULT_TIMEOUT;
+    private int m_Timeout = Modbus.DEFAULT_TIMEOUT;
+    private ScheduledExecutorService m_Maintenance;
+    private ScheduledFuture<?> m_MaintenanceTask;
+    private volatile boolean m_Closed;
+
+    /**
+     * Constructs a new <tt>TCPConnectionPool</tt> with at most four
+     * connections per device.
+     */
+    public TCPConnectionPool() {
+    }//constructor
+
+    /**
+     * Constructs a new <tt>TCPConnectionPool</tt>.
+     *
+     * @param min the number of connections kept open per device.
+     * @param max the maximum number of connections per device.
+     */
+    public TCPConnectionPool(int min, int max) {
+        if (min < 0 || max < 1 || min > max) {
+            throw new IllegalArgumentException("Illegal pool size " + min + ", " + max);
+        }
+        m_MinConnections = min;
+        m_MaxConnections = max;
+    }//constructor
+
+    /**
+     * Returns the number of connections kept open per device.
+     *
+     * @return the minimum connection count.
+     */
+    public int getMinConnections() {
+        return m_MinConnections;
+    }//getMinConnections
+
+    /**
+     * Returns the maximum number of connections per device.
+     *
+     * @return the maximum connection count.
+     */
+    public int getMaxConnections() {
+        return m_MaxConnections;
+    }//getMaxConnections
+
+    /**
+     * Sets the time after which an idle connection beyond the minimum count
+     * is closed.
+     *
+     * @param timeout the idle timeout in milliseconds.
+     */
+    public synchronized void setIdleTimeout(int timeout) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("Idle timeout must be positive");
+        }
+        m_IdleTimeout = timeout;
+        if (m_MaintenanceTask != null) {
+            m_MaintenanceTask.cancel(false);
+            m_MaintenanceTask = null;
+            startMaintenance();
+        }
+    }//setIdleTimeout
+
+    /**
+     * Returns the time after which an idle connection is closed.
+     *
+     * @return the idle timeout in milliseconds.
+     */
+    public int getIdleTimeout() {
+        return m_IdleTimeout;
+    }//getIdleTimeout
+
+    /**
+     * Sets the time a caller waits for a connection when all connections of
+     * the device are in use.
+     *
+     * @param timeout the borrow timeout in milliseconds.
+     */
+    public void setBorrowTimeout(int timeout) {
+        m_BorrowTimeout = timeout;
+    }//setBorrowTimeout
+
+    /**
+     * Returns the time a caller waits for a connection.
+     *
+     * @return the borrow timeout in milliseconds.
+     */
+    public int getBorrowTimeout() {
+        return m_BorrowTimeout;
+    }//getBorrowTimeout
+
+    /**
+     * Sets the response timeout of the connections opened from now on.
+     *
+     * @param timeout the timeout in milliseconds.
+     */
+    public void setTimeout(int timeout) {
+        m_Timeout = timeout;
+    }//setTimeout
+
+    /**
+     * Returns the response timeout of the connections.
+     *
+     * @return the timeout in milliseconds.
+     */
+    public int getTimeout() {
+        return m_Timeout;
+    }//getTimeout
+
+    /**
+     * Borrows a connection to the given device, opening one if none is idle.
+     *
+     * @param addr the address of the slave.
+     * @param port the port of the slave.
+     * @param unitid the unit identifier of the slave.
+     * @return the <tt>Lease</tt> of the connection.
+     * @throws ModbusIOException if no connection becomes available within
+     * the borrow timeout, or a new connection cannot be opened.
+     */
+    public Lease borrow(InetAddress addr, int port, int unitid)
+            throws ModbusIOException {
+        if (m_Closed) {
+            throw new ModbusIOException("Pool closed");
+        }
+        DevicePool pool = getPool(new Device(addr, port, unitid));
+        try {
+            if (!pool.m_Permits.tryAcquire(m_BorrowTimeout, TimeUnit.MILLISECONDS)) {
+                throw new ModbusIOException("Timeout waiting for a connection to "
+                        + pool.m_Device);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ModbusIOException("Interrupted waiting for a connection");
+        }
+        try {
+            TCPMasterConnection connection;
+            while ((connection = pool.pollIdle()) != null) {
+                if (connection.isConnected()) {
+                    return new Lease(pool, connection);
+                }
+                pool.discard(connection);
+            }
+            return new Lease(pool, pool.open(m_Timeout));
+        } catch (ModbusIOException | RuntimeException ex) {
+            pool.m_Permits.release();
+            throw ex;
+        }
+    }//borrow
+
+    /**
+     * Executes a request on a connection borrowed from this pool. The unit
+     * identifier of the request is set to that of the device. A connection
+     * failing with an I/O error is closed rather than returned to the pool.
+     *
+     * @param addr the address of the slave.
+     * @param port the port of the slave.
+     * @param unitid the unit identifier of the slave.
+     * @param request the <tt>ModbusRequest</tt> to execute.
+     * @return the response of the slave.
+     * @throws ModbusException if the transaction fails.
+     */
+    public ModbusResponse execute(InetAddress addr, int port, int unitid,
+            ModbusRequest request) throws ModbusException {
+        try (Lease lease = borrow(addr, port, unitid)) {
+            ModbusTCPTransaction transaction
+                    = new ModbusTCPTransaction(lease.getConnection());
+            request.setUnitID(unitid);
+            transaction.setRequest(request);
+            try {
+                transaction.execute();
+            } catch (ModbusSlaveException ex) {
+                throw ex;
+            } catch (ModbusException ex) {
+                lease.invalidate();
+                throw ex;
+            }
+            return transaction.getResponse();
+        }
+    }//execute
+
+    /**
+     * Returns the circuit breaker shared by the connections to the given
+     * device.
+     *
+     * @param addr the address of the slave.
+     * @param port the port of the slave.
+     * @param unitid the unit identifier of the slave.
+     * @return the <tt>CircuitBreaker</tt> of the device.
+     */
+    public CircuitBreaker getCircuitBreaker(InetAddress addr, int port, int unitid) {
+        return getPool(new Device(addr, port, unitid)).m_Breaker;
+    }//getCircuitBreaker
+
+    /**
+     * Returns the number of idle connections to the given device.
+     *
+     * @param addr the address of the slave.
+     * @param port the port of the slave.
+     * @param unitid the unit identifier of the slave.
+     * @return the idle connection count.
+     */
+    public int getIdleCount(InetAddress addr, int port, int unitid) {
+        DevicePool pool = m_Devices.get(new Device(addr, port, unitid));
+        return pool == null ? 0 : pool.getIdleCount();
+    }//getIdleCount
+
+    /**
+     * Returns the number of open connections to the given device, idle or
+     * borrowed.
+     *
+     * @param addr the address of the slave.
+     * @param port the port of the slave.
+     * @param unitid the unit identifier of the slave.
+     * @return the open connection count.
+     */
+    public int getOpenCount(InetAddress addr, int port, int unitid) {
+        DevicePool pool = m_Devices.get(new Device(addr, port, unitid));
+        return pool == null ? 0 : pool.getOpenCount();
+    }//getOpenCount
+
+    /**
+     * Closes this pool and all idle connections. Borrowed connections are
+     * closed when their lease is closed.
+     */
+    public synchronized void close() {
+        m_Closed = true;
+        if (m_MaintenanceTask != null) {
+            m_MaintenanceTask.cancel(false);
+            m_MaintenanceTask = null;
+        }
+        if (m_Maintenance != null) {
+            m_Maintenance.shutdown();
+            m_Maintenance = null;
+        }
+        for (DevicePool pool : m_Devices.values()) {
+            pool.closeIdle();
+        }
+    }//close
+
+    private DevicePool getPool(Device device) {
+        DevicePool pool = m_Devices.get(device);
+        if (pool == null) {
+            DevicePool created = new DevicePool(device, m_MaxConnections);
+            pool = m_Devices.putIfAbsent(device, created);
+            if (pool == null) {
+                pool = created;
+                synchronized (this) {
+                    startMaintenance();
+                }
+            }
+        }
+        return pool;
+    }//getPool
+
+    /**
+     * Starts the task evicting idle connections and opening the minimum
+     * number of connections. Must be called with the monitor held.
+     */
+    private void startMaintenance() {
+        if (m_Closed || m_MaintenanceTask != null) {
+            return;
+        }
+        if (m_Maintenance == null) {
+            m_Maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "Modbus connection pool");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        long period = Math.max(10, Math.min(m_IdleTimeout / 2, 5000));
+        m_MaintenanceTask = m_Maintenance.scheduleWithFixedDelay(
+                this::maintain, 0, period, TimeUnit.MILLISECONDS);
+    }//startMaintenance
+
+    /**
+     * Evicts idle connections and refills the pools. An exception must not
+     * escape, as it would cancel the periodic task for good.
+     */
+    private void maintain() {
+        long now = System.currentTimeMillis();
+        for (DevicePool pool : m_Devices.values()) {
+            if (m_Closed) {
+                return;
+            }
+            try {
+                pool.evict(now - m_IdleTimeout, m_MinConnections);
+                pool.fill(m_MinConnections, m_Timeout);
+            } catch (RuntimeException ex) {
+                Logger.getLogger(TCPConnectionPool.class.getName()).log(Level.WARNING,
+                        "Maintenance of " + pool.m_Device + " failed", ex);
+            }
+        }
+    }//maintain
+
+    /**
+     * Class identifying a device of the pool.
+     */
+    private static final class Device {
+
+        final InetAddress m_Address;
+        final int m_Port;
+        final int m_UnitID;
+
+        Device(InetAddress addr, int port, int unitid) {
+            m_Address = addr;
+            m_Port = port;
+            m_UnitID = unitid;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Device)) {
+                return false;
+            }
+            Device d = (Device) o;
+            return m_Port == d.m_Port && m_UnitID == d.m_UnitID
+                    && m_Address.equals(d.m_Address);
+        }
+
+        @Override
+        public int hashCode() {
+            return (m_Address.hashCode() * 31 + m_Port) * 31 + m_UnitID;
+        }
+
+        @Override
+        public String toString() {
+            return m_Address.getHostAddress() + ":" + m_Port + "/" + m_UnitID;
+        }
+    }//class Device
+
+    /**
+     * Class holding the connections of one device.
+     */
+    private static final class DevicePool {
+
+        final Device m_Device;
+        final Semaphore m_Permits;
+        final CircuitBreaker m_Breaker;
+        private final Deque<IdleConnection> m_Idle = new ArrayDeque<>();
+        private int m_Open;
+
+        DevicePool(Device device, int max) {
+            m_Device = device;
+            m_Permits = new Semaphore(max, true);
+            m_Breaker = new CircuitBreaker(device.toString());
+        }
+
+        synchronized TCPMasterConnection pollIdle() {
+            IdleConnection idle = m_Idle.pollFirst();
+            return idle == null ? null : idle.m_Connection;
+        }
+
+        synchronized int getIdleCount() {
+            return m_Idle.size();
+        }
+
+        synchronized int getOpenCount() {
+            return m_Open;
+        }
+
+        /**
+         * Opens a new connection, counted as open.
+         */
+        TCPMasterConnection open(int timeout) throws ModbusIOException {
+            TCPMasterConnection connection = new TCPMasterConnection(m_Device.m_Address);
+            connection.setPort(m_Device.m_Port);
+            connection.setTimeout(timeout);
+            connection.setCircuitBreaker(m_Breaker);
+            try {
+                connection.connect();
+            } catch (Exception ex) {
+                Logger.getLogger(TCPConnectionPool.class.getName()).log(Level.FINE, "Connection to {0} failed: {1}",
+                        new Object[]{m_Device, ex.getMessage()});
+                throw new ModbusIOException("Connection to " + m_Device + " failed");
+            }
+            synchronized (this) {
+                m_Open++;
+            }
+            return connection;
+        }
+
+        void discard(TCPMasterConnection connection) {
+            connection.close();
+            synchronized (this) {
+                m_Open--;
+            }
+        }
+
+        synchronized void giveBack(TCPMasterConnection connection) {
+            m_Idle.addFirst(new IdleConnection(connection, System.currentTimeMillis()));
+        }
+
+        /**
+         * Closes the connections idle since before the given time, and the
+         * idle connections which were lost, keeping at least <tt>min</tt>
+         * connections open.
+         */
+        void evict(long idleSince, int min) {
+            List<TCPMasterConnection> evicted = new ArrayList<>();
+            synchronized (this) {
+                Iterator<IdleConnection> it = m_Idle.descendingIterator();
+                while (it.hasNext()) {
+                    IdleConnection idle = it.next();
+                    if (!idle.m_Connection.isConnected()
+                            || (idle.m_Since < idleSince && m_Open - evicted.size() > min)) {
+                        it.remove();
+                        evicted.add(idle.m_Connection);
+                    }
+                }
+            }
+            for (TCPMasterConnection connection : evicted) {
+                discard(connection);
+            }
+        }
+
+        /**
+         * Opens idle connections until <tt>min</tt> connections are open.
+         */
+        void fill(int min, int timeout) {
+            while (getOpenCount() < min && m_Permits.tryAcquire()) {
+                try {
+                    giveBack(open(timeout));
+                } catch (ModbusIOException ex) {
+                    return;
+                } finally {
+                    m_Permits.release();
+                }
+            }
+        }
+
+        void closeIdle() {
+            TCPMasterConnection connection;
+            while ((connection = pollIdle()) != null) {
+                discard(connection);
+            }
+        }
+    }//class DevicePool
+
+    private static final class IdleConnection {
+
+        final TCPMasterConnection m_Connection;
+        final long m_Since;
+
+        IdleConnection(TCPMasterConnection connection, long since) {
+            m_Connection = connection;
+            m_Since = since;
+        }
+    }//class IdleConnection
+
+    /**
+     * Class representing a borrowed connection. Closing the lease returns
+     * the connection to the pool.
+     */
+    public final class Lease implements AutoCloseable {
+
+        private final DevicePool m_Pool;
+        private final TCPMasterConnection m_Connection;
+        private boolean m_Valid = true;
+        private boolean m_Returned;
+
+        private Lease(DevicePool pool, TCPMasterConnection connection) {
+            m_Pool = pool;
+            m_Connection = connection;
+        }
+
+        /**
+         * Returns the borrowed connection. It must not be used after the
+         * lease has been closed.
+         *
+         * @return the <tt>TCPMasterConnection</tt>.
+         */
+        public TCPMasterConnection getConnection() {
+            return m_Connection;
+        }
+
+        /**
+         * Marks the connection as unusable, so it is closed instead of being
+         * returned to the pool.
+         */
+        public void invalidate() {
+            m_Valid = false;
+        }
+
+        /**
+         * Returns the connection to the pool.
+         */
+        public void close() {
+            if (m_Returned) {
+                return;
+            }
+            m_Returned = true;
+            try {
+                if (m_Valid && !m_Closed && m_Connection.isConnected()) {
+                    m_Pool.giveBack(m_Connection);
+                } else {
+                    m_Pool.discard(m_Connection);
+                }
+            } finally {
+                m_Pool.m_Permits.release();
+            }
+        }
+    }//class Lease
+
+}//class TCPConnectionPool
@@ -0,0 +1,527 @@
+//License
+/**
+ * *
+ * Java Modbus Library (j2mod) Copyright 2012, Julianne Frances Haugh d/b/a
+ * greenHouse Gas and Electric All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. *
+ */
+package com.ghgande.j2mod.modbus.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.ModbusIOException;
+import com.ghgande.j2mod.modbus.ModbusSlaveException;
+import com.ghgande.j2mod.modbus.io.BytesInputStream;
+import com.ghgande.j2mod.modbus.io.TransactionIDAllocator;
+import com.ghgande.j2mod.modbus.msg.ExceptionResponse;
+import com.ghgande.j2mod.modbus.msg.ModbusRequest;
+import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+import com.ghgande.j2mod.modbus.util.ModbusUtil;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Class that implements a connection of a <tt>ModbusTCPEngine</tt> to one
+ * Modbus/TCP slave.
+ *
+ * <p>
+ * Any number of requests may be outstanding at the same time. Each request is
+ * given a transaction identifier which is unique among the outstanding
+ * requests, and the response is matched by that identifier. MBAP frames are
+ * parsed incrementally, so a response may arrive in any number of segments.
+ *
+ * <p>
+ * If the connection is lost, the outstanding requests are failed and the
+ * connection is re-opened when the next request is submitted.
+ */
+public class TCPEngineConnection {
+
+    /**
+     * The largest Modbus/TCP frame, including the MBAP header.
+     */
+    private static final int MAX_FRAME_LENGTH = Modbus.MAX_MESSAGE_LENGTH + 6;
+
+    /**
+     * The time in milliseconds <tt>execute</tt> waits beyond the timeout of a
+     * request, in case the event loop does not expire it.
+     */
+    private static final int EXECUTE_GRACE = 1000;
+
+    private final ModbusTCPEngine m_Engine;
+    private final ModbusTCPEngine.EventLoop m_Loop;
+    private final InetSocketAddress m_Address;
+    private final Map<Integer, PendingRequest> m_Pending
+            = new ConcurrentHashMap<>();
+    private final Queue<PendingRequest> m_WriteQueue
+            = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean m_FlushScheduled = new AtomicBoolean();
+
+    // Only used on the event loop thread.
+    private final ByteBuffer m_ReadBuffer = ByteBuffer.allocate(8192);
+    private final BytesInputStream m_ByteIn
+            = new BytesInputStream(MAX_FRAME_LENGTH);
+    private ByteBuffer m_CurrentWrite;
+    private SocketChannel m_Channel;
+    private SelectionKey m_Key;
+
+    private volatile boolean m_Connected;
+    private volatile boolean m_Open;
+    private volatile int m_Timeout = Modbus.DEFAULT_TIMEOUT;
+    private final TransactionIDAllocator m_TransactionIDs
+            = new TransactionIDAllocator();
+
+    TCPEngineConnection(ModbusTCPEngine engine, ModbusTCPEngine.EventLoop loop,
+            InetSocketAddress address) {
+        m_Engine = engine;
+        m_Loop = loop;
+        m_Address = address;
+    }
+
+    /**
+     * Returns the address of the slave.
+     *
+     * @return the address as <tt>InetSocketAddress</tt>.
+     */
+    public InetSocketAddress getAddress() {
+        return m_Address;
+    }
+
+    /**
+     * Tests if the TCP connection to the slave has been established.
+     *
+     * @return true if connected, false otherwise.
+     */
+    public boolean isConnected() {
+        return m_Connected;
+    }
+
+    /**
+     * Returns the number of requests awaiting a response.
+     *
+     * @return the number of outstanding requests.
+     */
+    public int getOutstanding() {
+        return m_Pending.size();
+    }
+
+    /**
+     * Returns the response timeout of this connection.
+     *
+     * @return the timeout in milliseconds.
+     */
+    public int getTimeout() {
+        return m_Timeout;
+    }
+
+    /**
+     * Sets the response timeout of this connection.
+     *
+     * @param timeout the timeout in milliseconds.
+     */
+    public void setTimeout(int timeout) {
+        m_Timeout = timeout;
+    }
+
+    /**
+     * Sends a request to the slave, using the timeout of this connection.
+     *
+     * @param request the request to be sent.
+     * @return a future which is completed with the response. It is completed
+     * exceptionally with a <tt>ModbusIOException</tt> if the request times out
+     * or the connection fails, and with a <tt>ModbusSlaveException</tt> if the
+     * slave returns an exception response.
+     */
+    public CompletableFuture<ModbusResponse> submit(ModbusRequest request) {
+        return submit(request, m_Timeout);
+    }
+
+    /**
+     * Sends a request to the slave.
+     *
+     * @param request the request to be sent. It is encoded before this method
+     * returns, so it may be re-used by the caller.
+     * @param timeout the response timeout in milliseconds.
+     * @return a future which is completed with the response.
+     */
+    public CompletableFuture<ModbusResponse> submit(ModbusRequest request,
+            int timeout) {
+        CompletableFuture<ModbusResponse> result = new CompletableFuture<>();
+
+        if (!m_Engine.isRunning() || m_Loop.isTerminated()) {
+            result.completeExceptionally(
+                    new ModbusIOException("Engine not running"));
+            return result;
+        }
+        if (!m_Open) {
+            try {
+                open();
+            } catch (IOException ex) {
+                result.completeExceptionally(
+                        new ModbusIOException("Connection failed."));
+                return result;
+            }
+        }
+
+        /*
+         * The request is registered and queued in one step, so closeChannel
+         * either sees both or neither of them. Otherwise a frame could be
+         * queued after its transaction ID was released, and later be sent
+         * under an ID meanwhile given to another request.
+         */
+        synchronized (this) {
+            int tid;
+            try {
+                tid = m_TransactionIDs.acquire();
+            } catch (IllegalStateException ex) {
+                result.completeExceptionally(new ModbusIOException(ex.getMessage()));
+                return result;
+            }
+            request.setTransactionID(tid);
+            PendingRequest pending = new PendingRequest(result,
+                    System.currentTimeMillis() + timeout, encode(request));
+            m_Pending.put(tid, pending);
+            m_WriteQueue.add(pending);
+        }
+        if (m_FlushScheduled.compareAndSet(false, true)) {
+            m_Loop.flush(this);
+        }
+        return result;
+    }
+
+    /**
+     * Sends a request to the slave and waits for the response.
+     *
+     * @param request the request to be sent.
+     * @return the response of the slave.
+     * @throws ModbusException if the request fails or the slave returns an
+     * exception response.
+     */
+    public ModbusResponse execute(ModbusRequest request)
+            throws ModbusException {
+        int timeout = m_Timeout;
+        CompletableFuture<ModbusResponse> future = submit(request, timeout);
+        try {
+            return future.get(timeout + EXECUTE_GRACE, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException ex) {
+            future.completeExceptionally(
+                    new ModbusIOException("Timeout reading response"));
+            throw new ModbusIOException("Timeout reading response");
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ModbusIOException("Interrupted waiting for response");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof ModbusException) {
+                throw (ModbusException) ex.getCause();
+            }
+            throw new ModbusIOException("I/O exception - failed to read.");
+        }
+    }
+
+    /**
+     * Closes this connection. Outstanding requests are failed.
+     */
+    public void close() {
+        m_Loop.execute(() -> {
+            m_Loop.remove(this);
+            closeChannel(new ModbusIOException("Connection closed", true));
+        });
+        m_Open = false;
+    }
+
+    /**
+     * Starts connecting the channel on the event loop.
+     */
+    synchronized void open() throws IOException {
+        if (m_Open) {
+            return;
+        }
+        final SocketChannel channel = ModbusTCPEngine.openChannel();
+        m_Open = true;
+        m_Loop.execute(() -> {
+            m_Loop.add(this);
+            try {
+                m_Channel = channel;
+                m_CurrentWrite = null;
+                m_ReadBuffer.clear();
+                if (channel.connect(m_Address)) {
+                    m_Key = channel.register(m_Loop.getSelector(),
+                            SelectionKey.OP_READ, this);
+                    connected();
+                } else {
+                    m_Key = channel.register(m_Loop.getSelector(),
+                            SelectionKey.OP_CONNECT, this);
+                }
+            } catch (IOException ex) {
+                closeChannel(new ModbusIOException("Connection failed."));
+            }
+        });
+    }
+
+    /**
+     * Completes a pending connect. Called on the event loop.
+     */
+    void finishConnect() {
+        try {
+            if (m_Channel.finishConnect()) {
+                m_Key.interestOps(SelectionKey.OP_READ);
+                connected();
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(TCPEngineConnection.class.getName()).log(Level.FINE, "connect to {0} failed", m_Address);
+            closeChannel(new ModbusIOException("Connection failed."));
+        }
+    }
+
+    private void connected() {
+        m_Connected = true;
+        flush();
+    }
+
+    /**
+     * Writes as many of the queued requests as the socket accepts. Called on
+     * the event loop.
+     */
+    void flush() {
+        m_FlushScheduled.set(false);
+        if (!m_Connected) {
+            return;
+        }
+        try {
+            while (true) {
+                if (m_CurrentWrite == null) {
+                    PendingRequest pending = m_WriteQueue.poll();
+                    if (pending == null) {
+                        break;
+                    }
+                    if (pending.m_Future.isDone()) {
+                        /*
+                         * Timed out before it could be written; its
+                         * transaction ID may already belong to another
+                         * request.
+                         */
+                        continue;
+                    }
+                    m_CurrentWrite = pending.m_Frame;
+                }
+                m_Channel.write(m_CurrentWrite);
+                if (m_CurrentWrite.hasRemaining()) {
+                    m_Key.interestOps(SelectionKey.OP_READ
+                            | SelectionKey.OP_WRITE);
+                    return;
+                }
+                m_CurrentWrite = null;
+            }
+            m_Key.interestOps(SelectionKey.OP_READ);
+        } catch (IOException ex) {
+            closeChannel(new ModbusIOException("I/O exception - failed to write.", true));
+        }
+    }
+
+    /**
+     * Reads from the channel and completes the requests of all whole frames
+     * which have arrived. Called on the event loop.
+     */
+    void read() {
+        try {
+            int count = m_Channel.read(m_ReadBuffer);
+            if (count < 0) {
+                closeChannel(new ModbusIOException("End of File", true));
+                return;
+            }
+        } catch (IOException ex) {
+            closeChannel(new ModbusIOException("I/O exception - failed to read.", true));
+            return;
+        }
+
+        m_ReadBuffer.flip();
+        while (m_ReadBuffer.remaining() >= 6) {
+            int start = m_ReadBuffer.position();
+            int length = m_ReadBuffer.getShort(start + 4) & 0xFFFF;
+            if (length < 2 || length + 6 > MAX_FRAME_LENGTH) {
+                closeChannel(new ModbusIOException("Invalid frame length: "
+                        + length, true));
+                return;
+            }
+            if (m_ReadBuffer.remaining() < length + 6) {
+                break;
+            }
+            byte[] buffer = m_ByteIn.getBuffer();
+            m_ReadBuffer.get(buffer, 0, length + 6);
+            dispatch(buffer, length + 6);
+        }
+        m_ReadBuffer.compact();
+    }
+
+    /**
+     * Decodes one frame and completes the matching request.
+     */
+    private void dispatch(byte[] buffer, int length) {
+        int tid = ModbusUtil.registerToShort(buffer, 0) & 0x0000FFFF;
+        PendingRequest pending = m_Pending.remove(tid);
+        if (pending == null) {
+            Logger.getLogger(TCPEngineConnection.class.getName()).log(Level.FINE, "discarding response, transaction ID = {0}", tid);
+            return;
+        }
+        m_TransactionIDs.release(tid);
+
+        ModbusResponse response;
+        try {
+            m_ByteIn.reset(buffer, length);
+            m_ByteIn.skip(7);
+            int function = m_ByteIn.readUnsignedByte();
+            response = ModbusResponse.createModbusResponse(function);
+            m_ByteIn.reset();
+            response.readFrom(m_ByteIn);
+        } catch (IOException | RuntimeException ex) {
+            Logger.getLogger(TCPEngineConnection.class.getName()).log(Level.FINE, "Invalid response", ex);
+            pending.m_Future.completeExceptionally(
+                    new ModbusIOException("I/O exception - failed to read."));
+            return;
+        }
+
+        if (response instanceof ExceptionResponse) {
+            pending.m_Future.completeExceptionally(new ModbusSlaveException(
+                    ((ExceptionResponse) response).getExceptionCode()));
+        } else {
+            pending.m_Future.complete(response);
+        }
+    }
+
+    /**
+     * Fails all requests whose deadline has passed. Called on the event loop.
+     */
+    void expireOverdue(long now) {
+        if (m_Pending.isEmpty()) {
+            return;
+        }
+        Iterator<Map.Entry<Integer, PendingRequest>> it
+                = m_Pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, PendingRequest> entry = it.next();
+            PendingRequest pending = entry.getValue();
+            if (pending.m_Deadline <= now && m_Pending.remove(entry.getKey(), pending)) {
+                m_TransactionIDs.release(entry.getKey());
+                pending.m_Future.completeExceptionally(
+                        new ModbusIOException("Timeout reading response"));
+            }
+        }
+    }
+
+    /**
+     * Closes the channel and fails all outstanding requests. Called on the
+     * event loop.
+     */
+    void closeChannel(ModbusIOException ex) {
+        m_Connected = false;
+        m_Open = false;
+        if (m_Key != null) {
+            m_Key.cancel();
+            m_Key = null;
+        }
+        if (m_Channel != null) {
+            try {
+                m_Channel.close();
+            } catch (IOException e) {
+                // Nothing to do.
+            }
+            m_Channel = null;
+        }
+        m_CurrentWrite = null;
+
+        List<PendingRequest> failed = new ArrayList<>();
+        synchronized (this) {
+            m_WriteQueue.clear();
+            for (Integer tid : new ArrayList<>(m_Pending.keySet())) {
+                PendingRequest pending = m_Pending.remove(tid);
+                if (pending != null) {
+                    m_TransactionIDs.release(tid);
+                    failed.add(pending);
+                }
+            }
+        }
+        for (PendingRequest pending : failed) {
+            pending.m_Future.completeExceptionally(ex);
+        }
+    }
+
+    /**
+     * Encodes a request as a Modbus/TCP frame. Must be called with the monitor
+     * held.
+     */
+    private ByteBuffer encode(ModbusRequest request) {
+        byte[] message = request.getMessage();
+        int length = (message != null ? message.length : 0);
+        ByteBuffer frame = ByteBuffer.allocate(length + 8);
+
+        frame.putShort((short) request.getTransactionID());
+        frame.putShort((short) request.getProtocolID());
+        frame.putShort((short) (length + 2));
+        frame.put((byte) request.getUnitID());
+        frame.put((byte) request.getFunctionCode());
+        if (length > 0) {
+            frame.put(message);
+        }
+        frame.flip();
+
+        return frame;
+    }
+
+    /**
+     * A request awaiting its response.
+     */
+    private static class PendingRequest {
+
+        final CompletableFuture<ModbusResponse> m_Future;
+        final long m_Deadline;
+        final ByteBuffer m_Frame;
+
+        PendingRequest(CompletableFuture<ModbusResponse> future,
+                long deadline, ByteBuffer frame) {
+            m_Future = future;
+            m_Deadline = deadline;
+            m_Frame = frame;
+        }
+    }
+}
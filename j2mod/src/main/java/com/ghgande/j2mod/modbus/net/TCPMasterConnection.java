@@ -33,11 +33,27 @@ package com.ghgande.j2mod.modbus.net;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.net.Socket;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.ModbusIOException;
+import com.ghgande.j2mod.modbus.ModbusSlaveException;
+import com.ghgande.j2mod.modbus.io.ModbusTCPPipeline;
+import com.ghgande.j2mod.modbus.io.ModbusTCPTransaction;
 import com.ghgande.j2mod.modbus.io.ModbusTCPTransport;
 import com.ghgande.j2mod.modbus.io.ModbusTransport;
+import com.ghgande.j2mod.modbus.io.RTTEstimator;
+import com.ghgande.j2mod.modbus.io.TransactionIDAllocator;
+import com.ghgande.j2mod.modbus.msg.ModbusRequest;
+import com.ghgande.j2mod.modbus.msg.ReadMultipleRegistersRequest;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -50,9 +66,9 @@ import java.util.logging.Logger;
 public class TCPMasterConnection {
 
     // instance attributes
-    private Socket m_Socket;
+    private volatile Socket m_Socket;
     private int m_Timeout = Modbus.DEFAULT_TIMEOUT;
-    private boolean m_Connected;
+    private volatile boolean m_Connected;
 
     private InetAddress m_Address;
     private int m_Port = Modbus.DEFAULT_PORT;
@@ -60,12 +76,33 @@ public class TCPMasterConnection {
     // private int m_Retries = Modbus.DEFAULT_RETRIES;
     private ModbusTCPTransport m_ModbusTransport;
 
+    /**
+     * m_PipelineDepth - the number of transactions which may be outstanding
+     * at the same time. A depth of 1 disables pipelining.
+     */
+    private int m_PipelineDepth = 1;
+    private volatile ModbusTCPPipeline m_Pipeline;
+    private final TransactionIDAllocator m_TransactionIDs
+            = new TransactionIDAllocator();
+    private final Map<Integer, RTTEstimator> m_RTTEstimators
+            = new ConcurrentHashMap<>();
+
     /**
      * m_useUrgentData - sent a byte of urgent data when testing the TCP
      * connection.
      */
     private boolean m_useUrgentData = false;
 
+    /**
+     * m_HeartbeatInterval - the idle time in milliseconds after which a
+     * heartbeat request is sent. 0 disables the heartbeat.
+     */
+    private int m_HeartbeatInterval = 0;
+    private ModbusRequest m_HeartbeatRequest;
+    private ScheduledFuture<?> m_Heartbeat;
+    private static ScheduledExecutorService c_HeartbeatTimer;
+    private volatile CircuitBreaker m_CircuitBreaker;
+
     /**
      * Prepares the associated <tt>ModbusTransport</tt> of this
      * <tt>TCPMasterConnection</tt> for use.
@@ -78,6 +115,7 @@ public class TCPMasterConnection {
         } else {
             m_ModbusTransport.setSocket(m_Socket);
         }
+        m_ModbusTransport.setTimeout(m_Timeout);
     }// prepareIO
 
     /**
@@ -89,15 +127,50 @@ public class TCPMasterConnection {
         if (!isConnected()) {
             Logger.getLogger(TCPMasterConnection.class.getName()).log(Level.FINE, "connect()");
 
-            m_Socket = new Socket(m_Address, m_Port);
-            m_Socket.setReuseAddress(true);
-            m_Socket.setSoLinger(true, 1);
-            m_Socket.setKeepAlive(true);
+            /*
+             * While the circuit of the slave is open, fail without trying.
+             */
+            CircuitBreaker breaker = m_CircuitBreaker;
+            long ticket = -1;
+            if (breaker != null) {
+                ticket = breaker.getState() == CircuitBreaker.State.OPEN
+                        ? breaker.acquire() : breaker.getGeneration();
+                if (ticket < 0) {
+                    throw new ModbusIOException("Circuit open for "
+                            + breaker.getName());
+                }
+            }
+
+            Socket socket = new Socket();
+            try {
+                socket.setReuseAddress(true);
+                socket.setSoLinger(true, 1);
+                socket.setKeepAlive(true);
+                socket.connect(new InetSocketAddress(m_Address, m_Port), m_Timeout);
+            } catch (IOException ex) {
+                socket.close();
+                if (breaker != null) {
+                    breaker.recordFailure(ticket);
+                }
+                throw ex;
+            }
+            m_Socket = socket;
 
             setTimeout(m_Timeout);
             prepareTransport();
 
+            if (m_Pipeline != null) {
+                m_Pipeline.stop();
+                m_Pipeline = null;
+            }
+            if (m_PipelineDepth > 1) {
+                m_Pipeline = new ModbusTCPPipeline(m_ModbusTransport,
+                        m_PipelineDepth, m_TransactionIDs);
+                m_Pipeline.start();
+            }
+
             m_Connected = true;
+            startHeartbeat();
         }
     }// connect
 
@@ -106,38 +179,40 @@ public class TCPMasterConnection {
      *
      * @return <tt>true</tt> if connected, <tt>false</tt> otherwise.
      */
-    public synchronized boolean isConnected() {
-        if (m_Connected && m_Socket != null) {
-            if (!m_Socket.isConnected() || m_Socket.isClosed()
-                    || m_Socket.isInputShutdown()
-                    || m_Socket.isOutputShutdown()) {
-                try {
-                    m_Socket.close();
-                } catch (IOException e) {
-                    // Blah.
-                }
-                m_Connected = false;
-            } else {
-                try {
-                    m_Socket.sendUrgentData(0);
-                } catch (IOException e) {
-                    m_Connected = false;
-                    try {
-                        m_Socket.close();
-                    } catch (IOException e1) {
-                        // Do nothing.
-                    }
-                }
+    public boolean isConnected() {
+        if (!m_Connected) {
+            return false;
+        }
+        Socket socket = m_Socket;
+        ModbusTCPTransport transport = m_ModbusTransport;
+        if (socket == null || !socket.isConnected() || socket.isClosed()
+                || socket.isInputShutdown() || socket.isOutputShutdown()
+                || (transport != null && transport.isBroken())) {
+            Logger.getLogger(TCPMasterConnection.class.getName()).log(Level.FINE, "connection lost");
+            close();
+            return false;
+        }
+        if (m_useUrgentData) {
+            try {
+                socket.sendUrgentData(0);
+            } catch (IOException e) {
+                close();
+                return false;
             }
         }
-        return m_Connected;
+        return true;
     }// isConnected
 
     /**
      * Closes this <tt>TCPMasterConnection</tt>.
      */
-    public void close() {
+    public synchronized void close() {
         if (m_Connected) {
+            stopHeartbeat();
+            if (m_Pipeline != null) {
+                m_Pipeline.stop();
+                m_Pipeline = null;
+            }
             try {
                 m_ModbusTransport.close();
             } catch (IOException ex) {
@@ -183,10 +258,14 @@ public class TCPMasterConnection {
      */
     public void setTimeout(int timeout) {
         m_Timeout = timeout;
-        try {
-            m_Socket.setSoTimeout(m_Timeout);
-        } catch (IOException ex) {
-            // handle?
+        if (m_ModbusTransport != null) {
+            m_ModbusTransport.setTimeout(m_Timeout);
+        } else if (m_Socket != null) {
+            try {
+                m_Socket.setSoTimeout(m_Timeout);
+            } catch (IOException ex) {
+                // handle?
+            }
         }
     }// setTimeout
 
@@ -229,14 +308,209 @@ public class TCPMasterConnection {
         m_Address = adr;
     }// setAddress
 
+    /**
+     * Returns the number of transactions which may be outstanding at the same
+     * time on this <tt>TCPMasterConnection</tt>.
+     *
+     * @return the pipeline depth as <tt>int</tt>.
+     */
+    public int getPipelineDepth() {
+        return m_PipelineDepth;
+    }
+
+    /**
+     * Sets the number of transactions which may be outstanding at the same
+     * time on this <tt>TCPMasterConnection</tt>. Responses are matched to
+     * their requests by transaction identifier, so the slave must echo the
+     * identifiers correctly. The new depth takes effect when the connection
+     * is next opened.
+     *
+     * @param depth the pipeline depth, 1 to disable pipelining.
+     */
+    public void setPipelineDepth(int depth) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("Invalid depth: " + depth);
+        }
+        m_PipelineDepth = depth;
+    }
+
+    /**
+     * Returns the pipeline of this <tt>TCPMasterConnection</tt>.
+     *
+     * @return the <tt>ModbusTCPPipeline</tt>, or null if the connection is
+     * not open or not pipelined.
+     */
+    public ModbusTCPPipeline getPipeline() {
+        return m_Pipeline;
+    }
+
+    /**
+     * Sets the circuit breaker guarding this connection. While its circuit
+     * is open, <tt>connect()</tt> and the transactions executed on this
+     * connection fail immediately.
+     *
+     * @param breaker the <tt>CircuitBreaker</tt>, or null for none.
+     */
+    public void setCircuitBreaker(CircuitBreaker breaker) {
+        m_CircuitBreaker = breaker;
+    }
+
+    /**
+     * Returns the circuit breaker guarding this connection.
+     *
+     * @return the <tt>CircuitBreaker</tt>, or null if none.
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return m_CircuitBreaker;
+    }
+
+    /**
+     * Returns the allocator of the transaction identifiers of this
+     * connection, shared by all transactions executed on it.
+     *
+     * @return the <tt>TransactionIDAllocator</tt>.
+     */
+    public TransactionIDAllocator getTransactionIDAllocator() {
+        return m_TransactionIDs;
+    }
+
+    /**
+     * Returns the round-trip time estimator of a unit reached through this
+     * connection, shared by all transactions executed on it. Its timeout is
+     * bounded by the timeout of the connection at the time it is created.
+     *
+     * @param unitid the unit identifier.
+     * @return the <tt>RTTEstimator</tt> of the unit.
+     */
+    public RTTEstimator getRTTEstimator(int unitid) {
+        return m_RTTEstimators.computeIfAbsent(unitid, k -> new RTTEstimator(
+                RTTEstimator.DEFAULT_MIN_TIMEOUT, Math.max(RTTEstimator.DEFAULT_MIN_TIMEOUT,
+                        m_Timeout > 0 ? m_Timeout : Modbus.DEFAULT_TIMEOUT)));
+    }
+
+    /**
+     * Tests if <tt>isConnected()</tt> probes the connection with a byte of
+     * urgent data.
+     *
+     * @return true if probing, false otherwise.
+     */
     public boolean getUseUrgentData() {
         return m_useUrgentData;
     }
 
+    /**
+     * Sets the flag that controls whether <tt>isConnected()</tt> probes the
+     * connection with a byte of urgent data. By default the state of the
+     * connection is taken from the outcome of the last read and write, which
+     * costs nothing; some slaves do not cope with urgent data.
+     *
+     * @param b true to probe, false otherwise.
+     */
     public void setUseUrgentData(boolean b) {
         m_useUrgentData = b;
     }
 
+    /**
+     * Returns the idle time after which a heartbeat request is sent.
+     *
+     * @return the heartbeat interval in milliseconds, 0 if disabled.
+     */
+    public int getHeartbeatInterval() {
+        return m_HeartbeatInterval;
+    }
+
+    /**
+     * Sets the idle time after which a heartbeat request is sent. A
+     * connection on which nothing has been written or read for this long is
+     * checked with the heartbeat request; any response, including an
+     * exception response, shows it to be alive, and an I/O error closes it
+     * so the next transaction reconnects. Takes effect on the next
+     * <tt>connect()</tt>.
+     *
+     * @param interval the heartbeat interval in milliseconds, 0 to disable.
+     */
+    public void setHeartbeatInterval(int interval) {
+        if (interval < 0) {
+            throw new IllegalArgumentException("Negative interval");
+        }
+        m_HeartbeatInterval = interval;
+    }
+
+    /**
+     * Returns the request sent as heartbeat.
+     *
+     * @return the heartbeat <tt>ModbusRequest</tt>.
+     */
+    public synchronized ModbusRequest getHeartbeatRequest() {
+        if (m_HeartbeatRequest == null) {
+            m_HeartbeatRequest = new ReadMultipleRegistersRequest(0, 1);
+        }
+        return m_HeartbeatRequest;
+    }
+
+    /**
+     * Sets the request sent as heartbeat. The default reads holding register
+     * 0 of the default unit.
+     *
+     * @param request the heartbeat <tt>ModbusRequest</tt>.
+     */
+    public synchronized void setHeartbeatRequest(ModbusRequest request) {
+        m_HeartbeatRequest = request;
+    }
+
+    /**
+     * Schedules the heartbeat check, if enabled. The timer thread is shared
+     * by all connections.
+     */
+    private void startHeartbeat() {
+        if (m_HeartbeatInterval <= 0 || m_Heartbeat != null) {
+            return;
+        }
+        synchronized (TCPMasterConnection.class) {
+            if (c_HeartbeatTimer == null) {
+                c_HeartbeatTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "Modbus heartbeat");
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+        }
+        long period = Math.max(1, m_HeartbeatInterval / 2);
+        m_Heartbeat = c_HeartbeatTimer.scheduleWithFixedDelay(this::heartbeat,
+                period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private void stopHeartbeat() {
+        if (m_Heartbeat != null) {
+            m_Heartbeat.cancel(false);
+            m_Heartbeat = null;
+        }
+    }
+
+    /**
+     * Sends the heartbeat request if the connection has been idle for the
+     * heartbeat interval.
+     */
+    private void heartbeat() {
+        ModbusTCPTransport transport = m_ModbusTransport;
+        if (!isConnected() || transport == null
+                || System.currentTimeMillis() - transport.getLastActivity()
+                < m_HeartbeatInterval) {
+            return;
+        }
+        ModbusTCPTransaction transaction = new ModbusTCPTransaction(this);
+        transaction.setRequest(getHeartbeatRequest());
+        transaction.setRetries(1);
+        try {
+            transaction.execute();
+        } catch (ModbusSlaveException ex) {
+            // The slave answered, so the connection is alive.
+        } catch (ModbusException ex) {
+            Logger.getLogger(TCPMasterConnection.class.getName()).log(Level.FINE, "heartbeat failed: {0}", ex.getMessage());
+            close();
+        }
+    }
+
     /**
      * Constructs a <tt>TCPMasterConnection</tt> instance with a given
      * destination address.
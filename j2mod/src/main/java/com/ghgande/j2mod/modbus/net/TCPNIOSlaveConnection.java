@@ -0,0 +1,341 @@
+//License
+/**
+ * *
+ * Java Modbus Library (j2mod) Copyright 2012, Julianne Frances Haugh d/b/a
+ * greenHouse Gas and Electric All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. *
+ */
+package com.ghgande.j2mod.modbus.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.io.BytesInputStream;
+import com.ghgande.j2mod.modbus.msg.ModbusMessage;
+import com.ghgande.j2mod.modbus.msg.ModbusRequest;
+import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+import com.ghgande.j2mod.modbus.procimg.ProcessImage;
+import com.ghgande.j2mod.modbus.util.ModbusUtil;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Class that implements one client connection of a
+ * <tt>ModbusNIOTCPListener</tt>.
+ *
+ * <p>
+ * Requests are parsed incrementally on the I/O thread, executed on a worker
+ * thread, and the responses are queued for the I/O thread to write. As each
+ * response carries the transaction identifier of its request, responses may
+ * be written in a different order than the requests arrived.
+ */
+class TCPNIOSlaveConnection {
+
+    /**
+     * The largest Modbus/TCP frame, including the MBAP header.
+     */
+    private static final int MAX_FRAME_LENGTH = Modbus.MAX_MESSAGE_LENGTH + 6;
+
+    private final ModbusNIOTCPListener m_Listener;
+    private final ModbusNIOTCPListener.IOLoop m_Loop;
+    private final SocketChannel m_Channel;
+    private final Queue<ByteBuffer> m_WriteQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean m_FlushScheduled = new AtomicBoolean();
+    private final AtomicInteger m_Pending = new AtomicInteger();
+
+    // Only used on the I/O thread.
+    private final ByteBuffer m_ReadBuffer = ByteBuffer.allocate(4096);
+    private final BytesInputStream m_ByteIn
+            = new BytesInputStream(MAX_FRAME_LENGTH);
+    private ByteBuffer m_CurrentWrite;
+    private SelectionKey m_Key;
+    private boolean m_Suspended;
+    private volatile boolean m_Open = true;
+
+    TCPNIOSlaveConnection(ModbusNIOTCPListener listener,
+            ModbusNIOTCPListener.IOLoop loop, SocketChannel channel) {
+        m_Listener = listener;
+        m_Loop = loop;
+        m_Channel = channel;
+    }
+
+    /**
+     * Registers the channel with the selector of the I/O thread. Called on
+     * the I/O thread.
+     */
+    void register(Selector selector) throws IOException {
+        m_Key = m_Channel.register(selector, SelectionKey.OP_READ, this);
+    }
+
+    /**
+     * Reads from the channel and dispatches the whole requests which have
+     * arrived. Called on the I/O thread.
+     */
+    void read() {
+        try {
+            if (m_Channel.read(m_ReadBuffer) < 0) {
+                close();
+                return;
+            }
+        } catch (IOException ex) {
+            close();
+            return;
+        }
+        dispatchBuffered();
+    }
+
+    /**
+     * Dispatches the whole requests in the read buffer while fewer than
+     * <tt>MAX_PENDING_REQUESTS</tt> are pending. Once the limit is reached,
+     * reading from the connection stops; the requests left in the buffer are
+     * dispatched when it resumes. Called on the I/O thread.
+     */
+    private void dispatchBuffered() {
+        m_ReadBuffer.flip();
+        while (m_ReadBuffer.remaining() >= 6) {
+            if (m_Pending.get() >= ModbusNIOTCPListener.MAX_PENDING_REQUESTS) {
+                break;
+            }
+            int start = m_ReadBuffer.position();
+            int length = m_ReadBuffer.getShort(start + 4) & 0xFFFF;
+            if (length < 2 || length + 6 > MAX_FRAME_LENGTH) {
+                Logger.getLogger(TCPNIOSlaveConnection.class.getName()).log(Level.FINE, "Invalid frame length: {0}", length);
+                close();
+                return;
+            }
+            if (m_ReadBuffer.remaining() < length + 6) {
+                break;
+            }
+            byte[] buffer = m_ByteIn.getBuffer();
+            m_ReadBuffer.get(buffer, 0, length + 6);
+
+            ModbusRequest request;
+            try {
+                request = decode(buffer, length);
+            } catch (IOException | RuntimeException ex) {
+                /*
+                 * A malformed request only costs its own connection, never
+                 * the I/O thread shared with the other connections.
+                 */
+                Logger.getLogger(TCPNIOSlaveConnection.class.getName()).log(Level.FINE, "Invalid request", ex);
+                close();
+                return;
+            }
+            dispatch(request);
+        }
+        m_ReadBuffer.compact();
+
+        if (m_Pending.get() >= ModbusNIOTCPListener.MAX_PENDING_REQUESTS
+                && m_Key != null && m_Key.isValid()) {
+            m_Suspended = true;
+            m_Key.interestOps(m_Key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Decodes the request in the first bytes of the buffer.
+     */
+    private ModbusRequest decode(byte[] buffer, int count) throws IOException {
+        /*
+         * The transaction ID must be treated as an unsigned short in order
+         * for validation to work correctly.
+         */
+        int transaction = ModbusUtil.registerToShort(buffer, 0) & 0x0000FFFF;
+        int protocol = ModbusUtil.registerToShort(buffer, 2);
+
+        m_ByteIn.reset(buffer, (6 + count));
+        m_ByteIn.skip(6);
+
+        int unit = m_ByteIn.readByte();
+        int functionCode = m_ByteIn.readUnsignedByte();
+
+        m_ByteIn.reset();
+        ModbusRequest req = ModbusRequest.createModbusRequest(functionCode);
+        req.setUnitID(unit);
+        req.setHeadless(false);
+
+        req.setTransactionID(transaction);
+        req.setProtocolID(protocol);
+        req.setDataLength(count);
+
+        req.readFrom(m_ByteIn);
+
+        return req;
+    }
+
+    /**
+     * Hands a request to the workers. If they are saturated, the request is
+     * answered with a slave busy exception.
+     */
+    private void dispatch(ModbusRequest request) {
+        m_Pending.incrementAndGet();
+        try {
+            m_Listener.getWorkers().execute(() -> execute(request));
+        } catch (RejectedExecutionException ex) {
+            send(request.createExceptionResponse(Modbus.SLAVE_BUSY_EXCEPTION));
+        }
+    }
+
+    /**
+     * Executes a request against the process image. Called on a worker
+     * thread.
+     */
+    private void execute(ModbusRequest request) {
+        ProcessImage image = m_Listener.getProcessImage();
+        if (image == null) {
+            /*
+             * Do nothing -- non-existent devices do not respond to messages.
+             */
+            send(null);
+            return;
+        }
+        if (image.getUnitID() != 0
+                && request.getUnitID() != image.getUnitID()) {
+            /*
+             * Do nothing -- non-existent units do not respond to message.
+             */
+            send(null);
+            return;
+        }
+
+        ModbusResponse response;
+        try {
+            response = request.createResponse(image);
+        } catch (RuntimeException ex) {
+            Logger.getLogger(TCPNIOSlaveConnection.class.getName()).log(Level.SEVERE, null, ex);
+            response = request.createExceptionResponse(
+                    Modbus.SLAVE_DEVICE_FAILURE);
+        }
+
+        Logger.getLogger(TCPNIOSlaveConnection.class.getName()).log(Level.FINE, "Request:{0}", request.getHexMessage());
+        Logger.getLogger(TCPNIOSlaveConnection.class.getName()).log(Level.FINE, "Response:{0}", response.getHexMessage());
+
+        send(response);
+    }
+
+    /**
+     * Queues a response for writing, and completes one pending request. A
+     * <tt>null</tt> response completes a request which is not answered.
+     */
+    private void send(ModbusMessage response) {
+        if (response != null && m_Open) {
+            m_WriteQueue.add(encode(response));
+        }
+        m_Pending.decrementAndGet();
+        if (m_FlushScheduled.compareAndSet(false, true)) {
+            m_Loop.execute(this::flush);
+        }
+    }
+
+    /**
+     * Writes as many of the queued responses as the socket accepts, and
+     * resumes reading if the connection had been suspended. Called on the
+     * I/O thread.
+     */
+    void flush() {
+        m_FlushScheduled.set(false);
+        if (!m_Open || m_Key == null) {
+            return;
+        }
+        if (m_Suspended
+                && m_Pending.get() < ModbusNIOTCPListener.MAX_PENDING_REQUESTS) {
+            m_Suspended = false;
+            dispatchBuffered();
+            if (!m_Open) {
+                return;
+            }
+        }
+        int ops = m_Suspended ? 0 : SelectionKey.OP_READ;
+        try {
+            while (true) {
+                if (m_CurrentWrite == null) {
+                    m_CurrentWrite = m_WriteQueue.poll();
+                    if (m_CurrentWrite == null) {
+                        break;
+                    }
+                }
+                m_Channel.write(m_CurrentWrite);
+                if (m_CurrentWrite.hasRemaining()) {
+                    ops |= SelectionKey.OP_WRITE;
+                    break;
+                }
+                m_CurrentWrite = null;
+            }
+            m_Key.interestOps(ops);
+        } catch (IOException ex) {
+            close();
+        }
+    }
+
+    /**
+     * Closes the channel. Responses still being prepared are discarded.
+     */
+    void close() {
+        m_Open = false;
+        m_Loop.remove(this);
+        if (m_Key != null) {
+            m_Key.cancel();
+        }
+        try {
+            m_Channel.close();
+        } catch (IOException ex) {
+            // Nothing to do.
+        }
+        m_WriteQueue.clear();
+        m_CurrentWrite = null;
+    }
+
+    /**
+     * Encodes a message as a Modbus/TCP frame.
+     */
+    private static ByteBuffer encode(ModbusMessage msg) {
+        byte[] message = msg.getMessage();
+        int length = (message != null ? message.length : 0);
+        ByteBuffer frame = ByteBuffer.allocate(length + 8);
+
+        frame.putShort((short) msg.getTransactionID());
+        frame.putShort((short) msg.getProtocolID());
+        frame.putShort((short) (length + 2));
+        frame.put((byte) msg.getUnitID());
+        frame.put((byte) msg.getFunctionCode());
+        if (length > 0) {
+            frame.put(message);
+        }
+        frame.flip();
+
+        return frame;
+    }
+}
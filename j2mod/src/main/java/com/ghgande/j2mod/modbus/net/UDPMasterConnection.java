@@ -32,9 +32,13 @@
 package com.ghgande.j2mod.modbus.net;
 
 import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.io.ModbusTransport;
+import com.ghgande.j2mod.modbus.io.RTTEstimator;
+import com.ghgande.j2mod.modbus.io.TransactionIDAllocator;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -48,6 +52,10 @@ public class UDPMasterConnection {
 
     //instance attributes
     private UDPMasterTerminal m_Terminal;
+    private final TransactionIDAllocator m_TransactionIDs
+            = new TransactionIDAllocator();
+    private final Map<Integer, RTTEstimator> m_RTTEstimators
+            = new ConcurrentHashMap<>();
     private int m_Timeout = Modbus.DEFAULT_TIMEOUT;
     private boolean m_Connected;
 
@@ -116,6 +124,30 @@ public class UDPMasterConnection {
         return m_Terminal;
     }//getTerminal
 
+    /**
+     * Returns the allocator of the transaction identifiers of this
+     * connection, shared by all transactions executed on it.
+     *
+     * @return the <tt>TransactionIDAllocator</tt>.
+     */
+    public TransactionIDAllocator getTransactionIDAllocator() {
+        return m_TransactionIDs;
+    }//getTransactionIDAllocator
+
+    /**
+     * Returns the round-trip time estimator of a unit reached through this
+     * connection, shared by all transactions executed on it. Its timeout is
+     * bounded by the timeout of the connection at the time it is created.
+     *
+     * @param unitid the unit identifier.
+     * @return the <tt>RTTEstimator</tt> of the unit.
+     */
+    public RTTEstimator getRTTEstimator(int unitid) {
+        return m_RTTEstimators.computeIfAbsent(unitid, k -> new RTTEstimator(
+                RTTEstimator.DEFAULT_MIN_TIMEOUT, Math.max(RTTEstimator.DEFAULT_MIN_TIMEOUT,
+                        m_Timeout > 0 ? m_Timeout : Modbus.DEFAULT_TIMEOUT)));
+    }//getRTTEstimator
+
     /**
      * Returns the timeout for this <tt>UDPMasterConnection</tt>.
      *
@@ -132,7 +164,9 @@ public class UDPMasterConnection {
      */
     public void setTimeout(int timeout) {
         m_Timeout = timeout;
-        m_Terminal.setTimeout(timeout);
+        if (m_Terminal != null) {
+            m_Terminal.setTimeout(timeout);
+        }
     }//setTimeout
 
     /**
@@ -188,6 +188,7 @@ class UDPMasterTerminal implements UDPTerminal {
      *
      * @return the timeout as <tt>int</tt>.
      */
+    @Override
     public int getTimeout() {
         return m_Timeout;
     }
@@ -197,6 +198,7 @@ class UDPMasterTerminal implements UDPTerminal {
      *
      * @param timeout the timeout as <tt>int</tt>.
      */
+    @Override
     public void setTimeout(int timeout) {
         m_Timeout = timeout;
     }
@@ -36,10 +36,12 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.util.Hashtable;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.io.ModbusUDPTransport;
-import com.ghgande.j2mod.modbus.util.LinkedQueue;
+import com.ghgande.j2mod.modbus.util.MPSCQueue;
 import com.ghgande.j2mod.modbus.util.ModbusUtil;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -52,6 +54,18 @@ import java.util.logging.Logger;
  */
 class UDPSlaveTerminal implements UDPTerminal {
 
+    /**
+     * Number of messages buffered in each direction. Requests arriving while
+     * the receive queue is full are dropped, as the network would.
+     */
+    private static final int QUEUE_CAPACITY = 256;
+
+    /**
+     * Time in milliseconds the sender waits for a message before checking if
+     * it was stopped.
+     */
+    private static final int SENDER_POLL_INTERVAL = 100;
+
     private DatagramSocket m_Socket;
     private int m_Timeout = Modbus.DEFAULT_TIMEOUT;
     private boolean m_Active;
@@ -59,25 +73,28 @@ class UDPSlaveTerminal implements UDPTerminal {
     private int m_LocalPort = Modbus.DEFAULT_PORT;
     protected ModbusUDPTransport m_ModbusTransport;
 
-    private final LinkedQueue m_SendQueue;
-    private final LinkedQueue m_ReceiveQueue;
+    private final MPSCQueue<byte[]> m_SendQueue;
+    private final MPSCQueue<byte[]> m_ReceiveQueue;
     private PacketSender m_PacketSender;
     private PacketReceiver m_PacketReceiver;
     private Thread m_Receiver;
     private Thread m_Sender;
+    private ThreadFactory m_ThreadFactory;
+    private int m_ReceiveBufferSize;
+    private int m_SendBufferSize;
 
     protected Hashtable<Integer, DatagramPacket> m_Requests;
 
     protected UDPSlaveTerminal() {
-        m_SendQueue = new LinkedQueue();
-        m_ReceiveQueue = new LinkedQueue();
+        m_SendQueue = new MPSCQueue<>(QUEUE_CAPACITY);
+        m_ReceiveQueue = new MPSCQueue<>(QUEUE_CAPACITY);
         m_Requests = new Hashtable<Integer, DatagramPacket>(342);
     }
 
     protected UDPSlaveTerminal(InetAddress localaddress) {
         m_LocalAddress = localaddress;
-        m_SendQueue = new LinkedQueue();
-        m_ReceiveQueue = new LinkedQueue();
+        m_SendQueue = new MPSCQueue<>(QUEUE_CAPACITY);
+        m_ReceiveQueue = new MPSCQueue<>(QUEUE_CAPACITY);
         m_Requests = new Hashtable<Integer, DatagramPacket>(342);
     }
 
@@ -95,6 +112,36 @@ class UDPSlaveTerminal implements UDPTerminal {
         m_LocalPort = port;
     }
 
+    /**
+     * Sets the factory of the receiver and sender threads, used when the
+     * terminal is activated. By default, platform threads are created.
+     *
+     * @param factory the <tt>ThreadFactory</tt>, or null for the default.
+     */
+    protected void setThreadFactory(ThreadFactory factory) {
+        m_ThreadFactory = factory;
+    }
+
+    /**
+     * Sets the sizes of the socket buffers, used when the terminal is
+     * activated. Zero keeps the size chosen by the operating system.
+     *
+     * @param receive the receive buffer size in bytes.
+     * @param send the send buffer size in bytes.
+     */
+    protected void setBufferSizes(int receive, int send) {
+        m_ReceiveBufferSize = receive;
+        m_SendBufferSize = send;
+    }
+
+    /**
+     * Creates a receiver or sender thread.
+     */
+    private Thread newThread(Runnable task) {
+        return m_ThreadFactory == null ? new Thread(task)
+                : m_ThreadFactory.newThread(task);
+    }
+
     /**
      * Tests if this <tt>UDPSlaveTerminal</tt> is active.
      *
@@ -126,14 +173,18 @@ class UDPSlaveTerminal implements UDPTerminal {
             Logger.getLogger(UDPSlaveTerminal.class.getName()).log(Level.FINE, "UDPSlaveTerminal::haveSocket():{0}", m_Socket.toString());
             Logger.getLogger(UDPSlaveTerminal.class.getName()).log(Level.FINE, "UDPSlaveTerminal::addr=:{0}:port={1}", new Object[]{m_LocalAddress.toString(), m_LocalPort});
 
-            m_Socket.setReceiveBufferSize(1024);
-            m_Socket.setSendBufferSize(1024);
+            if (m_ReceiveBufferSize > 0) {
+                m_Socket.setReceiveBufferSize(m_ReceiveBufferSize);
+            }
+            if (m_SendBufferSize > 0) {
+                m_Socket.setSendBufferSize(m_SendBufferSize);
+            }
             m_PacketReceiver = new PacketReceiver();
-            m_Receiver = new Thread(m_PacketReceiver);
+            m_Receiver = newThread(m_PacketReceiver);
             m_Receiver.start();
             Logger.getLogger(UDPSlaveTerminal.class.getName()).log(Level.FINE, "UDPSlaveTerminal::receiver started()");
             m_PacketSender = new PacketSender();
-            m_Sender = new Thread(m_PacketSender);
+            m_Sender = newThread(m_PacketSender);
             m_Sender.start();
             Logger.getLogger(UDPSlaveTerminal.class.getName()).log(Level.FINE, "UDPSlaveTerminal::sender started()");
             m_ModbusTransport = new ModbusUDPTransport(this);
@@ -150,14 +201,13 @@ class UDPSlaveTerminal implements UDPTerminal {
     public void deactivate() {
         try {
             if (m_Active) {
-                // 1. stop receiver
+                // 1. stop sender gracefully, sending queued responses
                 m_PacketReceiver.stop();
-                m_Receiver.join();
-                // 2. stop sender gracefully
                 m_PacketSender.stop();
                 m_Sender.join();
-                // 3. close socket
+                // 2. close socket, releasing the receiver from receive()
                 m_Socket.close();
+                m_Receiver.join();
                 m_ModbusTransport = null;
                 m_Active = false;
             }
@@ -182,16 +232,21 @@ class UDPSlaveTerminal implements UDPTerminal {
     }
 
     /**
-     * Sets the timeout in milliseconds for this <tt>UDPSlaveTerminal</tt>.
+     * Returns the timeout in milliseconds for this <tt>UDPSlaveTerminal</tt>.
      *
      * @return the timeout as <tt>int</tt>.
-     *
-     * public int getTimeout() { return m_Timeout; }//getTimeout
-     *
-     *         /** Sets the timeout for this <tt>UDPSlaveTerminal</tt>.
+     */
+    @Override
+    public int getTimeout() {
+        return m_Timeout;
+    }//getTimeout
+
+    /**
+     * Sets the timeout for this <tt>UDPSlaveTerminal</tt>.
      *
      * @param timeout the timeout as <tt>int</tt>.
      */
+    @Override
     public void setTimeout(int timeout) {
         m_Timeout = timeout;
 
@@ -227,12 +282,12 @@ class UDPSlaveTerminal implements UDPTerminal {
 
     @Override
     public byte[] receiveMessage() throws Exception {
-        return (byte[]) m_ReceiveQueue.take();
+        return m_ReceiveQueue.take();
     }// receiveMessage
 
     class PacketSender implements Runnable {
 
-        private boolean m_Continue;
+        private volatile boolean m_Continue;
 
         public PacketSender() {
             m_Continue = true;
@@ -243,10 +298,16 @@ class UDPSlaveTerminal implements UDPTerminal {
             do {
                 try {
                     // 1. pickup the message and corresponding request
-                    byte[] message = (byte[]) m_SendQueue.take();
-                    DatagramPacket req = (DatagramPacket) m_Requests
-                            .remove(new Integer(ModbusUtil
-                                            .registersToInt(message)));
+                    byte[] message = m_SendQueue.poll(SENDER_POLL_INTERVAL,
+                            TimeUnit.MILLISECONDS);
+                    if (message == null) {
+                        continue;
+                    }
+                    DatagramPacket req = m_Requests.remove(
+                            ModbusUtil.registersToInt(message));
+                    if (req == null) {
+                        continue;
+                    }
                     // 2. create new Package with corresponding address and port
                     DatagramPacket res = new DatagramPacket(message,
                             message.length, req.getAddress(), req.getPort());
@@ -266,7 +327,7 @@ class UDPSlaveTerminal implements UDPTerminal {
 
     class PacketReceiver implements Runnable {
 
-        private boolean m_Continue;
+        private volatile boolean m_Continue;
 
         public PacketReceiver() {
             m_Continue = true;
@@ -285,10 +346,16 @@ class UDPSlaveTerminal implements UDPTerminal {
                     Integer tid = ModbusUtil.registersToInt(buffer);
                     m_Requests.put(tid, packet);
                     // 3. place the data buffer in the queue
-                    m_ReceiveQueue.put(buffer);
-                    Logger.getLogger(UDPSlaveTerminal.class.getName()).log(Level.FINE, "Received package to queue.");
-                } catch (IOException | InterruptedException ex) {
-                    Logger.getLogger(UDPSlaveTerminal.class.getName()).log(Level.SEVERE, null, ex);
+                    if (m_ReceiveQueue.offer(buffer)) {
+                        Logger.getLogger(UDPSlaveTerminal.class.getName()).log(Level.FINE, "Received package to queue.");
+                    } else {
+                        m_Requests.remove(tid);
+                        Logger.getLogger(UDPSlaveTerminal.class.getName()).log(Level.FINE, "Receive queue full, dropped package.");
+                    }
+                } catch (IOException ex) {
+                    if (m_Continue) {
+                        Logger.getLogger(UDPSlaveTerminal.class.getName()).log(Level.SEVERE, null, ex);
+                    }
                 }
             } while (m_Continue);
         }
@@ -84,6 +84,20 @@ public interface UDPTerminal {
      */
     public ModbusUDPTransport getModbusTransport();
 
+    /**
+     * Returns the timeout for receiving messages.
+     *
+     * @return the timeout in milliseconds.
+     */
+    public int getTimeout();
+
+    /**
+     * Sets the timeout for receiving messages.
+     *
+     * @param timeout the timeout in milliseconds.
+     */
+    public void setTimeout(int timeout);
+
     /**
      * Sends the given message.
      *
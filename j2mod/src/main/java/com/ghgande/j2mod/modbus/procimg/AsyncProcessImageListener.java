@@ -0,0 +1,241 @@
+//License
+/**
+ * *
+ * Java Modbus Library (j2mod) Copyright 2012, Julianne Frances Haugh d/b/a
+ * greenHouse Gas and Electric All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. *
+ */
+package com.ghgande.j2mod.modbus.procimg;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Class implementing a <tt>ProcessImageListener</tt> which hands changes to
+ * another listener asynchronously.
+ *
+ * <p>
+ * Changes are collected as dirty ranges per table and delivered on an
+ * executor, so a slow listener never delays the thread writing the process
+ * image. Ranges which overlap or touch are merged while they wait, and a
+ * table with more than the configured number of waiting ranges is collapsed
+ * into one range spanning all of them. The buffered state is therefore
+ * bounded, and every changed reference is still covered by some delivered
+ * range.
+ *
+ * <p>
+ * The delegate is called by one thread at a time, in the order the ranges
+ * became due.
+ *
+ * <p>
+ * The delegate is never called on the writing thread. If the executor
+ * rejects a delivery, the ranges are kept and the delivery is tried again
+ * at the next change; the rejections are counted. Unlike a
+ * <tt>ProcessImageChangePublisher</tt>, which fails its subscriptions, a
+ * listener has no way of being told that changes were lost, so none are
+ * dropped.
+ */
+public class AsyncProcessImageListener implements ProcessImageListener {
+
+    private final ProcessImageListener m_Delegate;
+    private final Executor m_Executor;
+    private final int m_MaxRanges;
+    private final Map<ProcessImage, Map<Table, TreeMap<Integer, Integer>>> m_Dirty
+            = new IdentityHashMap<>();
+    private int m_RangeCount;
+    private boolean m_Scheduled;
+    private long m_Rejected;
+
+    /**
+     * Constructs a new <tt>AsyncProcessImageListener</tt>.
+     *
+     * @param delegate the listener receiving the changes.
+     * @param executor the executor calling the delegate.
+     * @param maxRanges the number of waiting ranges of a table above which
+     * they are collapsed into one.
+     */
+    public AsyncProcessImageListener(ProcessImageListener delegate,
+            Executor executor, int maxRanges) {
+        if (maxRanges < 1) {
+            throw new IllegalArgumentException("Invalid range count "
+                    + maxRanges);
+        }
+        m_Delegate = delegate;
+        m_Executor = executor;
+        m_MaxRanges = maxRanges;
+    }
+
+    /**
+     * Constructs a new <tt>AsyncProcessImageListener</tt> keeping up to 64
+     * waiting ranges per table.
+     *
+     * @param delegate the listener receiving the changes.
+     * @param executor the executor calling the delegate.
+     */
+    public AsyncProcessImageListener(ProcessImageListener delegate,
+            Executor executor) {
+        this(delegate, executor, 64);
+    }
+
+    /**
+     * Returns the number of ranges waiting to be delivered.
+     *
+     * @return the number of ranges.
+     */
+    public synchronized int getPendingRangeCount() {
+        return m_RangeCount;
+    }
+
+    /**
+     * Returns the number of deliveries the executor rejected.
+     *
+     * @return the rejected delivery count.
+     */
+    public synchronized long getRejectedCount() {
+        return m_Rejected;
+    }
+
+    /**
+     * Records a change and schedules its delivery. Called on the thread
+     * writing the process image.
+     */
+    @Override
+    public void rangeChanged(ProcessImage image, Table table, int ref,
+            int count) {
+        if (count <= 0) {
+            return;
+        }
+        synchronized (this) {
+            TreeMap<Integer, Integer> ranges = m_Dirty
+                    .computeIfAbsent(image, k -> new EnumMap<>(Table.class))
+                    .computeIfAbsent(table, k -> new TreeMap<>());
+            merge(ranges, ref, ref + count);
+            if (ranges.size() > m_MaxRanges) {
+                int start = ranges.firstKey();
+                int end = ranges.lastEntry().getValue();
+                m_RangeCount -= ranges.size() - 1;
+                ranges.clear();
+                ranges.put(start, end);
+            }
+            if (m_Scheduled) {
+                return;
+            }
+            m_Scheduled = true;
+        }
+        schedule();
+    }
+
+    /**
+     * Adds the range [start, end) to a set of disjoint, non-adjacent ranges,
+     * merging it with those it overlaps or touches.
+     */
+    private void merge(TreeMap<Integer, Integer> ranges, int start, int end) {
+        Map.Entry<Integer, Integer> lower = ranges.floorEntry(start);
+        if (lower != null && lower.getValue() >= start) {
+            start = lower.getKey();
+            end = Math.max(end, lower.getValue());
+            ranges.remove(lower.getKey());
+            m_RangeCount--;
+        }
+        Map.Entry<Integer, Integer> next;
+        while ((next = ranges.ceilingEntry(start)) != null
+                && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            ranges.remove(next.getKey());
+            m_RangeCount--;
+        }
+        ranges.put(start, end);
+        m_RangeCount++;
+    }
+
+    /**
+     * Hands a delivery to the executor. If it is rejected, the ranges stay
+     * buffered, and the next change schedules the delivery again.
+     */
+    private void schedule() {
+        try {
+            m_Executor.execute(this::deliver);
+        } catch (RejectedExecutionException ex) {
+            int pending;
+            synchronized (this) {
+                m_Scheduled = false;
+                m_Rejected++;
+                pending = m_RangeCount;
+            }
+            Logger.getLogger(AsyncProcessImageListener.class.getName()).log(Level.WARNING, "Change delivery rejected, {0} ranges kept", pending);
+        }
+    }
+
+    /**
+     * Delivers the ranges waiting so far, and schedules another delivery if
+     * more arrived meanwhile. Runs on the executor.
+     */
+    private void deliver() {
+        List<Runnable> calls = new ArrayList<>();
+        synchronized (this) {
+            for (Map.Entry<ProcessImage, Map<Table, TreeMap<Integer, Integer>>> image
+                    : m_Dirty.entrySet()) {
+                for (Map.Entry<Table, TreeMap<Integer, Integer>> table
+                        : image.getValue().entrySet()) {
+                    for (Map.Entry<Integer, Integer> range
+                            : table.getValue().entrySet()) {
+                        ProcessImage img = image.getKey();
+                        Table tbl = table.getKey();
+                        int ref = range.getKey();
+                        int count = range.getValue() - ref;
+                        calls.add(() -> m_Delegate.rangeChanged(img, tbl,
+                                ref, count));
+                    }
+                }
+            }
+            m_Dirty.clear();
+            m_RangeCount = 0;
+        }
+        for (Runnable call : calls) {
+            try {
+                call.run();
+            } catch (RuntimeException ex) {
+                Logger.getLogger(AsyncProcessImageListener.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        synchronized (this) {
+            if (m_Dirty.isEmpty()) {
+                m_Scheduled = false;
+                return;
+            }
+        }
+        schedule();
+    }
+}
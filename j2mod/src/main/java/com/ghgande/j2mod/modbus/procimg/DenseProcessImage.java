@@ -0,0 +1,1199 @@
+//License
+/**
+ * *
+ * Java Modbus Library (j2mod) Copyright 2012, Julianne Frances Haugh d/b/a
+ * greenHouse Gas and Electric All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. *
+ */
+package com.ghgande.j2mod.modbus.procimg;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.TreeMap;
+
+import com.ghgande.j2mod.modbus.procimg.ProcessImageListener.Table;
+
+/**
+ * Class implementing a process image which stores its values in arrays.
+ *
+ * <p>
+ * Holding and input registers are kept in <tt>short[]</tt> arrays, coils and
+ * discrete inputs are packed into <tt>long[]</tt> bit sets. The address space
+ * of each type is dense: it starts at reference 0 and has no holes. Adding an
+ * object at a reference past the end grows the image, filling the gap with
+ * zero values.
+ *
+ * <p>
+ * The methods of <tt>ProcessImage</tt> return lightweight views which read
+ * and write the arrays, so a value set through a view is seen by all other
+ * views of the same reference. The objects passed to the <tt>add</tt> and
+ * <tt>set</tt> methods are not retained; only their current value is copied
+ * into the image. Callers which do not need objects should use the range
+ * methods such as <tt>readRegisters</tt> and <tt>writeRegisters</tt>, which
+ * copy the values without allocating.
+ *
+ * <p>
+ * Registers are guarded by block-level sequence locks: reading a register or
+ * a range of registers takes no lock and never blocks, while the writers
+ * are serialized on the image. Coils and discrete inputs are guarded by the
+ * monitor of the image. Every range method is atomic, see
+ * <tt>RangeProcessImage</tt>.
+ *
+ * <p>
+ * Files and FIFOs are stored as objects, as in <tt>SimpleProcessImage</tt>.
+ */
+public class DenseProcessImage implements ProcessImageImplementation,
+        ListenableProcessImage {
+
+    /**
+     * The largest number of objects of one type.
+     */
+    private static final int MAX_SIZE = 65536;
+
+    private long[] m_Coils;
+    private int m_CoilCount;
+    private long[] m_Discretes;
+    private int m_DiscreteCount;
+    private volatile SeqLockWords m_InputRegisters;
+    private volatile int m_InputRegisterCount;
+    private volatile SeqLockWords m_Registers;
+    private volatile int m_RegisterCount;
+    protected final NavigableMap<Integer, ModbusFile> m_Files = new TreeMap<>();
+    protected final NavigableMap<Integer, FIFO> m_FIFOs = new TreeMap<>();
+    protected boolean m_Locked = false;
+    protected int m_Unit = 0;
+    private final ProcessImageListeners m_Listeners
+            = new ProcessImageListeners(this);
+
+    /**
+     * Constructs a new <tt>DenseProcessImage</tt> with the given number of
+     * objects of each type, all initially zero.
+     *
+     * @param unit the unit ID of the image.
+     * @param coils the number of coils.
+     * @param discretes the number of discrete inputs.
+     * @param inputRegisters the number of input registers.
+     * @param registers the number of holding registers.
+     */
+    public DenseProcessImage(int unit, int coils, int discretes,
+            int inputRegisters, int registers) {
+        checkSize(coils);
+        checkSize(discretes);
+        checkSize(inputRegisters);
+        checkSize(registers);
+        m_Unit = unit;
+        m_Coils = new long[(coils + 63) >>> 6];
+        m_CoilCount = coils;
+        m_Discretes = new long[(discretes + 63) >>> 6];
+        m_DiscreteCount = discretes;
+        m_InputRegisters = new SeqLockWords(inputRegisters);
+        m_InputRegisterCount = inputRegisters;
+        m_Registers = new SeqLockWords(registers);
+        m_RegisterCount = registers;
+    }
+
+    /**
+     * Constructs a new, empty <tt>DenseProcessImage</tt> having a
+     * (potentially) non-zero unit ID.
+     *
+     * @param unit the unit ID of the image.
+     */
+    public DenseProcessImage(int unit) {
+        this(unit, 0, 0, 0, 0);
+    }
+
+    /**
+     * Constructs a new, empty <tt>DenseProcessImage</tt>.
+     */
+    public DenseProcessImage() {
+        this(0);
+    }
+
+    /**
+     * The process image is locked to prevent changes.
+     *
+     * @return whether or not the process image is locked.
+     */
+    public synchronized boolean isLocked() {
+        return m_Locked;
+    }
+
+    /**
+     * Locks or unlocks the process image, with the same semantics as
+     * <tt>SimpleProcessImage.setLocked</tt>. A locked image still accepts new
+     * values through its views and range methods, but objects may not be
+     * added, set or removed.
+     *
+     * @param locked true to lock the image.
+     * @return false if the image was already locked, true otherwise.
+     */
+    public synchronized boolean setLocked(boolean locked) {
+        if (m_Locked && locked) {
+            return false;
+        }
+
+        m_Locked = locked;
+        return true;
+    }
+
+    @Override
+    public int getUnitID() {
+        return m_Unit;
+    }
+
+    /**
+     * Adds a listener which is told about every value written through the
+     * range and single value methods of this image, including the views,
+     * and about every value copied in by the <tt>add</tt> and <tt>set</tt>
+     * methods. It is called after the monitor of the image is released.
+     *
+     * @param listener the <tt>ProcessImageListener</tt> to add.
+     */
+    @Override
+    public void addProcessImageListener(ProcessImageListener listener) {
+        m_Listeners.add(listener);
+    }
+
+    /**
+     * Removes a listener.
+     *
+     * @param listener the <tt>ProcessImageListener</tt> to remove.
+     */
+    @Override
+    public void removeProcessImageListener(ProcessImageListener listener) {
+        m_Listeners.remove(listener);
+    }
+
+    /*
+     * Range access
+     */
+    /**
+     * Copies holding register values out of the image.
+     *
+     * @param ref the reference of the first register.
+     * @param dst the array receiving the values.
+     * @param off the offset in <tt>dst</tt>.
+     * @param count the number of registers.
+     * @throws IllegalAddressException if the range is not in the image.
+     */
+    @Override
+    public void readRegisters(int ref, short[] dst, int off,
+            int count) throws IllegalAddressException {
+        checkRange(ref, count, m_RegisterCount);
+        if (!m_Registers.tryRead(ref, dst, off, count)) {
+            synchronized (this) {
+                checkRange(ref, count, m_RegisterCount);
+                m_Registers.readExclusive(ref, dst, off, count);
+            }
+        }
+    }
+
+    /**
+     * Copies holding register values into the image.
+     *
+     * @param ref the reference of the first register.
+     * @param src the array holding the values.
+     * @param off the offset in <tt>src</tt>.
+     * @param count the number of registers.
+     * @throws IllegalAddressException if the range is not in the image.
+     */
+    @Override
+    public void writeRegisters(int ref, short[] src, int off,
+            int count) throws IllegalAddressException {
+        synchronized (this) {
+            checkRange(ref, count, m_RegisterCount);
+            m_Registers.write(ref, src, off, count);
+        }
+        m_Listeners.fire(Table.HOLDING_REGISTERS, ref, count);
+    }
+
+    @Override
+    public void readWriteRegisters(int writeRef, short[] src, int srcOff,
+            int writeCount, int readRef, short[] dst, int dstOff,
+            int readCount) throws IllegalAddressException {
+        synchronized (this) {
+            checkRange(writeRef, writeCount, m_RegisterCount);
+            checkRange(readRef, readCount, m_RegisterCount);
+            m_Registers.write(writeRef, src, srcOff, writeCount);
+            m_Registers.readExclusive(readRef, dst, dstOff, readCount);
+        }
+        m_Listeners.fire(Table.HOLDING_REGISTERS, writeRef, writeCount);
+    }
+
+    /**
+     * Copies input register values out of the image.
+     *
+     * @param ref the reference of the first input register.
+     * @param dst the array receiving the values.
+     * @param off the offset in <tt>dst</tt>.
+     * @param count the number of input registers.
+     * @throws IllegalAddressException if the range is not in the image.
+     */
+    @Override
+    public void readInputRegisters(int ref, short[] dst, int off,
+            int count) throws IllegalAddressException {
+        checkRange(ref, count, m_InputRegisterCount);
+        if (!m_InputRegisters.tryRead(ref, dst, off, count)) {
+            synchronized (this) {
+                checkRange(ref, count, m_InputRegisterCount);
+                m_InputRegisters.readExclusive(ref, dst, off, count);
+            }
+        }
+    }
+
+    /**
+     * Copies input register values into the image.
+     *
+     * @param ref the reference of the first input register.
+     * @param src the array holding the values.
+     * @param off the offset in <tt>src</tt>.
+     * @param count the number of input registers.
+     * @throws IllegalAddressException if the range is not in the image.
+     */
+    @Override
+    public void writeInputRegisters(int ref, short[] src, int off,
+            int count) throws IllegalAddressException {
+        synchronized (this) {
+            checkRange(ref, count, m_InputRegisterCount);
+            m_InputRegisters.write(ref, src, off, count);
+        }
+        m_Listeners.fire(Table.INPUT_REGISTERS, ref, count);
+    }
+
+    /**
+     * Copies coil states out of the image, packed eight to a byte with the
+     * lowest reference in the least significant bit, as on the wire.
+     *
+     * @param ref the reference of the first coil.
+     * @param count the number of coils.
+     * @param dst the array receiving the packed states.
+     * @param off the offset in <tt>dst</tt>.
+     * @throws IllegalAddressException if the range is not in the image.
+     */
+    @Override
+    public synchronized void readCoils(int ref, int count, byte[] dst, int off)
+            throws IllegalAddressException {
+        checkRange(ref, count, m_CoilCount);
+        unpack(m_Coils, ref, count, dst, off);
+    }
+
+    /**
+     * Copies packed coil states into the image.
+     *
+     * @param ref the reference of the first coil.
+     * @param count the number of coils.
+     * @param src the array holding the packed states.
+     * @param off the offset in <tt>src</tt>.
+     * @throws IllegalAddressException if the range is not in the image.
+     * @see #readCoils(int, int, byte[], int)
+     */
+    @Override
+    public void writeCoils(int ref, int count, byte[] src,
+            int off) throws IllegalAddressException {
+        synchronized (this) {
+            checkRange(ref, count, m_CoilCount);
+            pack(m_Coils, ref, count, src, off);
+        }
+        m_Listeners.fire(Table.COILS, ref, count);
+    }
+
+    /**
+     * Copies discrete input states out of the image, packed as by
+     * <tt>readCoils</tt>.
+     *
+     * @param ref the reference of the first discrete input.
+     * @param count the number of discrete inputs.
+     * @param dst the array receiving the packed states.
+     * @param off the offset in <tt>dst</tt>.
+     * @throws IllegalAddressException if the range is not in the image.
+     */
+    @Override
+    public synchronized void readDiscretes(int ref, int count, byte[] dst,
+            int off) throws IllegalAddressException {
+        checkRange(ref, count, m_DiscreteCount);
+        unpack(m_Discretes, ref, count, dst, off);
+    }
+
+    /**
+     * Copies packed discrete input states into the image.
+     *
+     * @param ref the reference of the first discrete input.
+     * @param count the number of discrete inputs.
+     * @param src the array holding the packed states.
+     * @param off the offset in <tt>src</tt>.
+     * @throws IllegalAddressException if the range is not in the image.
+     */
+    @Override
+    public void writeDiscretes(int ref, int count, byte[] src,
+            int off) throws IllegalAddressException {
+        synchronized (this) {
+            checkRange(ref, count, m_DiscreteCount);
+            pack(m_Discretes, ref, count, src, off);
+        }
+        m_Listeners.fire(Table.DISCRETE_INPUTS, ref, count);
+    }
+
+    /*
+     * Single values
+     */
+    /**
+     * Returns the value of a holding register as an unsigned short.
+     *
+     * @param ref the reference of the register.
+     * @return the value of the register.
+     * @throws IllegalAddressException if the register is not in the image.
+     */
+    public int getRegisterValue(int ref)
+            throws IllegalAddressException {
+        checkRange(ref, 1, m_RegisterCount);
+        return m_Registers.get(ref);
+    }
+
+    /**
+     * Sets the value of a holding register.
+     *
+     * @param ref the reference of the register.
+     * @param value the new value; only the low 16 bits are used.
+     * @throws IllegalAddressException if the register is not in the image.
+     */
+    public void setRegisterValue(int ref, int value)
+            throws IllegalAddressException {
+        synchronized (this) {
+            checkRange(ref, 1, m_RegisterCount);
+            m_Registers.set(ref, value);
+        }
+        m_Listeners.fire(Table.HOLDING_REGISTERS, ref, 1);
+    }
+
+    /**
+     * Returns the value of an input register as an unsigned short.
+     *
+     * @param ref the reference of the input register.
+     * @return the value of the input register.
+     * @throws IllegalAddressException if the register is not in the image.
+     */
+    public int getInputRegisterValue(int ref)
+            throws IllegalAddressException {
+        checkRange(ref, 1, m_InputRegisterCount);
+        return m_InputRegisters.get(ref);
+    }
+
+    /**
+     * Sets the value of an input register.
+     *
+     * @param ref the reference of the input register.
+     * @param value the new value; only the low 16 bits are used.
+     * @throws IllegalAddressException if the register is not in the image.
+     */
+    public void setInputRegisterValue(int ref, int value)
+            throws IllegalAddressException {
+        synchronized (this) {
+            checkRange(ref, 1, m_InputRegisterCount);
+            m_InputRegisters.set(ref, value);
+        }
+        m_Listeners.fire(Table.INPUT_REGISTERS, ref, 1);
+    }
+
+    /**
+     * Returns the state of a coil.
+     *
+     * @param ref the reference of the coil.
+     * @return true if the coil is set.
+     * @throws IllegalAddressException if the coil is not in the image.
+     */
+    public synchronized boolean getCoil(int ref)
+            throws IllegalAddressException {
+        checkRange(ref, 1, m_CoilCount);
+        return getBit(m_Coils, ref);
+    }
+
+    /**
+     * Sets the state of a coil.
+     *
+     * @param ref the reference of the coil.
+     * @param state the new state.
+     * @throws IllegalAddressException if the coil is not in the image.
+     */
+    public void setCoil(int ref, boolean state)
+            throws IllegalAddressException {
+        synchronized (this) {
+            checkRange(ref, 1, m_CoilCount);
+            setBit(m_Coils, ref, state);
+        }
+        m_Listeners.fire(Table.COILS, ref, 1);
+    }
+
+    /**
+     * Returns the state of a discrete input.
+     *
+     * @param ref the reference of the discrete input.
+     * @return true if the input is set.
+     * @throws IllegalAddressException if the input is not in the image.
+     */
+    public synchronized boolean getDiscrete(int ref)
+            throws IllegalAddressException {
+        checkRange(ref, 1, m_DiscreteCount);
+        return getBit(m_Discretes, ref);
+    }
+
+    /**
+     * Sets the state of a discrete input.
+     *
+     * @param ref the reference of the discrete input.
+     * @param state the new state.
+     * @throws IllegalAddressException if the input is not in the image.
+     */
+    public void setDiscrete(int ref, boolean state)
+            throws IllegalAddressException {
+        synchronized (this) {
+            checkRange(ref, 1, m_DiscreteCount);
+            setBit(m_Discretes, ref, state);
+        }
+        m_Listeners.fire(Table.DISCRETE_INPUTS, ref, 1);
+    }
+
+    /*
+     * Digital inputs
+     */
+    @Override
+    public void addDigitalIn(DigitalIn di) {
+        int ref;
+        synchronized (this) {
+            if (m_Locked) {
+                return;
+            }
+            ref = m_DiscreteCount;
+            checkSize(ref + 1);
+            m_Discretes = growBits(m_Discretes, ref + 1);
+            m_DiscreteCount = ref + 1;
+            setBit(m_Discretes, ref, di.isSet());
+        }
+        m_Listeners.fire(Table.DISCRETE_INPUTS, ref, 1);
+    }
+
+    @Override
+    public void addDigitalIn(int ref, DigitalIn di) {
+        checkSize(ref + 1);
+        synchronized (this) {
+            if (m_Locked) {
+                return;
+            }
+            if (ref >= m_DiscreteCount) {
+                m_Discretes = growBits(m_Discretes, ref + 1);
+                m_DiscreteCount = ref + 1;
+            }
+            setBit(m_Discretes, ref, di.isSet());
+        }
+        m_Listeners.fire(Table.DISCRETE_INPUTS, ref, 1);
+    }
+
+    @Override
+    public void removeDigitalIn(DigitalIn di) {
+        int ref;
+        synchronized (this) {
+            if (m_Locked || !(di instanceof DiscreteView)
+                    || ((DiscreteView) di).owner() != this) {
+                return;
+            }
+            ref = ((DiscreteView) di).m_Ref;
+            if (ref >= m_DiscreteCount) {
+                return;
+            }
+            setBit(m_Discretes, ref, false);
+            if (ref == m_DiscreteCount - 1) {
+                m_DiscreteCount--;
+                return;
+            }
+        }
+        m_Listeners.fire(Table.DISCRETE_INPUTS, ref, 1);
+    }
+
+    @Override
+    public void setDigitalIn(int ref, DigitalIn di)
+            throws IllegalAddressException {
+        synchronized (this) {
+            if (m_Locked) {
+                return;
+            }
+            checkRange(ref, 1, m_DiscreteCount);
+            setBit(m_Discretes, ref, di.isSet());
+        }
+        m_Listeners.fire(Table.DISCRETE_INPUTS, ref, 1);
+    }
+
+    @Override
+    public synchronized DigitalIn getDigitalIn(int ref)
+            throws IllegalAddressException {
+        checkRange(ref, 1, m_DiscreteCount);
+        return new DiscreteView(ref);
+    }
+
+    @Override
+    public synchronized int getDigitalInCount() {
+        return m_DiscreteCount;
+    }
+
+    @Override
+    public synchronized DigitalIn[] getDigitalInRange(int ref, int count)
+            throws IllegalAddressException {
+        checkRange(ref, count, m_DiscreteCount);
+        DigitalIn[] dins = new DigitalIn[count];
+        for (int i = 0; i < count; i++) {
+            dins[i] = new DiscreteView(ref + i);
+        }
+        return dins;
+    }
+
+    /*
+     * Digital outputs
+     */
+    @Override
+    public void addDigitalOut(DigitalOut out) {
+        int ref;
+        synchronized (this) {
+            if (m_Locked) {
+                return;
+            }
+            ref = m_CoilCount;
+            checkSize(ref + 1);
+            m_Coils = growBits(m_Coils, ref + 1);
+            m_CoilCount = ref + 1;
+            setBit(m_Coils, ref, out.isSet());
+        }
+        m_Listeners.fire(Table.COILS, ref, 1);
+    }
+
+    @Override
+    public void addDigitalOut(int ref, DigitalOut out) {
+        checkSize(ref + 1);
+        synchronized (this) {
+            if (m_Locked) {
+                return;
+            }
+            if (ref >= m_CoilCount) {
+                m_Coils = growBits(m_Coils, ref + 1);
+                m_CoilCount = ref + 1;
+            }
+            setBit(m_Coils, ref, out.isSet());
+        }
+        m_Listeners.fire(Table.COILS, ref, 1);
+    }
+
+    @Override
+    public void removeDigitalOut(DigitalOut out) {
+        int ref;
+        synchronized (this) {
+            if (m_Locked || !(out instanceof CoilView)
+                    || ((CoilView) out).owner() != this) {
+                return;
+            }
+            ref = ((CoilView) out).m_Ref;
+            if (ref >= m_CoilCount) {
+                return;
+            }
+            setBit(m_Coils, ref, false);
+            if (ref == m_CoilCount - 1) {
+                m_CoilCount--;
+                return;
+            }
+        }
+        m_Listeners.fire(Table.COILS, ref, 1);
+    }
+
+    @Override
+    public void setDigitalOut(int ref, DigitalOut out)
+            throws IllegalAddressException {
+        synchronized (this) {
+            if (m_Locked) {
+                return;
+            }
+            checkRange(ref, 1, m_CoilCount);
+            setBit(m_Coils, ref, out.isSet());
+        }
+        m_Listeners.fire(Table.COILS, ref, 1);
+    }
+
+    @Override
+    public synchronized DigitalOut getDigitalOut(int ref)
+            throws IllegalAddressException {
+        checkRange(ref, 1, m_CoilCount);
+        return new CoilView(ref);
+    }
+
+    @Override
+    public synchronized int getDigitalOutCount() {
+        return m_CoilCount;
+    }
+
+    @Override
+    public synchronized DigitalOut[] getDigitalOutRange(int ref, int count)
+            throws IllegalAddressException {
+        checkRange(ref, count, m_CoilCount);
+        DigitalOut[] douts = new DigitalOut[count];
+        for (int i = 0; i < count; i++) {
+            douts[i] = new CoilView(ref + i);
+        }
+        return douts;
+    }
+
+    /*
+     * Input registers
+     */
+    @Override
+    public void addInputRegister(InputRegister reg) {
+        int ref;
+        synchronized (this) {
+            if (m_Locked) {
+                return;
+            }
+            ref = m_InputRegisterCount;
+            checkSize(ref + 1);
+            m_InputRegisters = m_InputRegisters.grow(ref + 1, MAX_SIZE);
+            m_InputRegisterCount = ref + 1;
+            m_InputRegisters.set(ref, reg.toShort());
+        }
+        m_Listeners.fire(Table.INPUT_REGISTERS, ref, 1);
+    }
+
+    @Override
+    public void addInputRegister(int ref, InputRegister reg) {
+        checkSize(ref + 1);
+        synchronized (this) {
+            if (m_Locked) {
+                return;
+            }
+            if (ref >= m_InputRegisterCount) {
+                m_InputRegisters = m_InputRegisters.grow(ref + 1, MAX_SIZE);
+                m_InputRegisterCount = ref + 1;
+            }
+            m_InputRegisters.set(ref, reg.toShort());
+        }
+        m_Listeners.fire(Table.INPUT_REGISTERS, ref, 1);
+    }
+
+    @Override
+    public void removeInputRegister(InputRegister reg) {
+        int ref;
+        synchronized (this) {
+            if (m_Locked || !(reg instanceof InputRegisterView)
+                    || ((InputRegisterView) reg).owner() != this) {
+                return;
+            }
+            ref = ((InputRegisterView) reg).m_Ref;
+            if (ref >= m_InputRegisterCount) {
+                return;
+            }
+            m_InputRegisters.set(ref, 0);
+            if (ref == m_InputRegisterCount - 1) {
+                m_InputRegisterCount--;
+                return;
+            }
+        }
+        m_Listeners.fire(Table.INPUT_REGISTERS, ref, 1);
+    }
+
+    @Override
+    public void setInputRegister(int ref, InputRegister reg)
+            throws IllegalAddressException {
+        synchronized (this) {
+            if (m_Locked) {
+                return;
+            }
+            checkRange(ref, 1, m_InputRegisterCount);
+            m_InputRegisters.set(ref, reg.toShort());
+        }
+        m_Listeners.fire(Table.INPUT_REGISTERS, ref, 1);
+    }
+
+    @Override
+    public synchronized InputRegister getInputRegister(int ref)
+            throws IllegalAddressException {
+        checkRange(ref, 1, m_InputRegisterCount);
+        return new InputRegisterView(ref);
+    }
+
+    @Override
+    public synchronized int getInputRegisterCount() {
+        return m_InputRegisterCount;
+    }
+
+    @Override
+    public synchronized InputRegister[] getInputRegisterRange(int ref,
+            int count) throws IllegalAddressException {
+        checkRange(ref, count, m_InputRegisterCount);
+        InputRegister[] iregs = new InputRegister[count];
+        for (int i = 0; i < count; i++) {
+            iregs[i] = new InputRegisterView(ref + i);
+        }
+        return iregs;
+    }
+
+    /*
+     * Holding registers
+     */
+    @Override
+    public void addRegister(Register reg) {
+        int ref;
+        synchronized (this) {
+            if (m_Locked) {
+                return;
+            }
+            ref = m_RegisterCount;
+            checkSize(ref + 1);
+            m_Registers = m_Registers.grow(ref + 1, MAX_SIZE);
+            m_RegisterCount = ref + 1;
+            m_Registers.set(ref, reg.toShort());
+        }
+        m_Listeners.fire(Table.HOLDING_REGISTERS, ref, 1);
+    }
+
+    @Override
+    public void addRegister(int ref, Register reg) {
+        checkSize(ref + 1);
+        synchronized (this) {
+            if (m_Locked) {
+                return;
+            }
+            if (ref >= m_RegisterCount) {
+                m_Registers = m_Registers.grow(ref + 1, MAX_SIZE);
+                m_RegisterCount = ref + 1;
+            }
+            m_Registers.set(ref, reg.toShort());
+        }
+        m_Listeners.fire(Table.HOLDING_REGISTERS, ref, 1);
+    }
+
+    @Override
+    public void removeRegister(Register reg) {
+        int ref;
+        synchronized (this) {
+            if (m_Locked || !(reg instanceof RegisterView)
+                    || ((RegisterView) reg).owner() != this) {
+                return;
+            }
+            ref = ((RegisterView) reg).m_Ref;
+            if (ref >= m_RegisterCount) {
+                return;
+            }
+            m_Registers.set(ref, 0);
+            if (ref == m_RegisterCount - 1) {
+                m_RegisterCount--;
+                return;
+            }
+        }
+        m_Listeners.fire(Table.HOLDING_REGISTERS, ref, 1);
+    }
+
+    @Override
+    public void setRegister(int ref, Register reg)
+            throws IllegalAddressException {
+        synchronized (this) {
+            if (m_Locked) {
+                return;
+            }
+            checkRange(ref, 1, m_RegisterCount);
+            m_Registers.set(ref, reg.toShort());
+        }
+        m_Listeners.fire(Table.HOLDING_REGISTERS, ref, 1);
+    }
+
+    @Override
+    public synchronized Register getRegister(int ref)
+            throws IllegalAddressException {
+        checkRange(ref, 1, m_RegisterCount);
+        return new RegisterView(ref);
+    }
+
+    @Override
+    public synchronized int getRegisterCount() {
+        return m_RegisterCount;
+    }
+
+    @Override
+    public synchronized Register[] getRegisterRange(int ref, int count)
+            throws IllegalAddressException {
+        checkRange(ref, count, m_RegisterCount);
+        Register[] regs = new Register[count];
+        for (int i = 0; i < count; i++) {
+            regs[i] = new RegisterView(ref + i);
+        }
+        return regs;
+    }
+
+    /*
+     * Files
+     */
+    @Override
+    public synchronized void addFile(ModbusFile newFile) {
+        if (!m_Locked) {
+            int newRef = 0;
+            if (!m_Files.isEmpty()) {
+                newRef = m_Files.lastKey() + 1;
+            }
+            m_Files.put(newRef, newFile);
+        }
+    }
+
+    @Override
+    public synchronized void addFile(int ref, ModbusFile newFile) {
+        if (ref < 0 || ref >= MAX_SIZE) {
+            throw new IllegalArgumentException();
+        }
+
+        if (!m_Locked) {
+            m_Files.put(ref, newFile);
+        }
+    }
+
+    @Override
+    public synchronized void removeFile(ModbusFile oldFile) {
+        if (!m_Locked) {
+            m_Files.remove(getKeyByValue(m_Files, oldFile));
+        }
+    }
+
+    @Override
+    public synchronized void setFile(int fileNumber, ModbusFile file) {
+        if (!m_Locked) {
+            if (!m_Files.containsKey(fileNumber)) {
+                throw new IllegalAddressException();
+            }
+
+            m_Files.replace(fileNumber, file);
+        }
+    }
+
+    @Override
+    public synchronized ModbusFile getFile(int fileNumber) {
+        ModbusFile result = m_Files.get(fileNumber);
+        if (result == null) {
+            throw new IllegalAddressException();
+        }
+
+        return result;
+    }
+
+    @Override
+    public synchronized int getFileCount() {
+        if (m_Files.isEmpty()) {
+            return 0;
+        } else {
+            return m_Files.lastKey() + 1;
+        }
+    }
+
+    @Override
+    public synchronized ModbusFile getFileByNumber(int ref) {
+        if (ref < 0 || ref >= 10000) {
+            throw new IllegalAddressException();
+        }
+
+        for (ModbusFile file : m_Files.values()) {
+            if (file.getFileNumber() == ref) {
+                return file;
+            }
+        }
+
+        throw new IllegalAddressException();
+    }
+
+    /*
+     * FIFOs
+     */
+    @Override
+    public synchronized void addFIFO(FIFO fifo) {
+        if (!m_Locked) {
+            int newRef = 0;
+            if (!m_FIFOs.isEmpty()) {
+                newRef = m_FIFOs.lastKey() + 1;
+            }
+            m_FIFOs.put(newRef, fifo);
+        }
+    }
+
+    @Override
+    public synchronized void addFIFO(int ref, FIFO newFIFO) {
+        if (ref < 0 || ref >= MAX_SIZE) {
+            throw new IllegalArgumentException();
+        }
+
+        if (!m_Locked) {
+            m_FIFOs.put(ref, newFIFO);
+        }
+    }
+
+    @Override
+    public synchronized void removeFIFO(FIFO oldFIFO) {
+        if (!m_Locked) {
+            m_FIFOs.remove(getKeyByValue(m_FIFOs, oldFIFO));
+        }
+    }
+
+    @Override
+    public synchronized void setFIFO(int fifoNumber, FIFO fifo) {
+        if (!m_Locked) {
+            if (!m_FIFOs.containsKey(fifoNumber)) {
+                throw new IllegalAddressException();
+            }
+
+            m_FIFOs.replace(fifoNumber, fifo);
+        }
+    }
+
+    @Override
+    public synchronized FIFO getFIFO(int fifoNumber) {
+        FIFO result = m_FIFOs.get(fifoNumber);
+        if (result == null) {
+            throw new IllegalAddressException();
+        }
+
+        return result;
+    }
+
+    @Override
+    public synchronized int getFIFOCount() {
+        if (m_FIFOs.isEmpty()) {
+            return 0;
+        } else {
+            return m_FIFOs.lastKey() + 1;
+        }
+    }
+
+    @Override
+    public synchronized FIFO getFIFOByAddress(int ref) {
+        for (FIFO fifo : m_FIFOs.values()) {
+            if (fifo.getAddress() == ref) {
+                return fifo;
+            }
+        }
+
+        return null;
+    }
+
+    /*
+     * Helpers
+     */
+    private static void checkSize(int size) {
+        if (size < 0 || size > MAX_SIZE) {
+            throw new IllegalArgumentException();
+        }
+    }
+
+    private static void checkRange(int ref, int count, int size)
+            throws IllegalAddressException {
+        if (ref < 0 || count < 0 || ref + count > size) {
+            throw new IllegalAddressException();
+        }
+    }
+
+    private static long[] growBits(long[] bits, int size) {
+        int length = (size + 63) >>> 6;
+        if (length <= bits.length) {
+            return bits;
+        }
+        return Arrays.copyOf(bits, Math.min(MAX_SIZE >>> 6,
+                Math.max(length, bits.length * 2)));
+    }
+
+    private static boolean getBit(long[] bits, int index) {
+        return (bits[index >>> 6] & (1L << index)) != 0;
+    }
+
+    private static void setBit(long[] bits, int index, boolean state) {
+        if (state) {
+            bits[index >>> 6] |= 1L << index;
+        } else {
+            bits[index >>> 6] &= ~(1L << index);
+        }
+    }
+
+    /**
+     * Packs bits into bytes, least significant bit first.
+     */
+    private static void unpack(long[] bits, int ref, int count, byte[] dst,
+            int off) {
+        Arrays.fill(dst, off, off + ((count + 7) >>> 3), (byte) 0);
+        for (int i = 0; i < count; i++) {
+            if (getBit(bits, ref + i)) {
+                dst[off + (i >>> 3)] |= 1 << (i & 7);
+            }
+        }
+    }
+
+    /**
+     * Stores bits packed into bytes, least significant bit first.
+     */
+    private static void pack(long[] bits, int ref, int count, byte[] src,
+            int off) {
+        for (int i = 0; i < count; i++) {
+            setBit(bits, ref + i, (src[off + (i >>> 3)] & (1 << (i & 7))) != 0);
+        }
+    }
+
+    private static <T, E> T getKeyByValue(Map<T, E> map, E value) {
+        for (Entry<T, E> entry : map.entrySet()) {
+            if (Objects.equals(value, entry.getValue())) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Views
+     */
+    private class DiscreteView implements DigitalIn {
+
+        final int m_Ref;
+
+        DiscreteView(int ref) {
+            m_Ref = ref;
+        }
+
+        DenseProcessImage owner() {
+            return DenseProcessImage.this;
+        }
+
+        @Override
+        public boolean isSet() {
+            return getDiscrete(m_Ref);
+        }
+    }
+
+    private class CoilView implements DigitalOut {
+
+        final int m_Ref;
+
+        CoilView(int ref) {
+            m_Ref = ref;
+        }
+
+        DenseProcessImage owner() {
+            return DenseProcessImage.this;
+        }
+
+        @Override
+        public boolean isSet() {
+            return getCoil(m_Ref);
+        }
+
+        @Override
+        public void set(boolean b) {
+            setCoil(m_Ref, b);
+        }
+    }
+
+    private class InputRegisterView implements InputRegister {
+
+        final int m_Ref;
+
+        InputRegisterView(int ref) {
+            m_Ref = ref;
+        }
+
+        DenseProcessImage owner() {
+            return DenseProcessImage.this;
+        }
+
+        @Override
+        public int getValue() {
+            return getInputRegisterValue(m_Ref);
+        }
+
+        @Override
+        public int toUnsignedShort() {
+            return getInputRegisterValue(m_Ref);
+        }
+
+        @Override
+        public short toShort() {
+            return (short) getInputRegisterValue(m_Ref);
+        }
+
+        @Override
+        public byte[] toBytes() {
+            int value = getInputRegisterValue(m_Ref);
+            return new byte[]{(byte) (value >> 8), (byte) value};
+        }
+    }
+
+    private class RegisterView implements Register {
+
+        final int m_Ref;
+
+        RegisterView(int ref) {
+            m_Ref = ref;
+        }
+
+        DenseProcessImage owner() {
+            return DenseProcessImage.this;
+        }
+
+        @Override
+        public int getValue() {
+            return getRegisterValue(m_Ref);
+        }
+
+        @Override
+        public int toUnsignedShort() {
+            return getRegisterValue(m_Ref);
+        }
+
+        @Override
+        public short toShort() {
+            return (short) getRegisterValue(m_Ref);
+        }
+
+        @Override
+        public byte[] toBytes() {
+            int value = getRegisterValue(m_Ref);
+            return new byte[]{(byte) (value >> 8), (byte) value};
+        }
+
+        @Override
+        public void setValue(int v) {
+            setRegisterValue(m_Ref, v);
+        }
+
+        @Override
+        public void setValue(short s) {
+            setRegisterValue(m_Ref, s);
+        }
+
+        @Override
+        public void setValue(byte[] bytes) {
+            if (bytes.length < 2) {
+                throw new IllegalArgumentException();
+            }
+            setRegisterValue(m_Ref, ((bytes[0] & 0xff) << 8)
+                    | (bytes[1] & 0xff));
+        }
+    }
+}
@@ -0,0 +1,1515 @@
+//License
+/**
+ * *
+ * Java Modbus Library (j2mod) Copyright 2012, Julianne Frances Haugh d/b/a
+ * greenHouse Gas and Electric All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. *
+ */
+package com.ghgande.j2mod.modbus.procimg;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.TreeMap;
+
+import com.ghgande.j2mod.modbus.procimg.ProcessImageListener.Table;
+
+/**
+ * Class implementing a process image which stores its values in a memory
+ * mapped file.
+ *
+ * <p>
+ * Placing the file in a shared memory file system such as <tt>/dev/shm</tt>
+ * lets other processes read and write the values directly, without copying
+ * them through sockets, and keeps the values when the slave process is
+ * restarted. The sizes of the tables are fixed when the file is created;
+ * adding an object at a reference past the end of its table throws an
+ * <tt>IllegalArgumentException</tt>. Files and FIFOs are stored as objects in
+ * this process only, as in <tt>DenseProcessImage</tt>.
+ *
+ * <p>
+ * The file has the following layout. All numbers are little endian.
+ * <pre>
+ *  offset  size  contents
+ *       0     4  magic number 0x494D324A ("J2MI")
+ *       4     4  layout version, 1
+ *       8     4  number of coils
+ *      12     4  number of discrete inputs
+ *      16     4  number of input registers
+ *      20     4  number of holding registers
+ *      24     1  writer lock, see below
+ *      25    39  reserved, zero
+ *      64        the coils, discrete inputs, input registers and holding
+ *                registers, in this order, each as a table:
+ *                  one 8 byte sequence number per block of 64 values,
+ *                  then the values: for coils and discrete inputs one
+ *                  8 byte word per block, value n in bit (n % 64) of word
+ *                  (n / 64); for registers 2 bytes per value, padded to a
+ *                  multiple of 8 bytes.
+ * </pre>
+ *
+ * <p>
+ * A writer holds an exclusive <tt>fcntl</tt> lock on the writer lock byte.
+ * Before changing values it makes the sequence numbers of the blocks odd, and
+ * after changing them it increments them to the next even number. A reader
+ * takes no lock: it reads the sequence numbers of the blocks, the values and
+ * the sequence numbers again, and retries unless all of them were even and
+ * unchanged. A single register or bit may be read without checking the
+ * sequence numbers. A sequence number left odd by a writer which died is
+ * made even by the next process which holds the lock and finds it so.
+ * The accesses are ordered by the load and store fences of
+ * <tt>sun.misc.Unsafe</tt>, without which the image cannot be opened.
+ *
+ * <p>
+ * Only changes made through this instance are reported to its
+ * <tt>ProcessImageListener</tt> instances. A file should be opened by at most
+ * one instance per process, as the lock is held per process.
+ */
+public class MappedProcessImage implements ProcessImageImplementation,
+        ListenableProcessImage, Closeable {
+
+    /**
+     * The largest number of objects of one type.
+     */
+    private static final int MAX_SIZE = 65536;
+
+    private static final int MAGIC = 0x494D324A;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int LOCK_POSITION = 24;
+
+    /**
+     * The number of optimistic attempts of a read before it takes the writer
+     * lock.
+     */
+    private static final int MAX_ATTEMPTS = 8;
+
+    private static final MethodHandle c_LoadFence;
+    private static final MethodHandle c_StoreFence;
+    private static final Throwable c_FenceFailure;
+
+    static {
+        MethodHandle loadFence = null;
+        MethodHandle storeFence = null;
+        Throwable failure = null;
+        try {
+            Class<?> type = Class.forName("sun.misc.Unsafe");
+            Field field = type.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            Object unsafe = field.get(null);
+            MethodType fence = MethodType.methodType(void.class);
+            loadFence = MethodHandles.lookup()
+                    .findVirtual(type, "loadFence", fence).bindTo(unsafe);
+            storeFence = MethodHandles.lookup()
+                    .findVirtual(type, "storeFence", fence).bindTo(unsafe);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            loadFence = null;
+            storeFence = null;
+            failure = ex;
+        }
+        c_LoadFence = loadFence;
+        c_StoreFence = storeFence;
+        c_FenceFailure = failure;
+    }
+
+    private final Path m_Path;
+    private final ByteBuffer m_Buffer;
+    private final int[] m_Counts = new int[4];
+    private final int[] m_SequenceOffsets = new int[4];
+    private final int[] m_DataOffsets = new int[4];
+    private FileChannel m_Channel;
+    private boolean m_Closed;
+    protected final NavigableMap<Integer, ModbusFile> m_Files = new TreeMap<>();
+    protected final NavigableMap<Integer, FIFO> m_FIFOs = new TreeMap<>();
+    protected boolean m_Locked = false;
+    protected int m_Unit = 0;
+    private final ProcessImageListeners m_Listeners
+            = new ProcessImageListeners(this);
+
+    /**
+     * Constructs a new <tt>MappedProcessImage</tt> over the given file. A
+     * file which does not exist or is empty is created with all values
+     * zero; an existing file keeps its values and must have the given
+     * sizes.
+     *
+     * @param path the file, usually in <tt>/dev/shm</tt>.
+     * @param unit the unit ID of the image.
+     * @param coils the number of coils.
+     * @param discretes the number of discrete inputs.
+     * @param inputRegisters the number of input registers.
+     * @param registers the number of holding registers.
+     * @throws IOException if the file cannot be mapped, or has a different
+     * layout.
+     * @throws UnsupportedOperationException if the JVM provides no fences.
+     */
+    public MappedProcessImage(Path path, int unit, int coils, int discretes,
+            int inputRegisters, int registers) throws IOException {
+        this(path, unit, new int[]{coils, discretes, inputRegisters,
+            registers});
+    }
+
+    /**
+     * Constructs a new <tt>MappedProcessImage</tt> over an existing file,
+     * taking the sizes of the tables from the file.
+     *
+     * @param path the file.
+     * @param unit the unit ID of the image.
+     * @throws IOException if the file cannot be mapped, or is not a process
+     * image.
+     * @throws UnsupportedOperationException if the JVM provides no fences.
+     */
+    public MappedProcessImage(Path path, int unit) throws IOException {
+        this(path, unit, null);
+    }
+
+    private MappedProcessImage(Path path, int unit, int[] counts)
+            throws IOException {
+        if (c_LoadFence == null) {
+            throw new UnsupportedOperationException(
+                    "The fences of sun.misc.Unsafe are not available",
+                    c_FenceFailure);
+        }
+        if (counts != null) {
+            for (int count : counts) {
+                checkSize(count);
+            }
+        }
+        m_Path = path;
+        m_Unit = unit;
+        m_Channel = (counts != null
+                ? FileChannel.open(path, StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(path, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE));
+        try {
+            m_Buffer = map(counts);
+        } catch (IOException | RuntimeException ex) {
+            m_Channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Maps the file while holding the writer lock, creating the header if the
+     * file is empty.
+     */
+    private ByteBuffer map(int[] counts) throws IOException {
+        FileLock lock = m_Channel.lock(LOCK_POSITION, 1, false);
+        try {
+            boolean create = (m_Channel.size() == 0);
+            if (create) {
+                if (counts == null) {
+                    throw new IOException(m_Path + " is empty");
+                }
+            } else {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                while (header.hasRemaining()) {
+                    if (m_Channel.read(header, header.position()) < 0) {
+                        break;
+                    }
+                }
+                if (header.hasRemaining() || header.getInt(0) != MAGIC) {
+                    throw new IOException(m_Path + " is not a process image");
+                }
+                if (header.getInt(4) != VERSION) {
+                    throw new IOException(m_Path + " has layout version "
+                            + header.getInt(4));
+                }
+                int[] found = new int[4];
+                for (int t = 0; t < 4; t++) {
+                    found[t] = header.getInt(8 + 4 * t);
+                    checkSize(found[t]);
+                }
+                if (counts != null && !Arrays.equals(counts, found)) {
+                    throw new IOException(m_Path + " has the sizes "
+                            + Arrays.toString(found));
+                }
+                counts = found;
+            }
+
+            int size = layout(counts);
+            if (!create && m_Channel.size() < size) {
+                throw new IOException(m_Path + " is truncated");
+            }
+            ByteBuffer buffer = m_Channel.map(FileChannel.MapMode.READ_WRITE,
+                    0, size).order(ByteOrder.LITTLE_ENDIAN);
+            if (create) {
+                buffer.putInt(4, VERSION);
+                for (int t = 0; t < 4; t++) {
+                    buffer.putInt(8 + 4 * t, counts[t]);
+                }
+                buffer.putInt(0, MAGIC);
+            } else {
+                for (Table table : Table.values()) {
+                    repair(buffer, table, 0, m_Counts[table.ordinal()]);
+                }
+            }
+            return buffer;
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * Computes the offsets of the tables, and returns the size of the file.
+     */
+    private int layout(int[] counts) {
+        int offset = HEADER_SIZE;
+        for (Table table : Table.values()) {
+            int t = table.ordinal();
+            int blocks = (counts[t] + 63) >>> 6;
+            m_Counts[t] = counts[t];
+            m_SequenceOffsets[t] = offset;
+            offset += 8 * blocks;
+            m_DataOffsets[t] = offset;
+            offset += (isBits(table) ? 8 * blocks
+                    : (2 * counts[t] + 7) & ~7);
+        }
+        return offset;
+    }
+
+    /**
+     * Returns the file of this image.
+     *
+     * @return the path of the file.
+     */
+    public Path getPath() {
+        return m_Path;
+    }
+
+    /**
+     * Closes the file. The values may still be read, but writing them
+     * throws an <tt>IllegalStateException</tt>. The mapping itself is
+     * released when the image is garbage collected.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        m_Closed = true;
+        if (m_Channel != null) {
+            m_Channel.close();
+        }
+    }
+
+    /**
+     * The process image is locked to prevent changes.
+     *
+     * @return whether or not the process image is locked.
+     */
+    public synchronized boolean isLocked() {
+        return m_Locked;
+    }
+
+    /**
+     * Locks or unlocks the process image, with the same semantics as
+     * <tt>DenseProcessImage.setLocked</tt>.
+     *
+     * @param locked true to lock the image.
+     * @return false if the image was already locked, true otherwise.
+     */
+    public synchronized boolean setLocked(boolean locked) {
+        if (m_Locked && locked) {
+            return false;
+        }
+
+        m_Locked = locked;
+        return true;
+    }
+
+    @Override
+    public int getUnitID() {
+        return m_Unit;
+    }
+
+    /**
+     * Adds a listener which is told about every value written through this
+     * image, including the views. Values written by other processes are not
+     * reported.
+     *
+     * @param listener the <tt>ProcessImageListener</tt> to add.
+     */
+    @Override
+    public void addProcessImageListener(ProcessImageListener listener) {
+        m_Listeners.add(listener);
+    }
+
+    /**
+     * Removes a listener.
+     *
+     * @param listener the <tt>ProcessImageListener</tt> to remove.
+     */
+    @Override
+    public void removeProcessImageListener(ProcessImageListener listener) {
+        m_Listeners.remove(listener);
+    }
+
+    /*
+     * Range access
+     */
+    /**
+     * Copies holding register values out of the image.
+     *
+     * @param ref the reference of the first register.
+     * @param dst the array receiving the values.
+     * @param off the offset in <tt>dst</tt>.
+     * @param count the number of registers.
+     * @throws IllegalAddressException if the range is not in the image.
+     */
+    @Override
+    public void readRegisters(int ref, short[] dst, int off, int count)
+            throws IllegalAddressException {
+        readWords(Table.HOLDING_REGISTERS, ref, dst, off, count);
+    }
+
+    /**
+     * Copies values into consecutive holding registers.
+     *
+     * @param ref the reference of the first register.
+     * @param src the array holding the values.
+     * @param off the offset in <tt>src</tt>.
+     * @param count the number of registers.
+     * @throws IllegalAddressException if the range is not in the image.
+     */
+    @Override
+    public void writeRegisters(int ref, short[] src, int off, int count)
+            throws IllegalAddressException {
+        writeWords(Table.HOLDING_REGISTERS, ref, src, off, count);
+        m_Listeners.fire(Table.HOLDING_REGISTERS, ref, count);
+    }
+
+    @Override
+    public void readWriteRegisters(int writeRef, short[] src, int srcOff,
+            int writeCount, int readRef, short[] dst, int dstOff,
+            int readCount) throws IllegalAddressException {
+        synchronized (this) {
+            checkRange(writeRef, writeCount, count(Table.HOLDING_REGISTERS));
+            checkRange(readRef, readCount, count(Table.HOLDING_REGISTERS));
+            FileLock lock = lockWriters();
+            try {
+                if (writeCount > 0) {
+                    beginWrite(Table.HOLDING_REGISTERS, writeRef, writeCount);
+                    putWords(Table.HOLDING_REGISTERS, writeRef, src, srcOff,
+                            writeCount);
+                    endWrite(Table.HOLDING_REGISTERS, writeRef, writeCount);
+                }
+                copyWords(Table.HOLDING_REGISTERS, readRef, dst, dstOff,
+                        readCount);
+            } finally {
+                unlock(lock);
+            }
+        }
+        m_Listeners.fire(Table.HOLDING_REGISTERS, writeRef, writeCount);
+    }
+
+    /**
+     * Copies input register values out of the image.
+     *
+     * @param ref the reference of the first input register.
+     * @param dst the array receiving the values.
+     * @param off the offset in <tt>dst</tt>.
+     * @param count the number of input registers.
+     * @throws IllegalAddressException if the range is not in the image.
+     */
+    @Override
+    public void readInputRegisters(int ref, short[] dst, int off, int count)
+            throws IllegalAddressException {
+        readWords(Table.INPUT_REGISTERS, ref, dst, off, count);
+    }
+
+    /**
+     * Copies values into consecutive input registers.
+     *
+     * @param ref the reference of the first input register.
+     * @param src the array holding the values.
+     * @param off the offset in <tt>src</tt>.
+     * @param count the number of input registers.
+     * @throws IllegalAddressException if the range is not in the image.
+     */
+    @Override
+    public void writeInputRegisters(int ref, short[] src, int off, int count)
+            throws IllegalAddressException {
+        writeWords(Table.INPUT_REGISTERS, ref, src, off, count);
+        m_Listeners.fire(Table.INPUT_REGISTERS, ref, count);
+    }
+
+    /**
+     * Copies coil states out of the image, packed eight to a byte with the
+     * lowest reference in the least significant bit, as on the wire.
+     *
+     * @param ref the reference of the first coil.
+     * @param count the number of coils.
+     * @param dst the array receiving the packed states.
+     * @param off the offset in <tt>dst</tt>.
+     * @throws IllegalAddressException if the range is not in the image.
+     */
+    @Override
+    public void readCoils(int ref, int count, byte[] dst, int off)
+            throws IllegalAddressException {
+        readBits(Table.COILS, ref, count, dst, off);
+    }
+
+    /**
+     * Copies packed coil states into the image.
+     *
+     * @param ref the reference of the first coil.
+     * @param count the number of coils.
+     * @param src the array holding the packed states.
+     * @param off the offset in <tt>src</tt>.
+     * @throws IllegalAddressException if the range is not in the image.
+     * @see #readCoils(int, int, byte[], int)
+     */
+    @Override
+    public void writeCoils(int ref, int count, byte[] src, int off)
+            throws IllegalAddressException {
+        writeBits(Table.COILS, ref, count, src, off);
+        m_Listeners.fire(Table.COILS, ref, count);
+    }
+
+    /**
+     * Copies discrete input states out of the image, packed as by
+     * <tt>readCoils</tt>.
+     *
+     * @param ref the reference of the first discrete input.
+     * @param count the number of discrete inputs.
+     * @param dst the array receiving the packed states.
+     * @param off the offset in <tt>dst</tt>.
+     * @throws IllegalAddressException if the range is not in the image.
+     */
+    @Override
+    public void readDiscretes(int ref, int count, byte[] dst, int off)
+            throws IllegalAddressException {
+        readBits(Table.DISCRETE_INPUTS, ref, count, dst, off);
+    }
+
+    /**
+     * Copies packed discrete input states into the image.
+     *
+     * @param ref the reference of the first discrete input.
+     * @param count the number of discrete inputs.
+     * @param src the array holding the packed states.
+     * @param off the offset in <tt>src</tt>.
+     * @throws IllegalAddressException if the range is not in the image.
+     */
+    @Override
+    public void writeDiscretes(int ref, int count, byte[] src, int off)
+            throws IllegalAddressException {
+        writeBits(Table.DISCRETE_INPUTS, ref, count, src, off);
+        m_Listeners.fire(Table.DISCRETE_INPUTS, ref, count);
+    }
+
+    /*
+     * Single values
+     */
+    /**
+     * Returns the value of a holding register as an unsigned short.
+     *
+     * @param ref the reference of the register.
+     * @return the value of the register.
+     * @throws IllegalAddressException if the register is not in the image.
+     */
+    public int getRegisterValue(int ref) throws IllegalAddressException {
+        return getWord(Table.HOLDING_REGISTERS, ref);
+    }
+
+    /**
+     * Sets the value of a holding register.
+     *
+     * @param ref the reference of the register.
+     * @param value the new value; only the low 16 bits are used.
+     * @throws IllegalAddressException if the register is not in the image.
+     */
+    public void setRegisterValue(int ref, int value)
+            throws IllegalAddressException {
+        setWord(Table.HOLDING_REGISTERS, ref, value);
+        m_Listeners.fire(Table.HOLDING_REGISTERS, ref, 1);
+    }
+
+    /**
+     * Returns the value of an input register as an unsigned short.
+     *
+     * @param ref the reference of the input register.
+     * @return the value of the input register.
+     * @throws IllegalAddressException if the register is not in the image.
+     */
+    public int getInputRegisterValue(int ref)
+            throws IllegalAddressException {
+        return getWord(Table.INPUT_REGISTERS, ref);
+    }
+
+    /**
+     * Sets the value of an input register.
+     *
+     * @param ref the reference of the input register.
+     * @param value the new value; only the low 16 bits are used.
+     * @throws IllegalAddressException if the register is not in the image.
+     */
+    public void setInputRegisterValue(int ref, int value)
+            throws IllegalAddressException {
+        setWord(Table.INPUT_REGISTERS, ref, value);
+        m_Listeners.fire(Table.INPUT_REGISTERS, ref, 1);
+    }
+
+    /**
+     * Returns the state of a coil.
+     *
+     * @param ref the reference of the coil.
+     * @return true if the coil is set.
+     * @throws IllegalAddressException if the coil is not in the image.
+     */
+    public boolean getCoil(int ref) throws IllegalAddressException {
+        return getBit(Table.COILS, ref);
+    }
+
+    /**
+     * Sets the state of a coil.
+     *
+     * @param ref the reference of the coil.
+     * @param state the new state.
+     * @throws IllegalAddressException if the coil is not in the image.
+     */
+    public void setCoil(int ref, boolean state)
+            throws IllegalAddressException {
+        setBit(Table.COILS, ref, state);
+        m_Listeners.fire(Table.COILS, ref, 1);
+    }
+
+    /**
+     * Returns the state of a discrete input.
+     *
+     * @param ref the reference of the discrete input.
+     * @return true if the input is set.
+     * @throws IllegalAddressException if the input is not in the image.
+     */
+    public boolean getDiscrete(int ref) throws IllegalAddressException {
+        return getBit(Table.DISCRETE_INPUTS, ref);
+    }
+
+    /**
+     * Sets the state of a discrete input.
+     *
+     * @param ref the reference of the discrete input.
+     * @param state the new state.
+     * @throws IllegalAddressException if the input is not in the image.
+     */
+    public void setDiscrete(int ref, boolean state)
+            throws IllegalAddressException {
+        setBit(Table.DISCRETE_INPUTS, ref, state);
+        m_Listeners.fire(Table.DISCRETE_INPUTS, ref, 1);
+    }
+
+    /*
+     * Digital inputs
+     */
+    @Override
+    public synchronized void addDigitalIn(DigitalIn di) {
+        if (!m_Locked) {
+            addDigitalIn(count(Table.DISCRETE_INPUTS), di);
+        }
+    }
+
+    @Override
+    public synchronized void addDigitalIn(int ref, DigitalIn di) {
+        checkCapacity(Table.DISCRETE_INPUTS, ref);
+        if (!m_Locked) {
+            setBit(Table.DISCRETE_INPUTS, ref, di.isSet());
+        }
+    }
+
+    @Override
+    public synchronized void removeDigitalIn(DigitalIn di) {
+        if (!m_Locked && di instanceof DiscreteView
+                && ((DiscreteView) di).owner() == this) {
+            setBit(Table.DISCRETE_INPUTS, ((DiscreteView) di).m_Ref, false);
+        }
+    }
+
+    @Override
+    public synchronized void setDigitalIn(int ref, DigitalIn di)
+            throws IllegalAddressException {
+        if (!m_Locked) {
+            setBit(Table.DISCRETE_INPUTS, ref, di.isSet());
+        }
+    }
+
+    @Override
+    public DigitalIn getDigitalIn(int ref) throws IllegalAddressException {
+        checkRange(ref, 1, count(Table.DISCRETE_INPUTS));
+        return new DiscreteView(ref);
+    }
+
+    @Override
+    public int getDigitalInCount() {
+        return count(Table.DISCRETE_INPUTS);
+    }
+
+    @Override
+    public DigitalIn[] getDigitalInRange(int ref, int count)
+            throws IllegalAddressException {
+        checkRange(ref, count, count(Table.DISCRETE_INPUTS));
+        DigitalIn[] dins = new DigitalIn[count];
+        for (int i = 0; i < count; i++) {
+            dins[i] = new DiscreteView(ref + i);
+        }
+        return dins;
+    }
+
+    /*
+     * Digital outputs
+     */
+    @Override
+    public synchronized void addDigitalOut(DigitalOut out) {
+        if (!m_Locked) {
+            addDigitalOut(count(Table.COILS), out);
+        }
+    }
+
+    @Override
+    public synchronized void addDigitalOut(int ref, DigitalOut out) {
+        checkCapacity(Table.COILS, ref);
+        if (!m_Locked) {
+            setBit(Table.COILS, ref, out.isSet());
+        }
+    }
+
+    @Override
+    public synchronized void removeDigitalOut(DigitalOut out) {
+        if (!m_Locked && out instanceof CoilView
+                && ((CoilView) out).owner() == this) {
+            setBit(Table.COILS, ((CoilView) out).m_Ref, false);
+        }
+    }
+
+    @Override
+    public synchronized void setDigitalOut(int ref, DigitalOut out)
+            throws IllegalAddressException {
+        if (!m_Locked) {
+            setBit(Table.COILS, ref, out.isSet());
+        }
+    }
+
+    @Override
+    public DigitalOut getDigitalOut(int ref) throws IllegalAddressException {
+        checkRange(ref, 1, count(Table.COILS));
+        return new CoilView(ref);
+    }
+
+    @Override
+    public int getDigitalOutCount() {
+        return count(Table.COILS);
+    }
+
+    @Override
+    public DigitalOut[] getDigitalOutRange(int ref, int count)
+            throws IllegalAddressException {
+        checkRange(ref, count, count(Table.COILS));
+        DigitalOut[] douts = new DigitalOut[count];
+        for (int i = 0; i < count; i++) {
+            douts[i] = new CoilView(ref + i);
+        }
+        return douts;
+    }
+
+    /*
+     * Input registers
+     */
+    @Override
+    public synchronized void addInputRegister(InputRegister reg) {
+        if (!m_Locked) {
+            addInputRegister(count(Table.INPUT_REGISTERS), reg);
+        }
+    }
+
+    @Override
+    public synchronized void addInputRegister(int ref, InputRegister reg) {
+        checkCapacity(Table.INPUT_REGISTERS, ref);
+        if (!m_Locked) {
+            setWord(Table.INPUT_REGISTERS, ref, reg.toShort());
+        }
+    }
+
+    @Override
+    public synchronized void removeInputRegister(InputRegister reg) {
+        if (!m_Locked && reg instanceof InputRegisterView
+                && ((InputRegisterView) reg).owner() == this) {
+            setWord(Table.INPUT_REGISTERS, ((InputRegisterView) reg).m_Ref, 0);
+        }
+    }
+
+    @Override
+    public synchronized void setInputRegister(int ref, InputRegister reg)
+            throws IllegalAddressException {
+        if (!m_Locked) {
+            setWord(Table.INPUT_REGISTERS, ref, reg.toShort());
+        }
+    }
+
+    @Override
+    public InputRegister getInputRegister(int ref)
+            throws IllegalAddressException {
+        checkRange(ref, 1, count(Table.INPUT_REGISTERS));
+        return new InputRegisterView(ref);
+    }
+
+    @Override
+    public int getInputRegisterCount() {
+        return count(Table.INPUT_REGISTERS);
+    }
+
+    @Override
+    public InputRegister[] getInputRegisterRange(int ref, int count)
+            throws IllegalAddressException {
+        checkRange(ref, count, count(Table.INPUT_REGISTERS));
+        InputRegister[] iregs = new InputRegister[count];
+        for (int i = 0; i < count; i++) {
+            iregs[i] = new InputRegisterView(ref + i);
+        }
+        return iregs;
+    }
+
+    /*
+     * Holding registers
+     */
+    @Override
+    public synchronized void addRegister(Register reg) {
+        if (!m_Locked) {
+            addRegister(count(Table.HOLDING_REGISTERS), reg);
+        }
+    }
+
+    @Override
+    public synchronized void addRegister(int ref, Register reg) {
+        checkCapacity(Table.HOLDING_REGISTERS, ref);
+        if (!m_Locked) {
+            setWord(Table.HOLDING_REGISTERS, ref, reg.toShort());
+        }
+    }
+
+    @Override
+    public synchronized void removeRegister(Register reg) {
+        if (!m_Locked && reg instanceof RegisterView
+                && ((RegisterView) reg).owner() == this) {
+            setWord(Table.HOLDING_REGISTERS, ((RegisterView) reg).m_Ref, 0);
+        }
+    }
+
+    @Override
+    public synchronized void setRegister(int ref, Register reg)
+            throws IllegalAddressException {
+        if (!m_Locked) {
+            setWord(Table.HOLDING_REGISTERS, ref, reg.toShort());
+        }
+    }
+
+    @Override
+    public Register getRegister(int ref) throws IllegalAddressException {
+        checkRange(ref, 1, count(Table.HOLDING_REGISTERS));
+        return new RegisterView(ref);
+    }
+
+    @Override
+    public int getRegisterCount() {
+        return count(Table.HOLDING_REGISTERS);
+    }
+
+    @Override
+    public Register[] getRegisterRange(int ref, int count)
+            throws IllegalAddressException {
+        checkRange(ref, count, count(Table.HOLDING_REGISTERS));
+        Register[] regs = new Register[count];
+        for (int i = 0; i < count; i++) {
+            regs[i] = new RegisterView(ref + i);
+        }
+        return regs;
+    }
+
+    /*
+     * Files
+     */
+    @Override
+    public synchronized void addFile(ModbusFile newFile) {
+        if (!m_Locked) {
+            int newRef = 0;
+            if (!m_Files.isEmpty()) {
+                newRef = m_Files.lastKey() + 1;
+            }
+            m_Files.put(newRef, newFile);
+        }
+    }
+
+    @Override
+    public synchronized void addFile(int ref, ModbusFile newFile) {
+        if (ref < 0 || ref >= MAX_SIZE) {
+            throw new IllegalArgumentException();
+        }
+
+        if (!m_Locked) {
+            m_Files.put(ref, newFile);
+        }
+    }
+
+    @Override
+    public synchronized void removeFile(ModbusFile oldFile) {
+        if (!m_Locked) {
+            m_Files.remove(getKeyByValue(m_Files, oldFile));
+        }
+    }
+
+    @Override
+    public synchronized void setFile(int fileNumber, ModbusFile file) {
+        if (!m_Locked) {
+            if (!m_Files.containsKey(fileNumber)) {
+                throw new IllegalAddressException();
+            }
+
+            m_Files.replace(fileNumber, file);
+        }
+    }
+
+    @Override
+    public synchronized ModbusFile getFile(int fileNumber) {
+        ModbusFile result = m_Files.get(fileNumber);
+        if (result == null) {
+            throw new IllegalAddressException();
+        }
+
+        return result;
+    }
+
+    @Override
+    public synchronized int getFileCount() {
+        if (m_Files.isEmpty()) {
+            return 0;
+        } else {
+            return m_Files.lastKey() + 1;
+        }
+    }
+
+    @Override
+    public synchronized ModbusFile getFileByNumber(int ref) {
+        if (ref < 0 || ref >= 10000) {
+            throw new IllegalAddressException();
+        }
+
+        for (ModbusFile file : m_Files.values()) {
+            if (file.getFileNumber() == ref) {
+                return file;
+            }
+        }
+
+        throw new IllegalAddressException();
+    }
+
+    /*
+     * FIFOs
+     */
+    @Override
+    public synchronized void addFIFO(FIFO fifo) {
+        if (!m_Locked) {
+            int newRef = 0;
+            if (!m_FIFOs.isEmpty()) {
+                newRef = m_FIFOs.lastKey() + 1;
+            }
+            m_FIFOs.put(newRef, fifo);
+        }
+    }
+
+    @Override
+    public synchronized void addFIFO(int ref, FIFO newFIFO) {
+        if (ref < 0 || ref >= MAX_SIZE) {
+            throw new IllegalArgumentException();
+        }
+
+        if (!m_Locked) {
+            m_FIFOs.put(ref, newFIFO);
+        }
+    }
+
+    @Override
+    public synchronized void removeFIFO(FIFO oldFIFO) {
+        if (!m_Locked) {
+            m_FIFOs.remove(getKeyByValue(m_FIFOs, oldFIFO));
+        }
+    }
+
+    @Override
+    public synchronized void setFIFO(int fifoNumber, FIFO fifo) {
+        if (!m_Locked) {
+            if (!m_FIFOs.containsKey(fifoNumber)) {
+                throw new IllegalAddressException();
+            }
+
+            m_FIFOs.replace(fifoNumber, fifo);
+        }
+    }
+
+    @Override
+    public synchronized FIFO getFIFO(int fifoNumber) {
+        FIFO result = m_FIFOs.get(fifoNumber);
+        if (result == null) {
+            throw new IllegalAddressException();
+        }
+
+        return result;
+    }
+
+    @Override
+    public synchronized int getFIFOCount() {
+        if (m_FIFOs.isEmpty()) {
+            return 0;
+        } else {
+            return m_FIFOs.lastKey() + 1;
+        }
+    }
+
+    @Override
+    public synchronized FIFO getFIFOByAddress(int ref) {
+        for (FIFO fifo : m_FIFOs.values()) {
+            if (fifo.getAddress() == ref) {
+                return fifo;
+            }
+        }
+
+        return null;
+    }
+
+
+    /*
+     * Storage
+     */
+    private static boolean isBits(Table table) {
+        return table == Table.COILS || table == Table.DISCRETE_INPUTS;
+    }
+
+    private int count(Table table) {
+        return m_Counts[table.ordinal()];
+    }
+
+    /**
+     * Orders the loads before the fence before the loads after it. Being a
+     * processor fence, it also orders them with respect to the stores of
+     * other processes.
+     */
+    private static void loadFence() {
+        fence(c_LoadFence);
+    }
+
+    /**
+     * Orders the loads and stores before the fence before the stores after
+     * it.
+     */
+    private static void storeFence() {
+        fence(c_StoreFence);
+    }
+
+    /**
+     * Invokes a fence of <tt>sun.misc.Unsafe</tt>.
+     */
+    private static void fence(MethodHandle fence) {
+        try {
+            fence.invokeExact();
+        } catch (RuntimeException | Error ex) {
+            throw ex;
+        } catch (Throwable ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Takes the writer lock of the file. Must be called while synchronized
+     * on the image, as the lock is held on behalf of the whole process.
+     */
+    private FileLock lockWriters() {
+        if (m_Closed) {
+            throw new IllegalStateException(m_Path + " is closed");
+        }
+        /*
+         * An interrupt closes the channel, so it is reopened and the
+         * interrupt is restored once the lock is held.
+         */
+        boolean interrupted = Thread.interrupted();
+        try {
+            while (true) {
+                try {
+                    if (!m_Channel.isOpen()) {
+                        m_Channel = FileChannel.open(m_Path,
+                                StandardOpenOption.READ,
+                                StandardOpenOption.WRITE);
+                    }
+                    return m_Channel.lock(LOCK_POSITION, 1, false);
+                } catch (ClosedByInterruptException ex) {
+                    interrupted |= Thread.interrupted();
+                }
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void unlock(FileLock lock) {
+        try {
+            lock.release();
+        } catch (IOException ex) {
+            // The lock is released with the channel.
+        }
+    }
+
+    private int sequenceOffset(Table table, int block) {
+        return m_SequenceOffsets[table.ordinal()] + 8 * block;
+    }
+
+    /**
+     * Makes the sequence numbers of the blocks of a range odd. Must be called
+     * by a writer.
+     */
+    private void beginWrite(Table table, int ref, int count) {
+        for (int b = ref >>> 6; b <= (ref + count - 1) >>> 6; b++) {
+            int offset = sequenceOffset(table, b);
+            m_Buffer.putLong(offset, m_Buffer.getLong(offset) | 1);
+        }
+        storeFence();
+    }
+
+    /**
+     * Makes the sequence numbers of the blocks of a range even again. Must be
+     * called by a writer.
+     */
+    private void endWrite(Table table, int ref, int count) {
+        storeFence();
+        for (int b = ref >>> 6; b <= (ref + count - 1) >>> 6; b++) {
+            int offset = sequenceOffset(table, b);
+            m_Buffer.putLong(offset, (m_Buffer.getLong(offset) | 1) + 1);
+        }
+    }
+
+    /**
+     * Makes the sequence numbers of the blocks of a range even, where a
+     * writer died while writing them. Must be called by a writer.
+     */
+    private void repair(ByteBuffer buffer, Table table, int ref, int count) {
+        for (int b = ref >>> 6; count > 0 && b <= (ref + count - 1) >>> 6;
+                b++) {
+            int offset = sequenceOffset(table, b);
+            long seq = buffer.getLong(offset);
+            if ((seq & 1) != 0) {
+                buffer.putLong(offset, seq + 1);
+            }
+        }
+    }
+
+    /**
+     * Returns the sum of the sequence numbers of the blocks of a range, or
+     * -1 if one of the blocks is being written.
+     */
+    private long sequenceSum(Table table, int ref, int count) {
+        long sum = 0;
+        for (int b = ref >>> 6; b <= (ref + count - 1) >>> 6; b++) {
+            long seq = m_Buffer.getLong(sequenceOffset(table, b));
+            if ((seq & 1) != 0) {
+                return -1;
+            }
+            sum += seq;
+        }
+        return sum;
+    }
+
+    /**
+     * Returns true if a range was copied without a write overlapping it.
+     * Sequence numbers never decrease, so the sums are equal only if no
+     * block was written in between.
+     */
+    private boolean validated(Table table, int ref, int count, long before) {
+        loadFence();
+        return sequenceSum(table, ref, count) == before;
+    }
+
+    private int getWord(Table table, int ref) throws IllegalAddressException {
+        checkRange(ref, 1, count(table));
+        return m_Buffer.getShort(m_DataOffsets[table.ordinal()] + 2 * ref)
+                & 0xFFFF;
+    }
+
+    private void setWord(Table table, int ref, int value)
+            throws IllegalAddressException {
+        synchronized (this) {
+            checkRange(ref, 1, count(table));
+            FileLock lock = lockWriters();
+            try {
+                beginWrite(table, ref, 1);
+                m_Buffer.putShort(m_DataOffsets[table.ordinal()] + 2 * ref,
+                        (short) value);
+                endWrite(table, ref, 1);
+            } finally {
+                unlock(lock);
+            }
+        }
+    }
+
+    private void copyWords(Table table, int ref, short[] dst, int off,
+            int count) {
+        int offset = m_DataOffsets[table.ordinal()] + 2 * ref;
+        for (int i = 0; i < count; i++) {
+            dst[off + i] = m_Buffer.getShort(offset + 2 * i);
+        }
+    }
+
+    private void putWords(Table table, int ref, short[] src, int off,
+            int count) {
+        int offset = m_DataOffsets[table.ordinal()] + 2 * ref;
+        for (int i = 0; i < count; i++) {
+            m_Buffer.putShort(offset + 2 * i, src[off + i]);
+        }
+    }
+
+    private void readWords(Table table, int ref, short[] dst, int off,
+            int count) throws IllegalAddressException {
+        checkRange(ref, count, count(table));
+        if (count == 0) {
+            return;
+        }
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            long before = sequenceSum(table, ref, count);
+            if (before < 0) {
+                Thread.yield();
+                continue;
+            }
+            loadFence();
+            copyWords(table, ref, dst, off, count);
+            if (validated(table, ref, count, before)) {
+                return;
+            }
+        }
+        synchronized (this) {
+            FileLock lock = lockWriters();
+            try {
+                repair(m_Buffer, table, ref, count);
+                copyWords(table, ref, dst, off, count);
+            } finally {
+                unlock(lock);
+            }
+        }
+    }
+
+    private void writeWords(Table table, int ref, short[] src, int off,
+            int count) throws IllegalAddressException {
+        synchronized (this) {
+            checkRange(ref, count, count(table));
+            if (count == 0) {
+                return;
+            }
+            FileLock lock = lockWriters();
+            try {
+                beginWrite(table, ref, count);
+                putWords(table, ref, src, off, count);
+                endWrite(table, ref, count);
+            } finally {
+                unlock(lock);
+            }
+        }
+    }
+
+    private int bitOffset(Table table, int ref) {
+        return m_DataOffsets[table.ordinal()] + 8 * (ref >>> 6);
+    }
+
+    private boolean getBit(Table table, int ref)
+            throws IllegalAddressException {
+        checkRange(ref, 1, count(table));
+        return (m_Buffer.getLong(bitOffset(table, ref)) & (1L << ref)) != 0;
+    }
+
+    private void putBit(Table table, int ref, boolean state) {
+        int offset = bitOffset(table, ref);
+        long word = m_Buffer.getLong(offset);
+        m_Buffer.putLong(offset, state ? word | (1L << ref)
+                : word & ~(1L << ref));
+    }
+
+    private void setBit(Table table, int ref, boolean state)
+            throws IllegalAddressException {
+        synchronized (this) {
+            checkRange(ref, 1, count(table));
+            FileLock lock = lockWriters();
+            try {
+                beginWrite(table, ref, 1);
+                putBit(table, ref, state);
+                endWrite(table, ref, 1);
+            } finally {
+                unlock(lock);
+            }
+        }
+    }
+
+    /**
+     * Packs bits into bytes, least significant bit first.
+     */
+    private void copyBits(Table table, int ref, int count, byte[] dst,
+            int off) {
+        Arrays.fill(dst, off, off + ((count + 7) >>> 3), (byte) 0);
+        for (int i = 0; i < count; i++) {
+            if ((m_Buffer.getLong(bitOffset(table, ref + i))
+                    & (1L << (ref + i))) != 0) {
+                dst[off + (i >>> 3)] |= 1 << (i & 7);
+            }
+        }
+    }
+
+    private void readBits(Table table, int ref, int count, byte[] dst,
+            int off) throws IllegalAddressException {
+        checkRange(ref, count, count(table));
+        if (count == 0) {
+            return;
+        }
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            long before = sequenceSum(table, ref, count);
+            if (before < 0) {
+                Thread.yield();
+                continue;
+            }
+            loadFence();
+            copyBits(table, ref, count, dst, off);
+            if (validated(table, ref, count, before)) {
+                return;
+            }
+        }
+        synchronized (this) {
+            FileLock lock = lockWriters();
+            try {
+                repair(m_Buffer, table, ref, count);
+                copyBits(table, ref, count, dst, off);
+            } finally {
+                unlock(lock);
+            }
+        }
+    }
+
+    /**
+     * Stores bits packed into bytes, least significant bit first.
+     */
+    private void writeBits(Table table, int ref, int count, byte[] src,
+            int off) throws IllegalAddressException {
+        synchronized (this) {
+            checkRange(ref, count, count(table));
+            if (count == 0) {
+                return;
+            }
+            FileLock lock = lockWriters();
+            try {
+                beginWrite(table, ref, count);
+                for (int i = 0; i < count; i++) {
+                    putBit(table, ref + i,
+                            (src[off + (i >>> 3)] & (1 << (i & 7))) != 0);
+                }
+                endWrite(table, ref, count);
+            } finally {
+                unlock(lock);
+            }
+        }
+    }
+
+    /*
+     * Helpers
+     */
+    private static void checkSize(int size) {
+        if (size < 0 || size > MAX_SIZE) {
+            throw new IllegalArgumentException();
+        }
+    }
+
+    private void checkCapacity(Table table, int ref) {
+        if (ref < 0 || ref >= count(table)) {
+            throw new IllegalArgumentException("Reference " + ref
+                    + " is past the end of the mapped table");
+        }
+    }
+
+    private static void checkRange(int ref, int count, int size)
+            throws IllegalAddressException {
+        if (ref < 0 || count < 0 || ref + count > size) {
+            throw new IllegalAddressException();
+        }
+    }
+
+    private static <T, E> T getKeyByValue(Map<T, E> map, E value) {
+        for (Entry<T, E> entry : map.entrySet()) {
+            if (Objects.equals(value, entry.getValue())) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Views
+     */
+    private class DiscreteView implements DigitalIn {
+
+        final int m_Ref;
+
+        DiscreteView(int ref) {
+            m_Ref = ref;
+        }
+
+        MappedProcessImage owner() {
+            return MappedProcessImage.this;
+        }
+
+        @Override
+        public boolean isSet() {
+            return getDiscrete(m_Ref);
+        }
+    }
+
+    private class CoilView implements DigitalOut {
+
+        final int m_Ref;
+
+        CoilView(int ref) {
+            m_Ref = ref;
+        }
+
+        MappedProcessImage owner() {
+            return MappedProcessImage.this;
+        }
+
+        @Override
+        public boolean isSet() {
+            return getCoil(m_Ref);
+        }
+
+        @Override
+        public void set(boolean b) {
+            setCoil(m_Ref, b);
+        }
+    }
+
+    private class InputRegisterView implements InputRegister {
+
+        final int m_Ref;
+
+        InputRegisterView(int ref) {
+            m_Ref = ref;
+        }
+
+        MappedProcessImage owner() {
+            return MappedProcessImage.this;
+        }
+
+        @Override
+        public int getValue() {
+            return getInputRegisterValue(m_Ref);
+        }
+
+        @Override
+        public int toUnsignedShort() {
+            return getInputRegisterValue(m_Ref);
+        }
+
+        @Override
+        public short toShort() {
+            return (short) getInputRegisterValue(m_Ref);
+        }
+
+        @Override
+        public byte[] toBytes() {
+            int value = getInputRegisterValue(m_Ref);
+            return new byte[]{(byte) (value >> 8), (byte) value};
+        }
+    }
+
+    private class RegisterView implements Register {
+
+        final int m_Ref;
+
+        RegisterView(int ref) {
+            m_Ref = ref;
+        }
+
+        MappedProcessImage owner() {
+            return MappedProcessImage.this;
+        }
+
+        @Override
+        public int getValue() {
+            return getRegisterValue(m_Ref);
+        }
+
+        @Override
+        public int toUnsignedShort() {
+            return getRegisterValue(m_Ref);
+        }
+
+        @Override
+        public short toShort() {
+            return (short) getRegisterValue(m_Ref);
+        }
+
+        @Override
+        public byte[] toBytes() {
+            int value = getRegisterValue(m_Ref);
+            return new byte[]{(byte) (value >> 8), (byte) value};
+        }
+
+        @Override
+        public void setValue(int v) {
+            setRegisterValue(m_Ref, v);
+        }
+
+        @Override
+        public void setValue(short s) {
+            setRegisterValue(m_Ref, s);
+        }
+
+        @Override
+        public void setValue(byte[] bytes) {
+            if (bytes.length < 2) {
+                throw new IllegalArgumentException();
+            }
+            setRegisterValue(m_Ref, ((bytes[0] & 0xff) << 8)
+                    | (bytes[1] & 0xff));
+        }
+    }
+}
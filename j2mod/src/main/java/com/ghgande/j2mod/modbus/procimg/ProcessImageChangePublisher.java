@@ -0,0 +1,633 @@
+//License
+/**
+ * *
+ * Java Modbus Library (j2mod) Copyright 2012, Julianne Frances Haugh d/b/a
+ * greenHouse Gas and Electric All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. *
+ */
+package com.ghgande.j2mod.modbus.procimg;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Class implementing a publisher of the value changes of a process image.
+ *
+ * <p>
+ * The publisher adds itself as a <tt>ProcessImageListener</tt> to the image
+ * it watches before it takes the values seen before, so no write to the
+ * image is missed, and removes itself when closed. Each written range is compared with the values seen before, and
+ * every value which really changed is published as a <tt>ValueChange</tt>,
+ * carrying its old and new value. Values written with the value they
+ * already had are not published. A value which was not in the image before
+ * is published with an old value of -1.
+ *
+ * <p>
+ * Subscribers follow the protocol of reactive streams: a subscriber is
+ * handed a <tt>Subscription</tt> in <tt>onSubscribe</tt>, and receives one
+ * batch of changes in <tt>onNext</tt> for each batch it requested. All
+ * calls to a subscriber are made on the executor, by one thread at a time.
+ * If the executor rejects a delivery, the subscription is failed instead,
+ * with <tt>onError</tt> called on the thread which scheduled the delivery.
+ * Changes arriving while a subscriber has no outstanding demand are kept
+ * according to its <tt>Policy</tt>.
+ *
+ * <p>
+ * Only the thread writing the image does the comparison; a slow subscriber
+ * never delays it.
+ */
+public class ProcessImageChangePublisher implements ProcessImageListener {
+
+    /**
+     * The receiver of published changes, mirroring
+     * <tt>java.util.concurrent.Flow.Subscriber</tt>.
+     */
+    public interface Subscriber {
+
+        /**
+         * Called once, before any other method.
+         *
+         * @param subscription the subscription for requesting and
+         * cancelling.
+         */
+        public void onSubscribe(Subscription subscription);
+
+        /**
+         * Called with the next batch of changes, in the order they were
+         * detected.
+         *
+         * @param changes the changes, never empty.
+         */
+        public void onNext(List<ValueChange> changes);
+
+        /**
+         * Called when the subscription fails. No further calls are made.
+         *
+         * @param error the failure.
+         */
+        public void onError(Throwable error);
+
+        /**
+         * Called when the publisher is closed and all kept changes have been
+         * delivered. No further calls are made.
+         */
+        public void onComplete();
+    }
+
+    /**
+     * The link between the publisher and one subscriber, mirroring
+     * <tt>java.util.concurrent.Flow.Subscription</tt>.
+     */
+    public interface Subscription {
+
+        /**
+         * Adds to the number of batches the subscriber is ready to receive.
+         * A non-positive number fails the subscription.
+         *
+         * @param n the number of batches.
+         */
+        public void request(long n);
+
+        /**
+         * Stops the delivery of changes. Kept changes are discarded.
+         */
+        public void cancel();
+    }
+
+    /**
+     * The handling of changes arriving faster than a subscriber requests
+     * them.
+     */
+    public enum Policy {
+        /**
+         * Every change is kept, up to the capacity of the subscription. A
+         * subscription exceeding its capacity fails with an
+         * <tt>IllegalStateException</tt>.
+         */
+        BUFFER,
+        /**
+         * Only the latest change of each value is kept, spanning from the
+         * oldest undelivered old value to the newest value. The kept state
+         * is bounded by the size of the subscribed range.
+         */
+        CONFLATE
+    }
+
+    private final ListenableProcessImage m_Image;
+    private final Executor m_Executor;
+    private final int m_BatchSize;
+    private final Map<Table, int[]> m_Values = new EnumMap<>(Table.class);
+    private final List<ChangeSubscription> m_Subscriptions
+            = new CopyOnWriteArrayList<>();
+    private volatile boolean m_Closed;
+
+    /**
+     * Constructs a new <tt>ProcessImageChangePublisher</tt> for the given
+     * image, and adds it as a listener to the image. The current values of
+     * the image are taken as the values seen before.
+     *
+     * @param image the image to watch.
+     * @param executor the executor calling the subscribers.
+     * @param batchSize the largest number of changes in a batch.
+     */
+    public ProcessImageChangePublisher(ListenableProcessImage image,
+            Executor executor, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Invalid batch size "
+                    + batchSize);
+        }
+        m_Image = image;
+        m_Executor = executor;
+        m_BatchSize = batchSize;
+
+        /*
+         * A write between the registration and the snapshot waits for the
+         * snapshot, and is then compared with it.
+         */
+        synchronized (this) {
+            image.addProcessImageListener(this);
+            snapshot(Table.COILS, image.getDigitalOutCount());
+            snapshot(Table.DISCRETE_INPUTS, image.getDigitalInCount());
+            snapshot(Table.INPUT_REGISTERS, image.getInputRegisterCount());
+            snapshot(Table.HOLDING_REGISTERS, image.getRegisterCount());
+        }
+    }
+
+    /**
+     * Constructs a new <tt>ProcessImageChangePublisher</tt> delivering up to
+     * 256 changes per batch.
+     *
+     * @param image the image to watch.
+     * @param executor the executor calling the subscribers.
+     */
+    public ProcessImageChangePublisher(ListenableProcessImage image,
+            Executor executor) {
+        this(image, executor, 256);
+    }
+
+    /**
+     * Subscribes to the changes of one range of one table.
+     *
+     * @param subscriber the subscriber.
+     * @param table the table, or <tt>null</tt> for all tables.
+     * @param ref the first reference of the range.
+     * @param count the number of references in the range.
+     * @param policy the handling of changes the subscriber has not
+     * requested yet.
+     * @param capacity the number of changes kept for a <tt>BUFFER</tt>
+     * subscription. Ignored for <tt>CONFLATE</tt>.
+     */
+    public void subscribe(Subscriber subscriber, Table table, int ref,
+            int count, Policy policy, int capacity) {
+        if (subscriber == null || policy == null) {
+            throw new NullPointerException();
+        }
+        if (ref < 0 || count < 0 || (policy == Policy.BUFFER && capacity < 1)) {
+            throw new IllegalArgumentException("Invalid subscription");
+        }
+        ChangeSubscription subscription = new ChangeSubscription(subscriber,
+                table, ref, ref + count, policy, capacity);
+        if (m_Closed) {
+            subscription.fail(new IllegalStateException("Publisher closed"));
+        } else {
+            m_Subscriptions.add(subscription);
+            if (m_Closed) {
+                subscription.complete();
+            }
+        }
+        subscription.schedule();
+    }
+
+    /**
+     * Subscribes to the changes of all tables, keeping up to 4096 changes
+     * the subscriber has not requested yet.
+     *
+     * @param subscriber the subscriber.
+     */
+    public void subscribe(Subscriber subscriber) {
+        subscribe(subscriber, null, 0, 65536, Policy.BUFFER, 4096);
+    }
+
+    /**
+     * Returns the number of active subscriptions.
+     *
+     * @return the number of subscriptions.
+     */
+    public int getSubscriberCount() {
+        return m_Subscriptions.size();
+    }
+
+    /**
+     * Closes the publisher and removes it from the image. Each subscriber
+     * receives the changes kept for it as far as it requests them, and is
+     * then completed.
+     */
+    public void close() {
+        m_Closed = true;
+        m_Image.removeProcessImageListener(this);
+        for (ChangeSubscription subscription : m_Subscriptions) {
+            subscription.complete();
+        }
+    }
+
+    /**
+     * Compares a written range with the values seen before and publishes
+     * the changes. Called on the thread writing the process image.
+     */
+    @Override
+    public void rangeChanged(ProcessImage image, Table table, int ref,
+            int count) {
+        if (image != m_Image || count <= 0 || m_Closed) {
+            return;
+        }
+        List<ValueChange> changes;
+        synchronized (this) {
+            int[] current = new int[count];
+            read(table, ref, count, current);
+
+            int[] values = grow(table, ref + count);
+            long now = System.currentTimeMillis();
+            changes = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                int value = current[i];
+                if (value >= 0 && value != values[ref + i]) {
+                    changes.add(new ValueChange(table, ref + i,
+                            values[ref + i], value, now));
+                }
+                values[ref + i] = value;
+            }
+            if (changes.isEmpty()) {
+                return;
+            }
+
+            /*
+             * Handing over while holding the lock keeps the changes of
+             * concurrent writers in the order they were detected.
+             */
+            for (ChangeSubscription subscription : m_Subscriptions) {
+                subscription.offer(changes);
+            }
+        }
+    }
+
+    private void snapshot(Table table, int count) {
+        int[] values = grow(table, count);
+        if (count > 0) {
+            read(table, 0, count, values);
+        }
+    }
+
+    /**
+     * Returns the values seen of a table, growing them to at least the
+     * given size. Values not seen are -1.
+     */
+    private int[] grow(Table table, int size) {
+        int[] values = m_Values.get(table);
+        if (values == null || values.length < size) {
+            int length = (values == null ? 0 : values.length);
+            int[] grown = (values == null ? new int[size]
+                    : Arrays.copyOf(values, Math.max(size, length * 2)));
+            Arrays.fill(grown, length, grown.length, -1);
+            m_Values.put(table, grown);
+            values = grown;
+        }
+        return values;
+    }
+
+    /**
+     * Reads the current values of a range. Values which are not in the
+     * image are read as -1.
+     */
+    private void read(Table table, int ref, int count, int[] dst) {
+        if (m_Image instanceof RangeProcessImage) {
+            try {
+                readRange((RangeProcessImage) m_Image, table, ref, count, dst);
+                return;
+            } catch (IllegalAddressException ex) {
+                // Part of the range is missing, read value by value.
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            try {
+                dst[i] = readValue(table, ref + i);
+            } catch (IllegalAddressException ex) {
+                dst[i] = -1;
+            }
+        }
+    }
+
+    private static void readRange(RangeProcessImage image, Table table,
+            int ref, int count, int[] dst) {
+        switch (table) {
+            case COILS:
+            case DISCRETE_INPUTS:
+                byte[] bits = new byte[(count + 7) / 8];
+                if (table == Table.COILS) {
+                    image.readCoils(ref, count, bits, 0);
+                } else {
+                    image.readDiscretes(ref, count, bits, 0);
+                }
+                for (int i = 0; i < count; i++) {
+                    dst[i] = (bits[i / 8] >> (i % 8)) & 1;
+                }
+                break;
+            default:
+                short[] words = new short[count];
+                if (table == Table.HOLDING_REGISTERS) {
+                    image.readRegisters(ref, words, 0, count);
+                } else {
+                    image.readInputRegisters(ref, words, 0, count);
+                }
+                for (int i = 0; i < count; i++) {
+                    dst[i] = words[i] & 0xFFFF;
+                }
+                break;
+        }
+    }
+
+    private int readValue(Table table, int ref) {
+        switch (table) {
+            case COILS:
+                return m_Image.getDigitalOut(ref).isSet() ? 1 : 0;
+            case DISCRETE_INPUTS:
+                return m_Image.getDigitalIn(ref).isSet() ? 1 : 0;
+            case INPUT_REGISTERS:
+                return m_Image.getInputRegister(ref).toUnsignedShort();
+            default:
+                return m_Image.getRegister(ref).toUnsignedShort();
+        }
+    }
+
+    /**
+     * The state of one subscriber. Changes are added on the writing thread
+     * and delivered by a single task on the executor, which reschedules
+     * itself as long as there is demand and something to deliver.
+     */
+    private class ChangeSubscription implements Subscription {
+
+        private final Subscriber m_Subscriber;
+        private final Table m_Table;
+        private final int m_From;
+        private final int m_To;
+        private final Policy m_Policy;
+        private final int m_Capacity;
+        private final ArrayDeque<ValueChange> m_Buffer = new ArrayDeque<>();
+        private final LinkedHashMap<Integer, ValueChange> m_Latest
+                = new LinkedHashMap<>();
+        private long m_Demand;
+        private boolean m_Started;
+        private boolean m_Scheduled;
+        private boolean m_Done;
+        private boolean m_Complete;
+        private Throwable m_Error;
+
+        ChangeSubscription(Subscriber subscriber, Table table, int from,
+                int to, Policy policy, int capacity) {
+            m_Subscriber = subscriber;
+            m_Table = table;
+            m_From = from;
+            m_To = to;
+            m_Policy = policy;
+            m_Capacity = capacity;
+        }
+
+        @Override
+        public void request(long n) {
+            synchronized (this) {
+                if (m_Done) {
+                    return;
+                }
+                if (n <= 0) {
+                    fail(new IllegalArgumentException(
+                            "Non-positive request " + n));
+                } else {
+                    m_Demand = (m_Demand + n < 0 ? Long.MAX_VALUE
+                            : m_Demand + n);
+                }
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                m_Done = true;
+                m_Buffer.clear();
+                m_Latest.clear();
+            }
+            m_Subscriptions.remove(this);
+        }
+
+        /**
+         * Keeps the changes this subscription is interested in.
+         */
+        void offer(List<ValueChange> changes) {
+            synchronized (this) {
+                if (m_Done || m_Error != null) {
+                    return;
+                }
+                for (ValueChange change : changes) {
+                    if ((m_Table != null && change.getTable() != m_Table)
+                            || change.getAddress() < m_From
+                            || change.getAddress() >= m_To) {
+                        continue;
+                    }
+                    if (m_Policy == Policy.CONFLATE) {
+                        conflate(change);
+                    } else if (m_Buffer.size() < m_Capacity) {
+                        m_Buffer.add(change);
+                    } else {
+                        fail(new IllegalStateException("More than "
+                                + m_Capacity + " changes not requested"));
+                        break;
+                    }
+                }
+                if (m_Demand == 0 && m_Error == null) {
+                    return;
+                }
+            }
+            schedule();
+        }
+
+        private void conflate(ValueChange change) {
+            Integer key = (change.getTable().ordinal() << 16)
+                    | change.getAddress();
+            ValueChange earlier = m_Latest.remove(key);
+            if (earlier != null) {
+                change = earlier.merge(change);
+                if (change.getOldValue() == change.getNewValue()) {
+                    return;
+                }
+            }
+            m_Latest.put(key, change);
+        }
+
+        /**
+         * Fails the subscription. Kept changes are discarded. Must be
+         * followed by <tt>schedule</tt>.
+         */
+        synchronized void fail(Throwable error) {
+            if (m_Error == null) {
+                m_Error = error;
+            }
+            m_Buffer.clear();
+            m_Latest.clear();
+        }
+
+        /**
+         * Completes the subscription once the kept changes are delivered.
+         */
+        void complete() {
+            synchronized (this) {
+                m_Complete = true;
+            }
+            schedule();
+        }
+
+        void schedule() {
+            synchronized (this) {
+                if (m_Scheduled || m_Done) {
+                    return;
+                }
+                m_Scheduled = true;
+            }
+            try {
+                m_Executor.execute(this::deliver);
+            } catch (RejectedExecutionException ex) {
+                Logger.getLogger(ProcessImageChangePublisher.class.getName()).log(Level.WARNING, "Change delivery rejected, subscription failed", ex);
+                reject(ex);
+            }
+        }
+
+        /**
+         * Fails the subscription on the calling thread, as the executor no
+         * longer runs its deliveries. No delivery is running, as this one
+         * was scheduled.
+         */
+        private void reject(RejectedExecutionException ex) {
+            boolean started;
+            Throwable error;
+            synchronized (this) {
+                fail(ex);
+                m_Done = true;
+                started = m_Started;
+                error = m_Error;
+            }
+            m_Subscriptions.remove(this);
+            try {
+                if (!started) {
+                    m_Started = true;
+                    m_Subscriber.onSubscribe(this);
+                }
+                m_Subscriber.onError(error);
+            } catch (RuntimeException failure) {
+                Logger.getLogger(ProcessImageChangePublisher.class.getName()).log(Level.SEVERE, "Subscriber failed", failure);
+            }
+        }
+
+        private int pending() {
+            return m_Policy == Policy.CONFLATE ? m_Latest.size()
+                    : m_Buffer.size();
+        }
+
+        private List<ValueChange> take() {
+            int size = Math.min(pending(), m_BatchSize);
+            List<ValueChange> batch = new ArrayList<>(size);
+            if (m_Policy == Policy.CONFLATE) {
+                Iterator<ValueChange> it = m_Latest.values().iterator();
+                while (batch.size() < size) {
+                    batch.add(it.next());
+                    it.remove();
+                }
+            } else {
+                while (batch.size() < size) {
+                    batch.add(m_Buffer.poll());
+                }
+            }
+            return batch;
+        }
+
+        /**
+         * Makes the calls due to the subscriber. Runs on the executor.
+         */
+        private void deliver() {
+            try {
+                if (!m_Started) {
+                    m_Started = true;
+                    m_Subscriber.onSubscribe(this);
+                }
+                while (true) {
+                    List<ValueChange> batch = null;
+                    Throwable error;
+                    synchronized (this) {
+                        error = m_Error;
+                        if (m_Done) {
+                            return;
+                        } else if (error != null) {
+                            m_Done = true;
+                        } else if (m_Demand > 0 && pending() > 0) {
+                            batch = take();
+                            if (m_Demand != Long.MAX_VALUE) {
+                                m_Demand--;
+                            }
+                        } else if (m_Complete && pending() == 0) {
+                            m_Done = true;
+                        } else {
+                            m_Scheduled = false;
+                            return;
+                        }
+                    }
+                    if (batch != null) {
+                        m_Subscriber.onNext(batch);
+                        continue;
+                    }
+                    m_Subscriptions.remove(this);
+                    if (error != null) {
+                        m_Subscriber.onError(error);
+                    } else {
+                        m_Subscriber.onComplete();
+                    }
+                    return;
+                }
+            } catch (RuntimeException ex) {
+                Logger.getLogger(ProcessImageChangePublisher.class.getName()).log(Level.SEVERE, "Subscriber failed, subscription cancelled", ex);
+                cancel();
+            }
+        }
+    }
+}
@@ -31,15 +31,20 @@
  */
 package com.ghgande.j2mod.modbus.procimg;
 
+import java.util.Arrays;
+
 /**
  * Interface defining implementation specific details of the
  * <tt>ProcessImage</tt>, adding mechanisms for creating and modifying the
  * actual "process image".
+ * <p>
+ * The range methods of <tt>RangeProcessImage</tt> are implemented over the
+ * object views, holding the monitor of the image.
  *
  * @author Dieter Wimberger
  * @version 1.2rc1 (09/11/2004)
  */
-public interface ProcessImageImplementation extends ProcessImage {
+public interface ProcessImageImplementation extends RangeProcessImage {
 
     /**
      * Sets a new <tt>DigitalOut</tt> instance at the given reference.
@@ -244,6 +249,184 @@ public interface ProcessImageImplementation extends ProcessImage {
      */
     public void removeFIFO(FIFO reg);
 
+    /**
+     * Copies holding register values out of the image. The default
+     * implementation copies the values of the register objects while
+     * holding the monitor of the image.
+     */
+    @Override
+    public default void readRegisters(int ref, short[] dst, int off,
+            int count) throws IllegalAddressException {
+        synchronized (this) {
+            Register[] regs = getRegisterRange(ref, count);
+            for (int i = 0; i < count; i++) {
+                dst[off + i] = regs[i].toShort();
+            }
+        }
+    }
+
+    /**
+     * Copies holding register values into the image. The default
+     * implementation sets the values of the register objects while holding
+     * the monitor of the image. It checks the whole range before writing
+     * any value.
+     */
+    @Override
+    public default void writeRegisters(int ref, short[] src, int off,
+            int count) throws IllegalAddressException {
+        synchronized (this) {
+            Register[] regs = getRegisterRange(ref, count);
+            for (int i = 0; i < count; i++) {
+                regs[i].setValue(src[off + i]);
+            }
+        }
+    }
+
+    /**
+     * Writes and then reads holding registers as one atomic operation. The
+     * default implementation sets and copies the values of the register
+     * objects while holding the monitor of the image, without calling
+     * <tt>writeRegisters</tt>, so that an implementation reporting changes
+     * to listeners does so after the monitor has been released.
+     */
+    @Override
+    public default void readWriteRegisters(int writeRef, short[] src,
+            int srcOff, int writeCount, int readRef, short[] dst, int dstOff,
+            int readCount) throws IllegalAddressException {
+        synchronized (this) {
+            Register[] writeRegs = getRegisterRange(writeRef, writeCount);
+            Register[] readRegs = getRegisterRange(readRef, readCount);
+            for (int i = 0; i < writeCount; i++) {
+                writeRegs[i].setValue(src[srcOff + i]);
+            }
+            for (int i = 0; i < readCount; i++) {
+                dst[dstOff + i] = readRegs[i].toShort();
+            }
+        }
+    }
+
+    /**
+     * Copies input register values out of the image. The default
+     * implementation copies the values of the input register objects while
+     * holding the monitor of the image.
+     */
+    @Override
+    public default void readInputRegisters(int ref, short[] dst, int off,
+            int count) throws IllegalAddressException {
+        synchronized (this) {
+            InputRegister[] regs = getInputRegisterRange(ref, count);
+            for (int i = 0; i < count; i++) {
+                dst[off + i] = regs[i].toShort();
+            }
+        }
+    }
+
+    /**
+     * Copies input register values into the image. The default
+     * implementation sets the values of the input register objects while
+     * holding the monitor of the image, which requires each of them to be a
+     * <tt>Register</tt>, such as a <tt>SimpleInputRegister</tt>.
+     *
+     * @throws UnsupportedOperationException if an input register of the
+     * range cannot be written. No value is written then.
+     */
+    @Override
+    public default void writeInputRegisters(int ref, short[] src, int off,
+            int count) throws IllegalAddressException {
+        synchronized (this) {
+            InputRegister[] regs = getInputRegisterRange(ref, count);
+            for (int i = 0; i < count; i++) {
+                if (!(regs[i] instanceof Register)) {
+                    throw new UnsupportedOperationException("Input register "
+                            + (ref + i) + " is read-only");
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                ((Register) regs[i]).setValue(src[off + i]);
+            }
+        }
+    }
+
+    /**
+     * Copies coil states out of the image. The default implementation
+     * copies the states of the coil objects while holding the monitor of
+     * the image.
+     */
+    @Override
+    public default void readCoils(int ref, int count, byte[] dst, int off)
+            throws IllegalAddressException {
+        synchronized (this) {
+            DigitalOut[] douts = getDigitalOutRange(ref, count);
+            Arrays.fill(dst, off, off + ((count + 7) >>> 3), (byte) 0);
+            for (int i = 0; i < count; i++) {
+                if (douts[i].isSet()) {
+                    dst[off + (i >>> 3)] |= 1 << (i & 7);
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies packed coil states into the image. The default implementation
+     * sets the coil objects while holding the monitor of the image.
+     */
+    @Override
+    public default void writeCoils(int ref, int count, byte[] src, int off)
+            throws IllegalAddressException {
+        synchronized (this) {
+            DigitalOut[] douts = getDigitalOutRange(ref, count);
+            for (int i = 0; i < count; i++) {
+                douts[i].set((src[off + (i >>> 3)] & (1 << (i & 7))) != 0);
+            }
+        }
+    }
+
+    /**
+     * Copies discrete input states out of the image. The default
+     * implementation copies the states of the discrete input objects while
+     * holding the monitor of the image.
+     */
+    @Override
+    public default void readDiscretes(int ref, int count, byte[] dst, int off)
+            throws IllegalAddressException {
+        synchronized (this) {
+            DigitalIn[] dins = getDigitalInRange(ref, count);
+            Arrays.fill(dst, off, off + ((count + 7) >>> 3), (byte) 0);
+            for (int i = 0; i < count; i++) {
+                if (dins[i].isSet()) {
+                    dst[off + (i >>> 3)] |= 1 << (i & 7);
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies packed discrete input states into the image. The default
+     * implementation sets the discrete input objects while holding the
+     * monitor of the image, which requires each of them to be a
+     * <tt>SimpleDigitalIn</tt>.
+     *
+     * @throws UnsupportedOperationException if a discrete input of the range
+     * cannot be written. No state is written then.
+     */
+    @Override
+    public default void writeDiscretes(int ref, int count, byte[] src,
+            int off) throws IllegalAddressException {
+        synchronized (this) {
+            DigitalIn[] dins = getDigitalInRange(ref, count);
+            for (int i = 0; i < count; i++) {
+                if (!(dins[i] instanceof SimpleDigitalIn)) {
+                    throw new UnsupportedOperationException("Discrete input "
+                            + (ref + i) + " is read-only");
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                ((SimpleDigitalIn) dins[i]).set(
+                        (src[off + (i >>> 3)] & (1 << (i & 7))) != 0);
+            }
+        }
+    }
+
     /**
      * Defines the set state (i.e. <b>true</b>) of a digital input or output.
      */
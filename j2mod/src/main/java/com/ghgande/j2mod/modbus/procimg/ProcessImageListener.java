@@ -0,0 +1,65 @@
+//License
+/**
+ * *
+ * Java Modbus Library (j2mod) Copyright 2012, Julianne Frances Haugh d/b/a
+ * greenHouse Gas and Electric All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. *
+ */
+package com.ghgande.j2mod.modbus.procimg;
+
+/**
+ * Interface defining a listener for changes of the values in a process
+ * image.
+ * <p>
+ * A write through the range methods of a process image, such as a whole
+ * Modbus write request, is reported as one change of a range of references.
+ * Listeners are called on the thread which wrote the values; a listener
+ * which does more than record the change should be wrapped in an
+ * <tt>AsyncProcessImageListener</tt>. The individual changed values, with
+ * their old and new values, are published by a
+ * <tt>ProcessImageChangePublisher</tt>.
+ */
+public interface ProcessImageListener {
+
+    /**
+     * The tables of values of a process image.
+     */
+    public enum Table {
+        COILS, DISCRETE_INPUTS, INPUT_REGISTERS, HOLDING_REGISTERS
+    }
+
+    /**
+     * Called after values of a process image have been written.
+     *
+     * @param image the process image.
+     * @param table the table written to.
+     * @param ref the reference of the first value written.
+     * @param count the number of values written.
+     */
+    public void rangeChanged(ProcessImage image, Table table, int ref,
+            int count);
+}
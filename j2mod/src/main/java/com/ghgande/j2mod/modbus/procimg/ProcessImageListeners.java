@@ -0,0 +1,76 @@
+//License
+/**
+ * *
+ * Java Modbus Library (j2mod) Copyright 2012, Julianne Frances Haugh d/b/a
+ * greenHouse Gas and Electric All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. *
+ */
+package com.ghgande.j2mod.modbus.procimg;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Class holding the <tt>ProcessImageListener</tt> instances of a process
+ * image.
+ */
+final class ProcessImageListeners {
+
+    private final ProcessImage m_Image;
+    private final CopyOnWriteArrayList<ProcessImageListener> m_Listeners
+            = new CopyOnWriteArrayList<>();
+
+    ProcessImageListeners(ProcessImage image) {
+        m_Image = image;
+    }
+
+    void add(ProcessImageListener listener) {
+        m_Listeners.addIfAbsent(listener);
+    }
+
+    void remove(ProcessImageListener listener) {
+        m_Listeners.remove(listener);
+    }
+
+    /**
+     * Reports a change to all listeners. A listener which fails does not
+     * keep the others from being called.
+     */
+    void fire(ProcessImageListener.Table table, int ref, int count) {
+        if (count <= 0) {
+            return;
+        }
+        for (ProcessImageListener listener : m_Listeners) {
+            try {
+                listener.rangeChanged(m_Image, table, ref, count);
+            } catch (RuntimeException ex) {
+                Logger.getLogger(ProcessImageListeners.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+}
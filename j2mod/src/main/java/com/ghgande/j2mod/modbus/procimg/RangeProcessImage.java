@@ -0,0 +1,190 @@
+//License
+/**
+ * *
+ * Java Modbus Library (j2mod) Copyright 2012, Julianne Frances Haugh d/b/a
+ * greenHouse Gas and Electric All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. *
+ */
+package com.ghgande.j2mod.modbus.procimg;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Interface defining a process image which copies ranges of values in and
+ * out without creating objects.
+ * <p>
+ * Each method copies its range atomically: a read never returns part of the
+ * values of a concurrent write, so a value spanning several registers, such
+ * as a 32 bit float, is never torn. A write is reported to the listeners of
+ * the image as one change. Requests executed against a
+ * <tt>RangeProcessImage</tt> use these methods instead of the object views.
+ * <p>
+ * Every <tt>ProcessImageImplementation</tt> is a <tt>RangeProcessImage</tt>;
+ * its default methods copy the values of the objects while holding the
+ * monitor of the image. On such an image, as a <tt>SimpleProcessImage</tt>,
+ * the ranges are only atomic against writers which also hold that monitor:
+ * a value set directly on an object returned by <tt>getRegister</tt> or the
+ * other getters may still tear a range being read.
+ */
+public interface RangeProcessImage extends ProcessImage {
+
+    /**
+     * Copies holding register values out of the image.
+     *
+     * @param ref the reference of the first register.
+     * @param dst the array receiving the values.
+     * @param off the offset in <tt>dst</tt>.
+     * @param count the number of registers.
+     * @throws IllegalAddressException if the range is not in the image.
+     */
+    public void readRegisters(int ref, short[] dst, int off, int count)
+            throws IllegalAddressException;
+
+    /**
+     * Copies holding register values into the image.
+     *
+     * @param ref the reference of the first register.
+     * @param src the array holding the values.
+     * @param off the offset in <tt>src</tt>.
+     * @param count the number of registers.
+     * @throws IllegalAddressException if the range is not in the image.
+     */
+    public void writeRegisters(int ref, short[] src, int off, int count)
+            throws IllegalAddressException;
+
+    /**
+     * Copies holding register values in network byte order from a buffer
+     * into the image, as by <tt>writeRegisters(int, short[], int, int)</tt>.
+     *
+     * @param ref the reference of the first register.
+     * @param src the buffer holding the values from its position on. The
+     * position is advanced past the values.
+     * @param count the number of registers.
+     * @throws IllegalAddressException if the range is not in the image.
+     */
+    public default void writeRegisters(int ref, ByteBuffer src, int count)
+            throws IllegalAddressException {
+        short[] values = new short[count];
+        src.duplicate().order(ByteOrder.BIG_ENDIAN).asShortBuffer().get(values);
+        src.position(src.position() + 2 * count);
+        writeRegisters(ref, values, 0, count);
+    }
+
+    /**
+     * Writes holding registers and then reads holding registers as one
+     * atomic operation, as required by the Read/Write Multiple Registers
+     * function. Both ranges are checked before any value is written.
+     *
+     * @param writeRef the reference of the first register to write.
+     * @param src the array holding the values to write.
+     * @param srcOff the offset in <tt>src</tt>.
+     * @param writeCount the number of registers to write.
+     * @param readRef the reference of the first register to read.
+     * @param dst the array receiving the values read.
+     * @param dstOff the offset in <tt>dst</tt>.
+     * @param readCount the number of registers to read.
+     * @throws IllegalAddressException if a range is not in the image.
+     */
+    public void readWriteRegisters(int writeRef, short[] src, int srcOff,
+            int writeCount, int readRef, short[] dst, int dstOff,
+            int readCount) throws IllegalAddressException;
+
+    /**
+     * Copies input register values out of the image.
+     *
+     * @param ref the reference of the first input register.
+     * @param dst the array receiving the values.
+     * @param off the offset in <tt>dst</tt>.
+     * @param count the number of input registers.
+     * @throws IllegalAddressException if the range is not in the image.
+     */
+    public void readInputRegisters(int ref, short[] dst, int off, int count)
+            throws IllegalAddressException;
+
+    /**
+     * Copies input register values into the image.
+     *
+     * @param ref the reference of the first input register.
+     * @param src the array holding the values.
+     * @param off the offset in <tt>src</tt>.
+     * @param count the number of input registers.
+     * @throws IllegalAddressException if the range is not in the image.
+     */
+    public void writeInputRegisters(int ref, short[] src, int off, int count)
+            throws IllegalAddressException;
+
+    /**
+     * Copies coil states out of the image, packed eight to a byte with the
+     * lowest reference in the least significant bit, as on the wire.
+     *
+     * @param ref the reference of the first coil.
+     * @param count the number of coils.
+     * @param dst the array receiving the packed states.
+     * @param off the offset in <tt>dst</tt>.
+     * @throws IllegalAddressException if the range is not in the image.
+     */
+    public void readCoils(int ref, int count, byte[] dst, int off)
+            throws IllegalAddressException;
+
+    /**
+     * Copies packed coil states into the image.
+     *
+     * @param ref the reference of the first coil.
+     * @param count the number of coils.
+     * @param src the array holding the packed states.
+     * @param off the offset in <tt>src</tt>.
+     * @throws IllegalAddressException if the range is not in the image.
+     */
+    public void writeCoils(int ref, int count, byte[] src, int off)
+            throws IllegalAddressException;
+
+    /**
+     * Copies discrete input states out of the image, packed as by
+     * <tt>readCoils</tt>.
+     *
+     * @param ref the reference of the first discrete input.
+     * @param count the number of discrete inputs.
+     * @param dst the array receiving the packed states.
+     * @param off the offset in <tt>dst</tt>.
+     * @throws IllegalAddressException if the range is not in the image.
+     */
+    public void readDiscretes(int ref, int count, byte[] dst, int off)
+            throws IllegalAddressException;
+
+    /**
+     * Copies packed discrete input states into the image.
+     *
+     * @param ref the reference of the first discrete input.
+     * @param count the number of discrete inputs.
+     * @param src the array holding the packed states.
+     * @param off the offset in <tt>src</tt>.
+     * @throws IllegalAddressException if the range is not in the image.
+     */
+    public void writeDiscretes(int ref, int count, byte[] src, int off)
+            throws IllegalAddressException;
+}
@@ -0,0 +1,223 @@
+//License
+/**
+ * *
+ * Java Modbus Library (j2mod) Copyright 2012, Julianne Frances Haugh d/b/a
+ * greenHouse Gas and Electric All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. *
+ */
+package com.ghgande.j2mod.modbus.procimg;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Class implementing an array of 16 bit words guarded by sequence locks.
+ *
+ * <p>
+ * The words are divided into blocks of 64, each with a sequence number which
+ * is odd while the block is being written. A reader copies a range without
+ * locking and checks that the sequence numbers of its blocks were even and
+ * unchanged, retrying otherwise, so a range read never sees half of a write
+ * and never blocks a writer.
+ *
+ * <p>
+ * Two words are packed into each <tt>int</tt>, the even one in the low
+ * half, so the array takes no more memory than a <tt>short[]</tt>.
+ *
+ * <p>
+ * Writers must be serialized by the caller.
+ */
+final class SeqLockWords {
+
+    private static final int BLOCK_SHIFT = 6;
+
+    /**
+     * The number of optimistic attempts of a read before it should fall back
+     * to excluding the writers.
+     */
+    private static final int MAX_ATTEMPTS = 8;
+
+    private final int m_Capacity;
+    private final AtomicIntegerArray m_Words;
+    private final AtomicLongArray m_Sequences;
+
+    /**
+     * Constructs a new <tt>SeqLockWords</tt> of zero words.
+     *
+     * @param capacity the number of words.
+     */
+    SeqLockWords(int capacity) {
+        m_Capacity = capacity;
+        m_Words = new AtomicIntegerArray((capacity + 1) >>> 1);
+        m_Sequences = new AtomicLongArray((capacity >>> BLOCK_SHIFT) + 1);
+    }
+
+    /**
+     * Returns the number of words.
+     */
+    int capacity() {
+        return m_Capacity;
+    }
+
+    /**
+     * Returns a copy with at least the given capacity, or this instance if it
+     * is large enough. Must be called by a writer.
+     */
+    SeqLockWords grow(int size, int max) {
+        if (size <= capacity()) {
+            return this;
+        }
+        SeqLockWords grown = new SeqLockWords(Math.min(max,
+                Math.max(size, capacity() * 2)));
+        for (int i = 0; i < m_Words.length(); i++) {
+            grown.m_Words.lazySet(i, m_Words.get(i));
+        }
+        return grown;
+    }
+
+    /**
+     * Returns one word as an unsigned value.
+     */
+    int get(int index) {
+        return unpack(m_Words.get(index >>> 1), index);
+    }
+
+    /**
+     * Sets one word. Must be called by a writer.
+     */
+    void set(int index, int value) {
+        int block = index >>> BLOCK_SHIFT;
+        m_Sequences.incrementAndGet(block);
+        store(index, value);
+        m_Sequences.incrementAndGet(block);
+    }
+
+    /**
+     * Copies words into the array. Must be called by a writer.
+     */
+    void write(int ref, short[] src, int off, int count) {
+        if (count == 0) {
+            return;
+        }
+        int first = ref >>> BLOCK_SHIFT;
+        int last = (ref + count - 1) >>> BLOCK_SHIFT;
+        for (int b = first; b <= last; b++) {
+            m_Sequences.incrementAndGet(b);
+        }
+        for (int i = 0; i < count; i++) {
+            store(ref + i, src[off + i]);
+        }
+        for (int b = first; b <= last; b++) {
+            m_Sequences.incrementAndGet(b);
+        }
+    }
+
+    /**
+     * Copies words out of the array without locking.
+     *
+     * @return false if every attempt overlapped a write, in which case the
+     * caller must exclude the writers and use <tt>readExclusive</tt>.
+     */
+    boolean tryRead(int ref, short[] dst, int off, int count) {
+        if (count == 0) {
+            return true;
+        }
+        int first = ref >>> BLOCK_SHIFT;
+        int last = (ref + count - 1) >>> BLOCK_SHIFT;
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            /*
+             * Sequence numbers never decrease, so the sums are equal only if
+             * no block was written in between.
+             */
+            long before = 0;
+            boolean writing = false;
+            for (int b = first; b <= last; b++) {
+                long seq = m_Sequences.get(b);
+                writing |= (seq & 1) != 0;
+                before += seq;
+            }
+            if (writing) {
+                Thread.yield();
+                continue;
+            }
+            copy(ref, dst, off, count);
+            long after = 0;
+            for (int b = first; b <= last; b++) {
+                after += m_Sequences.get(b);
+            }
+            if (after == before) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copies words out of the array while no writer is active.
+     */
+    void readExclusive(int ref, short[] dst, int off, int count) {
+        copy(ref, dst, off, count);
+    }
+
+    /**
+     * Copies words out of the array, reading each packed pair once.
+     */
+    private void copy(int ref, short[] dst, int off, int count) {
+        int i = 0;
+        if ((ref & 1) != 0 && count > 0) {
+            dst[off] = (short) (m_Words.get(ref >>> 1) >>> 16);
+            i = 1;
+        }
+        for (; i + 1 < count; i += 2) {
+            int pair = m_Words.get((ref + i) >>> 1);
+            dst[off + i] = (short) pair;
+            dst[off + i + 1] = (short) (pair >>> 16);
+        }
+        if (i < count) {
+            dst[off + i] = (short) m_Words.get((ref + i) >>> 1);
+        }
+    }
+
+    /**
+     * Stores one word into its half of the packed pair. Only the writer
+     * modifies the pairs, so the other half cannot change meanwhile.
+     */
+    private void store(int index, int value) {
+        int slot = index >>> 1;
+        int shift = (index & 1) << 4;
+        int pair = m_Words.get(slot);
+        m_Words.set(slot, (pair & ~(0xFFFF << shift))
+                | ((value & 0xFFFF) << shift));
+    }
+
+    /**
+     * Extracts one word from its packed pair.
+     */
+    private static int unpack(int pair, int index) {
+        return (pair >>> ((index & 1) << 4)) & 0xFFFF;
+    }
+}
@@ -81,7 +81,8 @@ import java.util.TreeMap;
  *
  * @author Julie Added support for files of records.
  */
-public class SimpleProcessImage implements ProcessImageImplementation {
+public class SimpleProcessImage implements ProcessImageImplementation,
+        ListenableProcessImage {
 
     // instance attributes
     protected final NavigableMap<Integer, DigitalIn> m_DigitalInputs;
@@ -92,6 +93,8 @@ public class SimpleProcessImage implements ProcessImageImplementation {
     protected final NavigableMap<Integer, FIFO> m_FIFOs;
     protected boolean m_Locked = false;
     protected int m_Unit = 0;
+    private final ProcessImageListeners m_Listeners
+            = new ProcessImageListeners(this);
 
     /**
      * Constructs a new <tt>SimpleProcessImage</tt> instance.
@@ -159,6 +162,70 @@ public class SimpleProcessImage implements ProcessImageImplementation {
         return m_Unit;
     }
 
+    /**
+     * Adds a listener which is told about the values written through the
+     * range methods of this image, such as by Modbus write requests. Values
+     * set directly on the objects of the image are not reported.
+     *
+     * @param listener the <tt>ProcessImageListener</tt> to add.
+     */
+    @Override
+    public void addProcessImageListener(ProcessImageListener listener) {
+        m_Listeners.add(listener);
+    }
+
+    /**
+     * Removes a listener.
+     *
+     * @param listener the <tt>ProcessImageListener</tt> to remove.
+     */
+    @Override
+    public void removeProcessImageListener(ProcessImageListener listener) {
+        m_Listeners.remove(listener);
+    }
+
+    @Override
+    public void writeRegisters(int ref, short[] src, int off, int count)
+            throws IllegalAddressException {
+        ProcessImageImplementation.super.writeRegisters(ref, src, off, count);
+        m_Listeners.fire(ProcessImageListener.Table.HOLDING_REGISTERS, ref,
+                count);
+    }
+
+    @Override
+    public void writeCoils(int ref, int count, byte[] src, int off)
+            throws IllegalAddressException {
+        ProcessImageImplementation.super.writeCoils(ref, count, src, off);
+        m_Listeners.fire(ProcessImageListener.Table.COILS, ref, count);
+    }
+
+    @Override
+    public void readWriteRegisters(int writeRef, short[] src, int srcOff,
+            int writeCount, int readRef, short[] dst, int dstOff,
+            int readCount) throws IllegalAddressException {
+        ProcessImageImplementation.super.readWriteRegisters(writeRef, src,
+                srcOff, writeCount, readRef, dst, dstOff, readCount);
+        m_Listeners.fire(ProcessImageListener.Table.HOLDING_REGISTERS,
+                writeRef, writeCount);
+    }
+
+    @Override
+    public void writeInputRegisters(int ref, short[] src, int off, int count)
+            throws IllegalAddressException {
+        ProcessImageImplementation.super.writeInputRegisters(ref, src, off,
+                count);
+        m_Listeners.fire(ProcessImageListener.Table.INPUT_REGISTERS, ref,
+                count);
+    }
+
+    @Override
+    public void writeDiscretes(int ref, int count, byte[] src, int off)
+            throws IllegalAddressException {
+        ProcessImageImplementation.super.writeDiscretes(ref, count, src, off);
+        m_Listeners.fire(ProcessImageListener.Table.DISCRETE_INPUTS, ref,
+                count);
+    }
+
     @Override
     public void addDigitalIn(DigitalIn di) {
         if (!isLocked()) {
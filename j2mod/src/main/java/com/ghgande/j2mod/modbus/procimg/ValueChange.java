@@ -0,0 +1,105 @@
+//License
+/**
+ * *
+ * Java Modbus Library (j2mod) Copyright 2012, Julianne Frances Haugh d/b/a
+ * greenHouse Gas and Electric All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. *
+ */
+package com.ghgande.j2mod.modbus.procimg;
+
+import com.ghgande.j2mod.modbus.procimg.ProcessImageListener.Table;
+
+/**
+ * Class representing the change of one value of a process image.
+ * <p>
+ * Coils and discrete inputs have the values 0 and 1.
+ */
+public final class ValueChange {
+
+    private final Table m_Table;
+    private final int m_Address;
+    private final int m_OldValue;
+    private final int m_NewValue;
+    private final long m_Timestamp;
+
+    /**
+     * Constructs a new <tt>ValueChange</tt>.
+     *
+     * @param table the table of the value.
+     * @param address the reference of the value.
+     * @param oldValue the value before the change.
+     * @param newValue the value after the change.
+     * @param timestamp the time the change was detected, in milliseconds
+     * since the epoch.
+     */
+    public ValueChange(Table table, int address, int oldValue, int newValue,
+            long timestamp) {
+        m_Table = table;
+        m_Address = address;
+        m_OldValue = oldValue;
+        m_NewValue = newValue;
+        m_Timestamp = timestamp;
+    }
+
+    public Table getTable() {
+        return m_Table;
+    }
+
+    public int getAddress() {
+        return m_Address;
+    }
+
+    public int getOldValue() {
+        return m_OldValue;
+    }
+
+    public int getNewValue() {
+        return m_NewValue;
+    }
+
+    public long getTimestamp() {
+        return m_Timestamp;
+    }
+
+    /**
+     * Returns a change from the old value of this change to the new value
+     * of a later change of the same value.
+     *
+     * @param later the later change.
+     * @return the combined <tt>ValueChange</tt>.
+     */
+    ValueChange merge(ValueChange later) {
+        return new ValueChange(m_Table, m_Address, m_OldValue,
+                later.m_NewValue, later.m_Timestamp);
+    }
+
+    @Override
+    public String toString() {
+        return m_Table + "[" + m_Address + "]: " + m_OldValue + " -> "
+                + m_NewValue + " @" + m_Timestamp;
+    }
+}
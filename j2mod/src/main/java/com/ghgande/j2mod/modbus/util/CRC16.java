@@ -0,0 +1,248 @@
+//License
+/**
+ * *
+ * Java Modbus Library (j2mod) Copyright 2012, Julianne Frances Haugh d/b/a
+ * greenHouse Gas and Electric All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. *
+ */
+package com.ghgande.j2mod.modbus.util;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * Class implementing the Modbus/RTU CRC (CRC-16, reflected polynomial
+ * <tt>0xA001</tt>, initial value <tt>0xFFFF</tt>).
+ * <p>
+ * The CRC is kept as a primitive <tt>int</tt>; the byte transmitted first
+ * is the low order byte. The static methods are allocation free and can be
+ * chained across buffer fragments by passing the result of one call as the
+ * <tt>crc</tt> argument of the next, starting from {@link #INITIAL_VALUE}.
+ * Eight bytes are folded per step using slice-by-8 lookup tables.
+ * <p>
+ * Running a complete frame, including its trailing CRC, through the
+ * calculation yields zero; see {@link #isValid(byte[], int, int)}.
+ */
+public final class CRC16 implements Checksum {
+
+    /**
+     * The initial value of the CRC register.
+     */
+    public static final int INITIAL_VALUE = 0xFFFF;
+
+    private static final int POLYNOMIAL = 0xA001;
+
+    /* eight 256 entry tables, table k at offset k * 256 */
+    private static final int[] TABLE = new int[8 * 256];
+
+    static {
+        for (int n = 0; n < 256; n++) {
+            int crc = n;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = ((crc & 1) != 0) ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+            }
+            TABLE[n] = crc;
+        }
+        for (int k = 1; k < 8; k++) {
+            for (int n = 0; n < 256; n++) {
+                int prev = TABLE[(k - 1) * 256 + n];
+                TABLE[k * 256 + n] = (prev >>> 8) ^ TABLE[prev & 0xFF];
+            }
+        }
+    }//static
+
+    private int m_CRC = INITIAL_VALUE;
+
+    /**
+     * Constructs a new <tt>CRC16</tt> instance holding the initial value.
+     */
+    public CRC16() {
+    }//constructor
+
+    public void update(int b) {
+        m_CRC = (m_CRC >>> 8) ^ TABLE[(m_CRC ^ b) & 0xFF];
+    }//update
+
+    public void update(byte[] b, int off, int len) {
+        m_CRC = update(m_CRC, b, off, len);
+    }//update
+
+    /**
+     * Updates the CRC with the remaining bytes of the given buffer. On
+     * return the position of the buffer equals its limit.
+     *
+     * @param buf the <tt>ByteBuffer</tt> to be consumed.
+     */
+    public void update(ByteBuffer buf) {
+        int pos = buf.position();
+        int len = buf.limit() - pos;
+        m_CRC = update(m_CRC, buf, pos, len);
+        buf.position(pos + len);
+    }//update
+
+    public long getValue() {
+        return m_CRC;
+    }//getValue
+
+    /**
+     * Returns the current CRC as an <tt>int</tt>.
+     *
+     * @return the CRC, low order byte first on the wire.
+     */
+    public int getCRC() {
+        return m_CRC;
+    }//getCRC
+
+    public void reset() {
+        m_CRC = INITIAL_VALUE;
+    }//reset
+
+    /**
+     * Calculates the CRC of <tt>len</tt> bytes starting at <tt>off</tt>.
+     *
+     * @param b the data.
+     * @param off the offset of the first byte.
+     * @param len the number of bytes.
+     * @return the CRC, low order byte first on the wire.
+     */
+    public static int calculate(byte[] b, int off, int len) {
+        return update(INITIAL_VALUE, b, off, len);
+    }//calculate
+
+    /**
+     * Calculates the CRC of <tt>len</tt> bytes starting at the absolute
+     * index <tt>index</tt>; the position of the buffer is not changed.
+     *
+     * @param buf the data.
+     * @param index the index of the first byte.
+     * @param len the number of bytes.
+     * @return the CRC, low order byte first on the wire.
+     */
+    public static int calculate(ByteBuffer buf, int index, int len) {
+        return update(INITIAL_VALUE, buf, index, len);
+    }//calculate
+
+    /**
+     * Continues the CRC calculation <tt>crc</tt> over <tt>len</tt> bytes
+     * starting at <tt>off</tt>.
+     *
+     * @param crc the CRC so far, or {@link #INITIAL_VALUE}.
+     * @param b the data.
+     * @param off the offset of the first byte.
+     * @param len the number of bytes.
+     * @return the updated CRC.
+     */
+    public static int update(int crc, byte[] b, int off, int len) {
+        if (off < 0 || len < 0 || off > b.length - len) {
+            throw new ArrayIndexOutOfBoundsException();
+        }
+        final int[] t = TABLE;
+        int end = off + (len & ~7);
+        while (off < end) {
+            crc = t[7 * 256 + ((crc ^ b[off]) & 0xFF)]
+                    ^ t[6 * 256 + (((crc >>> 8) ^ b[off + 1]) & 0xFF)]
+                    ^ t[5 * 256 + (b[off + 2] & 0xFF)]
+                    ^ t[4 * 256 + (b[off + 3] & 0xFF)]
+                    ^ t[3 * 256 + (b[off + 4] & 0xFF)]
+                    ^ t[2 * 256 + (b[off + 5] & 0xFF)]
+                    ^ t[256 + (b[off + 6] & 0xFF)]
+                    ^ t[b[off + 7] & 0xFF];
+            off += 8;
+        }
+        end += len & 7;
+        while (off < end) {
+            crc = (crc >>> 8) ^ t[(crc ^ b[off++]) & 0xFF];
+        }
+        return crc;
+    }//update
+
+    /**
+     * Continues the CRC calculation <tt>crc</tt> over <tt>len</tt> bytes
+     * starting at the absolute index <tt>index</tt>; the position of the
+     * buffer is not changed. Heap buffers are processed through their
+     * backing array.
+     *
+     * @param crc the CRC so far, or {@link #INITIAL_VALUE}.
+     * @param buf the data.
+     * @param index the index of the first byte.
+     * @param len the number of bytes.
+     * @return the updated CRC.
+     */
+    public static int update(int crc, ByteBuffer buf, int index, int len) {
+        if (index < 0 || len < 0 || index > buf.limit() - len) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (buf.hasArray()) {
+            return update(crc, buf.array(), buf.arrayOffset() + index, len);
+        }
+        final int[] t = TABLE;
+        int end = index + (len & ~7);
+        while (index < end) {
+            crc = t[7 * 256 + ((crc ^ buf.get(index)) & 0xFF)]
+                    ^ t[6 * 256 + (((crc >>> 8) ^ buf.get(index + 1)) & 0xFF)]
+                    ^ t[5 * 256 + (buf.get(index + 2) & 0xFF)]
+                    ^ t[4 * 256 + (buf.get(index + 3) & 0xFF)]
+                    ^ t[3 * 256 + (buf.get(index + 4) & 0xFF)]
+                    ^ t[2 * 256 + (buf.get(index + 5) & 0xFF)]
+                    ^ t[256 + (buf.get(index + 6) & 0xFF)]
+                    ^ t[buf.get(index + 7) & 0xFF];
+            index += 8;
+        }
+        end += len & 7;
+        while (index < end) {
+            crc = (crc >>> 8) ^ t[(crc ^ buf.get(index++)) & 0xFF];
+        }
+        return crc;
+    }//update
+
+    /**
+     * Tests whether <tt>len</tt> bytes starting at <tt>off</tt> form a
+     * frame terminated by its correct CRC.
+     *
+     * @param b the frame.
+     * @param off the offset of the first byte.
+     * @param len the length of the frame including the two CRC bytes.
+     * @return true if the CRC matches, false otherwise.
+     */
+    public static boolean isValid(byte[] b, int off, int len) {
+        return len >= 2 && update(INITIAL_VALUE, b, off, len) == 0;
+    }//isValid
+
+    /**
+     * Tests whether <tt>len</tt> bytes starting at the absolute index
+     * <tt>index</tt> form a frame terminated by its correct CRC.
+     *
+     * @param buf the frame.
+     * @param index the index of the first byte.
+     * @param len the length of the frame including the two CRC bytes.
+     * @return true if the CRC matches, false otherwise.
+     */
+    public static boolean isValid(ByteBuffer buf, int index, int len) {
+        return len >= 2 && update(INITIAL_VALUE, buf, index, len) == 0;
+    }//isValid
+
+}//class CRC16
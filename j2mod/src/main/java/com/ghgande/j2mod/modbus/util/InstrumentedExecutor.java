@@ -0,0 +1,215 @@
+//License
+/**
+ * *
+ * Java Modbus Library (j2mod) Copyright 2012, Julianne Frances Haugh d/b/a
+ * greenHouse Gas and Electric All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. *
+ */
+package com.ghgande.j2mod.modbus.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class implementing a fixed size thread pool with a bounded queue, which
+ * keeps statistics of its load.
+ * <p>
+ * A task submitted while all threads are busy and the queue is full is
+ * rejected through the <tt>RejectedExecutionHandler</tt>, by default with a
+ * <tt>RejectedExecutionException</tt>, so the caller can turn the overload
+ * into a slave busy exception rather than queueing without bounds. The pool
+ * counts the rejected tasks and measures how long tasks wait in the queue.
+ */
+public class InstrumentedExecutor extends ThreadPoolExecutor {
+
+    private final AtomicLong m_Submitted = new AtomicLong();
+    private final AtomicLong m_Rejected = new AtomicLong();
+    private final AtomicLong m_Started = new AtomicLong();
+    private final AtomicLong m_TotalWait = new AtomicLong();
+    private final AtomicLong m_MaxWait = new AtomicLong();
+
+    /**
+     * Constructs a new <tt>InstrumentedExecutor</tt> of platform daemon
+     * threads.
+     *
+     * @param name the prefix of the thread names.
+     * @param threads the number of threads.
+     * @param queueSize the number of tasks which may wait for a thread.
+     */
+    public InstrumentedExecutor(String name, int threads, int queueSize) {
+        this(threads, queueSize, ThreadFactories.platform(name, true));
+    }//constructor
+
+    /**
+     * Constructs a new <tt>InstrumentedExecutor</tt>.
+     *
+     * @param threads the number of threads.
+     * @param queueSize the number of tasks which may wait for a thread, 0 to
+     * reject tasks unless a thread is idle.
+     * @param factory the <tt>ThreadFactory</tt> creating the threads.
+     */
+    public InstrumentedExecutor(int threads, int queueSize, ThreadFactory factory) {
+        super(threads, threads, 0, TimeUnit.MILLISECONDS, queueSize > 0
+                ? new ArrayBlockingQueue<Runnable>(queueSize)
+                : new SynchronousQueue<Runnable>(), factory);
+        setRejectedExecutionHandler(new AbortPolicy());
+    }//constructor
+
+    /**
+     * Sets the policy for tasks which can neither run nor be queued. The
+     * rejections are counted whatever the policy.
+     *
+     * @param handler the <tt>RejectedExecutionHandler</tt>.
+     */
+    @Override
+    public void setRejectedExecutionHandler(RejectedExecutionHandler handler) {
+        super.setRejectedExecutionHandler((task, executor) -> {
+            m_Rejected.incrementAndGet();
+            handler.rejectedExecution(task instanceof TimedTask
+                    ? ((TimedTask) task).m_Task : task, executor);
+        });
+    }//setRejectedExecutionHandler
+
+    @Override
+    public void execute(Runnable task) {
+        m_Submitted.incrementAndGet();
+        super.execute(new TimedTask(task));
+    }//execute
+
+    @Override
+    protected void beforeExecute(Thread thread, Runnable task) {
+        if (task instanceof TimedTask) {
+            long wait = System.nanoTime() - ((TimedTask) task).m_Queued;
+            m_Started.incrementAndGet();
+            m_TotalWait.addAndGet(wait);
+            long max;
+            while (wait > (max = m_MaxWait.get())
+                    && !m_MaxWait.compareAndSet(max, wait)) {
+            }
+        }
+        super.beforeExecute(thread, task);
+    }//beforeExecute
+
+    /**
+     * Returns the number of tasks waiting for a thread.
+     *
+     * @return the queue depth.
+     */
+    public int getQueueDepth() {
+        return getQueue().size();
+    }//getQueueDepth
+
+    /**
+     * Returns the number of tasks which may wait for a thread.
+     *
+     * @return the queue capacity.
+     */
+    public int getQueueCapacity() {
+        return getQueue().size() + getQueue().remainingCapacity();
+    }//getQueueCapacity
+
+    /**
+     * Returns the number of tasks submitted, including rejected ones.
+     *
+     * @return the submitted task count.
+     */
+    public long getSubmittedCount() {
+        return m_Submitted.get();
+    }//getSubmittedCount
+
+    /**
+     * Returns the number of tasks rejected because the pool was saturated or
+     * shut down.
+     *
+     * @return the rejected task count.
+     */
+    public long getRejectedCount() {
+        return m_Rejected.get();
+    }//getRejectedCount
+
+    /**
+     * Returns the average time tasks waited for a thread.
+     *
+     * @return the average wait in microseconds.
+     */
+    public long getAverageWaitTime() {
+        long started = m_Started.get();
+        return started == 0 ? 0 : m_TotalWait.get() / started / 1000;
+    }//getAverageWaitTime
+
+    /**
+     * Returns the longest time a task waited for a thread.
+     *
+     * @return the maximum wait in microseconds.
+     */
+    public long getMaxWaitTime() {
+        return m_MaxWait.get() / 1000;
+    }//getMaxWaitTime
+
+    /**
+     * Resets the counters and wait times.
+     */
+    public void resetStatistics() {
+        m_Submitted.set(0);
+        m_Rejected.set(0);
+        m_Started.set(0);
+        m_TotalWait.set(0);
+        m_MaxWait.set(0);
+    }//resetStatistics
+
+    @Override
+    public String toString() {
+        return "InstrumentedExecutor[active=" + getActiveCount()
+                + ", queued=" + getQueueDepth()
+                + ", rejected=" + getRejectedCount()
+                + ", avgWait=" + getAverageWaitTime() + "us]";
+    }//toString
+
+    /**
+     * Class wrapping a task with the time it was queued.
+     */
+    private static final class TimedTask implements Runnable {
+
+        final Runnable m_Task;
+        final long m_Queued = System.nanoTime();
+
+        TimedTask(Runnable task) {
+            m_Task = task;
+        }
+
+        @Override
+        public void run() {
+            m_Task.run();
+        }
+    }//class TimedTask
+
+}//class InstrumentedExecutor
@@ -37,6 +37,13 @@
  */
 package com.ghgande.j2mod.modbus.util;
 
+/**
+ * Class implementing an unbounded queue guarded by two locks.
+ *
+ * @deprecated it allocates a node per element and blocks on monitors; use
+ * {@link MPSCQueue} instead.
+ */
+@Deprecated
 public class LinkedQueue {
 
     /**
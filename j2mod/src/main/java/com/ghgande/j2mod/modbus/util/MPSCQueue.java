@@ -0,0 +1,301 @@
+//License
+/**
+ * *
+ * Java Modbus Library (j2mod) Copyright 2012, Julianne Frances Haugh d/b/a
+ * greenHouse Gas and Electric All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. *
+ */
+package com.ghgande.j2mod.modbus.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Class implementing a bounded, lock-free queue for many producers and a
+ * single consumer.
+ * <p>
+ * The queue is a ring of slots, each with a sequence number telling whether
+ * it holds an element for the current lap. Producers claim a slot with a
+ * single compare-and-set of the tail; the consumer takes elements without
+ * any atomic read-modify-write. Nothing is allocated per element.
+ * <p>
+ * A thread waiting for an element or for free space first spins, then
+ * parks. The consumer is unparked by the producer which makes the queue
+ * non-empty, and a parked producer by the consumer freeing a slot.
+ * <p>
+ * Only one thread at a time may call the consuming methods <tt>poll</tt>,
+ * <tt>take</tt> and <tt>drain</tt>.
+ *
+ * @param <E> the type of the elements.
+ */
+public final class MPSCQueue<E> {
+
+    private static final int SPINS = 64;
+    private static final int YIELDS = 16;
+    private static final long MAX_PRODUCER_PARK = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final AtomicReferenceArray<E> m_Elements;
+    private final AtomicLongArray m_Sequences;
+    private final int m_Mask;
+    private final AtomicLong m_Tail = new AtomicLong();
+    private final AtomicLong m_Head = new AtomicLong();
+    private volatile Thread m_WaitingConsumer;
+    private final Queue<Thread> m_WaitingProducers = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Constructs a new <tt>MPSCQueue</tt>.
+     *
+     * @param capacity the minimum number of elements the queue holds,
+     * rounded up to a power of two.
+     */
+    public MPSCQueue(int capacity) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Illegal capacity " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        m_Elements = new AtomicReferenceArray<>(size);
+        m_Sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            m_Sequences.set(i, i);
+        }
+        m_Mask = size - 1;
+    }//constructor
+
+    /**
+     * Returns the number of elements the queue holds.
+     *
+     * @return the capacity.
+     */
+    public int capacity() {
+        return m_Mask + 1;
+    }//capacity
+
+    /**
+     * Returns the number of elements in the queue. The value is only a
+     * snapshot while other threads use the queue.
+     *
+     * @return the number of elements.
+     */
+    public int size() {
+        long size = m_Tail.get() - m_Head.get();
+        return (int) Math.max(0, Math.min(size, capacity()));
+    }//size
+
+    /**
+     * Tests if the queue is empty.
+     *
+     * @return true if empty, false otherwise.
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }//isEmpty
+
+    /**
+     * Adds an element if there is space for it.
+     *
+     * @param element the element, not null.
+     * @return true if added, false if the queue is full.
+     */
+    public boolean offer(E element) {
+        if (element == null) {
+            throw new NullPointerException();
+        }
+        long tail;
+        int index;
+        while (true) {
+            tail = m_Tail.get();
+            index = (int) tail & m_Mask;
+            long sequence = m_Sequences.get(index);
+            if (sequence == tail) {
+                if (m_Tail.compareAndSet(tail, tail + 1)) {
+                    break;
+                }
+            } else if (sequence < tail) {
+                return false;
+            }
+        }
+        m_Elements.lazySet(index, element);
+        /*
+         * The volatile write orders the publication before the check for a
+         * waiting consumer, which has written m_WaitingConsumer before
+         * checking for elements.
+         */
+        m_Sequences.set(index, tail + 1);
+        Thread consumer = m_WaitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }//offer
+
+    /**
+     * Adds an element, waiting for space if the queue is full.
+     *
+     * @param element the element, not null.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void put(E element) throws InterruptedException {
+        for (int i = 0; i < SPINS + YIELDS; i++) {
+            if (offer(element)) {
+                return;
+            }
+            if (i >= SPINS) {
+                Thread.yield();
+            }
+        }
+        Thread current = Thread.currentThread();
+        while (true) {
+            m_WaitingProducers.add(current);
+            if (offer(element)) {
+                m_WaitingProducers.remove(current);
+                return;
+            }
+            if (Thread.interrupted()) {
+                m_WaitingProducers.remove(current);
+                throw new InterruptedException();
+            }
+            // the timeout only guards against a consumer which stopped polling
+            LockSupport.parkNanos(this, MAX_PRODUCER_PARK);
+            m_WaitingProducers.remove(current);
+        }
+    }//put
+
+    /**
+     * Removes the oldest element, if any.
+     *
+     * @return the element, or null if the queue is empty.
+     */
+    public E poll() {
+        long head = m_Head.get();
+        int index = (int) head & m_Mask;
+        if (m_Sequences.get(index) != head + 1) {
+            return null;
+        }
+        E element = m_Elements.get(index);
+        m_Elements.lazySet(index, null);
+        m_Head.lazySet(head + 1);
+        // volatile write, ordered before the check for parked producers
+        m_Sequences.set(index, head + m_Mask + 1);
+        if (!m_WaitingProducers.isEmpty()) {
+            Thread producer = m_WaitingProducers.poll();
+            if (producer != null) {
+                LockSupport.unpark(producer);
+            }
+        }
+        return element;
+    }//poll
+
+    /**
+     * Removes the oldest element, waiting for one if the queue is empty.
+     *
+     * @return the element.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public E take() throws InterruptedException {
+        E element = poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        if (element == null) {
+            throw new InterruptedException();
+        }
+        return element;
+    }//take
+
+    /**
+     * Removes the oldest element, waiting up to the timeout for one if the
+     * queue is empty.
+     *
+     * @param timeout the time to wait.
+     * @param unit the unit of the timeout.
+     * @return the element, or null if none arrived in time.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        E element = poll();
+        if (element != null) {
+            return element;
+        }
+        long nanos = unit.toNanos(timeout);
+        long deadline = System.nanoTime() + nanos;
+        for (int i = 0; i < SPINS + YIELDS; i++) {
+            if (i >= SPINS) {
+                Thread.yield();
+            }
+            if ((element = poll()) != null) {
+                return element;
+            }
+        }
+        try {
+            while (true) {
+                m_WaitingConsumer = Thread.currentThread();
+                if ((element = poll()) != null) {
+                    return element;
+                }
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                if (nanos == Long.MAX_VALUE) {
+                    LockSupport.park(this);
+                } else {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) {
+                        return null;
+                    }
+                    LockSupport.parkNanos(this, left);
+                }
+            }
+        } finally {
+            m_WaitingConsumer = null;
+        }
+    }//poll
+
+    /**
+     * Removes up to <tt>max</tt> elements without waiting, passing them to
+     * the action in order.
+     *
+     * @param action the <tt>Consumer</tt> of the elements.
+     * @param max the maximum number of elements to remove.
+     * @return the number of elements removed.
+     */
+    public int drain(Consumer<? super E> action, int max) {
+        int count = 0;
+        E element;
+        while (count < max && (element = poll()) != null) {
+            action.accept(element);
+            count++;
+        }
+        return count;
+    }//drain
+
+}//class MPSCQueue
@@ -31,7 +31,7 @@
  */
 package com.ghgande.j2mod.modbus.util;
 
-import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * A cleanroom implementation of the Observable pattern.
@@ -42,19 +42,17 @@ import java.util.ArrayList;
  */
 public class Observable {
 
-    private final ArrayList<Observer> m_Observers;
+    private final CopyOnWriteArrayList<Observer> m_Observers;
 
     /**
      * Constructs a new Observable instance.
      */
     public Observable() {
-        m_Observers = new ArrayList<>(10);
+        m_Observers = new CopyOnWriteArrayList<>();
     }
 
     public int getObserverCount() {
-        synchronized (m_Observers) {
-            return m_Observers.size();
-        }
+        return m_Observers.size();
     }
 
     /**
@@ -64,12 +62,7 @@ public class Observable {
      * @param o an observer instance to be added.
      */
     public void addObserver(Observer o) {
-        synchronized (m_Observers) {
-            if (!m_Observers.contains(o)) {
-                m_Observers.add(o);
-
-            }
-        }
+        m_Observers.addIfAbsent(o);
     }
 
     /**
@@ -79,9 +72,7 @@ public class Observable {
      * @param o an observer instance to be removed.
      */
     public void removeObserver(Observer o) {
-        synchronized (m_Observers) {
-            m_Observers.remove(o);
-        }
+        m_Observers.remove(o);
     }
 
     /**
@@ -89,22 +80,19 @@ public class Observable {
      * <tt>Observable</tt>.
      */
     public void removeObservers() {
-        synchronized (m_Observers) {
-            m_Observers.clear();
-        }
+        m_Observers.clear();
     }
 
     /**
      * Notifies all observer instances in the set of observers of this
-     * <tt>Observable</tt>.
+     * <tt>Observable</tt>. No lock is held while the observers are called,
+     * so an observer may add or remove observers.
      *
      * @param arg an arbitrary argument to be passed.
      */
     public void notifyObservers(Object arg) {
-        synchronized (m_Observers) {
-            for (Observer m_Observer : m_Observers) {
-                m_Observer.update(this, arg);
-            }
+        for (Observer m_Observer : m_Observers) {
+            m_Observer.update(this, arg);
         }
     }
 }
@@ -0,0 +1,241 @@
+//License
+/**
+ * *
+ * Java Modbus Library (j2mod) Copyright 2012, Julianne Frances Haugh d/b/a
+ * greenHouse Gas and Electric All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. *
+ */
+package com.ghgande.j2mod.modbus.util;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Class providing the thread factories and executors which can be plugged
+ * into the listeners and masters.
+ * <p>
+ * Virtual threads are used when the library runs on a JDK which supports
+ * them (21 and later). They are looked up at run time, so the library still
+ * runs on JDK 8. A virtual thread per connection or per request lets the
+ * blocking listeners and transactions serve many thousands of sessions:
+ * <pre>
+ * ModbusTCPListener listener = new ModbusTCPListener(
+ *         ThreadFactories.newThreadPerTaskExecutor(
+ *                 ThreadFactories.virtual("modbus-connection")), addr);
+ * listener.setThreadFactory(ThreadFactories.virtual("modbus-listener"));
+ * </pre>
+ */
+public final class ThreadFactories {
+
+    private static final Method c_OfVirtual = findOfVirtual();
+
+    private ThreadFactories() {
+    }//constructor
+
+    /**
+     * Tests if virtual threads are supported by the running JDK.
+     *
+     * @return true if virtual threads can be created, false otherwise.
+     */
+    public static boolean isVirtualThreadSupported() {
+        return c_OfVirtual != null;
+    }//isVirtualThreadSupported
+
+    /**
+     * Returns a factory of platform threads named after the given prefix and
+     * a sequence number.
+     *
+     * @param name the prefix of the thread names.
+     * @param daemon true to create daemon threads.
+     * @return the <tt>ThreadFactory</tt>.
+     */
+    public static ThreadFactory platform(String name, boolean daemon) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + count.getAndIncrement());
+            t.setDaemon(daemon);
+            return t;
+        };
+    }//platform
+
+    /**
+     * Returns a factory of virtual threads named after the given prefix and a
+     * sequence number.
+     *
+     * @param name the prefix of the thread names.
+     * @return the <tt>ThreadFactory</tt>.
+     * @throws UnsupportedOperationException if the running JDK does not
+     * support virtual threads.
+     */
+    public static ThreadFactory virtual(String name) {
+        if (c_OfVirtual == null) {
+            throw new UnsupportedOperationException(
+                    "Virtual threads require JDK 21 or later");
+        }
+        try {
+            Object builder = c_OfVirtual.invoke(null);
+            Class<?> type = Class.forName("java.lang.Thread$Builder");
+            builder = type.getMethod("name", String.class, long.class)
+                    .invoke(builder, name + "-", 0L);
+            return (ThreadFactory) type.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException ex) {
+            throw new UnsupportedOperationException(
+                    "Virtual threads are not available", ex);
+        }
+    }//virtual
+
+    /**
+     * Returns a factory of virtual threads if the running JDK supports them,
+     * or of platform daemon threads otherwise.
+     *
+     * @param name the prefix of the thread names.
+     * @return the <tt>ThreadFactory</tt>.
+     */
+    public static ThreadFactory preferVirtual(String name) {
+        return isVirtualThreadSupported() ? virtual(name) : platform(name, true);
+    }//preferVirtual
+
+    /**
+     * Creates an executor which starts a new thread for each task. With a
+     * factory of virtual threads, this is the executor of choice for
+     * blocking tasks such as connection handlers and master requests.
+     *
+     * @param factory the <tt>ThreadFactory</tt> creating the threads.
+     * @return the <tt>ExecutorService</tt>.
+     */
+    public static ExecutorService newThreadPerTaskExecutor(ThreadFactory factory) {
+        return new ThreadPerTaskExecutor(factory);
+    }//newThreadPerTaskExecutor
+
+    /**
+     * Looks up <tt>Thread.ofVirtual()</tt>, checking that virtual threads can
+     * actually be started: on JDK 19 and 20 they are a preview feature.
+     */
+    private static Method findOfVirtual() {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Object builder = ofVirtual.invoke(null);
+            Class.forName("java.lang.Thread$Builder").getMethod("factory")
+                    .invoke(builder);
+            return ofVirtual;
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            Logger.getLogger(ThreadFactories.class.getName()).log(Level.FINE, "No virtual threads: {0}", ex.toString());
+            return null;
+        }
+    }//findOfVirtual
+
+    /**
+     * Class implementing an executor starting a thread per task.
+     */
+    private static final class ThreadPerTaskExecutor extends AbstractExecutorService {
+
+        private final ThreadFactory m_Factory;
+        private final Set<Thread> m_Threads = ConcurrentHashMap.newKeySet();
+        private boolean m_Shutdown;
+
+        ThreadPerTaskExecutor(ThreadFactory factory) {
+            m_Factory = factory;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            Thread thread = m_Factory.newThread(() -> {
+                try {
+                    task.run();
+                } finally {
+                    m_Threads.remove(Thread.currentThread());
+                    if (m_Threads.isEmpty()) {
+                        synchronized (this) {
+                            notifyAll();
+                        }
+                    }
+                }
+            });
+            if (thread == null) {
+                throw new RejectedExecutionException("No thread for the task");
+            }
+            synchronized (this) {
+                if (m_Shutdown) {
+                    throw new RejectedExecutionException("Executor shut down");
+                }
+                m_Threads.add(thread);
+            }
+            thread.start();
+        }
+
+        @Override
+        public synchronized void shutdown() {
+            m_Shutdown = true;
+            notifyAll();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            shutdown();
+            for (Thread thread : m_Threads) {
+                thread.interrupt();
+            }
+            return new ArrayList<>();
+        }
+
+        @Override
+        public synchronized boolean isShutdown() {
+            return m_Shutdown;
+        }
+
+        @Override
+        public synchronized boolean isTerminated() {
+            return m_Shutdown && m_Threads.isEmpty();
+        }
+
+        @Override
+        public synchronized boolean awaitTermination(long timeout, TimeUnit unit)
+                throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (!isTerminated()) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+            }
+            return true;
+        }
+    }//class ThreadPerTaskExecutor
+
+}//class ThreadFactories
@@ -39,7 +39,10 @@ import java.util.logging.Logger;
  *
  * @author Dieter Wimberger
  * @version 1.2rc1 (09/11/2004)
+ * @deprecated its queue is unbounded and its threads never terminate; use
+ * {@link InstrumentedExecutor} instead.
  */
+@Deprecated
 public final class ThreadPool {
 
     //instance attributes and associations
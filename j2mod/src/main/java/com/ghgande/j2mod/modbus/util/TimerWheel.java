@@ -0,0 +1,254 @@
+//License
+/**
+ * *
+ * Java Modbus Library (j2mod) Copyright 2012, Julianne Frances Haugh d/b/a
+ * greenHouse Gas and Electric All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. *
+ */
+package com.ghgande.j2mod.modbus.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Class implementing a hashed timer wheel.
+ * <p>
+ * Timeouts are hashed into a ring of buckets by their deadline, and one
+ * thread advances around the ring a tick at a time, running the timeouts of
+ * the bucket it reaches. Scheduling and cancelling take constant time
+ * regardless of the number of pending timeouts, at the price of firing up
+ * to one tick late. This suits the many short, mostly cancelled timeouts
+ * of outstanding requests.
+ * <p>
+ * Tasks run on the thread of the wheel and must not block.
+ */
+public final class TimerWheel {
+
+    private static final int PENDING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    private final long m_TickNanos;
+    private final List<Timeout>[] m_Buckets;
+    private final Queue<Timeout> m_Scheduled = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger m_Pending = new AtomicInteger();
+    private final Thread m_Thread;
+    private final long m_Start;
+    private volatile boolean m_Running = true;
+    private long m_Tick;
+
+    /**
+     * Constructs and starts a new <tt>TimerWheel</tt>.
+     *
+     * @param name the name of the thread of the wheel.
+     * @param tick the length of a tick in milliseconds, the resolution of
+     * the timeouts.
+     * @param buckets the number of buckets, rounded up to a power of two.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimerWheel(String name, long tick, int buckets) {
+        if (tick < 1 || buckets < 1 || buckets > (1 << 20)) {
+            throw new IllegalArgumentException("Invalid tick or bucket count");
+        }
+        int size = Integer.highestOneBit(buckets);
+        if (size < buckets) {
+            size <<= 1;
+        }
+        m_TickNanos = TimeUnit.MILLISECONDS.toNanos(tick);
+        m_Buckets = new List[size];
+        for (int i = 0; i < size; i++) {
+            m_Buckets[i] = new ArrayList<>();
+        }
+        m_Start = System.nanoTime();
+        m_Thread = new Thread(this::run, name);
+        m_Thread.setDaemon(true);
+        m_Thread.start();
+    }//constructor
+
+    /**
+     * Constructs and starts a new <tt>TimerWheel</tt> with a tick of 10
+     * milliseconds and 512 buckets.
+     *
+     * @param name the name of the thread of the wheel.
+     */
+    public TimerWheel(String name) {
+        this(name, 10, 512);
+    }//constructor
+
+    /**
+     * Schedules a task to run once after a delay.
+     *
+     * @param task the task.
+     * @param delay the delay.
+     * @param unit the unit of the delay.
+     * @return the <tt>Timeout</tt>, which may be cancelled.
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if (!m_Running) {
+            throw new IllegalStateException("Timer wheel stopped");
+        }
+        Timeout timeout = new Timeout(task,
+                System.nanoTime() + unit.toNanos(Math.max(0, delay)));
+        m_Pending.incrementAndGet();
+        m_Scheduled.add(timeout);
+        return timeout;
+    }//schedule
+
+    /**
+     * Returns the number of timeouts which have neither expired nor been
+     * cancelled.
+     *
+     * @return the number of pending timeouts.
+     */
+    public int getPendingCount() {
+        return m_Pending.get();
+    }//getPendingCount
+
+    /**
+     * Stops the wheel. Pending timeouts do not fire.
+     */
+    public void stop() {
+        m_Running = false;
+        LockSupport.unpark(m_Thread);
+        if (Thread.currentThread() != m_Thread) {
+            try {
+                m_Thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }//stop
+
+    /**
+     * Advances the wheel until stopped.
+     */
+    private void run() {
+        while (m_Running) {
+            long deadline = m_Start + (m_Tick + 1) * m_TickNanos;
+            long wait;
+            while ((wait = deadline - System.nanoTime()) > 0 && m_Running) {
+                LockSupport.parkNanos(this, wait);
+            }
+            if (!m_Running) {
+                break;
+            }
+            transferScheduled();
+            expire(m_Buckets[(int) m_Tick & (m_Buckets.length - 1)]);
+            m_Tick++;
+        }
+    }//run
+
+    /**
+     * Hashes the newly scheduled timeouts into their buckets.
+     */
+    private void transferScheduled() {
+        Timeout timeout;
+        while ((timeout = m_Scheduled.poll()) != null) {
+            if (timeout.m_State.get() != PENDING) {
+                continue;
+            }
+            long ticks = Math.max(m_Tick,
+                    (timeout.m_Deadline - m_Start + m_TickNanos - 1) / m_TickNanos - 1);
+            timeout.m_Rounds = (ticks - m_Tick) / m_Buckets.length;
+            m_Buckets[(int) ticks & (m_Buckets.length - 1)].add(timeout);
+        }
+    }//transferScheduled
+
+    /**
+     * Runs the due timeouts of a bucket, and drops the cancelled ones.
+     */
+    private void expire(List<Timeout> bucket) {
+        Iterator<Timeout> it = bucket.iterator();
+        while (it.hasNext()) {
+            Timeout timeout = it.next();
+            if (timeout.m_State.get() == CANCELLED) {
+                it.remove();
+            } else if (timeout.m_Rounds > 0) {
+                timeout.m_Rounds--;
+            } else {
+                it.remove();
+                if (timeout.m_State.compareAndSet(PENDING, EXPIRED)) {
+                    m_Pending.decrementAndGet();
+                    try {
+                        timeout.m_Task.run();
+                    } catch (RuntimeException ex) {
+                        Logger.getLogger(TimerWheel.class.getName()).log(Level.SEVERE, null, ex);
+                    }
+                }
+            }
+        }
+    }//expire
+
+    /**
+     * A task scheduled on a <tt>TimerWheel</tt>.
+     */
+    public final class Timeout {
+
+        private final Runnable m_Task;
+        private final long m_Deadline;
+        private final AtomicInteger m_State = new AtomicInteger(PENDING);
+        private long m_Rounds;
+
+        private Timeout(Runnable task, long deadline) {
+            m_Task = task;
+            m_Deadline = deadline;
+        }//constructor
+
+        /**
+         * Cancels this timeout, unless it has already fired.
+         *
+         * @return true if cancelled, false if it had fired or been
+         * cancelled before.
+         */
+        public boolean cancel() {
+            if (m_State.compareAndSet(PENDING, CANCELLED)) {
+                m_Pending.decrementAndGet();
+                return true;
+            }
+            return false;
+        }//cancel
+
+        /**
+         * Tests if this timeout has fired.
+         *
+         * @return true if the task has been run.
+         */
+        public boolean isExpired() {
+            return m_State.get() == EXPIRED;
+        }//isExpired
+
+    }//class Timeout
+
+}//class TimerWheel
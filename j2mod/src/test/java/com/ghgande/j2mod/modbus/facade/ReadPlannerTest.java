@@ -0,0 +1,167 @@
+//License
+/**
+ * *
+ * Java Modbus Library (j2mod) Copyright 2012, Julianne Frances Haugh d/b/a
+ * greenHouse Gas and Electric All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. *
+ */
+package com.ghgande.j2mod.modbus.facade;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.ModbusIOException;
+import com.ghgande.j2mod.modbus.msg.ModbusRequest;
+import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+import com.ghgande.j2mod.modbus.msg.ReadCoilsRequest;
+import com.ghgande.j2mod.modbus.msg.ReadInputRegistersRequest;
+import com.ghgande.j2mod.modbus.msg.ReadMultipleRegistersRequest;
+import com.ghgande.j2mod.modbus.msg.ReadMultipleRegistersResponse;
+import com.ghgande.j2mod.modbus.procimg.Register;
+import com.ghgande.j2mod.modbus.procimg.SimpleRegister;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for <tt>ReadPlanner</tt>.
+ */
+public class ReadPlannerTest {
+
+    private static ReadTag holding(int unitid, int ref, int count) {
+        return new ReadTag(unitid, Modbus.READ_MULTIPLE_REGISTERS, ref, count);
+    }
+
+    private static void assertRegisterRequest(ModbusRequest request,
+            int unitid, int ref, int count) {
+        ReadMultipleRegistersRequest read
+                = (ReadMultipleRegistersRequest) request;
+        assertEquals(unitid, read.getUnitID());
+        assertEquals(ref, read.getReference());
+        assertEquals(count, read.getWordCount());
+    }
+
+    @Test
+    public void mergesAdjacentAndOverlappingTags() {
+        ReadPlan plan = new ReadPlanner().plan(Arrays.asList(
+                holding(1, 10, 2), holding(1, 0, 10), holding(1, 5, 2),
+                holding(1, 13, 1)));
+        List<ModbusRequest> requests = plan.getRequests();
+        assertEquals(2, plan.getRequestCount());
+        assertRegisterRequest(requests.get(0), 1, 0, 12);
+        assertRegisterRequest(requests.get(1), 1, 13, 1);
+    }
+
+    @Test
+    public void mergesAcrossGapsWithinTolerance() {
+        ReadPlanner planner = new ReadPlanner();
+        planner.setRegisterGap(1);
+        List<ModbusRequest> requests = planner.plan(Arrays.asList(
+                holding(1, 0, 10), holding(1, 11, 2), holding(1, 15, 1)))
+                .getRequests();
+        assertEquals(2, requests.size());
+        assertRegisterRequest(requests.get(0), 1, 0, 13);
+        assertRegisterRequest(requests.get(1), 1, 15, 1);
+    }
+
+    @Test
+    public void keepsUnitsAndFunctionsApart() {
+        List<ModbusRequest> requests = new ReadPlanner().plan(Arrays.asList(
+                holding(2, 0, 4), holding(1, 4, 4),
+                new ReadTag(1, Modbus.READ_INPUT_REGISTERS, 8, 4),
+                new ReadTag(1, Modbus.READ_COILS, 0, 16))).getRequests();
+        assertEquals(4, requests.size());
+        assertTrue(requests.get(0) instanceof ReadCoilsRequest);
+        assertEquals(16, ((ReadCoilsRequest) requests.get(0)).getBitCount());
+        assertRegisterRequest(requests.get(1), 1, 4, 4);
+        assertTrue(requests.get(2) instanceof ReadInputRegistersRequest);
+        assertRegisterRequest(requests.get(3), 2, 0, 4);
+    }
+
+    @Test
+    public void respectsTheMaximumCount() {
+        ReadPlanner planner = new ReadPlanner();
+        planner.setMaxRegisters(10);
+        List<ModbusRequest> requests = planner.plan(Arrays.asList(
+                holding(1, 0, 6), holding(1, 6, 6), holding(1, 12, 10)))
+                .getRequests();
+        assertEquals(3, requests.size());
+        assertRegisterRequest(requests.get(0), 1, 0, 6);
+        assertRegisterRequest(requests.get(1), 1, 6, 6);
+        assertRegisterRequest(requests.get(2), 1, 12, 10);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeGap() {
+        new ReadPlanner().setRegisterGap(-1);
+    }
+
+    @Test
+    public void scattersValuesToTheTags() throws Exception {
+        ReadTag first = holding(1, 0, 2);
+        ReadTag second = holding(1, 3, 2);
+        ReadPlanner planner = new ReadPlanner();
+        planner.setRegisterGap(1);
+        ReadPlan plan = planner.plan(Arrays.asList(first, second));
+        assertEquals(1, plan.getRequestCount());
+
+        plan.executeAsync(request -> {
+            ReadMultipleRegistersRequest read
+                    = (ReadMultipleRegistersRequest) request;
+            Register[] registers = new Register[read.getWordCount()];
+            for (int i = 0; i < registers.length; i++) {
+                registers[i] = new SimpleRegister(100 + read.getReference() + i);
+            }
+            ModbusResponse response
+                    = new ReadMultipleRegistersResponse(registers);
+            return CompletableFuture.completedFuture(response);
+        }).get();
+
+        assertTrue(first.isValid());
+        assertEquals(100, first.getValue(0));
+        assertEquals(101, first.getValue(1));
+        assertTrue(second.isValid());
+        assertEquals(103, second.getValue(0));
+        assertEquals(104, second.getValue(1));
+    }
+
+    @Test
+    public void marksTagsOfAFailedRequest() {
+        ReadTag tag = holding(1, 0, 2);
+        CompletableFuture<ModbusResponse> failed = new CompletableFuture<>();
+        failed.completeExceptionally(
+                new ModbusIOException("test"));
+        new ReadPlanner().plan(Arrays.asList(tag))
+                .executeAsync(request -> failed);
+        assertFalse(tag.isValid());
+        assertTrue(tag.getException() != null);
+    }
+}
@@ -0,0 +1,139 @@
+//License
+/**
+ * *
+ * Java Modbus Library (j2mod) Copyright 2012, Julianne Frances Haugh d/b/a
+ * greenHouse Gas and Electric All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. *
+ */
+package com.ghgande.j2mod.modbus.io;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for <tt>TransactionIDAllocator</tt>.
+ */
+public class TransactionIDAllocatorTest {
+
+    @Test
+    public void allocatesInSequence() {
+        TransactionIDAllocator ids = new TransactionIDAllocator();
+        assertEquals(1, ids.acquire());
+        assertEquals(2, ids.acquire());
+        assertEquals(2, ids.getInFlightCount());
+        assertTrue(ids.isInFlight(1));
+
+        ids.release(1);
+        assertFalse(ids.isInFlight(1));
+        assertEquals(1, ids.getInFlightCount());
+        assertEquals(3, ids.acquire());
+    }
+
+    @Test
+    public void skipsIdentifiersInFlight() {
+        TransactionIDAllocator ids = new TransactionIDAllocator();
+        assertTrue(ids.tryAcquire(2));
+        assertFalse(ids.tryAcquire(2));
+        assertEquals(1, ids.acquire());
+        assertEquals(3, ids.acquire());
+    }
+
+    @Test
+    public void releaseIgnoresFreeAndInvalidIdentifiers() {
+        TransactionIDAllocator ids = new TransactionIDAllocator();
+        ids.acquire();
+        ids.release(7);
+        ids.release(0);
+        ids.release(Modbus.MAX_TRANSACTION_ID + 1);
+        assertEquals(1, ids.getInFlightCount());
+        assertFalse(ids.isInFlight(0));
+    }
+
+    @Test
+    public void wrapsAroundAndExhausts() {
+        TransactionIDAllocator ids = new TransactionIDAllocator();
+        BitSet seen = new BitSet();
+        for (int i = 0; i < Modbus.MAX_TRANSACTION_ID; i++) {
+            int tid = ids.acquire();
+            assertTrue(tid >= 1 && tid <= Modbus.MAX_TRANSACTION_ID);
+            assertFalse(seen.get(tid));
+            seen.set(tid);
+        }
+        try {
+            ids.acquire();
+            fail("acquired more identifiers than exist");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+
+        ids.release(42);
+        assertEquals(42, ids.acquire());
+    }
+
+    @Test(timeout = 60000)
+    public void concurrentCallersNeverShareAnIdentifier()
+            throws InterruptedException {
+        TransactionIDAllocator ids = new TransactionIDAllocator();
+        int[] owners = new int[Modbus.MAX_TRANSACTION_ID + 1];
+        boolean[] failed = new boolean[1];
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 1; t <= 4; t++) {
+            final int owner = t;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 50000; i++) {
+                    int tid = ids.acquire();
+                    synchronized (owners) {
+                        if (owners[tid] != 0) {
+                            failed[0] = true;
+                        }
+                        owners[tid] = owner;
+                    }
+                    synchronized (owners) {
+                        owners[tid] = 0;
+                    }
+                    ids.release(tid);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertFalse(failed[0]);
+        assertEquals(0, ids.getInFlightCount());
+    }
+}
@@ -0,0 +1,157 @@
+//License
+/**
+ * *
+ * Java Modbus Library (j2mod) Copyright 2012, Julianne Frances Haugh d/b/a
+ * greenHouse Gas and Electric All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. *
+ */
+package com.ghgande.j2mod.modbus.net;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import com.ghgande.j2mod.modbus.procimg.SimpleProcessImage;
+import com.ghgande.j2mod.modbus.procimg.SimpleRegister;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for <tt>ModbusNIOTCPListener</tt>.
+ */
+public class ModbusNIOTCPListenerTest {
+
+    private ModbusNIOTCPListener m_Listener;
+    private int m_Port;
+
+    @Before
+    public void setUp() throws Exception {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            m_Port = probe.getLocalPort();
+        }
+        SimpleProcessImage image = new SimpleProcessImage();
+        for (int i = 0; i < 4; i++) {
+            image.addRegister(new SimpleRegister(100 + i));
+        }
+
+        // One I/O thread, so all connections share it.
+        m_Listener = new ModbusNIOTCPListener(1, 1, 16,
+                InetAddress.getLoopbackAddress());
+        m_Listener.setPort(m_Port);
+        m_Listener.setProcessImage(image);
+        m_Listener.listen();
+
+        for (int i = 0; i < 50; i++) {
+            try (Socket s = new Socket(InetAddress.getLoopbackAddress(),
+                    m_Port)) {
+                return;
+            } catch (IOException ex) {
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        m_Listener.stop();
+    }
+
+    @Test(timeout = 10000)
+    public void malformedRequestClosesOnlyItsConnection() throws Exception {
+        try (Socket bad = connect(); Socket good = connect()) {
+            /*
+             * Write Multiple Registers announcing ten registers, but carrying
+             * a byte count of two.
+             */
+            bad.getOutputStream().write(new byte[]{
+                0, 1, 0, 0, 0, 9, 1, 16, 0, 0, 0, 10, 2, 0, 1});
+            bad.getOutputStream().flush();
+            assertEquals(-1, bad.getInputStream().read());
+
+            assertArrayEquals(new byte[]{0, 2, 0, 0, 0, 7, 1, 3, 4, 0, 100,
+                0, 101}, readHoldingRegisters(good, 2));
+        }
+        try (Socket next = connect()) {
+            assertArrayEquals(new byte[]{0, 3, 0, 0, 0, 7, 1, 3, 4, 0, 100,
+                0, 101}, readHoldingRegisters(next, 3));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void pipelinedBurstIsHeldAtThePendingLimit() throws Exception {
+        /*
+         * More requests in one write than the worker queue holds. Only
+         * MAX_PENDING_REQUESTS are handed to the workers at a time, so none
+         * is answered with a slave busy exception.
+         */
+        int count = 3 * ModbusNIOTCPListener.MAX_PENDING_REQUESTS;
+        byte[] burst = new byte[12 * count];
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(new byte[]{0, (byte) i, 0, 0, 0, 6, 1, 3, 0, 0,
+                0, 2}, 0, burst, 12 * i, 12);
+        }
+        try (Socket socket = connect()) {
+            socket.getOutputStream().write(burst);
+            socket.getOutputStream().flush();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            for (int i = 0; i < count; i++) {
+                byte[] response = new byte[13];
+                in.readFully(response);
+                assertArrayEquals(new byte[]{0, (byte) i, 0, 0, 0, 7, 1, 3, 4,
+                    0, 100, 0, 101}, response);
+            }
+        }
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), m_Port);
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+
+    /**
+     * Reads the first two holding registers, returning the whole response.
+     */
+    private static byte[] readHoldingRegisters(Socket socket,
+            int transaction) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(new byte[]{0, (byte) transaction, 0, 0, 0, 6, 1, 3, 0, 0,
+            0, 2});
+        out.flush();
+
+        byte[] response = new byte[13];
+        new DataInputStream(socket.getInputStream()).readFully(response);
+        return response;
+    }
+}
@@ -0,0 +1,115 @@
+//License
+/**
+ * *
+ * Java Modbus Library (j2mod) Copyright 2012, Julianne Frances Haugh d/b/a
+ * greenHouse Gas and Electric All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. *
+ */
+package com.ghgande.j2mod.modbus.procimg;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.Test;
+
+import com.ghgande.j2mod.modbus.procimg.ProcessImageListener.Table;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for <tt>AsyncProcessImageListener</tt>.
+ */
+public class AsyncProcessImageListenerTest {
+
+    /**
+     * Executor which queues its tasks until they are run, or rejects them.
+     */
+    private static class ManualExecutor implements Executor {
+
+        final List<Runnable> m_Tasks = new ArrayList<>();
+        boolean m_Rejecting;
+
+        @Override
+        public void execute(Runnable task) {
+            if (m_Rejecting) {
+                throw new RejectedExecutionException();
+            }
+            m_Tasks.add(task);
+        }
+
+        void runAll() {
+            while (!m_Tasks.isEmpty()) {
+                m_Tasks.remove(0).run();
+            }
+        }
+    }
+
+    @Test
+    public void touchingRangesAreMerged() {
+        ManualExecutor executor = new ManualExecutor();
+        List<String> changes = new ArrayList<>();
+        AsyncProcessImageListener listener = new AsyncProcessImageListener(
+                (image, table, ref, count) -> changes.add(ref + "+" + count),
+                executor);
+
+        listener.rangeChanged(null, Table.HOLDING_REGISTERS, 0, 2);
+        listener.rangeChanged(null, Table.HOLDING_REGISTERS, 2, 2);
+        listener.rangeChanged(null, Table.HOLDING_REGISTERS, 10, 1);
+        assertEquals(2, listener.getPendingRangeCount());
+        assertEquals(1, executor.m_Tasks.size());
+
+        executor.runAll();
+        assertEquals("[0+4, 10+1]", changes.toString());
+        assertEquals(0, listener.getPendingRangeCount());
+    }
+
+    @Test
+    public void rejectedDeliveryIsRetriedAtTheNextChange() {
+        ManualExecutor executor = new ManualExecutor();
+        List<String> changes = new ArrayList<>();
+        AsyncProcessImageListener listener = new AsyncProcessImageListener(
+                (image, table, ref, count) -> changes.add(ref + "+" + count),
+                executor);
+
+        executor.m_Rejecting = true;
+        listener.rangeChanged(null, Table.COILS, 5, 1);
+        assertEquals(0, changes.size());
+        assertEquals(1, listener.getRejectedCount());
+        assertEquals(1, listener.getPendingRangeCount());
+
+        executor.m_Rejecting = false;
+        listener.rangeChanged(null, Table.COILS, 7, 1);
+        assertEquals(0, changes.size());
+        assertEquals(1, executor.m_Tasks.size());
+
+        executor.runAll();
+        assertEquals("[5+1, 7+1]", changes.toString());
+        assertEquals(1, listener.getRejectedCount());
+    }
+}
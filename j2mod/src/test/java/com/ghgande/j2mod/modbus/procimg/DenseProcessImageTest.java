@@ -0,0 +1,96 @@
+//License
+/**
+ * *
+ * Java Modbus Library (j2mod) Copyright 2012, Julianne Frances Haugh d/b/a
+ * greenHouse Gas and Electric All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. *
+ */
+package com.ghgande.j2mod.modbus.procimg;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for the listeners of <tt>DenseProcessImage</tt>.
+ */
+public class DenseProcessImageTest {
+
+    @Test
+    public void addAndSetAreReported() {
+        final DenseProcessImage image = new DenseProcessImage();
+        final List<String> changes = new ArrayList<>();
+        image.addProcessImageListener(new ProcessImageListener() {
+            @Override
+            public void rangeChanged(ProcessImage source, Table table, int ref,
+                    int count) {
+                assertEquals(false, Thread.holdsLock(image));
+                changes.add(table + " " + ref + " " + count);
+            }
+        });
+
+        image.addRegister(new SimpleRegister(1));
+        image.addRegister(3, new SimpleRegister(2));
+        image.setRegister(0, new SimpleRegister(5));
+        image.addInputRegister(new SimpleInputRegister(1));
+        image.setInputRegister(0, new SimpleInputRegister(2));
+        image.addDigitalOut(new SimpleDigitalOut(true));
+        image.setDigitalOut(0, new SimpleDigitalOut(false));
+        image.addDigitalIn(2, new SimpleDigitalIn(true));
+        image.setDigitalIn(1, new SimpleDigitalIn(true));
+        image.removeRegister(image.getRegister(0));
+
+        assertEquals("[HOLDING_REGISTERS 0 1, HOLDING_REGISTERS 3 1, "
+                + "HOLDING_REGISTERS 0 1, INPUT_REGISTERS 0 1, "
+                + "INPUT_REGISTERS 0 1, COILS 0 1, COILS 0 1, "
+                + "DISCRETE_INPUTS 2 1, DISCRETE_INPUTS 1 1, "
+                + "HOLDING_REGISTERS 0 1]", changes.toString());
+        assertEquals(0, image.getRegister(0).getValue());
+        assertEquals(2, image.getInputRegister(0).getValue());
+        assertEquals(false, image.getDigitalOut(0).isSet());
+        assertEquals(true, image.getDigitalIn(1).isSet());
+    }
+
+    @Test
+    public void lockedImageReportsNothing() {
+        DenseProcessImage image = new DenseProcessImage();
+        image.addRegister(new SimpleRegister(1));
+        final List<String> changes = new ArrayList<>();
+        image.addProcessImageListener((source, table, ref, count)
+                -> changes.add(table + " " + ref));
+        image.setLocked(true);
+
+        image.addRegister(new SimpleRegister(2));
+        image.setRegister(0, new SimpleRegister(3));
+
+        assertEquals(0, changes.size());
+        assertEquals(1, image.getRegister(0).getValue());
+    }
+}
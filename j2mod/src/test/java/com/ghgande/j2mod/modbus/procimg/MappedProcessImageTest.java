@@ -0,0 +1,214 @@
+//License
+/**
+ * *
+ * Java Modbus Library (j2mod) Copyright 2012, Julianne Frances Haugh d/b/a
+ * greenHouse Gas and Electric All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. *
+ */
+package com.ghgande.j2mod.modbus.procimg;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests for the range methods of <tt>MappedProcessImage</tt>.
+ */
+public class MappedProcessImageTest {
+
+    private static final int SIZE = 300;
+
+    private Path m_Path;
+    private MappedProcessImage m_Image;
+
+    @Before
+    public void setUp() throws IOException {
+        m_Path = Files.createTempFile("j2mod", ".img");
+        m_Image = new MappedProcessImage(m_Path, 1, SIZE, SIZE, SIZE, SIZE);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        m_Image.close();
+        Files.deleteIfExists(m_Path);
+    }
+
+    private static short[] values(int count, int seed) {
+        short[] values = new short[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = (short) (seed * 31 + i * 257);
+        }
+        return values;
+    }
+
+    private static byte[] bits(int count, int seed) {
+        byte[] bits = new byte[(count + 7) / 8];
+        for (int i = 0; i < count; i++) {
+            if (((i * 7 + seed) % 3) == 0) {
+                bits[i / 8] |= 1 << (i % 8);
+            }
+        }
+        return bits;
+    }
+
+    @Test
+    public void registerRangesRoundTrip() throws IOException {
+        short[] holding = values(130, 1);
+        short[] input = values(130, 2);
+        m_Image.writeRegisters(50, holding, 0, holding.length);
+        m_Image.writeInputRegisters(61, input, 0, input.length);
+
+        short[] read = new short[130];
+        m_Image.readRegisters(50, read, 0, read.length);
+        assertArrayEquals(holding, read);
+        m_Image.readInputRegisters(61, read, 0, read.length);
+        assertArrayEquals(input, read);
+        assertEquals(holding[0] & 0xFFFF, m_Image.getRegister(50).getValue());
+
+        try (MappedProcessImage other = new MappedProcessImage(m_Path, 2)) {
+            other.readRegisters(50, read, 0, read.length);
+            assertArrayEquals(holding, read);
+        }
+    }
+
+    @Test
+    public void bufferWriteRoundTrips() {
+        short[] values = values(70, 3);
+        ByteBuffer buffer = ByteBuffer.allocate(2 + 2 * values.length);
+        buffer.putShort((short) 0);
+        for (short value : values) {
+            buffer.putShort(value);
+        }
+        buffer.position(2);
+
+        m_Image.writeRegisters(10, buffer, values.length);
+        assertEquals(buffer.limit(), buffer.position());
+        short[] read = new short[values.length];
+        m_Image.readRegisters(10, read, 0, read.length);
+        assertArrayEquals(values, read);
+    }
+
+    @Test
+    public void readWriteWritesBeforeReading() {
+        m_Image.writeRegisters(0, values(SIZE, 4), 0, SIZE);
+        short[] src = values(100, 5);
+        short[] copy = src.clone();
+        short[] read = new short[120];
+
+        m_Image.readWriteRegisters(60, src, 0, 100, 50, read, 0, 120);
+
+        assertArrayEquals(copy, src);
+        short[] expected = values(SIZE, 4);
+        System.arraycopy(src, 0, expected, 60, 100);
+        for (int i = 0; i < read.length; i++) {
+            assertEquals(expected[50 + i], read[i]);
+        }
+        short[] written = new short[100];
+        m_Image.readRegisters(60, written, 0, written.length);
+        assertArrayEquals(src, written);
+    }
+
+    @Test
+    public void bitRangesRoundTrip() {
+        byte[] coils = bits(131, 1);
+        byte[] discretes = bits(131, 2);
+        m_Image.writeCoils(60, 131, coils, 0);
+        m_Image.writeDiscretes(3, 131, discretes, 0);
+
+        byte[] read = new byte[coils.length];
+        Arrays.fill(read, (byte) 0xFF);
+        m_Image.readCoils(60, 131, read, 0);
+        assertArrayEquals(coils, read);
+        m_Image.readDiscretes(3, 131, read, 0);
+        assertArrayEquals(discretes, read);
+        assertEquals((coils[0] & 1) != 0, m_Image.getDigitalOut(60).isSet());
+    }
+
+    @Test(timeout = 60000)
+    public void concurrentReadsAreNeverTorn() throws Exception {
+        final int ref = 40;
+        final int count = 200;
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<String> torn = new AtomicReference<>();
+
+        Thread[] readers = new Thread[3];
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread(() -> {
+                short[] regs = new short[count];
+                byte[] coils = new byte[(count + 7) / 8];
+                while (!done.get() && torn.get() == null) {
+                    m_Image.readRegisters(ref, regs, 0, count);
+                    for (int i = 1; i < count; i++) {
+                        if (regs[i] != regs[0]) {
+                            torn.compareAndSet(null, "register " + (ref + i)
+                                    + " is " + regs[i] + ", not " + regs[0]);
+                        }
+                    }
+                    m_Image.readCoils(ref, count, coils, 0);
+                    for (int i = 1; i < count; i++) {
+                        boolean first = (coils[0] & 1) != 0;
+                        if (((coils[i / 8] & (1 << (i % 8))) != 0) != first) {
+                            torn.compareAndSet(null, "coil " + (ref + i)
+                                    + " differs from coil " + ref);
+                        }
+                    }
+                }
+            });
+            readers[r].start();
+        }
+
+        short[] regs = new short[count];
+        byte[] ones = new byte[(count + 7) / 8];
+        Arrays.fill(ones, (byte) 0xFF);
+        byte[] zeros = new byte[ones.length];
+        try {
+            for (int k = 0; k < 5000 && torn.get() == null; k++) {
+                Arrays.fill(regs, (short) k);
+                m_Image.writeRegisters(ref, regs, 0, count);
+                m_Image.writeCoils(ref, count, (k & 1) == 0 ? ones : zeros, 0);
+            }
+        } finally {
+            done.set(true);
+            for (Thread reader : readers) {
+                reader.join();
+            }
+        }
+        assertNull(torn.get());
+    }
+}
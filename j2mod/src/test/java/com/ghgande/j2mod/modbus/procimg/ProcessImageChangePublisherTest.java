@@ -0,0 +1,249 @@
+//License
+/**
+ * *
+ * Java Modbus Library (j2mod) Copyright 2012, Julianne Frances Haugh d/b/a
+ * greenHouse Gas and Electric All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. *
+ */
+package com.ghgande.j2mod.modbus.procimg;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ghgande.j2mod.modbus.procimg.ProcessImageChangePublisher.Policy;
+import com.ghgande.j2mod.modbus.procimg.ProcessImageChangePublisher.Subscriber;
+import com.ghgande.j2mod.modbus.procimg.ProcessImageChangePublisher.Subscription;
+import com.ghgande.j2mod.modbus.procimg.ProcessImageListener.Table;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for <tt>ProcessImageChangePublisher</tt>, delivering on the writing
+ * thread.
+ */
+public class ProcessImageChangePublisherTest {
+
+    private SimpleProcessImage m_Image;
+    private ProcessImageChangePublisher m_Publisher;
+
+    /**
+     * Subscriber recording the calls made to it.
+     */
+    private static class Recorder implements Subscriber {
+
+        final List<String> m_Calls = new ArrayList<>();
+        Subscription m_Subscription;
+        Throwable m_Error;
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            m_Subscription = subscription;
+        }
+
+        @Override
+        public void onNext(List<ValueChange> changes) {
+            StringBuilder sb = new StringBuilder();
+            for (ValueChange change : changes) {
+                if (sb.length() > 0) {
+                    sb.append(' ');
+                }
+                sb.append(change.getTable().name().charAt(0))
+                        .append(change.getAddress()).append(':')
+                        .append(change.getOldValue()).append('>')
+                        .append(change.getNewValue());
+            }
+            m_Calls.add(sb.toString());
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            m_Error = error;
+            m_Calls.add("error");
+        }
+
+        @Override
+        public void onComplete() {
+            m_Calls.add("complete");
+        }
+    }
+
+    @Before
+    public void setUp() {
+        m_Image = new SimpleProcessImage();
+        for (int i = 0; i < 5; i++) {
+            m_Image.addRegister(new SimpleRegister(0));
+            m_Image.addDigitalOut(new SimpleDigitalOut(false));
+        }
+        m_Publisher = new ProcessImageChangePublisher(m_Image, Runnable::run, 2);
+    }
+
+    private void writeRegisters(int ref, int... values) {
+        short[] words = new short[values.length];
+        for (int i = 0; i < values.length; i++) {
+            words[i] = (short) values[i];
+        }
+        m_Image.writeRegisters(ref, words, 0, words.length);
+    }
+
+    @Test
+    public void batchesAreDeliveredOnlyAsRequested() {
+        Recorder recorder = new Recorder();
+        m_Publisher.subscribe(recorder, Table.HOLDING_REGISTERS, 0, 5,
+                Policy.BUFFER, 16);
+
+        writeRegisters(0, 1, 2, 3);
+        assertEquals(0, recorder.m_Calls.size());
+
+        recorder.m_Subscription.request(1);
+        assertEquals("[H0:0>1 H1:0>2]", recorder.m_Calls.toString());
+        recorder.m_Subscription.request(2);
+        writeRegisters(3, 4);
+        assertEquals("[H0:0>1 H1:0>2, H2:0>3, H3:0>4]",
+                recorder.m_Calls.toString());
+        writeRegisters(4, 5);
+        assertEquals(3, recorder.m_Calls.size());
+
+        recorder.m_Subscription.request(Long.MAX_VALUE);
+        recorder.m_Subscription.request(Long.MAX_VALUE);
+        writeRegisters(0, 6);
+        assertEquals("[H0:0>1 H1:0>2, H2:0>3, H3:0>4, H4:0>5, H0:1>6]",
+                recorder.m_Calls.toString());
+
+        recorder.m_Subscription.request(0);
+        assertTrue(recorder.m_Error instanceof IllegalArgumentException);
+        assertEquals(0, m_Publisher.getSubscriberCount());
+    }
+
+    @Test
+    public void unchangedValuesAreNotPublished() {
+        Recorder recorder = new Recorder();
+        m_Publisher.subscribe(recorder);
+        recorder.m_Subscription.request(Long.MAX_VALUE);
+
+        writeRegisters(0, 0, 0);
+        writeRegisters(1, 0, 7);
+        assertEquals("[H2:0>7]", recorder.m_Calls.toString());
+    }
+
+    @Test
+    public void bufferOverflowFailsTheSubscription() {
+        Recorder recorder = new Recorder();
+        m_Publisher.subscribe(recorder, null, 0, 5, Policy.BUFFER, 2);
+
+        writeRegisters(0, 1, 2, 3);
+        assertEquals("[error]", recorder.m_Calls.toString());
+        assertTrue(recorder.m_Error instanceof IllegalStateException);
+        assertEquals(0, m_Publisher.getSubscriberCount());
+
+        recorder.m_Subscription.request(1);
+        writeRegisters(0, 4);
+        assertEquals(1, recorder.m_Calls.size());
+    }
+
+    @Test
+    public void conflatedChangesKeepTheOldestAndNewestValue() {
+        Recorder recorder = new Recorder();
+        m_Publisher.subscribe(recorder, Table.HOLDING_REGISTERS, 0, 5,
+                Policy.CONFLATE, 0);
+
+        writeRegisters(0, 1);
+        writeRegisters(0, 2);
+        writeRegisters(1, 7);
+        writeRegisters(1, 0);
+        writeRegisters(2, 3);
+        writeRegisters(0, 4);
+
+        recorder.m_Subscription.request(Long.MAX_VALUE);
+        assertEquals("[H2:0>3 H0:0>4]", recorder.m_Calls.toString());
+    }
+
+    @Test
+    public void changesOutsideTheSubscribedRangeAreFiltered() {
+        Recorder recorder = new Recorder();
+        m_Publisher.subscribe(recorder, Table.HOLDING_REGISTERS, 2, 2,
+                Policy.BUFFER, 16);
+        recorder.m_Subscription.request(Long.MAX_VALUE);
+
+        writeRegisters(0, 1, 2, 3, 4, 5);
+        m_Image.writeCoils(0, 5, new byte[]{0x1F}, 0);
+        assertEquals("[H2:0>3 H3:0>4]", recorder.m_Calls.toString());
+
+        Recorder coils = new Recorder();
+        m_Publisher.subscribe(coils, Table.COILS, 0, 5, Policy.BUFFER, 16);
+        coils.m_Subscription.request(Long.MAX_VALUE);
+        writeRegisters(0, 9);
+        m_Image.writeCoils(1, 2, new byte[]{0x01}, 0);
+        assertEquals("[C2:1>0]", coils.m_Calls.toString());
+    }
+
+    @Test
+    public void closeCompletesAfterTheKeptChanges() {
+        Recorder recorder = new Recorder();
+        m_Publisher.subscribe(recorder);
+
+        writeRegisters(0, 1, 2, 3);
+        m_Publisher.close();
+        assertEquals(0, recorder.m_Calls.size());
+
+        writeRegisters(4, 5);
+        recorder.m_Subscription.request(1);
+        assertEquals("[H0:0>1 H1:0>2]", recorder.m_Calls.toString());
+        recorder.m_Subscription.request(1);
+        assertEquals("[H0:0>1 H1:0>2, H2:0>3, complete]",
+                recorder.m_Calls.toString());
+        assertEquals(0, m_Publisher.getSubscriberCount());
+
+        Recorder late = new Recorder();
+        m_Publisher.subscribe(late);
+        assertEquals("[error]", late.m_Calls.toString());
+    }
+
+    @Test
+    public void rejectedDeliveryFailsTheSubscription() {
+        Executor rejecting = task -> {
+            throw new RejectedExecutionException();
+        };
+        ProcessImageChangePublisher publisher
+                = new ProcessImageChangePublisher(m_Image, rejecting);
+        Recorder recorder = new Recorder();
+        publisher.subscribe(recorder);
+
+        assertEquals("[error]", recorder.m_Calls.toString());
+        assertTrue(recorder.m_Error instanceof RejectedExecutionException);
+        assertTrue(recorder.m_Subscription != null);
+        assertEquals(0, publisher.getSubscriberCount());
+
+        writeRegisters(0, 1);
+        assertEquals(1, recorder.m_Calls.size());
+    }
+}
@@ -0,0 +1,91 @@
+//License
+/**
+ * *
+ * Java Modbus Library (j2mod) Copyright 2012, Julianne Frances Haugh d/b/a
+ * greenHouse Gas and Electric All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. *
+ */
+package com.ghgande.j2mod.modbus.procimg;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for <tt>SeqLockWords</tt>.
+ */
+public class SeqLockWordsTest {
+
+    @Test
+    public void packedRangesMatchAPlainArray() {
+        Random random = new Random(3);
+        SeqLockWords words = new SeqLockWords(301);
+        short[] expected = new short[301];
+        for (int n = 0; n < 2000; n++) {
+            int ref = random.nextInt(expected.length);
+            int count = random.nextInt(expected.length - ref + 1);
+            if (random.nextBoolean()) {
+                short[] src = new short[count + 1];
+                for (int i = 0; i < src.length; i++) {
+                    src[i] = (short) random.nextInt();
+                }
+                words.write(ref, src, 1, count);
+                System.arraycopy(src, 1, expected, ref, count);
+            } else {
+                int value = random.nextInt(0x10000);
+                words.set(ref, value);
+                expected[ref] = (short) value;
+            }
+
+            short[] dst = new short[count];
+            assertTrue(words.tryRead(ref, dst, 0, count));
+            short[] exclusive = new short[count];
+            words.readExclusive(ref, exclusive, 0, count);
+            for (int i = 0; i < count; i++) {
+                assertEquals(expected[ref + i], dst[i]);
+                assertEquals(expected[ref + i], exclusive[i]);
+            }
+            assertEquals(expected[ref] & 0xFFFF, words.get(ref));
+        }
+    }
+
+    @Test
+    public void growKeepsTheWords() {
+        SeqLockWords words = new SeqLockWords(3);
+        words.write(0, new short[]{1, -2, 3}, 0, 3);
+        SeqLockWords grown = words.grow(10, 100);
+        assertEquals(10, grown.capacity());
+        short[] dst = new short[4];
+        grown.readExclusive(0, dst, 0, 4);
+        assertArrayEquals(new short[]{1, -2, 3, 0}, dst);
+        assertEquals(0xFFFE, grown.get(1));
+    }
+}
@@ -0,0 +1,163 @@
+//License
+/**
+ * *
+ * Java Modbus Library (j2mod) Copyright 2012, Julianne Frances Haugh d/b/a
+ * greenHouse Gas and Electric All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. *
+ */
+package com.ghgande.j2mod.modbus.procimg;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.ghgande.j2mod.modbus.msg.ReadInputRegistersRequest;
+import com.ghgande.j2mod.modbus.msg.ReadInputRegistersResponse;
+import com.ghgande.j2mod.modbus.msg.ReadMultipleRegistersRequest;
+import com.ghgande.j2mod.modbus.msg.ReadMultipleRegistersResponse;
+import com.ghgande.j2mod.modbus.msg.ReadWriteMultipleRequest;
+import com.ghgande.j2mod.modbus.msg.ReadWriteMultipleResponse;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Tests for the range methods of <tt>SimpleProcessImage</tt>.
+ */
+public class SimpleProcessImageTest {
+
+    private static SimpleProcessImage createImage(final AtomicInteger reads) {
+        SimpleProcessImage image = new SimpleProcessImage() {
+            @Override
+            public void readRegisters(int ref, short[] dst, int off,
+                    int count) {
+                reads.incrementAndGet();
+                super.readRegisters(ref, dst, off, count);
+            }
+
+            @Override
+            public void readInputRegisters(int ref, short[] dst, int off,
+                    int count) {
+                reads.incrementAndGet();
+                super.readInputRegisters(ref, dst, off, count);
+            }
+        };
+        for (int i = 0; i < 8; i++) {
+            image.addRegister(new SimpleRegister(i));
+            image.addInputRegister(new SimpleInputRegister(100 + i));
+            image.addDigitalOut(new SimpleDigitalOut(false));
+            image.addDigitalIn(new SimpleDigitalIn(false));
+        }
+        return image;
+    }
+
+    @Test
+    public void registerReadsUseTheRangeMethods() {
+        AtomicInteger reads = new AtomicInteger();
+        SimpleProcessImage image = createImage(reads);
+
+        ReadMultipleRegistersResponse holding = (ReadMultipleRegistersResponse)
+                new ReadMultipleRegistersRequest(2, 3).createResponse(image);
+        ReadInputRegistersResponse input = (ReadInputRegistersResponse)
+                new ReadInputRegistersRequest(5, 2).createResponse(image);
+
+        assertEquals(2, reads.get());
+        assertEquals(2, holding.getRegisterValue(0));
+        assertEquals(4, holding.getRegisterValue(2));
+        assertEquals(105, input.getRegisterValue(0));
+        assertEquals(106, input.getRegisterValue(1));
+    }
+
+    @Test
+    public void readWriteFiresAfterReleasingTheMonitor() {
+        final SimpleProcessImage image = createImage(new AtomicInteger());
+        final AtomicInteger fired = new AtomicInteger();
+        final AtomicInteger locked = new AtomicInteger();
+        image.addProcessImageListener(new ProcessImageListener() {
+            @Override
+            public void rangeChanged(ProcessImage source, Table table, int ref,
+                    int count) {
+                fired.incrementAndGet();
+                if (Thread.holdsLock(image)) {
+                    locked.incrementAndGet();
+                }
+                assertEquals(Table.HOLDING_REGISTERS, table);
+                assertEquals(1, ref);
+                assertEquals(2, count);
+            }
+        });
+
+        ReadWriteMultipleRequest request
+                = new ReadWriteMultipleRequest(1, 0, 4, 1, 2);
+        request.setRegisters(new Register[]{
+            new SimpleRegister(11), new SimpleRegister(12)});
+        ReadWriteMultipleResponse response
+                = (ReadWriteMultipleResponse) request.createResponse(image);
+
+        assertEquals(1, fired.get());
+        assertEquals(0, locked.get());
+        assertEquals(0, response.getRegisterValue(0));
+        assertEquals(11, response.getRegisterValue(1));
+        assertEquals(12, response.getRegisterValue(2));
+        assertEquals(3, response.getRegisterValue(3));
+    }
+
+    @Test
+    public void readWriteChecksBothRangesBeforeWriting() {
+        SimpleProcessImage image = createImage(new AtomicInteger());
+        try {
+            image.readWriteRegisters(0, new short[]{7}, 0, 1, 6, new short[4],
+                    0, 4);
+        } catch (IllegalAddressException expected) {
+            assertEquals(0, image.getRegister(0).getValue());
+            return;
+        }
+        throw new AssertionError("no IllegalAddressException");
+    }
+
+    @Test
+    public void defaultRangeMethodsRoundTrip() {
+        SimpleProcessImage image = createImage(new AtomicInteger());
+
+        short[] values = {-1, 0x1234, 7};
+        short[] read = new short[3];
+        image.writeInputRegisters(3, values, 0, 3);
+        image.readInputRegisters(3, read, 0, 3);
+        assertArrayEquals(values, read);
+
+        byte[] bits = {(byte) 0xA5};
+        byte[] readBits = {(byte) 0xFF};
+        image.writeCoils(0, 7, bits, 0);
+        image.readCoils(0, 7, readBits, 0);
+        assertEquals(0x25, readBits[0]);
+        image.writeDiscretes(1, 7, bits, 0);
+        image.readDiscretes(1, 7, readBits, 0);
+        assertEquals(0x25, readBits[0]);
+        assertFalse(image.getDigitalIn(0).isSet());
+    }
+}
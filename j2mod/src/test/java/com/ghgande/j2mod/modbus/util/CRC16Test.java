@@ -0,0 +1,119 @@
+//License
+/**
+ * *
+ * Java Modbus Library (j2mod) Copyright 2012, Julianne Frances Haugh d/b/a
+ * greenHouse Gas and Electric All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. *
+ */
+package com.ghgande.j2mod.modbus.util;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for <tt>CRC16</tt>.
+ */
+public class CRC16Test {
+
+    /**
+     * The CRC computed one bit at a time, as in the Modbus specification.
+     */
+    private static int reference(byte[] b, int off, int len) {
+        int crc = 0xFFFF;
+        for (int i = off; i < off + len; i++) {
+            crc ^= b[i] & 0xFF;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = ((crc & 1) != 0) ? (crc >>> 1) ^ 0xA001 : crc >>> 1;
+            }
+        }
+        return crc;
+    }
+
+    @Test
+    public void knownValues() {
+        assertEquals(0x4B37, CRC16.calculate("123456789".getBytes(), 0, 9));
+        // Read holding registers 0-9 of unit 1, sent as ... C5 CD.
+        assertEquals(0xCDC5, CRC16.calculate(new byte[]{1, 3, 0, 0, 0, 10},
+                0, 6));
+        assertEquals(CRC16.INITIAL_VALUE, CRC16.calculate(new byte[0], 0, 0));
+    }
+
+    @Test
+    public void matchesBitwiseCalculation() {
+        Random random = new Random(1);
+        byte[] data = new byte[300];
+        random.nextBytes(data);
+        for (int off = 0; off < 9; off++) {
+            for (int len = 0; len <= data.length - off; len += 1 + len / 8) {
+                int expected = reference(data, off, len);
+                assertEquals(expected, CRC16.calculate(data, off, len));
+                assertEquals(expected,
+                        CRC16.calculate(ByteBuffer.wrap(data), off, len));
+                assertEquals(expected, CRC16.calculate(
+                        ByteBuffer.allocateDirect(data.length).put(data), off,
+                        len));
+            }
+        }
+    }
+
+    @Test
+    public void incrementalUpdate() {
+        byte[] data = new byte[100];
+        new Random(2).nextBytes(data);
+        CRC16 crc = new CRC16();
+        crc.update(data, 0, 13);
+        crc.update(data[13]);
+        crc.update(ByteBuffer.wrap(data, 14, 86));
+        assertEquals(reference(data, 0, 100), crc.getCRC());
+        assertEquals(reference(data, 0, 100), crc.getValue());
+
+        crc.reset();
+        assertEquals(CRC16.INITIAL_VALUE, crc.getCRC());
+    }
+
+    @Test
+    public void validatesFrames() {
+        byte[] frame = {1, 3, 0, 0, 0, 10, (byte) 0xC5, (byte) 0xCD};
+        assertTrue(CRC16.isValid(frame, 0, frame.length));
+        assertTrue(CRC16.isValid(ByteBuffer.wrap(frame), 0, frame.length));
+
+        frame[3] = 1;
+        assertFalse(CRC16.isValid(frame, 0, frame.length));
+        assertFalse(CRC16.isValid(frame, 0, 1));
+    }
+
+    @Test(expected = ArrayIndexOutOfBoundsException.class)
+    public void rejectsBadBounds() {
+        CRC16.calculate(new byte[4], 2, 3);
+    }
+}
@@ -0,0 +1,123 @@
+//License
+/**
+ * *
+ * Java Modbus Library (j2mod) Copyright 2012, Julianne Frances Haugh d/b/a
+ * greenHouse Gas and Electric All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific
+ * prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. *
+ */
+package com.ghgande.j2mod.modbus.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for <tt>TimerWheel</tt>.
+ */
+public class TimerWheelTest {
+
+    private TimerWheel m_Wheel;
+
+    @Before
+    public void setUp() {
+        // A short wheel, so longer delays take several rounds.
+        m_Wheel = new TimerWheel("TimerWheelTest", 5, 8);
+    }
+
+    @After
+    public void tearDown() {
+        m_Wheel.stop();
+    }
+
+    @Test(timeout = 10000)
+    public void firesNoEarlierThanTheDelay() throws InterruptedException {
+        long[] delays = {0, 3, 20, 100, 250};
+        CountDownLatch latch = new CountDownLatch(delays.length);
+        long[] fired = new long[delays.length];
+        long start = System.nanoTime();
+        for (int i = 0; i < delays.length; i++) {
+            final int index = i;
+            m_Wheel.schedule(() -> {
+                fired[index] = System.nanoTime();
+                latch.countDown();
+            }, delays[i], TimeUnit.MILLISECONDS);
+        }
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < delays.length; i++) {
+            assertTrue("timeout " + i + " fired early", fired[i] - start
+                    >= TimeUnit.MILLISECONDS.toNanos(delays[i]));
+        }
+        assertEquals(0, m_Wheel.getPendingCount());
+    }
+
+    @Test(timeout = 10000)
+    public void cancelledTimeoutsDoNotFire() throws InterruptedException {
+        AtomicInteger fired = new AtomicInteger();
+        TimerWheel.Timeout cancelled = m_Wheel.schedule(
+                fired::incrementAndGet, 30, TimeUnit.MILLISECONDS);
+        CountDownLatch latch = new CountDownLatch(1);
+        TimerWheel.Timeout kept = m_Wheel.schedule(latch::countDown, 60,
+                TimeUnit.MILLISECONDS);
+        assertEquals(2, m_Wheel.getPendingCount());
+
+        assertTrue(cancelled.cancel());
+        assertFalse(cancelled.cancel());
+        assertEquals(1, m_Wheel.getPendingCount());
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        assertEquals(0, fired.get());
+        assertFalse(cancelled.isExpired());
+        assertTrue(kept.isExpired());
+        assertFalse(kept.cancel());
+    }
+
+    @Test(timeout = 10000)
+    public void failingTaskDoesNotStopTheWheel() throws InterruptedException {
+        m_Wheel.schedule(() -> {
+            throw new IllegalStateException("test");
+        }, 0, TimeUnit.MILLISECONDS);
+        CountDownLatch latch = new CountDownLatch(1);
+        m_Wheel.schedule(latch::countDown, 20, TimeUnit.MILLISECONDS);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsSchedulingWhenStopped() {
+        m_Wheel.stop();
+        m_Wheel.schedule(() -> {
+        }, 0, TimeUnit.MILLISECONDS);
+    }
+}